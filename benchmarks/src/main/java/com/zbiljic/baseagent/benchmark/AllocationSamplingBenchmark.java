@@ -0,0 +1,76 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import com.zbiljic.baseagent.instrumentation.allocation.AllocationSampling;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Measures the overhead of {@link AllocationSampling} on a method which does nothing but allocate
+ * an object, two arrays and a builder, with the default sampling interval. This is the worst case:
+ * the overhead per allocation is constant, so it is a smaller share of methods doing actual work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class AllocationSamplingBenchmark {
+
+  @Param({"true", "false"})
+  public boolean sampled;
+
+  private Callable<?> allocating;
+
+  @Setup
+  public void setUp() throws Exception {
+    final String typeName = Allocating.class.getName();
+    byte[] bytes = ClassFileLocator.ForClassLoader.read(Allocating.class).resolve();
+    if (sampled) {
+      bytes = Registry.type(named(typeName))
+        .visit(new AllocationSampling().on(any()))
+        .register(new AgentBuilder.Default())
+        .makeRaw()
+        .transform(getClass().getClassLoader(), typeName.replace('.', '/'), null, null, bytes);
+    }
+    allocating = (Callable<?>) new ByteArrayClassLoader.ChildFirst(getClass().getClassLoader(),
+      Collections.singletonMap(typeName, bytes)).loadClass(typeName).newInstance();
+  }
+
+  @Benchmark
+  public Object allocate() throws Exception {
+    return allocating.call();
+  }
+
+  public static class Allocating implements Callable<Object> {
+
+    private int length = 4;
+
+    @Override
+    public Object call() {
+      return new Object[]{new Object(), new long[length], new StringBuilder(length)};
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrument.AgentAttacher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AgentAttacher#performRuntimeAttachment()} end to end, including the self-attach
+ * and the retransformation of all loaded classes. The attachment can only be performed once per
+ * JVM, so every measurement is a single shot in a fresh fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, jvmArgsAppend = {
+  "-Djdk.attach.allowAttachSelf=true",
+  ClassNames.INCLUDE, ClassNames.EXCLUDE, ClassNames.EXCLUDE_CONTAINING
+})
+public class AttachBenchmark {
+
+  @Benchmark
+  public void performRuntimeAttachment() {
+    AgentAttacher.performRuntimeAttachment();
+  }
+}
@@ -0,0 +1,64 @@
+package com.zbiljic.baseagent.benchmark;
+
+import net.bytebuddy.matcher.ElementMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import static com.zbiljic.baseagent.instrumentation.ClassLoaderNameMatcher.classLoaderWithName;
+import static com.zbiljic.baseagent.instrumentation.ClassLoaderNameMatcher.isReflectionClassLoader;
+
+/**
+ * Measures the class loader matchers which the agent evaluates for every class before matching
+ * its name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ClassLoaderNameMatcherBenchmark {
+
+  @Param({"bootstrap", "system", "url"})
+  public String classLoader;
+
+  private ClassLoader target;
+  private ElementMatcher<ClassLoader> reflectionClassLoader;
+  private ElementMatcher<ClassLoader> groovyCallSiteClassLoader;
+
+  @Setup
+  public void setUp() {
+    if (classLoader.equals("bootstrap")) {
+      target = null;
+    } else if (classLoader.equals("system")) {
+      target = ClassLoader.getSystemClassLoader();
+    } else {
+      target = new URLClassLoader(new URL[0], ClassLoader.getSystemClassLoader());
+    }
+    reflectionClassLoader = isReflectionClassLoader();
+    groovyCallSiteClassLoader = classLoaderWithName("org.codehaus.groovy.runtime.callsite.CallSiteClassLoader");
+  }
+
+  @Benchmark
+  public boolean isReflectionClassLoaderMatches() {
+    return reflectionClassLoader.matches(target);
+  }
+
+  @Benchmark
+  public boolean ignoredClassLoadersMatch() {
+    return reflectionClassLoader.matches(target) || groovyCallSiteClassLoader.matches(target);
+  }
+}
@@ -0,0 +1,51 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrument.ConfigurationClassNameMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ConfigurationClassNameMatcher#shouldIgnore(String)}, which is called for every
+ * class the agent sees, with the rules of a typical configuration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {
+  ClassNames.INCLUDE, ClassNames.EXCLUDE, ClassNames.EXCLUDE_CONTAINING
+})
+public class ClassNameRulesBenchmark {
+
+  private static final int NAMES = 1024;
+
+  private String[] names;
+
+  @Setup
+  public void setUp() {
+    names = ClassNames.generate(NAMES, 42).toArray(new String[NAMES]);
+    // initializes the rules outside of the measurement
+    ConfigurationClassNameMatcher.shouldIgnore(names[0]);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NAMES)
+  public void shouldIgnore(Blackhole blackhole) {
+    for (String name : names) {
+      blackhole.consume(ConfigurationClassNameMatcher.shouldIgnore(name));
+    }
+  }
+}
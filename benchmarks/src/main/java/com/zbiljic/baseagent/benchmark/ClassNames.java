@@ -0,0 +1,47 @@
+package com.zbiljic.baseagent.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A synthetic, but realistically distributed, corpus of class names as they are seen by the agent
+ * while an application server starts.
+ */
+final class ClassNames {
+
+  private ClassNames() { /* No instance methods */ }
+
+  private static final String[] PACKAGES = {
+    "java.lang.", "java.util.", "java.util.concurrent.", "sun.reflect.", "javax.servlet.http.",
+    "org.springframework.beans.factory.support.", "org.springframework.web.servlet.mvc.method.annotation.",
+    "org.springframework.context.annotation.", "org.hibernate.engine.internal.", "org.hibernate.loader.plan.exec.",
+    "org.apache.catalina.core.", "org.apache.tomcat.util.net.", "com.fasterxml.jackson.databind.deser.std.",
+    "io.netty.channel.nio.", "com.acme.shop.web.", "com.acme.shop.service.", "com.acme.shop.repository.",
+    "com.acme.shop.internal.generated.", "com.acme.billing.api.", "com.acme.billing.internal."
+  };
+
+  private static final String[] SUFFIXES = {
+    "", "", "", "", "", "Impl", "Factory", "$1", "$Builder", "$$EnhancerBySpringCGLIB$$5f1e2a",
+    "$$FastClassBySpringCGLIB$$a9c3", "_$$_jvst7a1_0", "$HibernateProxy$Xy3z"
+  };
+
+  // the rules of a typical configuration, passed to the forked benchmark JVMs as system properties
+  static final String INCLUDE =
+    "-Dbaseagent.instrument.include=com.acme., org.springframework.web., org.hibernate.loader.";
+  static final String EXCLUDE =
+    "-Dbaseagent.instrument.exclude=com.acme.shop.internal., com.acme.billing.internal., org.hibernate.loader.plan.";
+  static final String EXCLUDE_CONTAINING =
+    "-Dbaseagent.instrument.excludeContaining=$$, CGLIB, _$$_jvst, $HibernateProxy$, $Proxy";
+
+  static List<String> generate(int count, long seed) {
+    Random random = new Random(seed);
+    List<String> names = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      names.add(PACKAGES[random.nextInt(PACKAGES.length)]
+        + "Type" + random.nextInt(1000)
+        + SUFFIXES[random.nextInt(SUFFIXES.length)]);
+    }
+    return names;
+  }
+}
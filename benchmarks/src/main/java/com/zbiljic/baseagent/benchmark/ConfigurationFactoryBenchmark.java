@@ -0,0 +1,77 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.configuration.ConfigurationFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating and binding the agent configuration and reading single typed properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConfigurationFactoryBenchmark {
+
+  private Properties properties;
+  private ConfigurationFactory configurationFactory;
+
+  @Setup
+  public void setUp() {
+    properties = new Properties();
+    properties.setProperty("baseagent.instrument.include", "com.acme., org.springframework.web., org.hibernate.loader.");
+    properties.setProperty("baseagent.instrument.exclude", "com.acme.shop.internal., com.acme.billing.internal.");
+    properties.setProperty("baseagent.instrument.excludeContaining", "$$, CGLIB, _$$_jvst");
+    properties.setProperty("baseagent.instrument.retransformBatchSize", "500");
+    properties.setProperty("baseagent.instrument.debug", "false");
+    // the system properties make up most of the properties in a real application
+    configurationFactory = ConfigurationFactory.create(properties).addSystemProperties();
+  }
+
+  @Benchmark
+  public BaseAgentConfiguration createAndBind() {
+    // like the agent on startup, with a few overrides on top
+    return ConfigurationFactory.create()
+      .addSystemProperties()
+      .addSystemEnv()
+      .addPropertiesFromResource("/baseagent.properties")
+      .addProperties(properties)
+      .addProperty("baseagent.instrument.debug", "true")
+      .bind(BaseAgentConfiguration.class);
+  }
+
+  @Benchmark
+  public BaseAgentConfiguration bind() {
+    return configurationFactory.bind(BaseAgentConfiguration.class);
+  }
+
+  @Benchmark
+  public Integer getIntegerProperty() {
+    return configurationFactory.getProperty("baseagent.instrument.retransformBatchSize", Integer.class);
+  }
+
+  @Benchmark
+  public Boolean getBooleanProperty() {
+    return configurationFactory.getProperty("baseagent.instrument.debug", Boolean.class);
+  }
+
+  @Benchmark
+  public Collection<?> getCollectionProperty() {
+    return configurationFactory.getProperty("baseagent.instrument.include", Collection.class);
+  }
+}
@@ -0,0 +1,63 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.configuration.ConfigurationFactory;
+import com.zbiljic.baseagent.configuration.LiveBinding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading values from a bound configuration object, whose values are fixed, to reading
+ * them from a live binding, which reads them from its latest snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LiveBindingBenchmark {
+
+  private BaseAgentConfiguration fixed;
+  private BaseAgentConfiguration live;
+
+  @Setup
+  public void setUp() {
+    ConfigurationFactory configurationFactory = ConfigurationFactory.create().addSystemProperties();
+    fixed = configurationFactory.bind(BaseAgentConfiguration.class);
+    LiveBinding<BaseAgentConfiguration> binding = configurationFactory.bindLive(BaseAgentConfiguration.class);
+    live = binding.get();
+    // a reloaded binding is read like one which was never reloaded
+    binding.reload();
+  }
+
+  @Benchmark
+  public Integer fixedInt() {
+    return fixed.getProfilerSamplingInterval();
+  }
+
+  @Benchmark
+  public Integer liveInt() {
+    return live.getProfilerSamplingInterval();
+  }
+
+  @Benchmark
+  public Boolean fixedBoolean() {
+    return fixed.isDebugInstrumentation();
+  }
+
+  @Benchmark
+  public Boolean liveBoolean() {
+    return live.isDebugInstrumentation();
+  }
+}
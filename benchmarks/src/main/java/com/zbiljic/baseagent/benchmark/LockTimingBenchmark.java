@@ -0,0 +1,86 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import com.zbiljic.baseagent.instrumentation.lock.LockTiming;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Measures the overhead of {@link LockTiming} on uncontended acquisitions, on a method which does
+ * nothing but acquire a <code>ReentrantLock</code> and enter a monitor. A single thread runs the
+ * benchmark, so that the locks are never contended.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(1)
+public class LockTimingBenchmark {
+
+  @Param({"true", "false"})
+  public boolean timed;
+
+  private Callable<?> locking;
+
+  @Setup
+  public void setUp() throws Exception {
+    final String typeName = Locking.class.getName();
+    byte[] bytes = ClassFileLocator.ForClassLoader.read(Locking.class).resolve();
+    if (timed) {
+      bytes = Registry.type(named(typeName))
+        .visit(new LockTiming().on(any()))
+        .register(new AgentBuilder.Default())
+        .makeRaw()
+        .transform(getClass().getClassLoader(), typeName.replace('.', '/'), null, null, bytes);
+    }
+    locking = (Callable<?>) new ByteArrayClassLoader.ChildFirst(getClass().getClassLoader(),
+      Collections.singletonMap(typeName, bytes)).loadClass(typeName).newInstance();
+  }
+
+  @Benchmark
+  public Object lock() throws Exception {
+    return locking.call();
+  }
+
+  public static class Locking implements Callable<Object> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Object monitor = new Object();
+    private long count;
+
+    @Override
+    public Object call() {
+      lock.lock();
+      try {
+        synchronized (monitor) {
+          return ++count;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import net.bytebuddy.implementation.MethodCall;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Measures the overhead of {@link Registry.Builder#timed} on a method which only reads
+ * {@link System#nanoTime()}, with four threads and with one thread per processor calling it
+ * concurrently, so that contention on the latency histogram of the method shows as a growing
+ * difference to the untimed method. Run with {@code -prof gc} to verify that timed invocations do
+ * not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class MethodTimingBenchmark {
+
+  private static final String TYPE_NAME = "corpus.timing.Handler";
+
+  @Param({"true", "false"})
+  public boolean timed;
+
+  private Callable<?> handler;
+
+  @Setup
+  public void setUp() throws Exception {
+    byte[] bytes = new ByteBuddy()
+      .subclass(Object.class)
+      .implement(Callable.class)
+      .name(TYPE_NAME)
+      .defineMethod("handle", long.class, Visibility.PUBLIC)
+      .intercept(MethodCall.invoke(System.class.getMethod("nanoTime")))
+      .method(named("call"))
+      .intercept(MethodCall.invoke(named("handle")))
+      .make()
+      .getBytes();
+    if (timed) {
+      bytes = Registry.type(named(TYPE_NAME))
+        .timed(named("handle"), "benchmark")
+        .register(new AgentBuilder.Default())
+        .makeRaw()
+        .transform(getClass().getClassLoader(), TYPE_NAME.replace('.', '/'), null, null, bytes);
+    }
+    handler = (Callable<?>) new ByteArrayClassLoader(getClass().getClassLoader(),
+      Collections.singletonMap(TYPE_NAME, bytes)).loadClass(TYPE_NAME).newInstance();
+  }
+
+  @Benchmark
+  public Object handle() throws Exception {
+    return handler.call();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object handleOnAllProcessors() throws Exception {
+    return handler.call();
+  }
+}
@@ -0,0 +1,78 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrument.AgentAttacher;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the runtime attachment with the loaded classes matched serially by Byte Buddy to the
+ * attachment with the classes pre-matched in parallel, see
+ * {@code baseagent.instrument.parallelMatchingThreads}. Before attaching, every fork loads a
+ * corpus of generated classes in addition to the classes of the JVM and JMH.
+ * <p>
+ * Without the profiler no Instrumenter is registered, so all classes can be rejected by name. The
+ * profiler matches the included types with a matcher the prefilter cannot evaluate by name, so only
+ * the ignored classes are dropped before Byte Buddy matches the rest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, jvmArgsAppend = {
+  "-Djdk.attach.allowAttachSelf=true",
+  ClassNames.EXCLUDE, ClassNames.EXCLUDE_CONTAINING,
+  "-Dbaseagent.instrument.include=com.acme.billing.api."
+})
+public class ParallelMatchingBenchmark {
+
+  @Param({"0", "4"})
+  public int threads;
+
+  @Param({"false", "true"})
+  public boolean profiler;
+
+  @Param({"20000"})
+  public int classes;
+
+  // keeps the generated classes loaded
+  private ClassLoader classLoader;
+
+  @Setup
+  public void setUp() throws Exception {
+    // read when the agent configuration is created by the first attachment
+    System.setProperty("baseagent.instrument.parallelMatchingThreads", Integer.toString(threads));
+    System.setProperty("baseagent.profiler.active", Boolean.toString(profiler));
+
+    Map<String, byte[]> types = new HashMap<String, byte[]>();
+    for (String name : ClassNames.generate(classes, 42)) {
+      if (!name.startsWith("java.") && !types.containsKey(name)) {
+        types.put(name, new ByteBuddy().subclass(Object.class).name(name).make().getBytes());
+      }
+    }
+    classLoader = new ByteArrayClassLoader(getClass().getClassLoader(), types);
+    for (String name : types.keySet()) {
+      Class.forName(name, false, classLoader);
+    }
+  }
+
+  @Benchmark
+  public void performRuntimeAttachment() {
+    AgentAttacher.performRuntimeAttachment();
+  }
+}
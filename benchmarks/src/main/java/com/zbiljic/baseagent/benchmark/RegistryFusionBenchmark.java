@@ -0,0 +1,135 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.FixedValue;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.utility.JavaModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.isMethod;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+
+/**
+ * Compares fused {@link Registry} registrations with the same registrations applied as separate
+ * decorating transformations. Every class of the corpus is matched by a number of registrations
+ * which share a few matchers, as when several Instrumenters target the same framework classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class RegistryFusionBenchmark {
+
+  private static final int CLASSES = 200;
+  private static final String CORPUS_PACKAGE = "corpus.fusion.";
+
+  private static final List<ElementMatcher<? super TypeDescription>> MATCHERS =
+    Arrays.<ElementMatcher<? super TypeDescription>>asList(
+      nameStartsWith(CORPUS_PACKAGE),
+      nameStartsWith(CORPUS_PACKAGE + "Type"),
+      not(named(CORPUS_PACKAGE + "None")));
+
+  @Param({"true", "false"})
+  public boolean fused;
+
+  @Param({"3", "15"})
+  public int registrations;
+
+  private ClassFileTransformer transformer;
+  private ClassLoader classLoader;
+  private String[] internalNames;
+  private byte[][] binaryRepresentations;
+
+  @Setup
+  public void setUp() {
+    classLoader = new URLClassLoader(new URL[0], ClassLoader.getSystemClassLoader());
+    internalNames = new String[CLASSES];
+    binaryRepresentations = new byte[CLASSES][];
+    for (int i = 0; i < CLASSES; i++) {
+      DynamicType.Builder<Object> builder = new ByteBuddy()
+        .subclass(Object.class)
+        .name(CORPUS_PACKAGE + "Type" + i);
+      for (int j = 0; j < 10; j++) {
+        builder = builder.defineMethod("method" + j, int.class, Visibility.PUBLIC).intercept(FixedValue.value(j));
+      }
+      DynamicType.Unloaded<Object> type = builder.make();
+      internalNames[i] = type.getTypeDescription().getInternalName();
+      binaryRepresentations[i] = type.getBytes();
+    }
+
+    final AsmVisitorWrapper advice = Advice.to(CountingAdvice.class).on(isMethod());
+    AgentBuilder agentBuilder = new AgentBuilder.Default();
+    final Registry.Fusion fusion = fused ? Registry.Fusion.begin() : null;
+    for (int i = 0; i < registrations; i++) {
+      final ElementMatcher<? super TypeDescription> matcher = MATCHERS.get(i % MATCHERS.size());
+      if (fused) {
+        agentBuilder = Registry.type(matcher).visit(advice).register(agentBuilder);
+      } else {
+        // decorating, so that all registrations are applied as with fusion
+        agentBuilder = agentBuilder.type(matcher)
+          .transform(new AgentBuilder.Transformer() {
+            @Override
+            public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder,
+                                                    TypeDescription typeDescription,
+                                                    ClassLoader classLoader,
+                                                    JavaModule module) {
+              return builder.visit(advice);
+            }
+          })
+          .asDecorator();
+      }
+    }
+    if (fusion != null) {
+      agentBuilder = fusion.end(agentBuilder);
+    }
+    transformer = agentBuilder.makeRaw();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CLASSES)
+  public void transform(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < CLASSES; i++) {
+      blackhole.consume(transformer.transform(classLoader, internalNames[i], null, null, binaryRepresentations[i]));
+    }
+  }
+
+  public static class CountingAdvice {
+
+    public static volatile long invocations;
+
+    @Advice.OnMethodEnter
+    static void enter() {
+      invocations++;
+    }
+  }
+}
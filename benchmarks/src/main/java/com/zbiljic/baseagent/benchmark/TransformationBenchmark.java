@@ -0,0 +1,99 @@
+package com.zbiljic.baseagent.benchmark;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.FixedValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.isMethod;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+
+/**
+ * Measures the throughput of the {@link ClassFileTransformer} of an agent with a single
+ * {@link Registry} registration, over a corpus of synthetic classes which are either all matched
+ * and transformed, or all rejected by the type matcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class TransformationBenchmark {
+
+  private static final int CLASSES = 200;
+  private static final String CORPUS_PACKAGE = "corpus.synthetic.";
+
+  @Param({"true", "false"})
+  public boolean matching;
+
+  @Param({"5", "50"})
+  public int methods;
+
+  private ClassFileTransformer transformer;
+  private ClassLoader classLoader;
+  private String[] internalNames;
+  private byte[][] binaryRepresentations;
+
+  @Setup
+  public void setUp() {
+    classLoader = new URLClassLoader(new URL[0], ClassLoader.getSystemClassLoader());
+    internalNames = new String[CLASSES];
+    binaryRepresentations = new byte[CLASSES][];
+    for (int i = 0; i < CLASSES; i++) {
+      DynamicType.Builder<Object> builder = new ByteBuddy()
+        .subclass(Object.class)
+        .name(CORPUS_PACKAGE + "Type" + i);
+      for (int j = 0; j < methods; j++) {
+        builder = builder.defineMethod("method" + j, int.class, Visibility.PUBLIC).intercept(FixedValue.value(j));
+      }
+      DynamicType.Unloaded<Object> type = builder.make();
+      internalNames[i] = type.getTypeDescription().getInternalName();
+      binaryRepresentations[i] = type.getBytes();
+    }
+
+    transformer = Registry.type(nameStartsWith(matching ? CORPUS_PACKAGE : "corpus.none."))
+      .visit(Advice.to(CountingAdvice.class).on(isMethod()))
+      .register(new AgentBuilder.Default())
+      .makeRaw();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CLASSES)
+  public void transform(Blackhole blackhole) throws Exception {
+    for (int i = 0; i < CLASSES; i++) {
+      blackhole.consume(transformer.transform(classLoader, internalNames[i], null, null, binaryRepresentations[i]));
+    }
+  }
+
+  public static class CountingAdvice {
+
+    public static volatile long invocations;
+
+    @Advice.OnMethodEnter
+    static void enter() {
+      invocations++;
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.zbiljic.baseagent;
 
 import com.zbiljic.baseagent.configuration.ConfigurationFactory;
 import com.zbiljic.baseagent.instrument.AgentAttacher;
+import com.zbiljic.baseagent.instrument.AttachStatus;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,7 +27,15 @@ public final class BaseAgent {
     }
   }
 
+  /**
+   * Attaches the agent. If <code>baseagent.instrument.asyncAttach</code> is set, the agent is
+   * attached in the background as by {@link #initAsync()}.
+   */
   public static synchronized void init() {
+    if (configuration.isAsyncAttach()) {
+      initAsync();
+      return;
+    }
     if (!initialized) {
       try {
         initialized = true;
@@ -41,6 +50,20 @@ public final class BaseAgent {
     }
   }
 
+  /**
+   * Attaches the agent on a low-priority daemon thread and returns immediately.
+   *
+   * @return the status of the attachment, which can be used to wait for the instrumentation
+   */
+  public static synchronized AttachStatus initAsync() {
+    if (!initialized) {
+      initialized = true;
+      AgentAttacher.performRuntimeAttachmentAsync();
+      logStatus();
+    }
+    return AgentAttacher.getAttachStatus();
+  }
+
   private static void logStatus() {
     logger.log(Level.INFO, "# baseagent status");
     logger.log(Level.INFO, "System information: {0}", getJvmAndOsVersionString());
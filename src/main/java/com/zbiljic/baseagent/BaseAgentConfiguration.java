@@ -47,6 +47,42 @@ public interface BaseAgentConfiguration {
   )
   Boolean isAttachAgentAtRuntime();
 
+  @Config(
+    value = "baseagent.instrument.asyncAttach",
+    label = "Attach agent asynchronously",
+    description = "Attaches the agent at runtime on a low-priority background thread, so that `BaseAgent.init()` "
+      + "returns immediately. Use `BaseAgent.initAsync()` to track the progress of the attachment.",
+    defaultValue = "false"
+  )
+  Boolean isAsyncAttach();
+
+  @Config(
+    value = "baseagent.instrument.retransformBatchSize",
+    label = "Retransformation batch size",
+    description = "The number of already loaded classes which are retransformed together when the agent is "
+      + "attached at runtime. Smaller batches shorten the individual pauses of the application. "
+      + "Set to `0` to retransform all classes at once.",
+    defaultValue = "0"
+  )
+  Integer getRetransformBatchSize();
+
+  @Config(
+    value = "baseagent.instrument.retransformBatchTargetMillis",
+    label = "Retransformation batch target time",
+    description = "If set, the size of the retransformation batches is adapted so that each batch takes about "
+      + "the given number of milliseconds, starting at `baseagent.instrument.retransformBatchSize`.",
+    defaultValue = "0"
+  )
+  Integer getRetransformBatchTargetMillis();
+
+  @Config(
+    value = "baseagent.instrument.retransformBatchPauseMillis",
+    label = "Retransformation batch pause",
+    description = "The number of milliseconds to pause between two retransformation batches.",
+    defaultValue = "0"
+  )
+  Integer getRetransformBatchPauseMillis();
+
   @Config(
     value = "baseagent.instrument.exportGeneratedClassesWithName",
     label = "Export generated classes with name",
@@ -57,6 +93,16 @@ public interface BaseAgentConfiguration {
   )
   Collection<String> getExportClassesWithName();
 
+  @Config(
+    value = "baseagent.instrument.exportGeneratedClassesToJar",
+    label = "Export generated classes to a jar",
+    description = "If set to `true`, the classes of `baseagent.instrument.exportGeneratedClassesWithName` are "
+      + "written into a single jar per run instead of one file per class. The jar is completed when the JVM "
+      + "shuts down.",
+    defaultValue = "false"
+  )
+  Boolean isExportClassesToJar();
+
   @Config(
     value = "baseagent.instrument.debug",
     label = "Debug instrumentation",
@@ -71,4 +117,278 @@ public interface BaseAgentConfiguration {
   )
   Collection<String> getExcludedInstrumenters();
 
+  @Config(
+    value = "baseagent.instrument.transformationCacheDirectory",
+    label = "Transformation cache directory",
+    description = "A directory in which transformed classes are stored, so that subsequent starts of the JVM "
+      + "with the same classes, Instrumenters and configuration can skip the transformation. "
+      + "The directory can be shared by several JVMs on the same host. Leave empty to disable the cache."
+  )
+  String getTransformationCacheDirectory();
+
+  @Config(
+    value = "baseagent.instrument.typePoolCacheSize",
+    label = "Type pool cache size",
+    description = "The maximum number of type descriptions cached per class loader while matching types. "
+      + "With a cache, type descriptions are read from class files instead of being created by reflection, "
+      + "which avoids loading classes only to match them. Set to `0` to disable the cache.",
+    defaultValue = "0"
+  )
+  Integer getTypePoolCacheSize();
+
+  @Config(
+    value = "baseagent.instrument.lazyActivation",
+    label = "Lazy activation",
+    description = "If set to `true`, Instrumenters which declare triggers are only applied once one of their "
+      + "trigger classes is loaded, which shortens the startup of applications that do not use the "
+      + "instrumented libraries. Lazily activated Instrumenters do not use the transformation cache.",
+    defaultValue = "false"
+  )
+  Boolean isLazyActivation();
+
+  @Config(
+    value = "baseagent.instrument.statistics",
+    label = "Transformation statistics",
+    description = "Collects statistics of the transformation pipeline, in total and per Instrumenter, and "
+      + "exposes them as MBeans in the `com.zbiljic.baseagent` domain.",
+    defaultValue = "true"
+  )
+  Boolean isTransformationStatistics();
+
+  @Config(
+    value = "baseagent.instrument.rulesFile",
+    label = "Rules file",
+    description = "A properties file with `baseagent.instrument.include`, `baseagent.instrument.exclude` and "
+      + "`baseagent.instrument.excludeContaining`, which take precedence over the configured values. "
+      + "The file is watched for changes, and the loaded classes whose ignore decision changed are "
+      + "retransformed without a restart. Leave empty to disable."
+  )
+  String getRulesFile();
+
+  @Config(
+    value = "baseagent.instrument.rulesFilePollMillis",
+    label = "Rules file poll interval",
+    description = "The number of milliseconds between two checks of `baseagent.instrument.rulesFile` for changes.",
+    defaultValue = "2000"
+  )
+  Integer getRulesFilePollMillis();
+
+  @Config(
+    value = "baseagent.instrument.prefilter",
+    label = "Prefilter class names",
+    description = "Rejects classes the agent ignores by their name, before their class files are parsed. "
+      + "If all Instrumenters declare the names of the types they transform, classes with other names "
+      + "are rejected as well.",
+    defaultValue = "true"
+  )
+  Boolean isPrefilterClassNames();
+
+  @Config(
+    value = "baseagent.instrument.parallelMatchingThreads",
+    label = "Parallel matching threads",
+    description = "The number of threads which drop the loaded classes the agent ignores anyway before they are "
+      + "matched for retransformation during the runtime attachment. `0` matches all loaded classes on the "
+      + "attaching thread.",
+    defaultValue = "0"
+  )
+  Integer getParallelMatchingThreads();
+
+  @Config(
+    value = "baseagent.instrument.matchIndexFile",
+    label = "Match index file",
+    description = "A file in which the agent records which types were transformed and which were ignored. On the "
+      + "next start with the same Instrumenters, configuration and class path, the types which were ignored are "
+      + "neither matched nor retransformed. Not recorded if empty."
+  )
+  String getMatchIndexFile();
+
+  @Config(
+    value = "baseagent.instrument.uninterestingClassLoaderThreshold",
+    label = "Uninteresting class loader threshold",
+    description = "If set to a positive number, a class loader which loaded this many classes without any "
+      + "of them being transformed is remembered, and its further classes are ignored without being "
+      + "parsed. The system class loader and its parents are never ignored. Useful for applications "
+      + "which create many short-lived class loaders. Set to `0` to disable.",
+    defaultValue = "0"
+  )
+  Integer getUninterestingClassLoaderThreshold();
+
+  @Config(
+    value = "baseagent.instrument.fuseRegistrations",
+    label = "Fuse registrations",
+    description = "If set to `true`, the `Registry` registrations of all Instrumenters are grouped by their "
+      + "matcher, and every type is transformed in a single pass which applies all matching registrations "
+      + "in registration order, instead of only the last one. Fused registrations are not attributed to "
+      + "their Instrumenter in the transformation statistics.",
+    defaultValue = "false"
+  )
+  Boolean isFuseRegistrations();
+
+  @Config(
+    value = "baseagent.instrument.circuitBreaker",
+    label = "Transformation circuit breaker",
+    description = "Ignores types whose transformation repeatedly fails or is slow, and disables Instrumenters "
+      + "which fail or spend too much time transforming. Implies the collection of transformation statistics.",
+    defaultValue = "false"
+  )
+  Boolean isCircuitBreaker();
+
+  @Config(
+    value = "baseagent.instrument.circuitBreaker.typeStrikes",
+    label = "Circuit breaker type strikes",
+    description = "The number of failed or slow transformations after which a type is ignored.",
+    defaultValue = "3"
+  )
+  Integer getCircuitBreakerTypeStrikes();
+
+  @Config(
+    value = "baseagent.instrument.circuitBreaker.slowTypeMillis",
+    label = "Circuit breaker slow type",
+    description = "The number of milliseconds after which the transformation of a type counts as a strike.",
+    defaultValue = "500"
+  )
+  Integer getCircuitBreakerSlowTypeMillis();
+
+  @Config(
+    value = "baseagent.instrument.circuitBreaker.instrumenterErrors",
+    label = "Circuit breaker Instrumenter errors",
+    description = "The number of failed transformations after which an Instrumenter is disabled.",
+    defaultValue = "10"
+  )
+  Integer getCircuitBreakerInstrumenterErrors();
+
+  @Config(
+    value = "baseagent.instrument.circuitBreaker.instrumenterMillis",
+    label = "Circuit breaker Instrumenter time",
+    description = "The number of milliseconds an Instrumenter may spend transforming types within a minute "
+      + "before it is disabled for the rest of the run. `0` means unlimited.",
+    defaultValue = "10000"
+  )
+  Integer getCircuitBreakerInstrumenterMillis();
+
+  @Config(
+    value = "baseagent.instrument.circuitBreaker.file",
+    label = "Circuit breaker file",
+    description = "A file in which the ignored types and disabled Instrumenters are remembered, so that they are "
+      + "ignored from the start on the next run. Not remembered if empty."
+  )
+  String getCircuitBreakerFile();
+
+  @Config(
+    value = "baseagent.profiler.active",
+    label = "Sampling profiler",
+    description = "Profiles the methods of the types matching `baseagent.instrument.include` by sampling, and "
+      + "periodically writes the aggregated call tree in the collapsed stack format of flame graphs.",
+    defaultValue = "false"
+  )
+  Boolean isProfilerActive();
+
+  @Config(
+    value = "baseagent.profiler.samplingInterval",
+    label = "Profiler sampling interval",
+    description = "Every thread profiles one in this many outermost invocations of profiled methods, including "
+      + "the invocations they make. The interval is raised automatically while the overhead exceeds "
+      + "`baseagent.profiler.overheadBudgetPercent`.",
+    defaultValue = "100"
+  )
+  Integer getProfilerSamplingInterval();
+
+  @Config(
+    value = "baseagent.profiler.overheadBudgetPercent",
+    label = "Profiler overhead budget",
+    description = "The estimated share of the available CPU time, in percent, the profiler may spend on "
+      + "recording sampled invocations.",
+    defaultValue = "1.0"
+  )
+  Double getProfilerOverheadBudgetPercent();
+
+  @Config(
+    value = "baseagent.profiler.bufferSize",
+    label = "Profiler buffer size",
+    description = "The number of events the buffer of every profiled thread can hold until they are drained. "
+      + "Rounded up to a power of two.",
+    defaultValue = "8192"
+  )
+  Integer getProfilerBufferSize();
+
+  @Config(
+    value = "baseagent.profiler.outputFile",
+    label = "Profiler output file",
+    description = "The file the profile is written to. Defaults to `baseagent-profile.collapsed` in the "
+      + "temporary directory."
+  )
+  String getProfilerOutputFile();
+
+  @Config(
+    value = "baseagent.profiler.flushIntervalMillis",
+    label = "Profiler flush interval",
+    description = "The number of milliseconds between two writes of the profile.",
+    defaultValue = "10000"
+  )
+  Integer getProfilerFlushIntervalMillis();
+
+  @Config(
+    value = "baseagent.allocation.active",
+    label = "Allocation profiler",
+    description = "Samples the allocations in the types matching `baseagent.instrument.include`, and estimates "
+      + "the number and bytes of the allocations per allocation site. The sites with the most bytes are exposed "
+      + "by the `AllocationProfiler` MBean.",
+    defaultValue = "false"
+  )
+  Boolean isAllocationProfilerActive();
+
+  @Config(
+    value = "baseagent.allocation.samplingInterval",
+    label = "Allocation sampling interval",
+    description = "Every thread samples one in this many allocations on average.",
+    defaultValue = "1000"
+  )
+  Integer getAllocationSamplingInterval();
+
+  @Config(
+    value = "baseagent.executor.active",
+    label = "Executor timing",
+    description = "Measures how long the tasks of every `ThreadPoolExecutor` and `ForkJoinPool` wait in the queue "
+      + "and how long they run, and exposes the timings per pool as the `ExecutorStatistics` MBean.",
+    defaultValue = "false"
+  )
+  Boolean isExecutorActive();
+
+  @Config(
+    value = "baseagent.lock.active",
+    label = "Lock contention profiler",
+    description = "Measures how long threads wait for contended `synchronized` blocks and `ReentrantLock`s in the "
+      + "types matching `baseagent.instrument.include`. The sites with the most wait time are exposed by the "
+      + "`LockProfiler` MBean.",
+    defaultValue = "false"
+  )
+  Boolean isLockProfilerActive();
+
+  @Config(
+    value = "baseagent.export.file",
+    label = "Event export file",
+    description = "A file the agent maps into memory and exports events of Instrumenters into, as binary records "
+      + "a process on the same host can read with the `EventReader`. Events are not exported if not set."
+  )
+  String getExportFile();
+
+  @Config(
+    value = "baseagent.export.segments",
+    label = "Event export segments",
+    description = "The number of segments of the event file. Every thread exporting events claims a segment, "
+      + "which is claimed again once the thread terminates. The events of threads which find no segment "
+      + "left are dropped.",
+    defaultValue = "32"
+  )
+  Integer getExportSegments();
+
+  @Config(
+    value = "baseagent.export.segmentCapacity",
+    label = "Event export segment capacity",
+    description = "The number of events a segment of the event file can hold until they are read. Events "
+      + "exported while the segment is full are dropped. Rounded up to a power of two.",
+    defaultValue = "4096"
+  )
+  Integer getExportSegmentCapacity();
+
 }
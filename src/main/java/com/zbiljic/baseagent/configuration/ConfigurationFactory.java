@@ -1,65 +1,87 @@
 package com.zbiljic.baseagent.configuration;
 
 import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.modifier.FieldManifestation;
+import net.bytebuddy.description.modifier.Visibility;
 import net.bytebuddy.dynamic.DynamicType;
-import net.bytebuddy.implementation.FixedValue;
+import net.bytebuddy.implementation.FieldAccessor;
+import net.bytebuddy.implementation.MethodCall;
 
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.WeakHashMap;
 
 import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
 
 /**
  * A factory class to instantiate {@link Config} instances.
+ * <p>
+ * A factory is an immutable chain of property sources. Every {@code add*} method puts a new source
+ * on top of the chain without copying the sources below it, and a property is looked up from the
+ * top of the chain down to its bottom, so that later sources take precedence over earlier ones.
  */
 public final class ConfigurationFactory {
 
+  private static final String TO_STRING_FIELD = "$toString";
+  private static final String SNAPSHOT_FIELD = "$snapshot";
+
+  private static final Map<Class<?>, WeakReference<Class<?>>> BOUND_TYPES =
+    new WeakHashMap<Class<?>, WeakReference<Class<?>>>();
+  private static final Map<Class<?>, WeakReference<Class<?>>> LIVE_TYPES =
+    new WeakHashMap<Class<?>, WeakReference<Class<?>>>();
+
   public static ConfigurationFactory create() {
     return create(new Properties());
   }
 
   public static ConfigurationFactory create(Properties properties) {
-    return new ConfigurationFactory(properties);
+    return new ConfigurationFactory(new MapSource(properties, null));
   }
 
-  private final Properties properties;
+  private final Source source;
 
-  private ConfigurationFactory(Properties properties) {
-    this.properties = properties;
+  private ConfigurationFactory(Source source) {
+    this.source = source;
   }
 
+  /**
+   * Adds the system properties. They are not copied, so properties set later are visible as well.
+   */
   public ConfigurationFactory addSystemProperties() {
-    Properties p = new Properties();
-    p.putAll(this.properties);
-    p.putAll(System.getProperties());
-    return new ConfigurationFactory(p);
+    return new ConfigurationFactory(new MapSource(System.getProperties(), source));
   }
 
   public ConfigurationFactory addSystemEnv() {
-    Properties p = new Properties();
-    p.putAll(this.properties);
-    p.putAll(System.getenv());
-    return new ConfigurationFactory(p);
+    return new ConfigurationFactory(new MapSource(System.getenv(), source));
   }
 
+  /**
+   * Adds a copy of the given properties, including their defaults.
+   */
   public ConfigurationFactory addProperties(Properties properties) {
     Properties p = new Properties();
-    p.putAll(this.properties);
-    p.putAll(properties);
-    return new ConfigurationFactory(p);
+    for (String key : properties.stringPropertyNames()) {
+      p.setProperty(key, properties.getProperty(key));
+    }
+    return new ConfigurationFactory(new MapSource(p, source));
   }
 
   public ConfigurationFactory addPropertiesFromResource(String name) {
     Properties p = new Properties();
-    p.putAll(this.properties);
     try {
       InputStream resource = ConfigurationFactory.class.getResourceAsStream(name);
       if (resource != null) {
@@ -69,50 +91,43 @@ public final class ConfigurationFactory {
     } catch (Exception e) {
       throw new ConfigException("Could not load resource: " + name, e);
     }
-    return new ConfigurationFactory(p);
+    return p.isEmpty() ? this : new ConfigurationFactory(new MapSource(p, source));
   }
 
   public ConfigurationFactory addPropertiesFromInputStream(InputStream inputStream) {
     Properties p = new Properties();
-    p.putAll(this.properties);
     try {
       p.load(inputStream);
     } catch (Exception e) {
       throw new ConfigException("Could not load input stream", e);
     }
-    return new ConfigurationFactory(p);
+    return new ConfigurationFactory(new MapSource(p, source));
   }
 
   public ConfigurationFactory addProperty(String key, String value) {
-    Properties p = new Properties();
-    p.putAll(this.properties);
-    p.setProperty(key, value);
-    return new ConfigurationFactory(p);
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    return new ConfigurationFactory(new MapSource(Collections.singletonMap(key, value), source));
   }
 
   public ConfigurationFactory removeProperty(String key) {
-    Properties p = new Properties();
-    p.putAll(this.properties);
-    p.remove(key);
-    return new ConfigurationFactory(p);
+    return new ConfigurationFactory(new RemovedPropertySource(key, source));
   }
 
+  /**
+   * Returns a factory with the properties below the given path, without the path. Properties are
+   * looked up with the path prepended, so nested configuration objects are bound without scanning
+   * all properties for the path.
+   */
   public ConfigurationFactory getConfigurationProvider(String path) {
-    Properties p = new Properties();
     if (path == null || path.isEmpty()) {
-      p.putAll(this.properties);
-    } else {
-      String prefix = path.endsWith(".")
-        ? path
-        : path + ".";
-      for (String key : this.properties.stringPropertyNames()) {
-        if (key.startsWith(prefix)) {
-          String newKey = key.substring(prefix.length());
-          p.setProperty(newKey, this.properties.getProperty(key));
-        }
-      }
+      return this;
     }
-    return new ConfigurationFactory(p);
+    String prefix = path.endsWith(".")
+      ? path
+      : path + ".";
+    return new ConfigurationFactory(PrefixedSource.of(prefix, source));
   }
 
   /**
@@ -123,7 +138,7 @@ public final class ConfigurationFactory {
    */
   public Properties getProperties() {
     Properties p = new Properties();
-    p.putAll(this.properties);
+    this.source.putAll(p);
     return p;
   }
 
@@ -136,7 +151,7 @@ public final class ConfigurationFactory {
    *                                config value
    */
   public String getProperty(String key) {
-    String property = this.properties.getProperty(key);
+    String property = this.source.get(key);
 
     if (property == null) {
       throw new NoSuchElementException("No configuration with key: " + key);
@@ -166,7 +181,7 @@ public final class ConfigurationFactory {
       throw new IllegalArgumentException("type cannot be null");
     }
 
-    String property = this.properties.getProperty(key);
+    String property = this.source.get(key);
 
     if (property == null) {
       throw new NoSuchElementException("No configuration with key: " + key);
@@ -195,72 +210,190 @@ public final class ConfigurationFactory {
       throw new IllegalArgumentException("type must be interface");
     }
 
-    DynamicType.Builder<Object> subclassBuilder = new ByteBuddy()
-      .subclass(Object.class);
-
     StringBuilder toStringBuilder = new StringBuilder(type.getSimpleName());
     toStringBuilder.append("{");
 
-    final Method[] declaredMethods = type.getDeclaredMethods();
+    final Class<?> boundType = boundType(type);
+    final Object bound;
+    try {
+      bound = boundType.newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
 
-    for (Method method : declaredMethods) {
-      final Class<?> returnType = method.getReturnType();
-      if (returnType == Void.class) {
-        continue;
-      }
-      final Type genericReturnType = method.getGenericReturnType();
+    for (Method method : configMethods(type)) {
       final String methodName = method.getName();
       final Config config = method.getAnnotation(Config.class);
-      if (config != null) {
-        String key = config.value();
-        String stringValue = this.properties.getProperty(key, config.defaultValue());
-        Object value = typedValue(returnType, genericReturnType, key, stringValue);
-
-        subclassBuilder = subclassBuilder
-          .method(named(methodName))
-          .intercept(FixedValue.value(value));
-
-        // for 'toString' method
-        toStringBuilder.append('\n');
-        toStringBuilder.append('\t');
-        toStringBuilder.append(methodName);
-        toStringBuilder.append("=");
-        if (value.getClass().equals(String.class)) {
-          toStringBuilder.append('\'');
-          toStringBuilder.append(value.toString());
-          toStringBuilder.append('\'');
-        } else {
-          toStringBuilder.append(value.toString());
-        }
-        toStringBuilder.append(",");
+      String key = config.value();
+      String stringValue = this.source.get(key);
+      if (stringValue == null) {
+        stringValue = config.defaultValue();
+      }
+      Object value = typedValue(method.getReturnType(), method.getGenericReturnType(), key, stringValue);
+
+      setField(boundType, bound, methodName, value);
+
+      // for 'toString' method
+      toStringBuilder.append('\n');
+      toStringBuilder.append('\t');
+      toStringBuilder.append(methodName);
+      toStringBuilder.append("=");
+      if (value.getClass().equals(String.class)) {
+        toStringBuilder.append('\'');
+        toStringBuilder.append(value.toString());
+        toStringBuilder.append('\'');
+      } else {
+        toStringBuilder.append(value.toString());
       }
+      toStringBuilder.append(",");
     }
 
     toStringBuilder.delete(toStringBuilder.length() - 1, toStringBuilder.length());
     toStringBuilder.append('\n');
     toStringBuilder.append("}");
 
+    setField(boundType, bound, TO_STRING_FIELD, toStringBuilder.toString());
+
+    return type.cast(bound);
+  }
+
+  /**
+   * Create a {@link LiveBinding} of a given {@code type} to this provider. Unlike the object
+   * returned by {@link #bind(Class)}, the bound object can be reloaded: its methods return the
+   * values of the latest snapshot bound by the {@link LiveBinding}, which costs a volatile read in
+   * addition to a field read.
+   *
+   * @param type {@link Class} for {@code <T>}
+   * @param <T>  interface describing configuration object to bind
+   * @return live binding of the configuration object to this {@link ConfigurationFactory}
+   * @throws IllegalArgumentException when property can't be converted to {@code type}
+   */
+  public <T> LiveBinding<T> bindLive(Class<T> type) {
+    return new LiveBinding<T>(this, type);
+  }
+
+  /**
+   * Returns the class implementing the given configuration interface. The class is generated once
+   * per interface: every {@link Config} method returns a field of the same name, and
+   * {@code toString} returns the field {@value #TO_STRING_FIELD}. The fields are set by
+   * {@link #bind(Class)}.
+   * <p>
+   * Generated classes are only weakly referenced, so that they are unloaded together with the
+   * interface, or when no bound object of them is left.
+   */
+  private static Class<?> boundType(Class<?> type) {
+    synchronized (BOUND_TYPES) {
+      WeakReference<Class<?>> reference = BOUND_TYPES.get(type);
+      Class<?> boundType = reference != null ? reference.get() : null;
+      if (boundType == null) {
+        boundType = makeBoundType(type);
+        BOUND_TYPES.put(type, new WeakReference<Class<?>>(boundType));
+      }
+      return boundType;
+    }
+  }
+
+  private static Class<?> makeBoundType(Class<?> type) {
+    DynamicType.Builder<Object> subclassBuilder = new ByteBuddy()
+      .subclass(Object.class);
+
+    for (Method method : configMethods(type)) {
+      subclassBuilder = subclassBuilder
+        .defineField(method.getName(), method.getReturnType(), Visibility.PRIVATE)
+        .method(named(method.getName()).and(takesArguments(0)))
+        .intercept(FieldAccessor.ofField(method.getName()));
+    }
+
     // override 'toString' method
     subclassBuilder = subclassBuilder
+      .defineField(TO_STRING_FIELD, String.class, Visibility.PRIVATE)
       .method(named("toString"))
-      .intercept(FixedValue.value(toStringBuilder.toString()));
+      .intercept(FieldAccessor.ofField(TO_STRING_FIELD));
 
-    Class<?> dynamicType = subclassBuilder
+    return subclassBuilder
       .implement(type)
       .make()
       .load(type.getClassLoader())
       .getLoaded();
+  }
 
-    Object bound;
+  /**
+   * Creates an object implementing the given configuration interface by delegating every method to
+   * the snapshot set with {@link #setSnapshot(Object, Object)}. Like the bound classes, the
+   * delegating classes are generated once per interface and only weakly referenced.
+   */
+  static <T> T newLiveInstance(Class<T> type) {
+    final Class<?> liveType;
+    synchronized (LIVE_TYPES) {
+      WeakReference<Class<?>> reference = LIVE_TYPES.get(type);
+      Class<?> generated = reference != null ? reference.get() : null;
+      if (generated == null) {
+        generated = makeLiveType(type);
+        LIVE_TYPES.put(type, new WeakReference<Class<?>>(generated));
+      }
+      liveType = generated;
+    }
     try {
-      bound = dynamicType.newInstance();
+      return type.cast(liveType.newInstance());
     } catch (InstantiationException e) {
       throw new RuntimeException(e);
     } catch (IllegalAccessException e) {
       throw new RuntimeException(e);
     }
+  }
 
-    return type.cast(bound);
+  static void setSnapshot(Object live, Object snapshot) {
+    setField(live.getClass(), live, SNAPSHOT_FIELD, snapshot);
+  }
+
+  private static Class<?> makeLiveType(Class<?> type) {
+    DynamicType.Builder<Object> subclassBuilder = new ByteBuddy()
+      .subclass(Object.class)
+      .defineField(SNAPSHOT_FIELD, type, Visibility.PRIVATE, FieldManifestation.VOLATILE);
+
+    for (Method method : configMethods(type)) {
+      subclassBuilder = subclassBuilder
+        .method(named(method.getName()).and(takesArguments(0)))
+        .intercept(MethodCall.invoke(method).onField(SNAPSHOT_FIELD));
+    }
+
+    try {
+      subclassBuilder = subclassBuilder
+        .method(named("toString"))
+        .intercept(MethodCall.invoke(Object.class.getMethod("toString")).onField(SNAPSHOT_FIELD));
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return subclassBuilder
+      .implement(type)
+      .make()
+      .load(type.getClassLoader())
+      .getLoaded();
+  }
+
+  private static List<Method> configMethods(Class<?> type) {
+    List<Method> methods = new ArrayList<Method>();
+    for (Method method : type.getDeclaredMethods()) {
+      if (method.getReturnType() != Void.class && method.getAnnotation(Config.class) != null) {
+        methods.add(method);
+      }
+    }
+    return methods;
+  }
+
+  private static void setField(Class<?> boundType, Object bound, String name, Object value) {
+    try {
+      Field field = boundType.getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(bound, value);
+    } catch (NoSuchFieldException e) {
+      throw new IllegalStateException(e);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
   }
 
   private Object typedValue(Class<?> type, Type genericReturnType, String key, String value) {
@@ -433,4 +566,113 @@ public final class ConfigurationFactory {
     return false;
   }
 
+  /**
+   * A source of properties, stacked on top of the source below it.
+   */
+  private abstract static class Source {
+
+    /**
+     * @return the value of the property, or <code>null</code> if there is none
+     */
+    abstract String get(String key);
+
+    /**
+     * Puts the properties of this source and the sources below it into the given properties.
+     */
+    abstract void putAll(Properties properties);
+  }
+
+  private static final class MapSource extends Source {
+
+    private final Map<?, ?> map;
+    private final Source below;
+
+    MapSource(Map<?, ?> map, Source below) {
+      this.map = map;
+      this.below = below;
+    }
+
+    @Override
+    String get(String key) {
+      // Properties may have defaults, which only getProperty returns
+      final Object value = map instanceof Properties ? ((Properties) map).getProperty(key) : map.get(key);
+      if (value instanceof String) {
+        return (String) value;
+      }
+      return below != null ? below.get(key) : null;
+    }
+
+    @Override
+    void putAll(Properties properties) {
+      if (below != null) {
+        below.putAll(properties);
+      }
+      if (map instanceof Properties) {
+        final Properties p = (Properties) map;
+        for (String key : p.stringPropertyNames()) {
+          properties.setProperty(key, p.getProperty(key));
+        }
+      } else {
+        properties.putAll(map);
+      }
+    }
+  }
+
+  private static final class RemovedPropertySource extends Source {
+
+    private final String key;
+    private final Source below;
+
+    RemovedPropertySource(String key, Source below) {
+      this.key = key;
+      this.below = below;
+    }
+
+    @Override
+    String get(String key) {
+      return this.key.equals(key) ? null : below.get(key);
+    }
+
+    @Override
+    void putAll(Properties properties) {
+      below.putAll(properties);
+      properties.remove(key);
+    }
+  }
+
+  private static final class PrefixedSource extends Source {
+
+    private final String prefix;
+    private final Source below;
+
+    private PrefixedSource(String prefix, Source below) {
+      this.prefix = prefix;
+      this.below = below;
+    }
+
+    static PrefixedSource of(String prefix, Source below) {
+      if (below instanceof PrefixedSource) {
+        // a provider nested in a provider looks up the properties of the outermost one directly
+        PrefixedSource prefixed = (PrefixedSource) below;
+        return new PrefixedSource(prefixed.prefix + prefix, prefixed.below);
+      }
+      return new PrefixedSource(prefix, below);
+    }
+
+    @Override
+    String get(String key) {
+      return below.get(prefix + key);
+    }
+
+    @Override
+    void putAll(Properties properties) {
+      Properties all = new Properties();
+      below.putAll(all);
+      for (String key : all.stringPropertyNames()) {
+        if (key.startsWith(prefix)) {
+          properties.setProperty(key.substring(prefix.length()), all.getProperty(key));
+        }
+      }
+    }
+  }
 }
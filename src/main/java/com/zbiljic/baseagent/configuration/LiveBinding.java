@@ -0,0 +1,64 @@
+package com.zbiljic.baseagent.configuration;
+
+/**
+ * A configuration object bound to a {@link ConfigurationFactory}, which can be reloaded while it is
+ * in use, see {@link ConfigurationFactory#bindLive(Class)}.
+ * <p>
+ * The object returned by {@link #get()} never changes. Its methods read the values of an immutable
+ * snapshot, which is bound anew and published with a single volatile write on every reload. Readers
+ * therefore see all values of either the old or the new snapshot, never a mix of both.
+ *
+ * @param <T> interface describing the configuration object
+ */
+public final class LiveBinding<T> {
+
+  private final Class<T> type;
+  private final T live;
+  private volatile ConfigurationFactory configurationFactory;
+
+  LiveBinding(ConfigurationFactory configurationFactory, Class<T> type) {
+    this.type = type;
+    this.live = ConfigurationFactory.newLiveInstance(type);
+    reload(configurationFactory);
+  }
+
+  /**
+   * @return the configuration object, which always returns the values of the latest reload
+   */
+  public T get() {
+    return live;
+  }
+
+  public ConfigurationFactory getConfigurationFactory() {
+    return configurationFactory;
+  }
+
+  /**
+   * Binds the configuration anew from the same factory, for example to pick up changed system
+   * properties.
+   *
+   * @throws IllegalArgumentException when property can't be converted, the previous values are
+   *                                  kept in this case
+   */
+  public void reload() {
+    reload(configurationFactory);
+  }
+
+  /**
+   * Binds the configuration anew from the given factory, for example one with a changed properties
+   * file added.
+   *
+   * @throws IllegalArgumentException when property can't be converted, the previous values are
+   *                                  kept in this case
+   */
+  public synchronized void reload(ConfigurationFactory configurationFactory) {
+    T snapshot = configurationFactory.bind(type);
+    ConfigurationFactory.setSnapshot(live, snapshot);
+    this.configurationFactory = configurationFactory;
+  }
+
+  @Override
+  public String toString() {
+    return "LiveBinding{" + live + '}';
+  }
+}
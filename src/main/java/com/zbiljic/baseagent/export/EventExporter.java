@@ -0,0 +1,301 @@
+package com.zbiljic.baseagent.export;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.zbiljic.baseagent.export.EventLayout.BYTE_ORDER;
+import static com.zbiljic.baseagent.export.EventLayout.CLAIMED_SEGMENTS;
+import static com.zbiljic.baseagent.export.EventLayout.DROPPED;
+import static com.zbiljic.baseagent.export.EventLayout.DURATION;
+import static com.zbiljic.baseagent.export.EventLayout.EVENT_ID;
+import static com.zbiljic.baseagent.export.EventLayout.MAGIC;
+import static com.zbiljic.baseagent.export.EventLayout.READ_SEQUENCE;
+import static com.zbiljic.baseagent.export.EventLayout.RECORD_SIZE;
+import static com.zbiljic.baseagent.export.EventLayout.RECORD_SIZE_OFFSET;
+import static com.zbiljic.baseagent.export.EventLayout.RECORD_THREAD_ID;
+import static com.zbiljic.baseagent.export.EventLayout.SEGMENT_CAPACITY;
+import static com.zbiljic.baseagent.export.EventLayout.SEGMENT_COUNT;
+import static com.zbiljic.baseagent.export.EventLayout.SEGMENT_HEADER_SIZE;
+import static com.zbiljic.baseagent.export.EventLayout.START_MILLIS;
+import static com.zbiljic.baseagent.export.EventLayout.START_NANOS;
+import static com.zbiljic.baseagent.export.EventLayout.THREAD_ID;
+import static com.zbiljic.baseagent.export.EventLayout.TIMESTAMP;
+import static com.zbiljic.baseagent.export.EventLayout.UNCLAIMED_DROPPED;
+import static com.zbiljic.baseagent.export.EventLayout.VALUES;
+import static com.zbiljic.baseagent.export.EventLayout.VERSION;
+import static com.zbiljic.baseagent.export.EventLayout.VERSION_OFFSET;
+import static com.zbiljic.baseagent.export.EventLayout.WRITE_SEQUENCE;
+import static com.zbiljic.baseagent.export.EventLayout.fileSize;
+import static com.zbiljic.baseagent.export.EventLayout.segmentOffset;
+
+/**
+ * Exports fixed-size binary event records into a memory-mapped file, from which another process on
+ * the same host reads them with an {@link EventReader}, see {@link EventLayout} for the layout.
+ * <p>
+ * Every thread which exports an event claims a segment of the file on its first event and is the
+ * only writer of that segment, until it terminates and another thread claims the segment. Apart
+ * from claiming a segment, exporting an event never blocks and never allocates: if the segment of
+ * the thread is full, or no segment is left for the thread, the event is dropped and counted in the
+ * file. A thread without a segment tries to claim one again every {@value #RECLAIM_INTERVAL}
+ * dropped events.
+ */
+public final class EventExporter {
+
+  private static Logger logger = Logger.getLogger(EventExporter.class.getName());
+
+  static final int RECLAIM_INTERVAL = 1024;
+
+  private static volatile EventExporter instance;
+
+  private final File file;
+  private final int segmentCount;
+  private final int capacity;
+  private final MappedByteBuffer buffer;
+  private final Segment[] claimed;
+  private volatile int claimedSegments;
+  private final AtomicLong unclaimedDropped = new AtomicLong();
+  private final ThreadLocal<Segment> segments = new ThreadLocal<Segment>();
+  private final Segment noSegment;
+
+  /**
+   * Creates the given file, replacing an existing one, and maps it into memory.
+   *
+   * @param file     the file to export the events to
+   * @param segments the number of segments, that is the number of threads which can export events
+   * @param capacity the number of records per segment, rounded up to a power of two
+   */
+  EventExporter(File file, int segments, int capacity) throws IOException {
+    this.file = file;
+    this.segmentCount = Math.max(1, segments);
+    this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    final long size = fileSize(segmentCount, this.capacity);
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Event file too large: " + size + " bytes");
+    }
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(0);
+      randomAccessFile.setLength(size);
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      // the mapping stays valid until the buffer is garbage collected
+      randomAccessFile.close();
+    }
+    buffer.order(ByteOrder.nativeOrder());
+    buffer.put(BYTE_ORDER, (byte) (buffer.order() == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+    buffer.putInt(VERSION_OFFSET, VERSION);
+    buffer.putInt(SEGMENT_COUNT, segmentCount);
+    buffer.putInt(SEGMENT_CAPACITY, this.capacity);
+    buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+    buffer.putLong(START_MILLIS, System.currentTimeMillis());
+    buffer.putLong(START_NANOS, System.nanoTime());
+    // the magic is written last, so that readers never accept a partially written header
+    for (int i = 0; i < MAGIC.length; i++) {
+      buffer.put(i, MAGIC[i]);
+    }
+    buffer.force();
+    claimed = new Segment[segmentCount];
+    noSegment = new Segment(-1);
+  }
+
+  /**
+   * Starts exporting events to the file configured by <code>baseagent.export.file</code>, unless
+   * the exporter is already running.
+   *
+   * @return the running exporter, or {@code null} if no file is configured or it could not be created
+   */
+  public static synchronized EventExporter start(BaseAgentConfiguration configuration) {
+    final String file = configuration.getExportFile().trim();
+    if (instance == null && !file.isEmpty()) {
+      try {
+        instance = new EventExporter(new File(file),
+          configuration.getExportSegments(), configuration.getExportSegmentCapacity());
+        logger.log(Level.INFO, "Exporting events to {0}", file);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to create the event file " + file, e);
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * @return the running exporter, or {@code null}
+   */
+  public static EventExporter getInstance() {
+    return instance;
+  }
+
+  /**
+   * Exports an event with the running exporter, if there is one.
+   *
+   * @param eventId  the id of the event, which is defined by the code exporting it
+   * @param duration the duration of the event, in a unit defined by the code exporting it
+   */
+  public static void export(int eventId, long duration) {
+    final EventExporter exporter = instance;
+    if (exporter != null) {
+      exporter.write(eventId, duration, 0, 0, 0, 0);
+    }
+  }
+
+  /**
+   * Exports an event with up to four values with the running exporter, if there is one.
+   */
+  public static void export(int eventId, long duration, long value0, long value1, long value2, long value3) {
+    final EventExporter exporter = instance;
+    if (exporter != null) {
+      exporter.write(eventId, duration, value0, value1, value2, value3);
+    }
+  }
+
+  /**
+   * Writes an event into the segment of the current thread.
+   *
+   * @return <code>false</code>, if the event was dropped
+   */
+  boolean write(int eventId, long duration, long value0, long value1, long value2, long value3) {
+    Segment segment = segments.get();
+    if (segment == null) {
+      segment = claimSegment(Thread.currentThread());
+      segments.set(segment);
+    }
+    if (segment == noSegment) {
+      final long dropped = unclaimedDropped.incrementAndGet();
+      buffer.putLong(UNCLAIMED_DROPPED, dropped);
+      if (dropped % RECLAIM_INTERVAL == 0) {
+        segments.remove();
+      }
+      return false;
+    }
+    return segment.write(eventId, duration, value0, value1, value2, value3);
+  }
+
+  /**
+   * Claims the next segment which was never claimed, or else a segment whose thread terminated. The
+   * claims are serialized, so that the number of claimed segments in the file never goes down.
+   */
+  private synchronized Segment claimSegment(Thread thread) {
+    int index = claimedSegments;
+    if (index < segmentCount) {
+      claimedSegments = index + 1;
+    } else {
+      index = 0;
+      while (index < segmentCount && claimed[index].isOwned()) {
+        index++;
+      }
+      if (index == segmentCount) {
+        logger.log(Level.FINE, "No segment left in {0} for thread {1}, dropping its events",
+          new Object[]{file, thread.getId()});
+        return noSegment;
+      }
+    }
+    // the writer of a reclaimed segment terminated, so its sequence and drops are in the file
+    Segment segment = new Segment(segmentOffset(index, capacity));
+    claimed[index] = segment;
+    buffer.putLong(segment.offset + THREAD_ID, thread.getId());
+    buffer.putInt(CLAIMED_SEGMENTS, claimedSegments);
+    return segment;
+  }
+
+  /**
+   * @return the number of events dropped so far, because a segment was full or no segment was left
+   */
+  public long getDropped() {
+    long dropped = buffer.getLong(UNCLAIMED_DROPPED);
+    for (int i = 0; i < claimedSegments; i++) {
+      dropped += buffer.getLong(segmentOffset(i, capacity) + DROPPED);
+    }
+    return dropped;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  public String toString() {
+    return "EventExporter{file=" + file
+      + ", segments=" + segmentCount
+      + ", capacity=" + capacity
+      + ", claimedSegments=" + claimedSegments
+      + ", dropped=" + getDropped() + '}';
+  }
+
+  /**
+   * A segment, only accessed by the thread which claimed it while that thread is alive.
+   */
+  private final class Segment {
+
+    private final EventLayout.Fence fence = new EventLayout.Fence();
+    private final int offset;
+    private final int records;
+    private final int mask;
+    private final WeakReference<Thread> owner;
+    private final long threadId;
+    private long writeSequence;
+    private long cachedReadSequence;
+    private long dropped;
+
+    Segment(int offset) {
+      this.offset = offset;
+      this.records = offset + SEGMENT_HEADER_SIZE;
+      this.mask = capacity - 1;
+      this.owner = new WeakReference<Thread>(Thread.currentThread());
+      this.threadId = Thread.currentThread().getId();
+      if (offset >= 0) {
+        writeSequence = buffer.getLong(offset + WRITE_SEQUENCE);
+        // reads the read sequence, with a fence, before the first record is written
+        cachedReadSequence = writeSequence - capacity;
+        dropped = buffer.getLong(offset + DROPPED);
+      }
+    }
+
+    /**
+     * @return <code>false</code>, if the thread which claimed the segment terminated
+     */
+    boolean isOwned() {
+      final Thread thread = owner.get();
+      return thread != null && thread.isAlive();
+    }
+
+    boolean write(int eventId, long duration, long value0, long value1, long value2, long value3) {
+      final long sequence = writeSequence;
+      if (sequence - cachedReadSequence >= capacity) {
+        cachedReadSequence = buffer.getLong(offset + READ_SEQUENCE);
+        if (sequence - cachedReadSequence >= capacity) {
+          buffer.putLong(offset + DROPPED, ++dropped);
+          return false;
+        }
+        // the records up to the read sequence are read before they are overwritten
+        fence.acquire();
+      }
+      final int record = records + ((int) sequence & mask) * RECORD_SIZE;
+      buffer.putLong(record + TIMESTAMP, System.nanoTime());
+      buffer.putLong(record + RECORD_THREAD_ID, threadId);
+      buffer.putInt(record + EVENT_ID, eventId);
+      buffer.putLong(record + DURATION, duration);
+      buffer.putLong(record + VALUES, value0);
+      buffer.putLong(record + VALUES + 8, value1);
+      buffer.putLong(record + VALUES + 16, value2);
+      buffer.putLong(record + VALUES + 24, value3);
+      writeSequence = sequence + 1;
+      fence.release();
+      buffer.putLong(offset + WRITE_SEQUENCE, sequence + 1);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.zbiljic.baseagent.export;
+
+/**
+ * Receives the events read by an {@link EventReader}. The values are passed individually, so that
+ * reading does not allocate.
+ */
+public interface EventHandler {
+
+  /**
+   * @param timestampNanos the value of <code>System.nanoTime()</code> in the exporting JVM when the
+   *                       event was exported, see {@link EventReader#toEpochMillis(long)}
+   * @param threadId       the id of the exporting thread
+   * @param eventId        the id of the event
+   * @param duration       the duration of the event
+   * @param value0         the first value of the event, 0 if not set
+   * @param value1         the second value of the event, 0 if not set
+   * @param value2         the third value of the event, 0 if not set
+   * @param value3         the fourth value of the event, 0 if not set
+   */
+  void onEvent(long timestampNanos, long threadId, int eventId, long duration,
+               long value0, long value1, long value2, long value3);
+}
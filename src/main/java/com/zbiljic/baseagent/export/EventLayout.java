@@ -0,0 +1,120 @@
+package com.zbiljic.baseagent.export;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * The layout of an event file, shared by the {@link EventExporter} and the {@link EventReader}.
+ * <p>
+ * The file starts with a header of {@value #HEADER_SIZE} bytes, followed by a number of segments.
+ * Every segment is a ring of fixed-size records, written by one thread at a time of the exporting JVM
+ * and read by a single reader. A segment starts with a header of {@value #SEGMENT_HEADER_SIZE}
+ * bytes, in which the sequence written by the thread and the sequence read by the reader are on
+ * separate cache lines, followed by its records.
+ * <p>
+ * File header:
+ * <pre>
+ *   0  8 bytes  magic, {@code BAEVENTS}
+ *   8  byte     byte order of all following numbers, 0 for big and 1 for little endian
+ *  12  int      version
+ *  16  int      number of segments
+ *  20  int      records per segment, a power of two
+ *  24  int      record size
+ *  28  int      number of segments claimed by threads
+ *  32  long     wall clock time when the file was created, in milliseconds
+ *  40  long     value of System.nanoTime() when the file was created
+ *  48  long     events dropped by threads which could not claim a segment
+ * </pre>
+ * Segment header:
+ * <pre>
+ *   0  long     number of records written
+ *   8  long     id of the thread which claimed the segment last, 0 while it is not claimed
+ *  16  long     events dropped because the segment was full
+ *  64  long     number of records read
+ * </pre>
+ * Record:
+ * <pre>
+ *   0  long     value of System.nanoTime()
+ *   8  long     thread id
+ *  16  int      event id
+ *  24  long     duration
+ *  32  long[4]  values
+ * </pre>
+ */
+final class EventLayout {
+
+  private EventLayout() { /* No instance methods */ }
+
+  static final byte[] MAGIC = {'B', 'A', 'E', 'V', 'E', 'N', 'T', 'S'};
+  static final int VERSION = 1;
+
+  static final int HEADER_SIZE = 64;
+  static final int BYTE_ORDER = 8;
+  static final int VERSION_OFFSET = 12;
+  static final int SEGMENT_COUNT = 16;
+  static final int SEGMENT_CAPACITY = 20;
+  static final int RECORD_SIZE_OFFSET = 24;
+  static final int CLAIMED_SEGMENTS = 28;
+  static final int START_MILLIS = 32;
+  static final int START_NANOS = 40;
+  static final int UNCLAIMED_DROPPED = 48;
+
+  static final int SEGMENT_HEADER_SIZE = 128;
+  static final int WRITE_SEQUENCE = 0;
+  static final int THREAD_ID = 8;
+  static final int DROPPED = 16;
+  static final int READ_SEQUENCE = 64;
+
+  static final int RECORD_SIZE = 64;
+  static final int TIMESTAMP = 0;
+  static final int RECORD_THREAD_ID = 8;
+  static final int EVENT_ID = 16;
+  static final int DURATION = 24;
+  static final int VALUES = 32;
+  static final int VALUE_COUNT = 4;
+
+  static long segmentSize(int capacity) {
+    return SEGMENT_HEADER_SIZE + (long) capacity * RECORD_SIZE;
+  }
+
+  static long fileSize(int segments, int capacity) {
+    return HEADER_SIZE + segments * segmentSize(capacity);
+  }
+
+  static int segmentOffset(int segment, int capacity) {
+    return (int) (HEADER_SIZE + segment * segmentSize(capacity));
+  }
+
+  static ByteOrder byteOrder(ByteBuffer buffer) {
+    return buffer.get(BYTE_ORDER) == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+  }
+
+  /**
+   * Orders the accesses to the mapped file around the sequences. Byte buffers only offer plain
+   * reads and writes, so the ordering is established with the barriers of a volatile read and an
+   * ordered write of an unrelated field: records are written before the write sequence is
+   * published, and read after the write sequence was read and before the read sequence is published.
+   */
+  static final class Fence {
+
+    private static final AtomicLongFieldUpdater<Fence> VALUE =
+      AtomicLongFieldUpdater.newUpdater(Fence.class, "value");
+
+    private volatile long value;
+
+    /**
+     * Keeps the following reads from being performed before the preceding ones.
+     */
+    long acquire() {
+      return value;
+    }
+
+    /**
+     * Keeps the preceding reads and writes from being performed after the following writes.
+     */
+    void release() {
+      VALUE.lazySet(this, 0);
+    }
+  }
+}
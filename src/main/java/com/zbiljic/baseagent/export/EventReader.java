@@ -0,0 +1,198 @@
+package com.zbiljic.baseagent.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.zbiljic.baseagent.export.EventLayout.CLAIMED_SEGMENTS;
+import static com.zbiljic.baseagent.export.EventLayout.DROPPED;
+import static com.zbiljic.baseagent.export.EventLayout.DURATION;
+import static com.zbiljic.baseagent.export.EventLayout.EVENT_ID;
+import static com.zbiljic.baseagent.export.EventLayout.HEADER_SIZE;
+import static com.zbiljic.baseagent.export.EventLayout.MAGIC;
+import static com.zbiljic.baseagent.export.EventLayout.READ_SEQUENCE;
+import static com.zbiljic.baseagent.export.EventLayout.RECORD_SIZE;
+import static com.zbiljic.baseagent.export.EventLayout.RECORD_SIZE_OFFSET;
+import static com.zbiljic.baseagent.export.EventLayout.RECORD_THREAD_ID;
+import static com.zbiljic.baseagent.export.EventLayout.SEGMENT_CAPACITY;
+import static com.zbiljic.baseagent.export.EventLayout.SEGMENT_COUNT;
+import static com.zbiljic.baseagent.export.EventLayout.SEGMENT_HEADER_SIZE;
+import static com.zbiljic.baseagent.export.EventLayout.START_MILLIS;
+import static com.zbiljic.baseagent.export.EventLayout.START_NANOS;
+import static com.zbiljic.baseagent.export.EventLayout.TIMESTAMP;
+import static com.zbiljic.baseagent.export.EventLayout.UNCLAIMED_DROPPED;
+import static com.zbiljic.baseagent.export.EventLayout.VALUES;
+import static com.zbiljic.baseagent.export.EventLayout.VERSION;
+import static com.zbiljic.baseagent.export.EventLayout.VERSION_OFFSET;
+import static com.zbiljic.baseagent.export.EventLayout.WRITE_SEQUENCE;
+import static com.zbiljic.baseagent.export.EventLayout.byteOrder;
+import static com.zbiljic.baseagent.export.EventLayout.fileSize;
+import static com.zbiljic.baseagent.export.EventLayout.segmentOffset;
+
+/**
+ * Reads the events exported by an {@link EventExporter}, usually in another process on the same
+ * host. The reader only depends on the JDK, so it can be used without the agent.
+ * <p>
+ * Every segment of the file must be read by at most one reader at a time. Several readers share
+ * the load by reading disjoint sets of segments, see {@link #open(File, int, int)}. Events are read
+ * in the order they were exported by their thread; events of different threads are not ordered.
+ * The file is unmapped once the reader is garbage collected.
+ */
+public final class EventReader {
+
+  private final EventLayout.Fence fence = new EventLayout.Fence();
+  private final MappedByteBuffer buffer;
+  private final int segmentCount;
+  private final int capacity;
+  private final int[] segments;
+  private final long startMillis;
+  private final long startNanos;
+
+  private EventReader(MappedByteBuffer buffer, int consumer, int consumers) {
+    this.buffer = buffer;
+    this.segmentCount = buffer.getInt(SEGMENT_COUNT);
+    this.capacity = buffer.getInt(SEGMENT_CAPACITY);
+    this.startMillis = buffer.getLong(START_MILLIS);
+    this.startNanos = buffer.getLong(START_NANOS);
+    int[] assigned = new int[segmentCount];
+    int count = 0;
+    for (int segment = consumer; segment < segmentCount; segment += consumers) {
+      assigned[count++] = segmentOffset(segment, capacity);
+    }
+    this.segments = Arrays.copyOf(assigned, count);
+  }
+
+  /**
+   * Opens a reader of all segments of the given file.
+   */
+  public static EventReader open(File file) throws IOException {
+    return open(file, 0, 1);
+  }
+
+  /**
+   * Opens a reader of the segments of the given file assigned to the given consumer: consumer
+   * {@code i} of {@code n} reads the segments {@code i}, {@code i + n}, {@code i + 2n} and so on.
+   *
+   * @param file      the file written by an {@link EventExporter}
+   * @param consumer  the index of this consumer, from 0 to {@code consumers - 1}
+   * @param consumers the number of consumers sharing the file
+   * @throws IOException if the file could not be mapped, or is not an event file
+   */
+  public static EventReader open(File file, int consumer, int consumers) throws IOException {
+    if (consumer < 0 || consumer >= consumers) {
+      throw new IllegalArgumentException("Consumer " + consumer + " of " + consumers);
+    }
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    final MappedByteBuffer buffer;
+    try {
+      if (randomAccessFile.length() < HEADER_SIZE) {
+        throw new IOException("Not an event file: " + file);
+      }
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+    } finally {
+      randomAccessFile.close();
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (buffer.get(i) != MAGIC[i]) {
+        throw new IOException("Not an event file: " + file);
+      }
+    }
+    buffer.order(byteOrder(buffer));
+    if (buffer.getInt(VERSION_OFFSET) != VERSION || buffer.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+      throw new IOException("Unsupported event file version " + buffer.getInt(VERSION_OFFSET) + ": " + file);
+    }
+    if (buffer.capacity() < fileSize(buffer.getInt(SEGMENT_COUNT), buffer.getInt(SEGMENT_CAPACITY))) {
+      throw new IOException("Truncated event file: " + file);
+    }
+    return new EventReader(buffer, consumer, consumers);
+  }
+
+  /**
+   * Passes all events exported since the last poll to the given handler.
+   *
+   * @return the number of events read
+   */
+  public int poll(EventHandler handler) {
+    return poll(handler, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Passes up to the given number of events exported since the last poll to the given handler.
+   *
+   * @return the number of events read
+   */
+  public int poll(EventHandler handler, int limit) {
+    int read = 0;
+    for (int i = 0; i < segments.length && read < limit; i++) {
+      read += poll(segments[i], handler, limit - read);
+    }
+    return read;
+  }
+
+  private int poll(int segment, EventHandler handler, int limit) {
+    final long writeSequence = buffer.getLong(segment + WRITE_SEQUENCE);
+    final long readSequence = buffer.getLong(segment + READ_SEQUENCE);
+    final long available = Math.min(writeSequence - readSequence, limit);
+    if (available <= 0) {
+      return 0;
+    }
+    // the records up to the write sequence are written before they are read
+    fence.acquire();
+    final int records = segment + SEGMENT_HEADER_SIZE;
+    final int mask = capacity - 1;
+    for (long sequence = readSequence; sequence < readSequence + available; sequence++) {
+      final int record = records + ((int) sequence & mask) * RECORD_SIZE;
+      handler.onEvent(
+        buffer.getLong(record + TIMESTAMP),
+        buffer.getLong(record + RECORD_THREAD_ID),
+        buffer.getInt(record + EVENT_ID),
+        buffer.getLong(record + DURATION),
+        buffer.getLong(record + VALUES),
+        buffer.getLong(record + VALUES + 8),
+        buffer.getLong(record + VALUES + 16),
+        buffer.getLong(record + VALUES + 24));
+    }
+    fence.release();
+    buffer.putLong(segment + READ_SEQUENCE, readSequence + available);
+    return (int) available;
+  }
+
+  /**
+   * @return the number of events the exporter dropped so far, in all segments
+   */
+  public long getDropped() {
+    long dropped = buffer.getLong(UNCLAIMED_DROPPED);
+    for (int segment = 0; segment < segmentCount; segment++) {
+      dropped += buffer.getLong(segmentOffset(segment, capacity) + DROPPED);
+    }
+    return dropped;
+  }
+
+  /**
+   * @return the number of segments claimed by exporting threads
+   */
+  public int getClaimedSegments() {
+    return buffer.getInt(CLAIMED_SEGMENTS);
+  }
+
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /**
+   * Converts the timestamp of an event to the wall clock time, in milliseconds since the epoch.
+   */
+  public long toEpochMillis(long timestampNanos) {
+    return startMillis + (timestampNanos - startNanos) / 1000000;
+  }
+
+  @Override
+  public String toString() {
+    return "EventReader{segments=" + segments.length + " of " + segmentCount
+      + ", capacity=" + capacity
+      + ", dropped=" + getDropped() + '}';
+  }
+}
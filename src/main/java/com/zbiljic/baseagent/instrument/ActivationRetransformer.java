@@ -0,0 +1,91 @@
+package com.zbiljic.baseagent.instrument;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retransforms the classes which were loaded before the transformer of a lazily activated
+ * {@link com.zbiljic.baseagent.instrumentation.TriggeredInstrumenter} was installed: classes of the
+ * library which were loaded before its trigger, and classes loaded on other threads while the
+ * transformer was built. The installed transformer decides which of them it transforms.
+ * <p>
+ * The JVM does not report the classes retransformed from within a transformer to any transformer,
+ * so this runs on its own thread, after the triggering class was loaded.
+ */
+final class ActivationRetransformer implements Runnable {
+
+  private static Logger logger = Logger.getLogger(ActivationRetransformer.class.getName());
+
+  static final int BATCH_SIZE = 100;
+
+  private final Instrumentation instrumentation;
+  private final ClassNameFilter filter;
+  private final Class<?>[] loadedClasses;
+  private final String instrumenter;
+
+  /**
+   * @param instrumentation the instrumentation the transformer was installed on
+   * @param filter          the filter rejecting classes the activated Instrumenter does not transform
+   * @param loadedClasses   the classes loaded when the transformer was installed
+   * @param instrumenter    the name of the activated Instrumenter
+   */
+  ActivationRetransformer(Instrumentation instrumentation, ClassNameFilter filter, Class<?>[] loadedClasses,
+                          String instrumenter) {
+    this.instrumentation = instrumentation;
+    this.filter = filter;
+    this.loadedClasses = loadedClasses;
+    this.instrumenter = instrumenter;
+  }
+
+  /**
+   * Starts retransforming the classes on a daemon thread.
+   */
+  void start() {
+    Thread thread = new Thread(this, "baseagent-activation-" + instrumenter);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    final long start = System.currentTimeMillis();
+    List<Class<?>> candidates = new ArrayList<Class<?>>();
+    for (Class<?> type : loadedClasses) {
+      if (instrumentation.isModifiableClass(type)
+        && !filter.rejects(type.getClassLoader(), type.getName().replace('.', '/'))) {
+        candidates.add(type);
+      }
+    }
+    int failed = 0;
+    for (int from = 0; from < candidates.size(); from += BATCH_SIZE) {
+      failed += retransform(candidates.subList(from, Math.min(candidates.size(), from + BATCH_SIZE)));
+    }
+    logger.log(Level.FINE, "Retransformed {0} of {1} loaded classes for {2} in {3} ms, {4} failed",
+      new Object[]{candidates.size(), loadedClasses.length, instrumenter, System.currentTimeMillis() - start, failed});
+  }
+
+  /**
+   * @return the number of classes which failed to be retransformed
+   */
+  private int retransform(List<Class<?>> batch) {
+    try {
+      instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+      return 0;
+    } catch (Throwable t) {
+      if (batch.size() == 1) {
+        logger.log(Level.FINE, "Failed to retransform " + batch.get(0).getName() + " for " + instrumenter, t);
+        return 1;
+      }
+      // retransformed one by one, so that a single class does not fail the whole batch
+      int failed = 0;
+      for (Class<?> type : batch) {
+        failed += retransform(Collections.<Class<?>>singletonList(type));
+      }
+      return failed;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link AgentBuilder.RedefinitionStrategy.BatchAllocator} which adapts the size of each batch
+ * so that retransforming a batch takes approximately the target time. The duration of a batch is
+ * measured from the moment its {@link #getListener() listener} is notified until the next batch is
+ * requested, so pauses between batches are not counted.
+ */
+final class AdaptiveBatchAllocator implements AgentBuilder.RedefinitionStrategy.BatchAllocator {
+
+  private final int initialSize;
+  private final long targetNanos;
+
+  private volatile long batchStart;
+
+  AdaptiveBatchAllocator(int initialSize, long target, TimeUnit timeUnit) {
+    if (initialSize < 1) {
+      throw new IllegalArgumentException("Initial batch size must be positive: " + initialSize);
+    }
+    this.initialSize = initialSize;
+    this.targetNanos = timeUnit.toNanos(target);
+  }
+
+  /**
+   * Returns the listener which records the start of each batch. It must be registered after any
+   * listener which pauses between batches.
+   *
+   * @return the listener recording the start of a batch
+   */
+  AgentBuilder.RedefinitionStrategy.Listener getListener() {
+    return new AgentBuilder.RedefinitionStrategy.Listener.Adapter() {
+      @Override
+      public void onBatch(int index, List<Class<?>> batch, List<Class<?>> types) {
+        batchStart = System.nanoTime();
+      }
+    };
+  }
+
+  @Override
+  public Iterable<? extends List<Class<?>>> batch(final List<Class<?>> types) {
+    return new Iterable<List<Class<?>>>() {
+      @Override
+      public Iterator<List<Class<?>>> iterator() {
+        return new AdaptiveIterator(types);
+      }
+    };
+  }
+
+  int nextSize(int size, long elapsedNanos) {
+    if (elapsedNanos <= 0) {
+      return size * 2;
+    }
+    double scaled = size * ((double) targetNanos / elapsedNanos);
+    int next = (int) Math.max(size / 2, Math.min((long) size * 2, (long) scaled));
+    return Math.max(1, next);
+  }
+
+  private class AdaptiveIterator implements Iterator<List<Class<?>>> {
+
+    private final List<Class<?>> types;
+    private int position;
+    private int size = initialSize;
+
+    AdaptiveIterator(List<Class<?>> types) {
+      this.types = types;
+      batchStart = 0L;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < types.size();
+    }
+
+    @Override
+    public List<Class<?>> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final long start = batchStart;
+      if (start != 0L) {
+        size = nextSize(size, System.nanoTime() - start);
+      }
+      final int end = (int) Math.min((long) position + size, types.size());
+      List<Class<?>> batch = types.subList(position, end);
+      position = end;
+      return batch;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove");
+    }
+  }
+}
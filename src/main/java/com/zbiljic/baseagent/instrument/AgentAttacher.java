@@ -2,27 +2,39 @@ package com.zbiljic.baseagent.instrument;
 
 import com.zbiljic.baseagent.BaseAgent;
 import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.export.EventExporter;
 import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.Registry;
+import com.zbiljic.baseagent.instrumentation.TriggeredInstrumenter;
+import com.zbiljic.baseagent.instrumentation.allocation.AllocationProfilerInstrumenter;
+import com.zbiljic.baseagent.instrumentation.executor.ExecutorInstrumenter;
+import com.zbiljic.baseagent.instrumentation.lock.LockProfilerInstrumenter;
+import com.zbiljic.baseagent.instrumentation.profiler.SamplingProfilerInstrumenter;
 import com.zbiljic.baseagent.util.PomVersionUtils;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.agent.ByteBuddyAgent;
 import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.dynamic.scaffold.MethodGraph;
 import net.bytebuddy.dynamic.scaffold.TypeValidation;
+import net.bytebuddy.matcher.ElementMatchers;
 
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.zbiljic.baseagent.instrument.ClassNamePrefilter.wellKnownIgnored;
 import static com.zbiljic.baseagent.instrument.ConfigurationClassNameMatcher.configurationIgnored;
 import static com.zbiljic.baseagent.instrumentation.ClassLoaderNameMatcher.classLoaderWithName;
 import static com.zbiljic.baseagent.instrumentation.ClassLoaderNameMatcher.isReflectionClassLoader;
 import static net.bytebuddy.matcher.ElementMatchers.any;
-import static net.bytebuddy.matcher.ElementMatchers.nameContains;
-import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
-import static net.bytebuddy.matcher.ElementMatchers.not;
 
 /**
  * Attaches the {@link ByteBuddyAgent} at runtime and registers transformers.
@@ -34,6 +46,19 @@ public class AgentAttacher {
   private static final BaseAgentConfiguration configuration = BaseAgent.getConfiguration();
   private static boolean runtimeAttached = false;
   private static Instrumentation instrumentation;
+  private static TransformationCache transformationCache;
+  private static CachingPoolStrategy typePoolCache;
+  private static TransformationStatistics statistics;
+  private static RulesFileWatcher rulesFileWatcher;
+  private static ClassFileExporter classFileExporter;
+  private static ClassNamePrefilter prefilter;
+  private static UninterestingClassLoaders uninterestingClassLoaders;
+  private static TransformationCircuitBreaker circuitBreaker;
+  private static MatchIndex matchIndex;
+  private static final AttachStatus attachStatus = new AttachStatus();
+  private static Thread attachThread;
+
+  private static final int DEFAULT_ADAPTIVE_BATCH_SIZE = 100;
 
   private AgentAttacher() { /* No instance methods */ }
 
@@ -42,21 +67,69 @@ public class AgentAttacher {
    * -javaagent command line argument.
    */
   public static synchronized void performRuntimeAttachment() {
-    if (runtimeAttached || !configuration.isBaseAgentActive() || !configuration.isAttachAgentAtRuntime()) {
+    if (runtimeAttached) {
+      return;
+    }
+    if (!configuration.isBaseAgentActive() || !configuration.isAttachAgentAtRuntime()) {
+      attachStatus.enter(AttachStatus.Phase.SKIPPED);
       return;
     }
     runtimeAttached = true;
 
-    if (initInstrumentation()) {
-      final long start = System.currentTimeMillis();
-      initByteBuddyClassFileTransformer();
-      if (configuration.isDebugInstrumentation()) {
-        logger.log(Level.INFO,
-          "Attached agents in {0} ms", System.currentTimeMillis() - start);
+    try {
+      attachStatus.enter(AttachStatus.Phase.ATTACHING);
+      if (initInstrumentation()) {
+        final long start = System.currentTimeMillis();
+        initByteBuddyClassFileTransformer();
+        attachStatus.enter(AttachStatus.Phase.COMPLETED);
+        if (configuration.isDebugInstrumentation()) {
+          logger.log(Level.INFO,
+            "Attached agents in {0} ms", System.currentTimeMillis() - start);
+        }
+      } else {
+        attachStatus.enter(AttachStatus.Phase.SKIPPED);
       }
+    } catch (RuntimeException e) {
+      attachStatus.fail(e);
+      throw e;
+    } catch (Error e) {
+      attachStatus.fail(e);
+      throw e;
     }
   }
 
+  /**
+   * Performs the runtime attachment on a low-priority daemon thread, so that the caller is not
+   * blocked while the loaded classes are retransformed.
+   *
+   * @return the status of the attachment
+   */
+  public static synchronized AttachStatus performRuntimeAttachmentAsync() {
+    if (attachThread == null && !runtimeAttached) {
+      attachThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            performRuntimeAttachment();
+          } catch (Throwable t) {
+            logger.log(Level.SEVERE, "Error attaching baseagent Java agent", t);
+          }
+        }
+      }, "baseagent-attach");
+      attachThread.setDaemon(true);
+      attachThread.setPriority(Thread.MIN_PRIORITY);
+      attachThread.start();
+    }
+    return attachStatus;
+  }
+
+  /**
+   * @return the status of the runtime attachment
+   */
+  public static AttachStatus getAttachStatus() {
+    return attachStatus;
+  }
+
   private static boolean initInstrumentation() {
     try {
       instrumentation = getInstrumentation();
@@ -89,72 +162,423 @@ public class AgentAttacher {
   }
 
   private static void initByteBuddyClassFileTransformer() {
-    AgentBuilder agentBuilder = createAgentBuilder();
+    attachStatus.enter(AttachStatus.Phase.INSTRUMENTING);
+    if (configuration.isTransformationStatistics() || configuration.isCircuitBreaker()) {
+      // the circuit breaker relies on the statistics to attribute transformations to Instrumenters
+      statistics = new TransformationStatistics();
+      if (configuration.isTransformationStatistics()) {
+        statistics.registerMBean();
+      }
+    }
+    if (configuration.isCircuitBreaker()) {
+      final String file = configuration.getCircuitBreakerFile();
+      circuitBreaker = new TransformationCircuitBreaker(statistics,
+        configuration.getCircuitBreakerTypeStrikes(),
+        configuration.getCircuitBreakerSlowTypeMillis(),
+        configuration.getCircuitBreakerInstrumenterErrors(),
+        configuration.getCircuitBreakerInstrumenterMillis(),
+        file.trim().isEmpty() ? null : new File(file));
+    }
+    // started before the Instrumenters, so that their advice can export events right away
+    EventExporter.start(configuration);
+    final List<Instrumenter> instrumenters = getInstrumenters();
+    if (configuration.getUninterestingClassLoaderThreshold() > 0) {
+      uninterestingClassLoaders = new UninterestingClassLoaders(configuration.getUninterestingClassLoaderThreshold());
+    }
+    if (configuration.isPrefilterClassNames()) {
+      // created before deferring, as lazily activated Instrumenters share the prefilter
+      prefilter = uninterestingClassLoaders != null
+        ? ClassNamePrefilter.of(instrumenters, uninterestingClassLoaders.matcher())
+        : ClassNamePrefilter.of(instrumenters);
+    }
+    // fingerprinted before deferring, as the index also covers lazily activated Instrumenters
+    final List<Instrumenter> fingerprintedInstrumenters = new ArrayList<Instrumenter>(instrumenters);
+    if (configuration.isLazyActivation()) {
+      deferTriggeredInstrumenters(instrumenters);
+    }
+    initTransformationCache(instrumenters);
+    initRulesFileWatcher();
+    if (!configuration.getMatchIndexFile().trim().isEmpty()) {
+      // opened once the rules file is applied, as the ignored types depend on its rules
+      matchIndex = MatchIndex.open(new File(configuration.getMatchIndexFile()),
+        MatchIndex.fingerprint(fingerprintedInstrumenters, configuration, ConfigurationClassNameMatcher.getRules()));
+      if (rulesFileWatcher != null) {
+        rulesFileWatcher.setMatchIndex(matchIndex);
+      }
+    }
 
-    for (Instrumenter instrumenter : getInstrumenters()) {
-      try {
-        agentBuilder = instrumenter.instrument(agentBuilder);
-      } catch (Throwable t) {
+    AgentBuilder agentBuilder = instrument(createAgentBuilder(getDiscoveryStrategy(instrumenters)), instrumenters);
+
+    final long start = System.currentTimeMillis();
+    attachStatus.enter(AttachStatus.Phase.RETRANSFORMING);
+    try {
+      agentBuilder.installOn(DecoratingInstrumentation.of(instrumentation, getDecorators(true)));
+      if (matchIndex != null) {
+        matchIndex.writeNowAndOnShutdown();
+      }
+      if (rulesFileWatcher != null) {
+        rulesFileWatcher.start(configuration.getRulesFilePollMillis());
+      }
+    } finally {
+      if (configuration.isDebugInstrumentation()) {
+        logger.log(Level.INFO, "Installed agent in {0} ms", System.currentTimeMillis() - start);
+        if (transformationCache != null) {
+          logger.log(Level.INFO, "Transformation cache: {0} hits, {1} misses",
+            new Object[]{transformationCache.getHits(), transformationCache.getMisses()});
+        }
+        if (typePoolCache != null) {
+          logger.log(Level.INFO, "Type pool cache: {0} types for {1} class loaders, hit rate {2}",
+            new Object[]{typePoolCache.getSize(), typePoolCache.getClassLoaderCount(), typePoolCache.getHitRate()});
+        }
+        if (statistics != null) {
+          logger.log(Level.INFO, "{0}", statistics);
+        }
+        if (prefilter != null) {
+          logger.log(Level.INFO, "{0}", prefilter);
+        }
+        if (uninterestingClassLoaders != null) {
+          logger.log(Level.INFO, "Uninteresting class loaders: {0}", uninterestingClassLoaders.getUninterestingCount());
+        }
+        if (circuitBreaker != null) {
+          logger.log(Level.INFO, "{0}", circuitBreaker);
+        }
+        if (matchIndex != null) {
+          logger.log(Level.INFO, "{0}", matchIndex);
+        }
+      }
+    }
+  }
+
+  private static AgentBuilder instrument(AgentBuilder agentBuilder, Iterable<? extends Instrumenter> instrumenters) {
+    // fused across all instrumenters, attributing every registration to the instrumenter making it
+    final Registry.Fusion fusion = configuration.isFuseRegistrations() ? Registry.Fusion.begin() : null;
+    try {
+      for (Instrumenter instrumenter : instrumenters) {
+        final int registrations = fusion != null ? fusion.getRegistrations() : 0;
+        try {
+          if (statistics != null) {
+            agentBuilder = statistics.instrument(instrumenter, agentBuilder, fusion);
+          } else {
+            agentBuilder = instrumenter.instrument(agentBuilder);
+          }
+        } catch (Throwable t) {
+          if (fusion != null) {
+            fusion.truncate(registrations);
+          }
+          if (circuitBreaker != null) {
+            circuitBreaker.instrumenterFailed(instrumenter, t);
+          } else if (configuration.isDebugInstrumentation()) {
+            logger.log(Level.SEVERE, "Instrumentation [{0}] failure.", instrumenter.getClass().getSimpleName());
+          }
+        }
+      }
+      if (fusion != null) {
         if (configuration.isDebugInstrumentation()) {
-          logger.log(Level.SEVERE, "Instrumentation [{0}] failure.", instrumenter.getClass().getSimpleName());
+          logger.log(Level.INFO, "Fused {0} registrations into {1} transformations",
+            new Object[]{fusion.getRegistrations(), fusion.getTransformations()});
+        }
+        agentBuilder = fusion.end(agentBuilder);
+      }
+      return agentBuilder;
+    } finally {
+      if (fusion != null) {
+        fusion.cancel();
+      }
+    }
+  }
+
+  /**
+   * Removes the {@link TriggeredInstrumenter}s from the given list whose triggers have not been
+   * loaded yet, and activates them once a trigger is loaded.
+   */
+  private static void deferTriggeredInstrumenters(List<Instrumenter> instrumenters) {
+    List<TriggeredInstrumenter> triggered = new ArrayList<TriggeredInstrumenter>();
+    for (Iterator<Instrumenter> iterator = instrumenters.iterator(); iterator.hasNext(); ) {
+      Instrumenter instrumenter = iterator.next();
+      if (instrumenter instanceof TriggeredInstrumenter) {
+        triggered.add((TriggeredInstrumenter) instrumenter);
+        iterator.remove();
+      }
+    }
+    if (triggered.isEmpty()) {
+      return;
+    }
+
+    final LazyActivationTransformer lazyActivationTransformer = new LazyActivationTransformer(triggered,
+      new LazyActivationTransformer.Activator() {
+        @Override
+        public ClassFileTransformer activate(TriggeredInstrumenter instrumenter) {
+          return activateInstrumenter(instrumenter);
         }
+      });
+    // registered before looking at the loaded classes, so that no trigger is missed in between, and
+    // as retransformation capable, so that it runs in the same chain as the activated transformers
+    instrumentation.addTransformer(lazyActivationTransformer, true);
+    for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+      if (lazyActivationTransformer.isDone()) {
+        break;
+      }
+      instrumenters.addAll(lazyActivationTransformer.claimTriggeredBy(loadedClass.getName()));
+    }
+    if (lazyActivationTransformer.isDone()) {
+      instrumentation.removeTransformer(lazyActivationTransformer);
+    }
+    if (configuration.isDebugInstrumentation()) {
+      for (Instrumenter instrumenter : triggered) {
+        logger.log(Level.INFO, "{0} {1}", new Object[]{
+          instrumenters.contains(instrumenter) ? "Already triggered" : "Deferring",
+          instrumenter.getClass().getSimpleName()});
       }
     }
+  }
 
+  private static ClassFileTransformer activateInstrumenter(TriggeredInstrumenter instrumenter) {
     final long start = System.currentTimeMillis();
+    if (uninterestingClassLoaders != null) {
+      // the activated Instrumenter may transform classes of any class loader
+      uninterestingClassLoaders.clear();
+    }
     try {
-      agentBuilder.installOn(instrumentation);
-    } finally {
+      // the triggering class is transformed by the caller, classes loaded before are retransformed
+      // once it was loaded, as classes retransformed while it is being loaded are not transformed
+      ClassFileTransformer transformer = instrument(
+        createAgentBuilder(new AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.Explicit()),
+        Collections.singletonList(instrumenter))
+        .installOn(DecoratingInstrumentation.of(instrumentation, getDecorators(false)));
+      new ActivationRetransformer(instrumentation,
+        ClassNamePrefilter.of(Collections.singletonList(instrumenter)),
+        instrumentation.getAllLoadedClasses(),
+        instrumenter.getClass().getSimpleName()).start();
       if (configuration.isDebugInstrumentation()) {
-        logger.log(Level.INFO, "Installed agent in {0} ms", System.currentTimeMillis() - start);
+        logger.log(Level.INFO, "Activated {0} in {1} ms",
+          new Object[]{instrumenter.getClass().getSimpleName(), System.currentTimeMillis() - start});
       }
+      return transformer;
+    } catch (Throwable t) {
+      logger.log(Level.WARNING, "Failed to activate " + instrumenter.getClass().getSimpleName(), t);
+      return null;
+    }
+  }
+
+  private static void initTransformationCache(Iterable<Instrumenter> instrumenters) {
+    final String directory = configuration.getTransformationCacheDirectory();
+    if (directory.trim().isEmpty()) {
+      return;
+    }
+    transformationCache = new TransformationCache(
+      new File(directory.trim()),
+      AgentFingerprint.of(instrumenters, configuration),
+      configuration.getExportClassesWithName());
+    if (configuration.isDebugInstrumentation()) {
+      logger.log(Level.INFO, "Using transformation cache in {0}", transformationCache.getDirectory());
+    }
+  }
+
+  private static void initRulesFileWatcher() {
+    final String rulesFile = configuration.getRulesFile();
+    if (rulesFile.trim().isEmpty()) {
+      return;
+    }
+    rulesFileWatcher = new RulesFileWatcher(new File(rulesFile.trim()), configuration, instrumentation, transformationCache);
+    rulesFileWatcher.init();
+    if (configuration.isDebugInstrumentation()) {
+      logger.log(Level.INFO, "Watching rules in {0}: {1}",
+        new Object[]{rulesFile.trim(), ConfigurationClassNameMatcher.getRules()});
     }
   }
 
-  private static AgentBuilder createAgentBuilder() {
+  private static List<DecoratingInstrumentation.Decorator> getDecorators(boolean cacheable) {
+    List<DecoratingInstrumentation.Decorator> decorators = new ArrayList<DecoratingInstrumentation.Decorator>();
+    if (cacheable && transformationCache != null) {
+      decorators.add(transformationCache.getDecorator());
+    }
+    // in front of the cache, so that rejected classes are not hashed for a cache lookup
+    if (prefilter != null) {
+      decorators.add(prefilter.getDecorator());
+    }
+    if (matchIndex != null) {
+      decorators.add(matchIndex.getDecorator());
+    }
+    // the last decorator is the outermost one, so that the time spent in the cache is measured as well
+    if (statistics != null) {
+      decorators.add(statistics.getDecorator());
+    }
+    return decorators;
+  }
+
+  /**
+   * Returns the statistics of the transformation pipeline, which are also registered as MBeans.
+   *
+   * @return the statistics, or {@code null} if they are not enabled
+   */
+  public static TransformationStatistics getTransformationStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Returns the type pool cache used while matching types.
+   *
+   * @return the cache, or {@code null} if it is not enabled
+   */
+  public static CachingPoolStrategy getTypePoolCache() {
+    return typePoolCache;
+  }
+
+  /**
+   * Returns the persistent transformation cache.
+   *
+   * @return the cache, or {@code null} if it is not enabled
+   */
+  public static TransformationCache getTransformationCache() {
+    return transformationCache;
+  }
+
+  private static AgentBuilder createAgentBuilder(AgentBuilder.RedefinitionStrategy.DiscoveryStrategy discoveryStrategy) {
     final ByteBuddy byteBuddy = new ByteBuddy()
       .with(TypeValidation.of(configuration.isDebugInstrumentation()))
       .with(MethodGraph.Compiler.DEFAULT);
-    return new AgentBuilder.Default(byteBuddy)
+    final AgentBuilder.RedefinitionStrategy.BatchAllocator batchAllocator = getBatchAllocator();
+    AgentBuilder agentBuilder = new AgentBuilder.Default(byteBuddy);
+    if (configuration.getTypePoolCacheSize() > 0) {
+      if (typePoolCache == null) {
+        typePoolCache = new CachingPoolStrategy(configuration.getTypePoolCacheSize());
+      }
+      // cached descriptions must not keep class loaders alive, and should be preferred over reflection
+      agentBuilder = agentBuilder
+        .with(typePoolCache)
+        .with(AgentBuilder.LocationStrategy.ForClassLoader.WEAK)
+        .with(AgentBuilder.DescriptionStrategy.Default.POOL_FIRST);
+    }
+    return agentBuilder
       .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+      .with(batchAllocator)
+      .with(discoveryStrategy)
+      .with(getRedefinitionListener(batchAllocator))
       .with(getListener())
       .ignore(any(), isReflectionClassLoader())
       .or(any(), classLoaderWithName("org.codehaus.groovy.runtime.callsite.CallSiteClassLoader"))
-      // ignore some well-known
-      .or(
-        nameStartsWith("net.bytebuddy.")
-          .or(nameStartsWith("org.aspectj."))
-          .or(nameStartsWith("org.groovy."))
-          .or(nameStartsWith("com.p6spy."))
-          .or(nameStartsWith("org.slf4j.").and(not(nameStartsWith("org.slf4j.impl."))))
-          .or(nameContains("javassist"))
-          .or(nameContains(".asm."))
-          .or(nameStartsWith("com.zbiljic.baseagent")
-            .and(not(nameContains("Test")
-                .or(nameContains("benchmark"))
-              )
-            )
-          )
-      )
+      .or(any(), uninterestingClassLoaders != null ? uninterestingClassLoaders.matcher() : ElementMatchers.<ClassLoader>none())
+      // ignore some well-known, shared with the prefilter
+      .or(wellKnownIgnored())
       // ignore based on configuration
       .or(configurationIgnored())
+      .or(circuitBreaker != null ? circuitBreaker.trippedTypes() : ElementMatchers.<TypeDescription>none())
       .disableClassFormatChanges();
   }
 
+  private static AgentBuilder.RedefinitionStrategy.DiscoveryStrategy getDiscoveryStrategy(
+    Iterable<Instrumenter> instrumenters) {
+    final int threads = configuration.getParallelMatchingThreads();
+    final boolean replaying = matchIndex != null && matchIndex.isReplaying();
+    if (threads < 1 && !replaying) {
+      return AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.SinglePass.INSTANCE;
+    }
+    final ClassNameFilter filter;
+    if (threads < 1) {
+      filter = matchIndex;
+    } else {
+      // the Instrumenters are already deferred, which only makes the prefilter built here stricter
+      final ClassNamePrefilter candidates = prefilter != null
+        ? prefilter
+        : ClassNamePrefilter.of(instrumenters, uninterestingClassLoaders != null
+        ? uninterestingClassLoaders.matcher()
+        : ElementMatchers.<ClassLoader>none());
+      filter = replaying ? anyOf(candidates, matchIndex) : candidates;
+    }
+    return new ParallelMatchingDiscoveryStrategy(
+      AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.SinglePass.INSTANCE, filter, Math.max(1, threads));
+  }
+
+  private static ClassNameFilter anyOf(final ClassNameFilter first, final ClassNameFilter second) {
+    return new ClassNameFilter() {
+      @Override
+      public boolean rejects(ClassLoader loader, String internalName) {
+        return first.rejects(loader, internalName) || second.rejects(loader, internalName);
+      }
+    };
+  }
+
+  private static AgentBuilder.RedefinitionStrategy.BatchAllocator getBatchAllocator() {
+    final int batchSize = configuration.getRetransformBatchSize();
+    final int targetMillis = configuration.getRetransformBatchTargetMillis();
+    if (targetMillis > 0) {
+      return new AdaptiveBatchAllocator(
+        batchSize > 0 ? batchSize : DEFAULT_ADAPTIVE_BATCH_SIZE, targetMillis, TimeUnit.MILLISECONDS);
+    } else if (batchSize > 0) {
+      return AgentBuilder.RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(batchSize);
+    }
+    return AgentBuilder.RedefinitionStrategy.BatchAllocator.ForTotal.INSTANCE;
+  }
+
+  private static AgentBuilder.RedefinitionStrategy.Listener getRedefinitionListener(
+    AgentBuilder.RedefinitionStrategy.BatchAllocator batchAllocator) {
+    List<AgentBuilder.RedefinitionStrategy.Listener> listeners = new ArrayList<AgentBuilder.RedefinitionStrategy.Listener>();
+    // pausing must come first, so that the others only measure the retransformation itself
+    if (configuration.getRetransformBatchPauseMillis() > 0) {
+      listeners.add(AgentBuilder.RedefinitionStrategy.Listener.Pausing.of(
+        configuration.getRetransformBatchPauseMillis(), TimeUnit.MILLISECONDS));
+    }
+    if (batchAllocator instanceof AdaptiveBatchAllocator) {
+      listeners.add(((AdaptiveBatchAllocator) batchAllocator).getListener());
+    }
+    if (configuration.isDebugInstrumentation()) {
+      listeners.add(new BatchLoggingListener());
+    }
+    listeners.add(attachStatus.getListener());
+    return new AgentBuilder.RedefinitionStrategy.Listener.Compound(listeners);
+  }
+
   private static AgentBuilder.Listener getListener() {
     List<AgentBuilder.Listener> listeners = new ArrayList<AgentBuilder.Listener>();
     if (configuration.isDebugInstrumentation()) {
       listeners.add(new ErrorLoggingListener());
     }
     if (!configuration.getExportClassesWithName().isEmpty()) {
-      listeners.add(new FileExportingListener(configuration.getExportClassesWithName()));
+      listeners.add(new FileExportingListener(configuration.getExportClassesWithName(), getClassFileExporter()));
+    }
+    if (transformationCache != null) {
+      listeners.add(transformationCache.getListener());
+    }
+    if (statistics != null) {
+      listeners.add(statistics.getListener());
+    }
+    if (uninterestingClassLoaders != null) {
+      listeners.add(uninterestingClassLoaders);
+    }
+    if (matchIndex != null) {
+      listeners.add(matchIndex);
+    }
+    if (circuitBreaker != null) {
+      // after the statistics, which attribute the transformations the circuit breaker checks
+      listeners.add(circuitBreaker);
     }
     return new AgentBuilder.Listener.Compound(listeners.toArray(new AgentBuilder.Listener[0]));
   }
 
-  private static Iterable<Instrumenter> getInstrumenters() {
+  static synchronized ClassFileExporter getClassFileExporter() {
+    if (classFileExporter == null) {
+      classFileExporter = new ClassFileExporter(configuration.isExportClassesToJar());
+    }
+    return classFileExporter;
+  }
+
+  private static List<Instrumenter> getInstrumenters() {
     List<Instrumenter> instrumenters = new ArrayList<Instrumenter>();
-    for (Instrumenter instrumenter : PluginBootstrap.loadInstrumenters()) {
+    List<Instrumenter> candidates = new ArrayList<Instrumenter>(PluginBootstrap.loadInstrumenters());
+    // only added when active, as it would keep the prefilter from rejecting types by name
+    if (configuration.isProfilerActive()) {
+      candidates.add(new SamplingProfilerInstrumenter());
+    }
+    if (configuration.isAllocationProfilerActive()) {
+      candidates.add(new AllocationProfilerInstrumenter());
+    }
+    if (configuration.isExecutorActive()) {
+      candidates.add(new ExecutorInstrumenter());
+    }
+    if (configuration.isLockProfilerActive()) {
+      candidates.add(new LockProfilerInstrumenter());
+    }
+    for (Instrumenter instrumenter : candidates) {
       try {
         if (!isExcluded(instrumenter)) {
           instrumenters.add(instrumenter);
@@ -174,7 +598,8 @@ public class AgentAttacher {
   }
 
   private static boolean isExcluded(Instrumenter instrumenter) {
-    return configuration.getExcludedInstrumenters().contains(instrumenter.getClass().getSimpleName());
+    return configuration.getExcludedInstrumenters().contains(instrumenter.getClass().getSimpleName())
+      || circuitBreaker != null && circuitBreaker.isInstrumenterTripped(instrumenter.getClass().getName());
   }
 
 }
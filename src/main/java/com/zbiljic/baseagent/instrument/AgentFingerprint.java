@@ -0,0 +1,79 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import net.bytebuddy.ByteBuddy;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a fingerprint of everything which influences the outcome of a transformation, apart from
+ * the class itself: the active {@link Instrumenter}s (including the version and location of the
+ * code they were loaded from), the agent configuration and the Byte Buddy version.
+ */
+final class AgentFingerprint {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private AgentFingerprint() { /* No instance methods */ }
+
+  static String of(Iterable<Instrumenter> instrumenters, BaseAgentConfiguration configuration) {
+    MessageDigest digest = newDigest();
+    update(digest, describe(ByteBuddy.class));
+    update(digest, describe(AgentFingerprint.class));
+    for (Instrumenter instrumenter : instrumenters) {
+      update(digest, describe(instrumenter.getClass()));
+    }
+    update(digest, String.valueOf(configuration));
+    return toHex(digest.digest());
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not supported by this JVM", e);
+    }
+  }
+
+  static void update(MessageDigest digest, String value) {
+    try {
+      digest.update(value.getBytes("UTF-8"));
+      digest.update((byte) 0);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  private static String describe(Class<?> type) {
+    StringBuilder sb = new StringBuilder(type.getName());
+    Package typePackage = type.getPackage();
+    if (typePackage != null) {
+      sb.append(':').append(typePackage.getImplementationVersion());
+    }
+    CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+    URL location = codeSource != null ? codeSource.getLocation() : null;
+    if (location != null) {
+      sb.append('@').append(location);
+      if ("file".equals(location.getProtocol())) {
+        File file = new File(location.getPath());
+        sb.append(':').append(file.length()).append(':').append(file.lastModified());
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,199 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The progress of the runtime attachment performed by {@link AgentAttacher}. Readiness checks can
+ * poll the phase and the number of retransformed classes, or wait for the attachment with
+ * {@link #get(long, TimeUnit)}. The attachment cannot be cancelled.
+ */
+public final class AttachStatus implements Future<Void> {
+
+  public enum Phase {
+    /**
+     * The attachment has not started yet.
+     */
+    PENDING,
+    /**
+     * The agent is attached to the JVM.
+     */
+    ATTACHING,
+    /**
+     * The Instrumenters are loaded and applied.
+     */
+    INSTRUMENTING,
+    /**
+     * The agent is installed and the loaded classes are retransformed.
+     */
+    RETRANSFORMING,
+    /**
+     * The agent is installed.
+     */
+    COMPLETED,
+    /**
+     * Runtime attachment is disabled by the configuration, or the agent could not be attached.
+     */
+    SKIPPED,
+    /**
+     * The attachment failed, see {@link #getFailure()}.
+     */
+    FAILED;
+
+    public boolean isDone() {
+      return this == COMPLETED || this == SKIPPED || this == FAILED;
+    }
+  }
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile Phase phase = Phase.PENDING;
+  private volatile Throwable failure;
+  private volatile long startMillis;
+  private volatile long endMillis;
+
+  // only written by the attaching thread
+  private volatile int classesToRetransform;
+  private volatile int retransformedClasses;
+  private volatile int failedClasses;
+  private int currentBatch;
+
+  public Phase getPhase() {
+    return phase;
+  }
+
+  /**
+   * @return the exception the attachment failed with, or {@code null}
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * @return the number of loaded classes which are retransformed
+   */
+  public int getClassesToRetransform() {
+    return classesToRetransform;
+  }
+
+  /**
+   * @return the number of classes whose retransformation has completed
+   */
+  public int getRetransformedClasses() {
+    return retransformedClasses;
+  }
+
+  /**
+   * @return the number of classes in batches whose retransformation failed
+   */
+  public int getFailedClasses() {
+    return failedClasses;
+  }
+
+  /**
+   * @return the milliseconds the attachment took so far, or in total once it is done
+   */
+  public long getDurationMillis() {
+    final long start = startMillis;
+    if (start == 0) {
+      return 0;
+    }
+    final long end = endMillis;
+    return (end != 0 ? end : System.currentTimeMillis()) - start;
+  }
+
+  void enter(Phase phase) {
+    if (startMillis == 0) {
+      startMillis = System.currentTimeMillis();
+    }
+    this.phase = phase;
+    if (phase.isDone()) {
+      endMillis = System.currentTimeMillis();
+      done.countDown();
+    }
+  }
+
+  void fail(Throwable throwable) {
+    failure = throwable;
+    enter(Phase.FAILED);
+  }
+
+  /**
+   * @return a listener which counts the retransformed classes
+   */
+  AgentBuilder.RedefinitionStrategy.Listener getListener() {
+    return new AgentBuilder.RedefinitionStrategy.Listener.Adapter() {
+      @Override
+      public void onBatch(int index, List<Class<?>> batch, List<Class<?>> types) {
+        // a batch is only reported before it is retransformed
+        retransformedClasses += currentBatch;
+        currentBatch = batch.size();
+        classesToRetransform = types.size();
+      }
+
+      @Override
+      public Iterable<? extends List<Class<?>>> onError(int index, List<Class<?>> batch, Throwable throwable,
+                                                        List<Class<?>> types) {
+        failedClasses += batch.size();
+        currentBatch = 0;
+        return super.onError(index, batch, throwable, types);
+      }
+
+      @Override
+      public void onComplete(int amount, List<Class<?>> types, Map<List<Class<?>>, Throwable> failures) {
+        retransformedClasses += currentBatch;
+        currentBatch = 0;
+      }
+    };
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public boolean isDone() {
+    return phase.isDone();
+  }
+
+  @Override
+  public Void get() throws InterruptedException, ExecutionException {
+    done.await();
+    return result();
+  }
+
+  @Override
+  public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException("Attachment is still in phase " + phase);
+    }
+    return result();
+  }
+
+  private Void result() throws ExecutionException {
+    if (failure != null) {
+      throw new ExecutionException(failure);
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "AttachStatus{phase=" + phase
+      + ", retransformed=" + retransformedClasses + "/" + classesToRetransform
+      + ", failed=" + failedClasses
+      + ", durationMillis=" + getDurationMillis() + "}";
+  }
+}
@@ -0,0 +1,224 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.utility.JavaModule;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An {@link AgentBuilder} handed to a single {@link com.zbiljic.baseagent.instrumentation.Instrumenter}
+ * which attributes the work of the Byte Buddy agent to that instrumenter: the type matchers passed
+ * to {@code type(...)} report every type they evaluate, and every {@link AgentBuilder.Transformer}
+ * reports the types it is applied to. The registrations the instrumenter makes in a
+ * {@link Registry.Fusion} are attributed the same way. The matchers of a tripped instrumenter no
+ * longer match any type, see {@link TransformationCircuitBreaker}.
+ * <p>
+ * Like {@link DecoratingInstrumentation}, a dynamic proxy is used so that the builder keeps all of
+ * its interfaces, which differ from one step of the builder to the next.
+ */
+final class AttributingAgentBuilder implements InvocationHandler {
+
+  private final Object target;
+  private final TransformationStatistics statistics;
+  private final InstrumenterStatistics instrumenterStatistics;
+
+  private AttributingAgentBuilder(Object target, TransformationStatistics statistics,
+                                  InstrumenterStatistics instrumenterStatistics) {
+    this.target = target;
+    this.statistics = statistics;
+    this.instrumenterStatistics = instrumenterStatistics;
+  }
+
+  static AgentBuilder of(AgentBuilder agentBuilder, TransformationStatistics statistics,
+                         InstrumenterStatistics instrumenterStatistics) {
+    return (AgentBuilder) wrap(agentBuilder, statistics, instrumenterStatistics);
+  }
+
+  /**
+   * Returns the attribution of the registrations an instrumenter makes in a
+   * {@link Registry.Fusion}, which attributes the fused transformations like the ones made with the
+   * builder returned by {@link #of}.
+   */
+  static Registry.Fusion.Attribution attribution(final TransformationStatistics statistics,
+                                                 final InstrumenterStatistics instrumenterStatistics) {
+    return new Registry.Fusion.Attribution() {
+      @Override
+      public boolean isActive() {
+        return !instrumenterStatistics.isTripped();
+      }
+
+      @Override
+      public void evaluated() {
+        statistics.evaluated(instrumenterStatistics);
+      }
+
+      @Override
+      public void applied() {
+        statistics.matched(instrumenterStatistics);
+      }
+    };
+  }
+
+  /**
+   * Returns the actual {@link AgentBuilder} behind a builder returned by an instrumenter.
+   */
+  static AgentBuilder unwrap(AgentBuilder agentBuilder) {
+    if (agentBuilder != null && Proxy.isProxyClass(agentBuilder.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(agentBuilder);
+      if (handler instanceof AttributingAgentBuilder) {
+        return (AgentBuilder) ((AttributingAgentBuilder) handler).target;
+      }
+    }
+    return agentBuilder;
+  }
+
+  private static Object wrap(Object target, TransformationStatistics statistics,
+                             InstrumenterStatistics instrumenterStatistics) {
+    if (!(target instanceof AgentBuilder
+      || target instanceof AgentBuilder.Identified
+      || target instanceof AgentBuilder.Matchable)) {
+      return target;
+    }
+    return Proxy.newProxyInstance(
+      AgentBuilder.class.getClassLoader(),
+      publicInterfaces(target.getClass()),
+      new AttributingAgentBuilder(target, statistics, instrumenterStatistics));
+  }
+
+  private static Class<?>[] publicInterfaces(Class<?> type) {
+    Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+    for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+      collectInterfaces(current, interfaces);
+    }
+    return interfaces.toArray(new Class<?>[interfaces.size()]);
+  }
+
+  private static void collectInterfaces(Class<?> type, Set<Class<?>> interfaces) {
+    for (Class<?> anInterface : type.getInterfaces()) {
+      if (Modifier.isPublic(anInterface.getModifiers())) {
+        interfaces.add(anInterface);
+      }
+      collectInterfaces(anInterface, interfaces);
+    }
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      if (method.getName().equals("equals")) {
+        return proxy == args[0];
+      } else if (method.getName().equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      }
+      return target.toString();
+    }
+    if (args != null) {
+      args = attribute(method, args);
+    }
+    final Object result;
+    try {
+      result = method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+    return result == target ? proxy : wrap(result, statistics, instrumenterStatistics);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Object[] attribute(Method method, Object[] args) {
+    Object[] attributed = null;
+    for (int i = 0; i < args.length; i++) {
+      Object replacement = null;
+      if (args[i] instanceof AgentBuilder.Transformer) {
+        replacement = new AttributingTransformer((AgentBuilder.Transformer) args[i]);
+      } else if (i == 0 && method.getName().equals("type")) {
+        if (args[i] instanceof AgentBuilder.RawMatcher) {
+          replacement = new EvaluationReportingRawMatcher((AgentBuilder.RawMatcher) args[i]);
+        } else if (args[i] instanceof ElementMatcher) {
+          replacement = new EvaluationReportingMatcher((ElementMatcher<? super TypeDescription>) args[i]);
+        }
+      }
+      if (replacement != null) {
+        if (attributed == null) {
+          attributed = args.clone();
+        }
+        attributed[i] = replacement;
+      }
+    }
+    return attributed != null ? attributed : args;
+  }
+
+  private class AttributingTransformer implements AgentBuilder.Transformer {
+
+    private final AgentBuilder.Transformer delegate;
+
+    AttributingTransformer(AgentBuilder.Transformer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder,
+                                            TypeDescription typeDescription,
+                                            ClassLoader classLoader,
+                                            JavaModule module) {
+      statistics.matched(instrumenterStatistics);
+      return delegate.transform(builder, typeDescription, classLoader, module);
+    }
+  }
+
+  private class EvaluationReportingRawMatcher implements AgentBuilder.RawMatcher {
+
+    private final AgentBuilder.RawMatcher delegate;
+
+    EvaluationReportingRawMatcher(AgentBuilder.RawMatcher delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean matches(TypeDescription typeDescription,
+                           ClassLoader classLoader,
+                           JavaModule module,
+                           Class<?> classBeingRedefined,
+                           ProtectionDomain protectionDomain) {
+      if (instrumenterStatistics.isTripped()) {
+        return false;
+      }
+      statistics.evaluated(instrumenterStatistics);
+      return delegate.matches(typeDescription, classLoader, module, classBeingRedefined, protectionDomain);
+    }
+  }
+
+  private class EvaluationReportingMatcher implements ElementMatcher<TypeDescription> {
+
+    private final ElementMatcher<? super TypeDescription> delegate;
+
+    EvaluationReportingMatcher(ElementMatcher<? super TypeDescription> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean matches(TypeDescription target) {
+      if (instrumenterStatistics.isTripped()) {
+        return false;
+      }
+      statistics.evaluated(instrumenterStatistics);
+      return delegate.matches(target);
+    }
+
+    @Override
+    public String toString() {
+      return delegate.toString();
+    }
+  }
+}
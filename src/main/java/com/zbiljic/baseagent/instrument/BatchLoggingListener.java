@@ -0,0 +1,54 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs the number of classes and the duration of every retransformation batch.
+ */
+class BatchLoggingListener extends AgentBuilder.RedefinitionStrategy.Listener.Adapter {
+
+  private static Logger logger = Logger.getLogger(BatchLoggingListener.class.getName());
+
+  private int batchIndex = -1;
+  private int batchSize;
+  private long batchStart;
+  private long totalNanos;
+
+  @Override
+  public void onBatch(int index, List<Class<?>> batch, List<Class<?>> types) {
+    logPreviousBatch();
+    batchIndex = index;
+    batchSize = batch.size();
+    batchStart = System.nanoTime();
+  }
+
+  @Override
+  public Iterable<? extends List<Class<?>>> onError(int index, List<Class<?>> batch, Throwable throwable, List<Class<?>> types) {
+    logger.log(Level.WARNING, "Failed to retransform batch " + index + " of " + batch.size() + " classes", throwable);
+    return super.onError(index, batch, throwable, types);
+  }
+
+  @Override
+  public void onComplete(int amount, List<Class<?>> types, Map<List<Class<?>>, Throwable> failures) {
+    logPreviousBatch();
+    logger.log(Level.INFO, "Retransformed {0} classes in {1} batches ({2} ms), {3} batches failed",
+      new Object[]{types.size(), amount, TimeUnit.NANOSECONDS.toMillis(totalNanos), failures.size()});
+  }
+
+  private void logPreviousBatch() {
+    if (batchIndex < 0) {
+      return;
+    }
+    final long duration = System.nanoTime() - batchStart;
+    totalNanos += duration;
+    logger.log(Level.INFO, "Retransformed batch {0} with {1} classes in {2} ms",
+      new Object[]{batchIndex, batchSize, TimeUnit.NANOSECONDS.toMillis(duration)});
+    batchIndex = -1;
+  }
+}
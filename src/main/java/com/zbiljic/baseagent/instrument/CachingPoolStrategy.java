@@ -0,0 +1,210 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.util.WeakConcurrentMap;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.pool.TypePool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link AgentBuilder.PoolStrategy} which keeps a bounded, least recently used cache of type
+ * descriptions for every {@link ClassLoader}. Class loaders are weakly referenced, so the cache of
+ * an undeployed application is collected together with its class loader. The cache of a class
+ * loader is looked up without locking.
+ * <p>
+ * Types of the {@code java.} packages can only be defined by the bootstrap class loader and are
+ * therefore described once, in a cache shared by all class loaders.
+ */
+public final class CachingPoolStrategy implements AgentBuilder.PoolStrategy {
+
+  private static final String BOOTSTRAP_ONLY_PACKAGE = "java.";
+
+  private final int maximumSize;
+  private final TypePool.Default.ReaderMode readerMode;
+
+  private final BoundedCacheProvider bootstrapCache;
+  private final TypePool sharedPool;
+  private final WeakConcurrentMap<ClassLoader, BoundedCacheProvider> caches =
+    new WeakConcurrentMap<ClassLoader, BoundedCacheProvider>();
+
+  CachingPoolStrategy(int maximumSize) {
+    this(maximumSize, TypePool.Default.ReaderMode.FAST);
+  }
+
+  CachingPoolStrategy(int maximumSize, TypePool.Default.ReaderMode readerMode) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("Maximum cache size must be positive: " + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+    this.readerMode = readerMode;
+    this.bootstrapCache = new BoundedCacheProvider(maximumSize);
+    this.sharedPool = new BootstrapOnlyTypePool(new TypePool.Default.WithLazyResolution(
+      bootstrapCache, ClassFileLocator.ForClassLoader.of(null), readerMode));
+  }
+
+  @Override
+  public TypePool typePool(ClassFileLocator classFileLocator, ClassLoader classLoader) {
+    if (classLoader == null) {
+      return new TypePool.Default.WithLazyResolution(bootstrapCache, classFileLocator, readerMode);
+    }
+    return new TypePool.Default.WithLazyResolution(locate(classLoader), classFileLocator, readerMode, sharedPool);
+  }
+
+  private BoundedCacheProvider locate(ClassLoader classLoader) {
+    BoundedCacheProvider cacheProvider = caches.get(classLoader);
+    if (cacheProvider == null) {
+      final BoundedCacheProvider newCacheProvider = new BoundedCacheProvider(maximumSize);
+      cacheProvider = caches.putIfAbsent(classLoader, newCacheProvider);
+      if (cacheProvider == null) {
+        cacheProvider = newCacheProvider;
+      }
+    }
+    return cacheProvider;
+  }
+
+  private List<BoundedCacheProvider> cacheProviders() {
+    List<BoundedCacheProvider> cacheProviders = new ArrayList<BoundedCacheProvider>();
+    cacheProviders.add(bootstrapCache);
+    cacheProviders.addAll(caches.values());
+    return cacheProviders;
+  }
+
+  /**
+   * @return the number of class loaders with a cache, not counting the bootstrap class loader
+   */
+  public int getClassLoaderCount() {
+    caches.expungeStaleEntries();
+    return caches.size();
+  }
+
+  /**
+   * @return the number of type descriptions currently held in all caches
+   */
+  public long getSize() {
+    long size = 0;
+    for (BoundedCacheProvider cacheProvider : cacheProviders()) {
+      size += cacheProvider.size();
+    }
+    return size;
+  }
+
+  public long getHits() {
+    long hits = 0;
+    for (BoundedCacheProvider cacheProvider : cacheProviders()) {
+      hits += cacheProvider.hits.get();
+    }
+    return hits;
+  }
+
+  public long getMisses() {
+    long misses = 0;
+    for (BoundedCacheProvider cacheProvider : cacheProviders()) {
+      misses += cacheProvider.misses.get();
+    }
+    return misses;
+  }
+
+  /**
+   * @return the ratio of lookups which were answered from a cache, or {@code 0} if there were none
+   */
+  public double getHitRate() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return total == 0 ? 0d : (double) hits / total;
+  }
+
+  /**
+   * A {@link TypePool.CacheProvider} which evicts the least recently used type once it holds the
+   * maximum number of types.
+   */
+  static final class BoundedCacheProvider implements TypePool.CacheProvider {
+
+    private final Map<String, TypePool.Resolution> cache;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    BoundedCacheProvider(final int maximumSize) {
+      cache = Collections.synchronizedMap(new LruMap(maximumSize));
+    }
+
+    @Override
+    public TypePool.Resolution find(String name) {
+      TypePool.Resolution resolution = cache.get(name);
+      if (resolution == null) {
+        misses.incrementAndGet();
+      } else {
+        hits.incrementAndGet();
+      }
+      return resolution;
+    }
+
+    @Override
+    public TypePool.Resolution register(String name, TypePool.Resolution resolution) {
+      cache.put(name, resolution);
+      return resolution;
+    }
+
+    @Override
+    public void clear() {
+      cache.clear();
+    }
+
+    int size() {
+      return cache.size();
+    }
+  }
+
+  /**
+   * A map in access order which removes its least recently used entry once it exceeds its maximum
+   * size.
+   */
+  private static final class LruMap extends LinkedHashMap<String, TypePool.Resolution> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maximumSize;
+
+    LruMap(int maximumSize) {
+      super(16, 0.75f, true);
+      this.maximumSize = maximumSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TypePool.Resolution> eldest) {
+      return size() > maximumSize;
+    }
+  }
+
+  /**
+   * A parent {@link TypePool} which only describes types that no class loader but the bootstrap
+   * class loader can define, leaving all other types to the class loader specific pool.
+   */
+  private static final class BootstrapOnlyTypePool implements TypePool {
+
+    private final TypePool delegate;
+
+    BootstrapOnlyTypePool(TypePool delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Resolution describe(String name) {
+      if (name.startsWith(BOOTSTRAP_ONLY_PACKAGE)) {
+        return delegate.describe(name);
+      }
+      return new Resolution.Illegal(name);
+    }
+
+    @Override
+    public void clear() {
+      // the shared cache is not cleared on behalf of a single class loader
+    }
+  }
+}
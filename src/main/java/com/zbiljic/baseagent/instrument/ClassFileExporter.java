@@ -0,0 +1,218 @@
+package com.zbiljic.baseagent.instrument;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes class files on a background thread, so that exporting classes does not slow down class
+ * loading. Class files are either written to one temporary file each, or into a single jar per
+ * run, which is completed when the JVM shuts down.
+ * <p>
+ * Memory is bounded: if more classes are waiting to be written than the queue can hold, further
+ * classes are dropped and counted, and only the locations of the most recently exported classes
+ * are remembered.
+ */
+final class ClassFileExporter {
+
+  private static Logger logger = Logger.getLogger(ClassFileExporter.class.getName());
+
+  static final int QUEUE_CAPACITY = 1024;
+  static final int REMEMBERED_EXPORTS = 1024;
+
+  private final boolean toJar;
+
+  private final BlockingQueue<ClassFile> queue = new ArrayBlockingQueue<ClassFile>(QUEUE_CAPACITY);
+  private final BlockingQueue<String> exportedClasses = new ArrayBlockingQueue<String>(REMEMBERED_EXPORTS);
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+
+  // not guarded by this, so that exporting does not wait for the writer
+  private final Object writerLock = new Object();
+  private volatile Thread writer;
+
+  // guarded by this, written by the writer thread and closed by the shutdown hook
+  private File jarFile;
+  private ZipOutputStream jar;
+  private final Map<String, Integer> jarEntries = new HashMap<String, Integer>();
+
+  ClassFileExporter(boolean toJar) {
+    this.toJar = toJar;
+  }
+
+  /**
+   * Queues a class file for export, without blocking.
+   *
+   * @param typeName the name of the class
+   * @param bytes    the class file
+   * @return <code>false</code> if the queue is full and the class was dropped
+   */
+  boolean export(String typeName, byte[] bytes) {
+    ensureWriterStarted();
+    pending.incrementAndGet();
+    if (queue.offer(new ClassFile(typeName, bytes))) {
+      return true;
+    }
+    pending.decrementAndGet();
+    long droppedClasses = dropped.incrementAndGet();
+    // logs at 1, 2, 4, 8, ... dropped classes
+    if (Long.bitCount(droppedClasses) == 1) {
+      logger.log(Level.WARNING, "Export queue is full, dropped {0} classes so far", droppedClasses);
+    }
+    return false;
+  }
+
+  /**
+   * Waits until all queued classes have been written.
+   *
+   * @return <code>true</code> if all classes have been written before the timeout elapsed
+   */
+  boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (pending.get() > 0) {
+      if (System.nanoTime() - deadline > 0) {
+        return false;
+      }
+      Thread.sleep(1);
+    }
+    return true;
+  }
+
+  /**
+   * @return the locations of the most recently exported classes, oldest first
+   */
+  List<String> getExportedClasses() {
+    return new ArrayList<String>(exportedClasses);
+  }
+
+  long getDropped() {
+    return dropped.get();
+  }
+
+  private void ensureWriterStarted() {
+    if (writer != null) {
+      return;
+    }
+    synchronized (writerLock) {
+      if (writer != null) {
+        return;
+      }
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          writeQueuedClasses();
+        }
+      }, "baseagent-class-exporter");
+      thread.setDaemon(true);
+      thread.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          close();
+        }
+      }, "baseagent-class-exporter-shutdown"));
+      writer = thread;
+    }
+  }
+
+  private void writeQueuedClasses() {
+    while (!Thread.currentThread().isInterrupted()) {
+      final ClassFile classFile;
+      try {
+        classFile = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        write(classFile);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to export " + classFile.typeName, e);
+      } finally {
+        pending.decrementAndGet();
+      }
+    }
+  }
+
+  private synchronized void write(ClassFile classFile) throws IOException {
+    final String location = toJar ? writeToJar(classFile) : writeToFile(classFile);
+    logger.log(Level.INFO, "Exported class modified by Byte Buddy: {0}", location);
+    while (!exportedClasses.offer(location)) {
+      exportedClasses.poll();
+    }
+  }
+
+  private String writeToFile(ClassFile classFile) throws IOException {
+    final File exportedClass = File.createTempFile(classFile.typeName, ".class");
+    final FileChannel channel = new FileOutputStream(exportedClass).getChannel();
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(classFile.bytes);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } finally {
+      channel.close();
+    }
+    return exportedClass.getAbsolutePath();
+  }
+
+  private String writeToJar(ClassFile classFile) throws IOException {
+    if (jar == null) {
+      jarFile = File.createTempFile("baseagent-exported-", ".jar");
+      OutputStream outputStream = Channels.newOutputStream(new FileOutputStream(jarFile).getChannel());
+      jar = new ZipOutputStream(outputStream);
+    }
+    String entryName = entryName(classFile.typeName);
+    jar.putNextEntry(new ZipEntry(entryName));
+    jar.write(classFile.bytes);
+    jar.closeEntry();
+    jar.flush();
+    return jarFile.getAbsolutePath() + "!/" + entryName;
+  }
+
+  private String entryName(String typeName) {
+    String entryName = typeName.replace('.', '/');
+    Integer count = jarEntries.get(entryName);
+    jarEntries.put(entryName, count == null ? 1 : count + 1);
+    // a class can be exported more than once, e.g. when it is retransformed
+    return count == null ? entryName + ".class" : entryName + "-" + count + ".class";
+  }
+
+  synchronized void close() {
+    if (jar != null) {
+      try {
+        jar.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close " + jarFile, e);
+      }
+      jar = null;
+    }
+  }
+
+  private static final class ClassFile {
+
+    final String typeName;
+    final byte[] bytes;
+
+    ClassFile(String typeName, byte[] bytes) {
+      this.typeName = typeName;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package com.zbiljic.baseagent.instrument;
+
+/**
+ * Rejects classes by the internal name the JVM passes to a
+ * {@link java.lang.instrument.ClassFileTransformer}, before Byte Buddy parses them. Implementations
+ * must be thread-safe.
+ */
+interface ClassNameFilter {
+
+  /**
+   * Checks if the given class can be rejected without parsing it.
+   *
+   * @param loader       the class loader of the class, or {@code null} for the bootstrap loader
+   * @param internalName the internal name of the class. For example java/lang/String
+   * @return <code>true</code>, if the agent would not transform the class
+   */
+  boolean rejects(ClassLoader loader, String internalName);
+}
@@ -0,0 +1,171 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.NamedTypesInstrumenter;
+import com.zbiljic.baseagent.util.BloomFilter;
+import com.zbiljic.baseagent.util.StripedCounter;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static com.zbiljic.baseagent.instrumentation.ClassLoaderNameMatcher.classLoaderWithName;
+import static com.zbiljic.baseagent.instrumentation.ClassLoaderNameMatcher.isReflectionClassLoader;
+import static net.bytebuddy.matcher.ElementMatchers.none;
+
+/**
+ * Rejects classes by the internal name the JVM passes to a {@link ClassFileTransformer}, before Byte
+ * Buddy parses the class file to match it. A class is rejected if the agent would ignore it anyway,
+ * that is if it is one of the well-known ignored types, if its class loader is ignored or if
+ * {@link ConfigurationClassNameMatcher} ignores it. Further class loaders can be ignored, for example
+ * the ones remembered by {@link UninterestingClassLoaders}.
+ * <p>
+ * If every {@link Instrumenter} is a {@link NamedTypesInstrumenter}, a {@link BloomFilter} of the
+ * named types additionally rejects all classes no Instrumenter can transform.
+ */
+final class ClassNamePrefilter implements ClassNameFilter {
+
+  private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+  private static final ElementMatcher<ClassLoader> REFLECTION_CLASS_LOADER = isReflectionClassLoader();
+  private static final ElementMatcher<ClassLoader> GROOVY_CALL_SITE_CLASS_LOADER =
+    classLoaderWithName("org.codehaus.groovy.runtime.callsite.CallSiteClassLoader");
+
+  private final BloomFilter typeNames;
+  private final ElementMatcher<? super ClassLoader> ignoredClassLoaders;
+  private final StripedCounter rejected = new StripedCounter();
+  private final StripedCounter passed = new StripedCounter();
+
+  private ClassNamePrefilter(BloomFilter typeNames, ElementMatcher<? super ClassLoader> ignoredClassLoaders) {
+    this.typeNames = typeNames;
+    this.ignoredClassLoaders = ignoredClassLoaders;
+  }
+
+  static ClassNamePrefilter of(Iterable<? extends Instrumenter> instrumenters) {
+    return of(instrumenters, none());
+  }
+
+  /**
+   * Creates a prefilter for the given Instrumenters, including the ones which are activated later.
+   *
+   * @param instrumenters       the Instrumenters
+   * @param ignoredClassLoaders the class loaders whose classes are rejected in addition to the ones
+   *                            the agent always ignores
+   */
+  static ClassNamePrefilter of(Iterable<? extends Instrumenter> instrumenters,
+                               ElementMatcher<? super ClassLoader> ignoredClassLoaders) {
+    Collection<String> internalNames = new ArrayList<String>();
+    for (Instrumenter instrumenter : instrumenters) {
+      if (!(instrumenter instanceof NamedTypesInstrumenter)) {
+        return new ClassNamePrefilter(null, ignoredClassLoaders);
+      }
+      for (String typeName : ((NamedTypesInstrumenter) instrumenter).getTypeNames()) {
+        internalNames.add(typeName.replace('.', '/'));
+      }
+    }
+    return new ClassNamePrefilter(BloomFilter.of(internalNames, FALSE_POSITIVE_PROBABILITY), ignoredClassLoaders);
+  }
+
+  /**
+   * @return <code>true</code> if the prefilter rejects classes which are not named by any
+   * Instrumenter
+   */
+  boolean isFilteringTypeNames() {
+    return typeNames != null;
+  }
+
+  @Override
+  public boolean rejects(ClassLoader loader, String internalName) {
+    return isWellKnownIgnored(internalName)
+      || typeNames != null && !typeNames.mightContain(internalName)
+      || REFLECTION_CLASS_LOADER.matches(loader)
+      || GROOVY_CALL_SITE_CLASS_LOADER.matches(loader)
+      || ignoredClassLoaders.matches(loader)
+      || ConfigurationClassNameMatcher.shouldIgnore(internalName.replace('/', '.'));
+  }
+
+  /**
+   * Checks if a class is one of the types the agent never transforms, such as the types of Byte
+   * Buddy and of baseagent itself.
+   *
+   * @param internalName the internal name of the class. For example java/lang/String
+   * @return <code>true</code>, if the class is always ignored
+   */
+  static boolean isWellKnownIgnored(String internalName) {
+    return internalName.startsWith("net/bytebuddy/")
+      || internalName.startsWith("org/aspectj/")
+      || internalName.startsWith("org/groovy/")
+      || internalName.startsWith("com/p6spy/")
+      || internalName.startsWith("org/slf4j/") && !internalName.startsWith("org/slf4j/impl/")
+      || internalName.contains("javassist")
+      || internalName.contains("/asm/")
+      || internalName.startsWith("com/zbiljic/baseagent")
+      && !internalName.contains("Test") && !internalName.contains("benchmark");
+  }
+
+  /**
+   * Matches the types for which {@link #isWellKnownIgnored(String)} returns <code>true</code>.
+   */
+  static ElementMatcher.Junction<TypeDescription> wellKnownIgnored() {
+    return new ElementMatcher.Junction.AbstractBase<TypeDescription>() {
+      @Override
+      public boolean matches(TypeDescription target) {
+        return isWellKnownIgnored(target.getInternalName());
+      }
+    };
+  }
+
+  long getRejected() {
+    return rejected.sum();
+  }
+
+  long getPassed() {
+    return passed.sum();
+  }
+
+  DecoratingInstrumentation.Decorator getDecorator() {
+    return new DecoratingInstrumentation.Decorator() {
+      @Override
+      public ClassFileTransformer decorate(ClassFileTransformer transformer) {
+        return new PrefilteringClassFileTransformer(transformer);
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "ClassNamePrefilter{rejected=" + getRejected()
+      + ", passed=" + getPassed()
+      + ", filteringTypeNames=" + isFilteringTypeNames()
+      + '}';
+  }
+
+  private class PrefilteringClassFileTransformer implements ClassFileTransformer {
+
+    private final ClassFileTransformer delegate;
+
+    PrefilteringClassFileTransformer(ClassFileTransformer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader,
+                            String className,
+                            Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[] classfileBuffer) throws IllegalClassFormatException {
+      if (className != null) {
+        if (rejects(loader, className)) {
+          rejected.increment();
+          return null;
+        }
+        passed.increment();
+      }
+      return delegate.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+    }
+  }
+}
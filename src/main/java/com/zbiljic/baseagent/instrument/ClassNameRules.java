@@ -0,0 +1,365 @@
+package com.zbiljic.baseagent.instrument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+//@formatter:off
+/**
+ * An immutable, precompiled form of the include and exclude rules used to decide if a class should
+ * be ignored by the instrumentation.
+ * <p>
+ * The rules are evaluated in a single pass over the class name:
+ * <ul>
+ *   <li><code>excludeContaining</code> entries are compiled into an Aho-Corasick automaton</li>
+ *   <li><code>include</code> and <code>exclude</code> prefixes are compiled into a prefix trie</li>
+ * </ul>
+ * The result is identical to checking every rule one by one: a class is ignored if it contains one
+ * of the <code>excludeContaining</code> entries, or if the first (in configuration order) include
+ * it starts with has a longer exclude it also starts with.
+ */
+//@formatter:on
+public final class ClassNameRules {
+
+  private static final int NO_INCLUDE = Integer.MAX_VALUE;
+
+  private final PrefixTrie prefixes;
+
+  private final SubstringAutomaton excludeContaining;
+
+  private final String description;
+
+  private ClassNameRules(PrefixTrie prefixes, SubstringAutomaton excludeContaining, String description) {
+    this.prefixes = prefixes;
+    this.excludeContaining = excludeContaining;
+    this.description = description;
+  }
+
+  /**
+   * Compiles the given rules.
+   *
+   * @param includes          the included prefixes, in order of precedence
+   * @param excludes          the excluded prefixes
+   * @param excludeContaining the strings which exclude a class if they are part of its name
+   * @return the compiled rules
+   */
+  public static ClassNameRules compile(Collection<String> includes,
+                                       Collection<String> excludes,
+                                       Collection<String> excludeContaining) {
+    return new ClassNameRules(
+      PrefixTrie.compile(includes, excludes),
+      SubstringAutomaton.compile(excludeContaining),
+      "include=" + includes + ", exclude=" + excludes + ", excludeContaining=" + excludeContaining);
+  }
+
+  /**
+   * Checks if a specific class should be ignored.
+   *
+   * @param className the name of the class
+   * @return <code>true</code>, if the class should be ignored, <code>false</code> otherwise
+   */
+  public boolean shouldIgnore(String className) {
+    return excludeContaining.containedIn(className) || prefixes.isExcluded(className);
+  }
+
+  /**
+   * Checks if a specific class starts with one of the includes and is not ignored.
+   *
+   * @param className the name of the class
+   * @return <code>true</code>, if the class is explicitly included, <code>false</code> otherwise
+   */
+  public boolean isIncluded(String className) {
+    return prefixes.hasInclude(className) && !shouldIgnore(className);
+  }
+
+  /**
+   * @return the rules this object was compiled from, equal for equal rules
+   */
+  @Override
+  public String toString() {
+    return "ClassNameRules{" + description + "}";
+  }
+
+  /**
+   * A character trie over the include and exclude prefixes. Each node remembers the lowest include
+   * index ending in it and if an exclude ends in it, so that the longest exclude and the
+   * first include matching a class name can be found in a single walk.
+   */
+  static final class PrefixTrie {
+
+    private final char[][] labels;
+    private final int[][] children;
+    private final int[] includeIndex;
+    private final boolean[] exclude;
+
+    private PrefixTrie(char[][] labels, int[][] children, int[] includeIndex, boolean[] exclude) {
+      this.labels = labels;
+      this.children = children;
+      this.includeIndex = includeIndex;
+      this.exclude = exclude;
+    }
+
+    static PrefixTrie compile(Collection<String> includes, Collection<String> excludes) {
+      Builder builder = new Builder();
+      int index = 0;
+      for (String include : includes) {
+        int node = builder.insert(include);
+        builder.includeIndex.set(node, Math.min(builder.includeIndex.get(node), index++));
+      }
+      for (String exclude : excludes) {
+        builder.exclude.set(builder.insert(exclude), Boolean.TRUE);
+      }
+      return builder.build();
+    }
+
+    boolean isExcluded(String className) {
+      int bestInclude = NO_INCLUDE;
+      int bestIncludeLength = -1;
+      int longestExclude = -1;
+
+      int node = 0;
+      final int length = className.length();
+      for (int i = 0; ; i++) {
+        if (includeIndex[node] < bestInclude) {
+          bestInclude = includeIndex[node];
+          bestIncludeLength = i;
+        }
+        if (exclude[node]) {
+          longestExclude = i;
+        }
+        if (i == length) {
+          break;
+        }
+        node = child(node, className.charAt(i));
+        if (node < 0) {
+          break;
+        }
+      }
+
+      return bestInclude != NO_INCLUDE && longestExclude > bestIncludeLength;
+    }
+
+    boolean hasInclude(String className) {
+      int node = 0;
+      final int length = className.length();
+      for (int i = 0; ; i++) {
+        if (includeIndex[node] != NO_INCLUDE) {
+          return true;
+        }
+        if (i == length) {
+          return false;
+        }
+        node = child(node, className.charAt(i));
+        if (node < 0) {
+          return false;
+        }
+      }
+    }
+
+    private int child(int node, char c) {
+      int position = Arrays.binarySearch(labels[node], c);
+      return position < 0 ? -1 : children[node][position];
+    }
+
+    private static final class Builder {
+
+      private final List<TreeMap<Character, Integer>> edges = new ArrayList<TreeMap<Character, Integer>>();
+      private final List<Integer> includeIndex = new ArrayList<Integer>();
+      private final List<Boolean> exclude = new ArrayList<Boolean>();
+
+      Builder() {
+        newNode();
+      }
+
+      private int newNode() {
+        edges.add(new TreeMap<Character, Integer>());
+        includeIndex.add(NO_INCLUDE);
+        exclude.add(Boolean.FALSE);
+        return edges.size() - 1;
+      }
+
+      int insert(String prefix) {
+        int node = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+          Integer next = edges.get(node).get(prefix.charAt(i));
+          if (next == null) {
+            next = newNode();
+            edges.get(node).put(prefix.charAt(i), next);
+          }
+          node = next;
+        }
+        return node;
+      }
+
+      PrefixTrie build() {
+        final int size = edges.size();
+        char[][] labels = new char[size][];
+        int[][] children = new int[size][];
+        int[] includes = new int[size];
+        boolean[] excludes = new boolean[size];
+        for (int node = 0; node < size; node++) {
+          TreeMap<Character, Integer> nodeEdges = edges.get(node);
+          labels[node] = new char[nodeEdges.size()];
+          children[node] = new int[nodeEdges.size()];
+          int i = 0;
+          for (Character label : nodeEdges.keySet()) {
+            labels[node][i] = label;
+            children[node][i] = nodeEdges.get(label);
+            i++;
+          }
+          includes[node] = includeIndex.get(node);
+          excludes[node] = exclude.get(node);
+        }
+        return new PrefixTrie(labels, children, includes, excludes);
+      }
+    }
+  }
+
+  /**
+   * An Aho-Corasick automaton, compiled into a dense transition table over the characters that
+   * occur in at least one of the patterns. Any other character leads back to the root state.
+   */
+  static final class SubstringAutomaton {
+
+    private static final int ASCII = 128;
+
+    private final int[] asciiColumns;
+    private final char[] otherCharacters;
+    private final int columns;
+    private final int[] transitions;
+    private final boolean[] accepting;
+
+    private SubstringAutomaton(int[] asciiColumns, char[] otherCharacters, int columns,
+                               int[] transitions, boolean[] accepting) {
+      this.asciiColumns = asciiColumns;
+      this.otherCharacters = otherCharacters;
+      this.columns = columns;
+      this.transitions = transitions;
+      this.accepting = accepting;
+    }
+
+    static SubstringAutomaton compile(Collection<String> patterns) {
+      // alphabet
+      TreeSet<Character> alphabet = new TreeSet<Character>();
+      for (String pattern : patterns) {
+        for (int i = 0; i < pattern.length(); i++) {
+          alphabet.add(pattern.charAt(i));
+        }
+      }
+      int[] asciiColumns = new int[ASCII];
+      Arrays.fill(asciiColumns, -1);
+      List<Character> others = new ArrayList<Character>();
+      int columns = 0;
+      for (Character c : alphabet) {
+        if (c < ASCII) {
+          asciiColumns[c] = columns++;
+        } else {
+          others.add(c);
+        }
+      }
+      char[] otherCharacters = new char[others.size()];
+      for (int i = 0; i < otherCharacters.length; i++) {
+        otherCharacters[i] = others.get(i);
+      }
+      final int asciiCount = columns;
+      columns += otherCharacters.length;
+
+      // keyword trie
+      List<int[]> goTo = new ArrayList<int[]>();
+      List<Boolean> output = new ArrayList<Boolean>();
+      goTo.add(newState(columns));
+      output.add(Boolean.FALSE);
+      for (String pattern : patterns) {
+        int state = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+          char c = pattern.charAt(i);
+          int column = c < ASCII
+            ? asciiColumns[c]
+            : asciiCount + Arrays.binarySearch(otherCharacters, c);
+          if (goTo.get(state)[column] < 0) {
+            goTo.get(state)[column] = goTo.size();
+            goTo.add(newState(columns));
+            output.add(Boolean.FALSE);
+          }
+          state = goTo.get(state)[column];
+        }
+        output.set(state, Boolean.TRUE);
+      }
+
+      // failure links, folded into a complete transition table
+      final int states = goTo.size();
+      int[] transitions = new int[states * columns];
+      boolean[] accepting = new boolean[states];
+      int[] failure = new int[states];
+      Queue<Integer> queue = new LinkedList<Integer>();
+      accepting[0] = output.get(0);
+      for (int column = 0; column < columns; column++) {
+        int next = goTo.get(0)[column];
+        if (next < 0) {
+          transitions[column] = 0;
+        } else {
+          transitions[column] = next;
+          failure[next] = 0;
+          queue.add(next);
+        }
+      }
+      while (!queue.isEmpty()) {
+        int state = queue.poll();
+        accepting[state] = output.get(state) || accepting[failure[state]];
+        for (int column = 0; column < columns; column++) {
+          int next = goTo.get(state)[column];
+          if (next < 0) {
+            transitions[state * columns + column] = transitions[failure[state] * columns + column];
+          } else {
+            transitions[state * columns + column] = next;
+            failure[next] = transitions[failure[state] * columns + column];
+            queue.add(next);
+          }
+        }
+      }
+
+      return new SubstringAutomaton(asciiColumns, otherCharacters, columns, transitions, accepting);
+    }
+
+    private static int[] newState(int columns) {
+      int[] state = new int[columns];
+      Arrays.fill(state, -1);
+      return state;
+    }
+
+    boolean containedIn(String text) {
+      if (accepting[0]) {
+        return true;
+      }
+      if (columns == 0) {
+        return false;
+      }
+      int state = 0;
+      final int length = text.length();
+      for (int i = 0; i < length; i++) {
+        char c = text.charAt(i);
+        int column;
+        if (c < ASCII) {
+          column = asciiColumns[c];
+        } else {
+          column = otherColumn(c);
+        }
+        state = column < 0 ? 0 : transitions[state * columns + column];
+        if (accepting[state]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private int otherColumn(char c) {
+      int position = Arrays.binarySearch(otherCharacters, c);
+      return position < 0 ? -1 : columns - otherCharacters.length + position;
+    }
+  }
+}
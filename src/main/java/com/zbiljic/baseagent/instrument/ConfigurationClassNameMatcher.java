@@ -30,13 +30,26 @@ public class ConfigurationClassNameMatcher extends ElementMatcher.Junction.Abstr
     return INSTANCE;
   }
 
-  private ConfigurationClassNameMatcher() { /* Intentionally private to enforce singleton pattern. */ }
+  /**
+   * Matches the types for which {@link #isIncluded(String)} returns <code>true</code>.
+   */
+  public static Junction<TypeDescription> configurationIncluded() {
+    return new Junction.AbstractBase<TypeDescription>() {
+      @Override
+      public boolean matches(TypeDescription target) {
+        return isIncluded(target.getName());
+      }
 
-  private static Collection<String> includes;
+      @Override
+      public String toString() {
+        return "includedByConfiguration()";
+      }
+    };
+  }
 
-  private static Collection<String> excludes;
+  private ConfigurationClassNameMatcher() { /* Intentionally private to enforce singleton pattern. */ }
 
-  private static Collection<String> excludeContaining;
+  private static volatile ClassNameRules rules;
 
   static {
     initIncludesAndExcludes();
@@ -44,20 +57,50 @@ public class ConfigurationClassNameMatcher extends ElementMatcher.Junction.Abstr
 
   private static void initIncludesAndExcludes() {
     BaseAgentConfiguration configuration = BaseAgent.getConfiguration();
+    rules = compileRules(
+      configuration.getIncludePackages(),
+      configuration.getExcludePackages(),
+      configuration.getExcludeContaining());
+  }
 
-    excludeContaining = new ArrayList<String>(configuration.getExcludeContaining().size());
-    excludeContaining.addAll(configuration.getExcludeContaining());
+  /**
+   * Compiles the given rules, adding the rules every configuration implies.
+   */
+  static ClassNameRules compileRules(Collection<String> includePackages,
+                                     Collection<String> excludePackages,
+                                     Collection<String> excludeContainingPatterns) {
+    Collection<String> excludeContaining = new ArrayList<String>(excludeContainingPatterns.size());
+    excludeContaining.addAll(excludeContainingPatterns);
 
-    excludes = new ArrayList<String>(configuration.getExcludePackages().size());
+    Collection<String> excludes = new ArrayList<String>(excludePackages.size() + 1);
     excludes.add("com.zbiljic.baseagent");
-    excludes.addAll(configuration.getExcludePackages());
+    excludes.addAll(excludePackages);
 
-    includes = new ArrayList<String>(configuration.getIncludePackages().size());
-    includes.addAll(configuration.getIncludePackages());
+    Collection<String> includes = new ArrayList<String>(includePackages.size());
+    includes.addAll(includePackages);
     if (includes.isEmpty()) {
       logger.log(Level.WARNING,
         "No includes for instrumentation configured. Please set the baseagent.instrument.include property.");
     }
+
+    return ClassNameRules.compile(includes, excludes, excludeContaining);
+  }
+
+  static ClassNameRules getRules() {
+    return rules;
+  }
+
+  /**
+   * Replaces the rules. Types matched after this method returned are matched with the new rules,
+   * already transformed types are not affected.
+   *
+   * @param newRules the new rules
+   * @return the replaced rules
+   */
+  static synchronized ClassNameRules swapRules(ClassNameRules newRules) {
+    ClassNameRules oldRules = rules;
+    rules = newRules;
+    return oldRules;
   }
 
   //@formatter:off
@@ -76,26 +119,18 @@ public class ConfigurationClassNameMatcher extends ElementMatcher.Junction.Abstr
    */
   //@formatter:on
   public static boolean shouldIgnore(String className) {
-    for (String exclude : excludeContaining) {
-      if (className.contains(exclude)) {
-        return true;
-      }
-    }
-    for (String include : includes) {
-      if (className.startsWith(include)) {
-        return hasMoreSpecificExclude(className, include);
-      }
-    }
-    return false;
+    return rules.shouldIgnore(className);
   }
 
-  private static boolean hasMoreSpecificExclude(String className, String include) {
-    for (String exclude : excludes) {
-      if (exclude.length() > include.length() && exclude.startsWith(include) && className.startsWith(exclude)) {
-        return true;
-      }
-    }
-    return false;
+  /**
+   * Checks if a specific class is explicitly included, that is if it starts with one of the
+   * <code>baseagent.instrument.include</code> entries and is not ignored.
+   *
+   * @param className The name of the class. For example java.lang.String
+   * @return <code>true</code>, if the class is included, <code>false</code> otherwise
+   */
+  public static boolean isIncluded(String className) {
+    return rules.isIncluded(className);
   }
 
   @Override
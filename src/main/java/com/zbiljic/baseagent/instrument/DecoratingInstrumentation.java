@@ -0,0 +1,95 @@
+package com.zbiljic.baseagent.instrument;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link Instrumentation} which decorates every {@link ClassFileTransformer} registered on it
+ * before handing it to the actual {@link Instrumentation}. Installing an
+ * {@link net.bytebuddy.agent.builder.AgentBuilder} on it keeps the redefinition of already loaded
+ * classes to Byte Buddy while allowing baseagent to run code in front of its transformer.
+ * <p>
+ * A dynamic proxy is used so that methods added to {@link Instrumentation} by newer JVMs are
+ * delegated as well.
+ */
+final class DecoratingInstrumentation implements InvocationHandler {
+
+  /**
+   * Decorates a {@link ClassFileTransformer} which is about to be registered.
+   */
+  interface Decorator {
+
+    ClassFileTransformer decorate(ClassFileTransformer transformer);
+  }
+
+  private final Instrumentation instrumentation;
+  private final List<Decorator> decorators;
+  private final Map<ClassFileTransformer, ClassFileTransformer> decorated =
+    new IdentityHashMap<ClassFileTransformer, ClassFileTransformer>();
+
+  private DecoratingInstrumentation(Instrumentation instrumentation, List<Decorator> decorators) {
+    this.instrumentation = instrumentation;
+    this.decorators = decorators;
+  }
+
+  static Instrumentation of(Instrumentation instrumentation, List<Decorator> decorators) {
+    if (decorators.isEmpty()) {
+      return instrumentation;
+    }
+    return (Instrumentation) Proxy.newProxyInstance(
+      DecoratingInstrumentation.class.getClassLoader(),
+      new Class<?>[]{Instrumentation.class},
+      new DecoratingInstrumentation(instrumentation, decorators));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      return invokeObjectMethod(proxy, method, args);
+    }
+    if (args != null && args.length > 0 && args[0] instanceof ClassFileTransformer) {
+      if (method.getName().equals("addTransformer")) {
+        args = args.clone();
+        args[0] = decorate((ClassFileTransformer) args[0]);
+      } else if (method.getName().equals("removeTransformer")) {
+        args = args.clone();
+        args[0] = undecorate((ClassFileTransformer) args[0]);
+      }
+    }
+    try {
+      return method.invoke(instrumentation, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private synchronized ClassFileTransformer decorate(ClassFileTransformer transformer) {
+    ClassFileTransformer result = transformer;
+    for (Decorator decorator : decorators) {
+      result = decorator.decorate(result);
+    }
+    decorated.put(transformer, result);
+    return result;
+  }
+
+  private synchronized ClassFileTransformer undecorate(ClassFileTransformer transformer) {
+    ClassFileTransformer result = decorated.remove(transformer);
+    return result != null ? result : transformer;
+  }
+
+  private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+    if (method.getName().equals("equals")) {
+      return proxy == args[0];
+    } else if (method.getName().equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    }
+    return "DecoratingInstrumentation{" + instrumentation + "}";
+  }
+}
@@ -1,30 +1,24 @@
 package com.zbiljic.baseagent.instrument;
 
-import com.zbiljic.baseagent.util.IOUtils;
 import net.bytebuddy.agent.builder.AgentBuilder;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.utility.JavaModule;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
+/**
+ * Exports the classes with the given names after they have been transformed. The class files are
+ * handed to a {@link ClassFileExporter}, which writes them in the background.
+ */
 class FileExportingListener extends AgentBuilder.Listener.Adapter {
 
-  private static Logger logger = Logger.getLogger(FileExportingListener.class.getName());
-
   private final Collection<String> exportClassesWithName;
-  static final List<String> exportedClasses = new ArrayList<String>();
+  private final ClassFileExporter exporter;
 
-  FileExportingListener(Collection<String> exportClassesWithName) {
+  FileExportingListener(Collection<String> exportClassesWithName, ClassFileExporter exporter) {
     this.exportClassesWithName = exportClassesWithName;
+    this.exporter = exporter;
   }
 
   @Override
@@ -32,14 +26,6 @@ class FileExportingListener extends AgentBuilder.Listener.Adapter {
     if (!exportClassesWithName.contains(typeDescription.getName())) {
       return;
     }
-    final File exportedClass;
-    try {
-      exportedClass = File.createTempFile(typeDescription.getName(), ".class");
-      IOUtils.copy(new ByteArrayInputStream(dynamicType.getBytes()), new FileOutputStream(exportedClass));
-      logger.log(Level.INFO, "Exported class modified by Byte Buddy: {0}", exportedClass.getAbsolutePath());
-      exportedClasses.add(exportedClass.getAbsolutePath());
-    } catch (IOException e) {
-      logger.log(Level.WARNING, e.getMessage(), e);
-    }
+    exporter.export(typeDescription.getName(), dynamicType.getBytes());
   }
 }
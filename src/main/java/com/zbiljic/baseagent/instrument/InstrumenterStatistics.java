@@ -0,0 +1,110 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.util.LatencyHistogram;
+import com.zbiljic.baseagent.util.StripedCounter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The transformation statistics of a single
+ * {@link com.zbiljic.baseagent.instrumentation.Instrumenter}, collected by
+ * {@link TransformationStatistics}.
+ */
+public final class InstrumenterStatistics implements InstrumenterStatisticsMBean {
+
+  final int id;
+  private final String instrumenter;
+
+  final StripedCounter matched = new StripedCounter();
+  final StripedCounter transformed = new StripedCounter();
+  final StripedCounter errors = new StripedCounter();
+  final StripedCounter ignored = new StripedCounter();
+  final LatencyHistogram latency = new LatencyHistogram();
+  private volatile boolean tripped;
+
+  InstrumenterStatistics(int id, String instrumenter) {
+    this.id = id;
+    this.instrumenter = instrumenter;
+  }
+
+  @Override
+  public String getInstrumenter() {
+    return instrumenter;
+  }
+
+  @Override
+  public long getMatched() {
+    return matched.sum();
+  }
+
+  @Override
+  public long getTransformed() {
+    return transformed.sum();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public long getIgnored() {
+    return ignored.sum();
+  }
+
+  @Override
+  public double getTransformationTimeMillis() {
+    return latency.getTotal() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public double getTransformationLatencyP50Micros() {
+    return micros(latency.getPercentile(50));
+  }
+
+  @Override
+  public double getTransformationLatencyP90Micros() {
+    return micros(latency.getPercentile(90));
+  }
+
+  @Override
+  public double getTransformationLatencyP99Micros() {
+    return micros(latency.getPercentile(99));
+  }
+
+  @Override
+  public double getTransformationLatencyMaxMicros() {
+    return micros(latency.getMax());
+  }
+
+  @Override
+  public boolean isTripped() {
+    return tripped;
+  }
+
+  /**
+   * Disables the instrumenter: its type matchers no longer match any type.
+   */
+  void trip() {
+    tripped = true;
+  }
+
+  @Override
+  public void reset() {
+    matched.reset();
+    transformed.reset();
+    errors.reset();
+    ignored.reset();
+    latency.reset();
+  }
+
+  static double micros(long nanos) {
+    return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return instrumenter + "{matched=" + matched + ", transformed=" + transformed + ", errors=" + errors
+      + ", ignored=" + ignored + ", p99=" + getTransformationLatencyP99Micros() + "us}";
+  }
+}
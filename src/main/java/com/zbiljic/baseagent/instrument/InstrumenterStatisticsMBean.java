@@ -0,0 +1,49 @@
+package com.zbiljic.baseagent.instrument;
+
+/**
+ * Transformation statistics of a single {@link com.zbiljic.baseagent.instrumentation.Instrumenter}.
+ */
+public interface InstrumenterStatisticsMBean {
+
+  String getInstrumenter();
+
+  /**
+   * @return the number of types matched by the instrumenter
+   */
+  long getMatched();
+
+  /**
+   * @return the number of matched types which were transformed successfully
+   */
+  long getTransformed();
+
+  /**
+   * @return the number of matched types whose transformation failed
+   */
+  long getErrors();
+
+  /**
+   * @return the number of types which were evaluated by the matchers of the instrumenter but not matched
+   */
+  long getIgnored();
+
+  /**
+   * @return the total time spent on the transformation of matched types, in milliseconds
+   */
+  double getTransformationTimeMillis();
+
+  double getTransformationLatencyP50Micros();
+
+  double getTransformationLatencyP90Micros();
+
+  double getTransformationLatencyP99Micros();
+
+  double getTransformationLatencyMaxMicros();
+
+  /**
+   * @return <code>true</code>, if the instrumenter was disabled by the circuit breaker
+   */
+  boolean isTripped();
+
+  void reset();
+}
@@ -0,0 +1,160 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.TriggeredInstrumenter;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link ClassFileTransformer} which watches for the triggers of deferred
+ * {@link TriggeredInstrumenter}s. When a triggering class is loaded, the instrumenter is activated
+ * and the triggering class is handed to its transformer right away, as transformers registered
+ * while a class is being loaded do not see that class. The classes loaded before the transformer
+ * was registered are retransformed by the {@link Activator} afterwards.
+ */
+class LazyActivationTransformer implements ClassFileTransformer {
+
+  private static Logger logger = Logger.getLogger(LazyActivationTransformer.class.getName());
+
+  /**
+   * Activates a deferred instrumenter.
+   */
+  interface Activator {
+
+    /**
+     * @param instrumenter the instrumenter to activate
+     * @return the transformer of the activated instrumenter, or {@code null} if the activation failed
+     */
+    ClassFileTransformer activate(TriggeredInstrumenter instrumenter);
+  }
+
+  private final Activator activator;
+
+  // internal names of trigger classes and packages, e.g. 'org/h2/Driver' and 'org/h2/'
+  private final Map<String, List<TriggeredInstrumenter>> classTriggers = new HashMap<String, List<TriggeredInstrumenter>>();
+  private final Map<String, List<TriggeredInstrumenter>> packageTriggers = new HashMap<String, List<TriggeredInstrumenter>>();
+
+  private final Map<TriggeredInstrumenter, Boolean> pending = new IdentityHashMap<TriggeredInstrumenter, Boolean>();
+  private volatile boolean done;
+
+  private final ThreadLocal<Boolean> activating = new ThreadLocal<Boolean>();
+
+  LazyActivationTransformer(Collection<TriggeredInstrumenter> instrumenters, Activator activator) {
+    this.activator = activator;
+    for (TriggeredInstrumenter instrumenter : instrumenters) {
+      pending.put(instrumenter, Boolean.TRUE);
+      for (String trigger : instrumenter.getTriggers()) {
+        String internalName = trigger.trim().replace('.', '/');
+        if (internalName.isEmpty()) {
+          continue;
+        }
+        Map<String, List<TriggeredInstrumenter>> triggers = internalName.endsWith("/") ? packageTriggers : classTriggers;
+        List<TriggeredInstrumenter> triggered = triggers.get(internalName);
+        if (triggered == null) {
+          triggered = new ArrayList<TriggeredInstrumenter>(1);
+          triggers.put(internalName, triggered);
+        }
+        triggered.add(instrumenter);
+      }
+    }
+    done = pending.isEmpty();
+  }
+
+  /**
+   * Claims the deferred instrumenters triggered by an already loaded class, so that they are not
+   * activated by this transformer anymore.
+   *
+   * @param className the class name, for example {@code java.lang.String}
+   * @return the instrumenters which were still pending and are triggered by the class
+   */
+  List<TriggeredInstrumenter> claimTriggeredBy(String className) {
+    List<TriggeredInstrumenter> claimed = new ArrayList<TriggeredInstrumenter>(0);
+    if (done) {
+      return claimed;
+    }
+    for (TriggeredInstrumenter instrumenter : triggeredBy(className.replace('.', '/'))) {
+      if (claim(instrumenter)) {
+        claimed.add(instrumenter);
+      }
+    }
+    return claimed;
+  }
+
+  /**
+   * @return <code>true</code> if all instrumenters have been activated or claimed
+   */
+  boolean isDone() {
+    return done;
+  }
+
+  private List<TriggeredInstrumenter> triggeredBy(String internalName) {
+    List<TriggeredInstrumenter> triggered = new ArrayList<TriggeredInstrumenter>(0);
+    List<TriggeredInstrumenter> byClass = classTriggers.get(internalName);
+    if (byClass != null) {
+      triggered.addAll(byClass);
+    }
+    if (!packageTriggers.isEmpty()) {
+      for (int i = internalName.indexOf('/'); i >= 0; i = internalName.indexOf('/', i + 1)) {
+        List<TriggeredInstrumenter> byPackage = packageTriggers.get(internalName.substring(0, i + 1));
+        if (byPackage != null) {
+          triggered.addAll(byPackage);
+        }
+      }
+    }
+    return triggered;
+  }
+
+  @Override
+  public byte[] transform(ClassLoader loader,
+                          String className,
+                          Class<?> classBeingRedefined,
+                          ProtectionDomain protectionDomain,
+                          byte[] classfileBuffer) throws IllegalClassFormatException {
+    if (done || className == null || classBeingRedefined != null || activating.get() != null) {
+      return null;
+    }
+    List<TriggeredInstrumenter> triggered = triggeredBy(className);
+    if (triggered.isEmpty()) {
+      return null;
+    }
+    activating.set(Boolean.TRUE);
+    try {
+      byte[] transformed = null;
+      for (TriggeredInstrumenter instrumenter : triggered) {
+        if (!claim(instrumenter)) {
+          continue;
+        }
+        logger.log(Level.FINE, "Activating {0}, triggered by {1}",
+          new Object[]{instrumenter.getClass().getSimpleName(), className});
+        ClassFileTransformer transformer = activator.activate(instrumenter);
+        if (transformer != null) {
+          byte[] result = transformer.transform(loader, className, null, protectionDomain,
+            transformed != null ? transformed : classfileBuffer);
+          if (result != null) {
+            transformed = result;
+          }
+        }
+      }
+      return transformed;
+    } finally {
+      activating.remove();
+    }
+  }
+
+  private synchronized boolean claim(TriggeredInstrumenter instrumenter) {
+    if (pending.remove(instrumenter) == null) {
+      return false;
+    }
+    done = pending.isEmpty();
+    return true;
+  }
+}
@@ -0,0 +1,369 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.util.StripedCounter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.MessageDigest;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records which types were transformed and which were ignored, identified by their name and the
+ * class of their class loader, and replays this on the next start of the same build: types which
+ * were ignored and never transformed are rejected before Byte Buddy parses and matches them, and
+ * are not retransformed during the runtime attachment.
+ * <p>
+ * The index is only replayed if it was recorded with the same fingerprint, which covers the
+ * {@link Instrumenter}s, the configuration, the include and exclude rules and the class path (see
+ * {@link #fingerprint}). As the fingerprint covers the class path only, the ignored types are only
+ * recorded and replayed for the bootstrap, platform and system class loaders; the classes of other
+ * class loaders, such as the ones of an application server, may change between runs without
+ * changing the fingerprint. Types which are not in the index are matched as usual. Once the rules
+ * change at runtime, the index is neither replayed nor written anymore, as its ignored types no
+ * longer match the rules. Every run records the index anew, starting from
+ * the replayed one, and writes it once the agent is installed and again when the JVM shuts down.
+ * <p>
+ * The file starts with {@value #HEADER} and the fingerprint, followed by one line per transformed
+ * type, {@code match <type> <class loader class>}, and one line per ignored type with a 64-bit hash
+ * of the name and the class loader class, {@code ignore <hash>}.
+ */
+final class MatchIndex extends AgentBuilder.Listener.Adapter implements ClassNameFilter {
+
+  private static Logger logger = Logger.getLogger(MatchIndex.class.getName());
+
+  static final String HEADER = "# baseagent match index ";
+  private static final String MATCH = "match ";
+  private static final String IGNORE = "ignore ";
+  private static final String BOOTSTRAP = "bootstrap";
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final File file;
+  private final String fingerprint;
+  private final boolean replaying;
+  private final ClassLoader systemClassLoader;
+  private final ClassLoader platformClassLoader;
+
+  // replayed from the file, sorted hashes
+  private final long[] replayedMatches;
+  private final long[] replayedIgnores;
+
+  // recorded in this run, including the replayed types
+  private final Set<String> matches = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<Long> ignores = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+  private final StripedCounter rejected = new StripedCounter();
+  private volatile boolean rulesChanged;
+
+  private MatchIndex(File file, String fingerprint, boolean replaying, long[] replayedMatches,
+                     long[] replayedIgnores) {
+    this.file = file;
+    this.fingerprint = fingerprint;
+    this.replaying = replaying;
+    this.replayedMatches = replayedMatches;
+    this.replayedIgnores = replayedIgnores;
+    this.systemClassLoader = ClassLoader.getSystemClassLoader();
+    // the extension class loader before Java 9
+    this.platformClassLoader = systemClassLoader != null ? systemClassLoader.getParent() : null;
+  }
+
+  /**
+   * Opens the index in the given file, which is replayed if it was recorded with the given
+   * fingerprint.
+   */
+  static MatchIndex open(File file, String fingerprint) {
+    List<String> lines = readLines(file);
+    if (lines.isEmpty() || !lines.get(0).equals(HEADER + fingerprint)) {
+      if (!lines.isEmpty()) {
+        logger.log(Level.INFO, "Match index {0} was recorded with a different fingerprint, recording it anew", file);
+      }
+      return new MatchIndex(file, fingerprint, false, new long[0], new long[0]);
+    }
+    List<String> matchedTypes = new ArrayList<String>();
+    long[] ignored = new long[lines.size()];
+    int ignoredCount = 0;
+    for (String line : lines.subList(1, lines.size())) {
+      if (line.startsWith(MATCH)) {
+        matchedTypes.add(line.substring(MATCH.length()));
+      } else if (line.startsWith(IGNORE)) {
+        try {
+          ignored[ignoredCount++] = parseHash(line.substring(IGNORE.length()));
+        } catch (NumberFormatException e) {
+          ignoredCount--;
+        }
+      }
+    }
+    long[] matched = new long[matchedTypes.size()];
+    for (int i = 0; i < matched.length; i++) {
+      final String key = matchedTypes.get(i);
+      final int separator = key.lastIndexOf(' ');
+      matched[i] = separator < 0 ? 0 : hash(key.substring(0, separator), key.substring(separator + 1));
+    }
+    Arrays.sort(matched);
+    ignored = Arrays.copyOf(ignored, ignoredCount);
+    Arrays.sort(ignored);
+    MatchIndex index = new MatchIndex(file, fingerprint, true, matched, ignored);
+    index.matches.addAll(matchedTypes);
+    logger.log(Level.INFO, "Replaying match index {0}: {1} transformed and {2} ignored types",
+      new Object[]{file, matched.length, ignored.length});
+    return index;
+  }
+
+  /**
+   * Computes the fingerprint an index is recorded with: the {@link AgentFingerprint} of the
+   * Instrumenters and the configuration, the rules, which may be read from a rules file, and the
+   * class path including the size and modification time of its entries.
+   */
+  static String fingerprint(Iterable<Instrumenter> instrumenters, BaseAgentConfiguration configuration,
+                            ClassNameRules rules) {
+    MessageDigest digest = AgentFingerprint.newDigest();
+    AgentFingerprint.update(digest, AgentFingerprint.of(instrumenters, configuration));
+    AgentFingerprint.update(digest, rules.toString());
+    final String classPath = System.getProperty("java.class.path", "");
+    for (String entry : classPath.split(File.pathSeparator)) {
+      File file = new File(entry);
+      AgentFingerprint.update(digest, entry + ':' + file.length() + ':' + file.lastModified());
+    }
+    return AgentFingerprint.toHex(digest.digest());
+  }
+
+  /**
+   * @return <code>true</code>, if types of a previous run are replayed
+   */
+  boolean isReplaying() {
+    return replaying && !rulesChanged;
+  }
+
+  /**
+   * Stops replaying and writing the index, as the rules it was recorded with were replaced. Called
+   * before the new rules are applied.
+   */
+  void rulesChanged() {
+    if (!rulesChanged) {
+      rulesChanged = true;
+      logger.log(Level.INFO, "Rules changed, the match index {0} is no longer replayed", file);
+    }
+  }
+
+  /**
+   * Rejects the types which were ignored and never transformed in the replayed run.
+   */
+  @Override
+  public boolean rejects(ClassLoader loader, String internalName) {
+    if (!replaying || rulesChanged || !isFingerprinted(loader)) {
+      return false;
+    }
+    final long hash = hash(internalName, loaderHint(loader));
+    return Arrays.binarySearch(replayedIgnores, hash) >= 0 && Arrays.binarySearch(replayedMatches, hash) < 0;
+  }
+
+  long getRejected() {
+    return rejected.sum();
+  }
+
+  @Override
+  public void onTransformation(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module,
+                               boolean loaded, DynamicType dynamicType) {
+    matches.add(typeDescription.getName() + ' ' + loaderHint(classLoader));
+  }
+
+  @Override
+  public void onIgnored(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, boolean loaded) {
+    if (!isFingerprinted(classLoader)) {
+      return;
+    }
+    final long hash = hash(typeDescription.getName(), loaderHint(classLoader));
+    if (Arrays.binarySearch(replayedIgnores, hash) < 0) {
+      ignores.add(hash);
+    }
+  }
+
+  @Override
+  public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+    // never skipped, so that the error is reported again
+    matches.add(typeName + ' ' + loaderHint(classLoader));
+  }
+
+  /**
+   * Writes the recorded index. It is written to a temporary file first, so that a concurrently
+   * starting JVM never reads a partially written index. Nothing is written once the rules changed.
+   */
+  synchronized void write() throws IOException {
+    if (rulesChanged) {
+      return;
+    }
+    Set<String> matchedTypes = new TreeSet<String>(matches);
+    Set<Long> matchedHashes = new TreeSet<Long>();
+    for (String key : matchedTypes) {
+      final int separator = key.lastIndexOf(' ');
+      matchedHashes.add(hash(key.substring(0, separator), key.substring(separator + 1)));
+    }
+    Set<Long> ignoredHashes = new TreeSet<Long>(ignores);
+    for (long hash : replayedIgnores) {
+      ignoredHashes.add(hash);
+    }
+    ignoredHashes.removeAll(matchedHashes);
+
+    final File temporaryFile = new File(file.getPath() + ".tmp");
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+    try {
+      writer.write(HEADER + fingerprint + '\n');
+      for (String key : matchedTypes) {
+        writer.write(MATCH + key + '\n');
+      }
+      for (Long hash : ignoredHashes) {
+        writer.write(IGNORE + Long.toHexString(hash) + '\n');
+      }
+    } finally {
+      writer.close();
+    }
+    if (!temporaryFile.renameTo(file) && !(file.delete() && temporaryFile.renameTo(file))) {
+      throw new IOException("Failed to rename " + temporaryFile + " to " + file);
+    }
+  }
+
+  /**
+   * Writes the index once the agent is installed, and again when the JVM shuts down.
+   */
+  void writeNowAndOnShutdown() {
+    writeQuietly();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeQuietly();
+      }
+    }, "baseagent-match-index-shutdown"));
+  }
+
+  private void writeQuietly() {
+    try {
+      write();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write the match index " + file, e);
+    }
+  }
+
+  DecoratingInstrumentation.Decorator getDecorator() {
+    return new DecoratingInstrumentation.Decorator() {
+      @Override
+      public ClassFileTransformer decorate(ClassFileTransformer transformer) {
+        return new ReplayingClassFileTransformer(transformer);
+      }
+    };
+  }
+
+  /**
+   * @return <code>true</code>, if the classes of the class loader are covered by the fingerprint
+   */
+  private boolean isFingerprinted(ClassLoader classLoader) {
+    return classLoader == null || classLoader == systemClassLoader || classLoader == platformClassLoader;
+  }
+
+  private static String loaderHint(ClassLoader classLoader) {
+    return classLoader == null ? BOOTSTRAP : classLoader.getClass().getName();
+  }
+
+  /**
+   * Hashes the name of a type and the class of its class loader with 64-bit FNV-1a. Internal and
+   * binary names have the same hash.
+   */
+  static long hash(String typeName, String loaderHint) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < typeName.length(); i++) {
+      final char c = typeName.charAt(i);
+      hash = (hash ^ (c == '/' ? '.' : c)) * FNV_PRIME;
+    }
+    hash = (hash ^ ' ') * FNV_PRIME;
+    for (int i = 0; i < loaderHint.length(); i++) {
+      hash = (hash ^ loaderHint.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * Parses a hash written with {@link Long#toHexString(long)}, which is unsigned.
+   */
+  static long parseHash(String hex) {
+    if (hex.length() <= 8) {
+      return Long.parseLong(hex, 16);
+    }
+    final int split = hex.length() - 8;
+    return Long.parseLong(hex.substring(0, split), 16) << 32 | Long.parseLong(hex.substring(split), 16);
+  }
+
+  private static List<String> readLines(File file) {
+    List<String> lines = new ArrayList<String>();
+    if (!file.exists()) {
+      return lines;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        for (String line; (line = reader.readLine()) != null; ) {
+          lines.add(line);
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read the match index " + file, e);
+      lines.clear();
+    }
+    return lines;
+  }
+
+  @Override
+  public String toString() {
+    return "MatchIndex{replayedMatches=" + replayedMatches.length
+      + ", replayedIgnores=" + replayedIgnores.length
+      + ", rejected=" + getRejected()
+      + ", recordedMatches=" + matches.size()
+      + ", recordedIgnores=" + ignores.size() + '}';
+  }
+
+  private class ReplayingClassFileTransformer implements ClassFileTransformer {
+
+    private final ClassFileTransformer delegate;
+
+    ReplayingClassFileTransformer(ClassFileTransformer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader,
+                            String className,
+                            Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[] classfileBuffer) throws IllegalClassFormatException {
+      if (className != null && rejects(loader, className)) {
+        rejected.increment();
+        return null;
+      }
+      return delegate.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discovers the loaded classes to retransform like its delegate, but drops the classes the agent
+ * would ignore anyway before Byte Buddy evaluates its matchers on them one by one. The classes are
+ * partitioned and checked on several threads, which only have to evaluate thread-safe checks by
+ * name and class loader: whether the class is modifiable at all, and whether a
+ * {@link ClassNameFilter}, such as the {@link ClassNamePrefilter}, rejects it.
+ * <p>
+ * The order of the classes is retained. Byte Buddy still evaluates all of its matchers on the
+ * remaining classes, so the result of the retransformation is the same as with the delegate alone.
+ */
+final class ParallelMatchingDiscoveryStrategy implements AgentBuilder.RedefinitionStrategy.DiscoveryStrategy {
+
+  private static Logger logger = Logger.getLogger(ParallelMatchingDiscoveryStrategy.class.getName());
+
+  // smaller partitions are not worth handing to another thread
+  static final int MIN_PARTITION_SIZE = 512;
+
+  private final AgentBuilder.RedefinitionStrategy.DiscoveryStrategy delegate;
+  private final ClassNameFilter filter;
+  private final int threads;
+
+  /**
+   * @param delegate  the strategy discovering the loaded classes
+   * @param filter    the filter rejecting classes which are not retransformed
+   * @param threads   the number of threads matching the classes
+   */
+  ParallelMatchingDiscoveryStrategy(AgentBuilder.RedefinitionStrategy.DiscoveryStrategy delegate,
+                                    ClassNameFilter filter, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Threads must be positive: " + threads);
+    }
+    this.delegate = delegate;
+    this.filter = filter;
+    this.threads = threads;
+  }
+
+  @Override
+  public Iterable<Iterable<Class<?>>> resolve(Instrumentation instrumentation) {
+    final long start = System.nanoTime();
+    List<Iterable<Class<?>>> resolved = new ArrayList<Iterable<Class<?>>>();
+    int total = 0;
+    int candidates = 0;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, new MatcherThreadFactory());
+    try {
+      for (Iterable<Class<?>> types : delegate.resolve(instrumentation)) {
+        List<Class<?>> list = new ArrayList<Class<?>>();
+        for (Class<?> type : types) {
+          list.add(type);
+        }
+        List<Class<?>> matched = match(instrumentation, list, executor);
+        total += list.size();
+        candidates += matched.size();
+        resolved.add(matched);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    logger.log(Level.FINE, "Pre-matched {0} of {1} loaded classes in {2} ms",
+      new Object[]{candidates, total, (System.nanoTime() - start) / 1000000});
+    return resolved;
+  }
+
+  /**
+   * Returns the classes which may be retransformed, in their original order.
+   */
+  List<Class<?>> match(final Instrumentation instrumentation, final List<Class<?>> types, ExecutorService executor) {
+    final int partitions = Math.min(threads, (types.size() + MIN_PARTITION_SIZE - 1) / MIN_PARTITION_SIZE);
+    if (partitions <= 1) {
+      return match(instrumentation, types, 0, types.size());
+    }
+    final int partitionSize = (types.size() + partitions - 1) / partitions;
+    List<Future<List<Class<?>>>> futures = new ArrayList<Future<List<Class<?>>>>(partitions);
+    for (int from = 0; from < types.size(); from += partitionSize) {
+      final int start = from;
+      final int end = Math.min(types.size(), from + partitionSize);
+      futures.add(executor.submit(new Callable<List<Class<?>>>() {
+        @Override
+        public List<Class<?>> call() {
+          return match(instrumentation, types, start, end);
+        }
+      }));
+    }
+    List<Class<?>> matched = new ArrayList<Class<?>>();
+    try {
+      for (Future<List<Class<?>>> future : futures) {
+        matched.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // let Byte Buddy match all classes itself
+      return types;
+    } catch (ExecutionException e) {
+      logger.log(Level.WARNING, "Failed to pre-match loaded classes", e.getCause());
+      return types;
+    }
+    return matched;
+  }
+
+  private List<Class<?>> match(Instrumentation instrumentation, List<Class<?>> types, int start, int end) {
+    List<Class<?>> matched = new ArrayList<Class<?>>();
+    for (int i = start; i < end; i++) {
+      final Class<?> type = types.get(i);
+      if (instrumentation.isModifiableClass(type)
+        && !filter.rejects(type.getClassLoader(), type.getName().replace('.', '/'))) {
+        matched.add(type);
+      }
+    }
+    return matched;
+  }
+
+  private static final class MatcherThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "baseagent-matcher-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.configuration.ConfigurationFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a properties file with include and exclude rules. When the file changes, the new rules
+ * replace the rules of {@link ConfigurationClassNameMatcher}, and only the loaded classes whose
+ * ignore decision changed are retransformed. The {@link MatchIndex}, which was recorded with the
+ * previous rules, is no longer replayed.
+ * <p>
+ * Rules missing from the file are taken from the agent configuration. The file is polled, as
+ * {@code java.nio.file.WatchService} requires Java 7.
+ */
+final class RulesFileWatcher implements Runnable {
+
+  private static Logger logger = Logger.getLogger(RulesFileWatcher.class.getName());
+
+  static final String INCLUDE = "baseagent.instrument.include";
+  static final String EXCLUDE = "baseagent.instrument.exclude";
+  static final String EXCLUDE_CONTAINING = "baseagent.instrument.excludeContaining";
+
+  private final File file;
+  private final BaseAgentConfiguration configuration;
+  private final Instrumentation instrumentation;
+  private final TransformationCache transformationCache;
+  private MatchIndex matchIndex;
+
+  private long lastModified;
+  private long length;
+  private ScheduledExecutorService executor;
+
+  RulesFileWatcher(File file, BaseAgentConfiguration configuration, Instrumentation instrumentation,
+                   TransformationCache transformationCache) {
+    this.file = file;
+    this.configuration = configuration;
+    this.instrumentation = instrumentation;
+    this.transformationCache = transformationCache;
+  }
+
+  /**
+   * Applies the rules of the file if it exists, without retransforming any class. Called before the
+   * agent is installed.
+   */
+  synchronized void init() {
+    ClassNameRules rules = readIfChanged();
+    if (rules != null) {
+      swap(rules);
+    }
+  }
+
+  /**
+   * Sets the match index, which is opened once the rules of the file are applied.
+   */
+  synchronized void setMatchIndex(MatchIndex matchIndex) {
+    this.matchIndex = matchIndex;
+  }
+
+  synchronized void start(long pollMillis) {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "baseagent-rules-watcher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(this, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      checkForChanges();
+    } catch (Throwable t) {
+      logger.log(Level.WARNING, "Failed to reload rules from " + file, t);
+    }
+  }
+
+  /**
+   * Reloads the rules if the file changed and retransforms the affected classes.
+   *
+   * @return the number of classes which were retransformed, or {@code -1} if the file did not change
+   */
+  synchronized int checkForChanges() {
+    ClassNameRules newRules = readIfChanged();
+    if (newRules == null) {
+      return -1;
+    }
+    ClassNameRules oldRules = swap(newRules);
+    List<Class<?>> changed = changedClasses(oldRules, newRules);
+    logger.log(Level.INFO, "Reloaded rules from {0}, retransforming {1} classes",
+      new Object[]{file, changed.size()});
+    retransform(changed);
+    return changed.size();
+  }
+
+  private ClassNameRules swap(ClassNameRules rules) {
+    // the index must not reject types which the new rules no longer ignore
+    if (matchIndex != null) {
+      matchIndex.rulesChanged();
+    }
+    // the cache has to know the rules before any type is matched with them
+    if (transformationCache != null) {
+      transformationCache.setRules(rules);
+    }
+    return ConfigurationClassNameMatcher.swapRules(rules);
+  }
+
+  private ClassNameRules readIfChanged() {
+    if (!file.isFile()) {
+      return null;
+    }
+    long fileLastModified = file.lastModified();
+    long fileLength = file.length();
+    if (fileLastModified == lastModified && fileLength == length) {
+      return null;
+    }
+    Properties properties = new Properties();
+    InputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      properties.load(inputStream);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read rules from " + file, e);
+      return null;
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+    lastModified = fileLastModified;
+    length = fileLength;
+    return read(properties, configuration);
+  }
+
+  static ClassNameRules read(Properties properties, BaseAgentConfiguration configuration) {
+    ConfigurationFactory configurationFactory = ConfigurationFactory.create(properties);
+    return ConfigurationClassNameMatcher.compileRules(
+      get(configurationFactory, INCLUDE, configuration.getIncludePackages()),
+      get(configurationFactory, EXCLUDE, configuration.getExcludePackages()),
+      get(configurationFactory, EXCLUDE_CONTAINING, configuration.getExcludeContaining()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Collection<String> get(ConfigurationFactory configurationFactory, String key,
+                                        Collection<String> defaultValue) {
+    if (!configurationFactory.getProperties().containsKey(key)) {
+      return defaultValue;
+    }
+    return configurationFactory.getProperty(key, Collection.class);
+  }
+
+  private List<Class<?>> changedClasses(ClassNameRules oldRules, ClassNameRules newRules) {
+    List<Class<?>> changed = new ArrayList<Class<?>>();
+    for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+      String name = loadedClass.getName();
+      if (oldRules.shouldIgnore(name) != newRules.shouldIgnore(name)
+        && instrumentation.isModifiableClass(loadedClass)) {
+        changed.add(loadedClass);
+      }
+    }
+    return changed;
+  }
+
+  private void retransform(List<Class<?>> classes) {
+    int batchSize = configuration.getRetransformBatchSize() > 0
+      ? configuration.getRetransformBatchSize()
+      : Math.max(1, classes.size());
+    for (int from = 0; from < classes.size(); from += batchSize) {
+      List<Class<?>> batch = classes.subList(from, Math.min(classes.size(), from + batchSize));
+      try {
+        instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+      } catch (Throwable t) {
+        logger.log(Level.WARNING, "Failed to retransform " + batch.size() + " classes", t);
+      }
+    }
+  }
+}
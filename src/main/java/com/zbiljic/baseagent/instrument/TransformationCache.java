@@ -0,0 +1,353 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.MessageDigest;
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of transformation results, stored as one file per entry in a local
+ * directory. Entries are keyed by a hash of the original class file, the class name, the defining
+ * class loader type and the {@link AgentFingerprint}, so that a change to any of them results in a
+ * miss instead of stale bytes.
+ * <p>
+ * The directory can be shared between several JVMs: entries are written to a temporary file and
+ * renamed into place, and each entry carries a checksum which is verified before it is served.
+ * Corrupt entries are deleted and treated as a miss.
+ * <p>
+ * Only transformations which do not depend on live state are stored. Types with alive
+ * {@link net.bytebuddy.implementation.LoadedTypeInitializer}s and failed transformations are
+ * recorded by the {@link #getListener() listener} and bypass the cache, as do classes that are
+ * configured to be exported, because a cache hit does not notify any
+ * {@link AgentBuilder.Listener}. Instrumentations which write ids into the bytecode that are only
+ * valid in the current JVM call {@link #notCacheable()} while they transform a type.
+ */
+public final class TransformationCache {
+
+  private static Logger logger = Logger.getLogger(TransformationCache.class.getName());
+
+  private static final int MAGIC = 0xBA5EA6E7;
+  private static final int VERSION = 1;
+  private static final int UNCHANGED = 0;
+  private static final int TRANSFORMED = 1;
+  // magic, version, kind, length and checksum
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+
+  private final File directory;
+  private final String fingerprint;
+  private volatile String rules = "";
+  private final Collection<String> bypassed;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong stores = new AtomicLong();
+  private final AtomicLong corrupted = new AtomicLong();
+
+  private static final ThreadLocal<Boolean> cacheable = new ThreadLocal<Boolean>();
+
+  TransformationCache(File directory, String fingerprint) {
+    this(directory, fingerprint, Collections.<String>emptySet());
+  }
+
+  TransformationCache(File directory, String fingerprint, Collection<String> bypassed) {
+    this.directory = directory;
+    this.fingerprint = fingerprint;
+    this.bypassed = bypassed;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getStores() {
+    return stores.get();
+  }
+
+  public long getCorrupted() {
+    return corrupted.get();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns a {@link AgentBuilder.Listener} which must be registered on the
+   * {@link AgentBuilder} whose transformer is decorated by this cache.
+   *
+   * @return the listener tracking if a transformation result can be cached
+   */
+  AgentBuilder.Listener getListener() {
+    return new CacheabilityListener();
+  }
+
+  /**
+   * Sets the include and exclude rules if they were changed after the agent was started, so that
+   * results cached with other rules are not used anymore.
+   */
+  void setRules(ClassNameRules rules) {
+    this.rules = rules.toString();
+  }
+
+  /**
+   * Marks the transformation in progress on the current thread as not cacheable, for example
+   * because it refers to ids which were assigned in the current JVM. Does nothing if the current
+   * thread is not transforming a type through a cache.
+   */
+  public static void notCacheable() {
+    if (cacheable.get() != null) {
+      cacheable.set(Boolean.FALSE);
+    }
+  }
+
+  DecoratingInstrumentation.Decorator getDecorator() {
+    return new DecoratingInstrumentation.Decorator() {
+      @Override
+      public ClassFileTransformer decorate(ClassFileTransformer transformer) {
+        return new CachingClassFileTransformer(transformer);
+      }
+    };
+  }
+
+  String key(String className, ClassLoader classLoader, byte[] classfileBuffer) {
+    MessageDigest digest = AgentFingerprint.newDigest();
+    AgentFingerprint.update(digest, fingerprint);
+    AgentFingerprint.update(digest, rules);
+    AgentFingerprint.update(digest, className);
+    AgentFingerprint.update(digest, classLoader == null ? "bootstrap" : classLoader.getClass().getName());
+    digest.update(classfileBuffer);
+    return AgentFingerprint.toHex(digest.digest());
+  }
+
+  private File file(String key) {
+    return new File(new File(directory, key.substring(0, 2)), key.substring(2));
+  }
+
+  /**
+   * Looks up a transformation result.
+   *
+   * @param key the entry key
+   * @return the cached entry, or {@code null} if there is none or it is corrupt
+   */
+  Entry get(String key) {
+    final File file = file(key);
+    if (!file.isFile()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    InputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      Entry entry = Entry.read(new DataInputStream(new BufferedInputStream(inputStream)), file.length());
+      hits.incrementAndGet();
+      return entry;
+    } catch (IOException e) {
+      closeQuietly(inputStream);
+      inputStream = null;
+      corrupted.incrementAndGet();
+      misses.incrementAndGet();
+      if (!file.delete() && file.exists()) {
+        logger.log(Level.FINE, "Unable to delete corrupt cache entry {0}", file);
+      }
+      return null;
+    } finally {
+      closeQuietly(inputStream);
+    }
+  }
+
+  /**
+   * Stores a transformation result.
+   *
+   * @param key         the entry key
+   * @param transformed the transformed class file, or {@code null} if the class was not changed
+   */
+  void put(String key, byte[] transformed) {
+    final File file = file(key);
+    final File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      logger.log(Level.FINE, "Unable to create cache directory {0}", parent);
+      return;
+    }
+    File temporary = null;
+    OutputStream outputStream = null;
+    try {
+      temporary = File.createTempFile(file.getName(), ".tmp", parent);
+      outputStream = new FileOutputStream(temporary);
+      DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+      new Entry(transformed).write(dataOutputStream);
+      dataOutputStream.flush();
+      outputStream.close();
+      outputStream = null;
+      // another JVM may have stored the same entry in the meantime, which is fine
+      if (temporary.renameTo(file) || file.isFile()) {
+        stores.incrementAndGet();
+      }
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to store cache entry " + file, e);
+    } finally {
+      closeQuietly(outputStream);
+      if (temporary != null && temporary.exists() && !temporary.delete()) {
+        temporary.deleteOnExit();
+      }
+    }
+  }
+
+  private static void closeQuietly(InputStream inputStream) {
+    if (inputStream != null) {
+      try {
+        inputStream.close();
+      } catch (IOException ignore) {
+      }
+    }
+  }
+
+  private static void closeQuietly(OutputStream outputStream) {
+    if (outputStream != null) {
+      try {
+        outputStream.close();
+      } catch (IOException ignore) {
+      }
+    }
+  }
+
+  static final class Entry {
+
+    private final byte[] transformed;
+
+    Entry(byte[] transformed) {
+      this.transformed = transformed;
+    }
+
+    /**
+     * @return the transformed class file, or {@code null} if the class is not changed
+     */
+    byte[] getTransformed() {
+      return transformed;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      byte[] payload = transformed != null ? transformed : new byte[0];
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(transformed != null ? TRANSFORMED : UNCHANGED);
+      out.writeInt(payload.length);
+      out.writeLong(crc.getValue());
+      out.write(payload);
+    }
+
+    /**
+     * @param in   the stream of the entry
+     * @param size the size of the entry in bytes, which bounds the payload length the header may
+     *             declare
+     */
+    static Entry read(DataInputStream in, long size) throws IOException {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a cache entry");
+      }
+      int kind = in.readInt();
+      int length = in.readInt();
+      long checksum = in.readLong();
+      if ((kind != UNCHANGED && kind != TRANSFORMED) || length < 0 || length > size - HEADER_SIZE) {
+        throw new IOException("Invalid cache entry header");
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      if (in.read() != -1) {
+        throw new IOException("Trailing data in cache entry");
+      }
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (crc.getValue() != checksum) {
+        throw new IOException("Cache entry checksum mismatch");
+      }
+      return new Entry(kind == TRANSFORMED ? payload : null);
+    }
+  }
+
+  private class CachingClassFileTransformer implements ClassFileTransformer {
+
+    private final ClassFileTransformer delegate;
+
+    CachingClassFileTransformer(ClassFileTransformer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader,
+                            String className,
+                            Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[] classfileBuffer) throws IllegalClassFormatException {
+      if (className == null || classfileBuffer == null || isBypassed(className)) {
+        return delegate.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+      }
+      final String key = key(className, loader, classfileBuffer);
+      final Entry entry = get(key);
+      if (entry != null) {
+        return entry.getTransformed();
+      }
+      // a class loaded while transforming is transformed on the same thread
+      final Boolean outer = cacheable.get();
+      cacheable.set(Boolean.TRUE);
+      try {
+        byte[] transformed = delegate.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        if (cacheable.get()) {
+          put(key, transformed);
+        }
+        return transformed;
+      } finally {
+        if (outer != null) {
+          cacheable.set(outer);
+        } else {
+          cacheable.remove();
+        }
+      }
+    }
+
+    private boolean isBypassed(String className) {
+      return !bypassed.isEmpty() && bypassed.contains(className.replace('/', '.'));
+    }
+  }
+
+  private class CacheabilityListener extends AgentBuilder.Listener.Adapter {
+
+    @Override
+    public void onTransformation(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, boolean loaded, DynamicType dynamicType) {
+      if (dynamicType.hasAliveLoadedTypeInitializers()) {
+        notCacheable();
+      }
+    }
+
+    @Override
+    public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+      notCacheable();
+    }
+  }
+}
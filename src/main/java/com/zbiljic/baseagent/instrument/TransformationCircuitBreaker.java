@@ -0,0 +1,333 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.utility.JavaModule;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops transforming types and disables {@link Instrumenter}s which keep costing time on every
+ * class load, so that a single pathological class or plug-in cannot ruin the startup time.
+ * <p>
+ * A type is tripped once its transformation failed or was slow a number of times, for example
+ * because it is loaded by many class loaders or retransformed. It is ignored from then on. An
+ * Instrumenter is tripped once its transformations failed a number of times, once it spent too much
+ * time transforming types within a window of time, or right away if {@link Instrumenter#instrument}
+ * throws. The matchers of a tripped Instrumenter no longer match any type. Instrumenters are tracked
+ * with the {@link InstrumenterStatistics} of {@link TransformationStatistics}, whose listener must
+ * be registered before this one.
+ * <p>
+ * Tripped types and Instrumenters which failed can be remembered in a file, one per line prefixed
+ * with {@value #TYPE} or {@value #INSTRUMENTER}, so that they are ignored from the start on the next
+ * run. Instrumenters which were only slow are not remembered, as the next run may load other types.
+ */
+final class TransformationCircuitBreaker extends AgentBuilder.Listener.Adapter {
+
+  private static Logger logger = Logger.getLogger(TransformationCircuitBreaker.class.getName());
+
+  static final String TYPE = "type ";
+  static final String INSTRUMENTER = "instrumenter ";
+
+  // the time the Instrumenters spent in the current window is checked every this many completed types
+  private static final int TIME_CHECK_INTERVAL = 64;
+  static final long TIME_WINDOW_MILLIS = 60000;
+
+  private final TransformationStatistics statistics;
+  private final int typeStrikes;
+  private final long slowTypeNanos;
+  private final int instrumenterErrors;
+  private final long instrumenterNanos;
+  private final long windowNanos;
+  private final File file;
+
+  private final ConcurrentMap<String, AtomicInteger> strikes = new ConcurrentHashMap<String, AtomicInteger>();
+  private final Set<String> trippedTypes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<String> trippedInstrumenters =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final AtomicInteger completed = new AtomicInteger();
+  // guarded by this
+  private final Map<String, Long> windowStartTotals = new HashMap<String, Long>();
+  private long windowStart = System.nanoTime();
+
+  private final ThreadLocal<Starts> starts = new ThreadLocal<Starts>() {
+    @Override
+    protected Starts initialValue() {
+      return new Starts();
+    }
+  };
+
+  /**
+   * @param statistics         the statistics attributing transformations to Instrumenters
+   * @param typeStrikes        the number of failed or slow transformations after which a type is
+   *                           tripped
+   * @param slowTypeMillis     the time after which the transformation of a type is slow
+   * @param instrumenterErrors the number of failed transformations after which an Instrumenter is
+   *                           tripped
+   * @param instrumenterMillis the time an Instrumenter may spend transforming types within
+   *                           {@value #TIME_WINDOW_MILLIS} ms, or <code>0</code> for no limit
+   * @param file               the file tripped types and Instrumenters are remembered in, or
+   *                           {@code null}
+   */
+  TransformationCircuitBreaker(TransformationStatistics statistics, int typeStrikes, long slowTypeMillis,
+                               int instrumenterErrors, long instrumenterMillis, File file) {
+    this(statistics, typeStrikes, slowTypeMillis, instrumenterErrors, instrumenterMillis, TIME_WINDOW_MILLIS, file);
+  }
+
+  /**
+   * @param windowMillis the window of time in which an Instrumenter may spend
+   *                     <code>instrumenterMillis</code> transforming types
+   */
+  TransformationCircuitBreaker(TransformationStatistics statistics, int typeStrikes, long slowTypeMillis,
+                               int instrumenterErrors, long instrumenterMillis, long windowMillis, File file) {
+    if (typeStrikes < 1 || instrumenterErrors < 1) {
+      throw new IllegalArgumentException("Thresholds must be positive: " + typeStrikes + ", " + instrumenterErrors);
+    }
+    this.statistics = statistics;
+    this.typeStrikes = typeStrikes;
+    this.slowTypeNanos = TimeUnit.MILLISECONDS.toNanos(slowTypeMillis);
+    this.instrumenterErrors = instrumenterErrors;
+    this.instrumenterNanos = TimeUnit.MILLISECONDS.toNanos(instrumenterMillis);
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.file = file;
+    load();
+  }
+
+  /**
+   * @param typeName the name of a type. For example java.lang.String
+   * @return <code>true</code>, if the type is no longer transformed
+   */
+  boolean isTripped(String typeName) {
+    return trippedTypes.contains(typeName);
+  }
+
+  /**
+   * @param instrumenter the class name of an Instrumenter
+   * @return <code>true</code>, if the Instrumenter is disabled
+   */
+  boolean isInstrumenterTripped(String instrumenter) {
+    return trippedInstrumenters.contains(instrumenter);
+  }
+
+  /**
+   * Matches the types for which {@link #isTripped(String)} returns <code>true</code>.
+   */
+  ElementMatcher.Junction<TypeDescription> trippedTypes() {
+    return new ElementMatcher.Junction.AbstractBase<TypeDescription>() {
+      @Override
+      public boolean matches(TypeDescription target) {
+        return !trippedTypes.isEmpty() && isTripped(target.getName());
+      }
+
+      @Override
+      public String toString() {
+        return "trippedTypes()";
+      }
+    };
+  }
+
+  Set<String> getTrippedTypes() {
+    return Collections.unmodifiableSet(trippedTypes);
+  }
+
+  Set<String> getTrippedInstrumenters() {
+    return Collections.unmodifiableSet(trippedInstrumenters);
+  }
+
+  /**
+   * Trips an Instrumenter whose {@link Instrumenter#instrument} threw.
+   */
+  void instrumenterFailed(Instrumenter instrumenter, Throwable throwable) {
+    final String name = instrumenter.getClass().getName();
+    logger.log(Level.WARNING, "Instrumenter " + name + " failed and is disabled", throwable);
+    tripInstrumenter(name, null, true);
+  }
+
+  @Override
+  public void onDiscovery(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+    starts.get().push(System.nanoTime());
+  }
+
+  @Override
+  public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+    strike(typeName, "failed");
+    checkInstrumenterErrors();
+  }
+
+  @Override
+  public void onComplete(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+    final long elapsed = System.nanoTime() - starts.get().pop();
+    if (elapsed >= slowTypeNanos) {
+      strike(typeName, "took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+    }
+    if (instrumenterNanos > 0 && (elapsed >= slowTypeNanos || completed.incrementAndGet() % TIME_CHECK_INTERVAL == 0)) {
+      checkInstrumenterTime();
+    }
+  }
+
+  private void strike(String typeName, String reason) {
+    if (trippedTypes.contains(typeName)) {
+      return;
+    }
+    AtomicInteger count = strikes.get(typeName);
+    if (count == null) {
+      count = new AtomicInteger();
+      AtomicInteger existing = strikes.putIfAbsent(typeName, count);
+      if (existing != null) {
+        count = existing;
+      }
+    }
+    if (count.incrementAndGet() == typeStrikes && trippedTypes.add(typeName)) {
+      strikes.remove(typeName);
+      logger.log(Level.WARNING, "Transformation of {0} {1}, ignoring it from now on", new Object[]{typeName, reason});
+      persist(TYPE + typeName);
+    }
+  }
+
+  private void checkInstrumenterErrors() {
+    if (statistics == null) {
+      return;
+    }
+    for (InstrumenterStatistics instrumenter : statistics.getInstrumenterStatistics()) {
+      if (!instrumenter.isTripped() && instrumenter.getErrors() >= instrumenterErrors) {
+        tripInstrumenter(instrumenter.getInstrumenter(), instrumenter.getErrors() + " failed transformations", true);
+      }
+    }
+  }
+
+  /**
+   * Trips the Instrumenters which spent too much time transforming types since the start of the
+   * current window, and starts the next window once the current one is over.
+   */
+  private synchronized void checkInstrumenterTime() {
+    if (statistics == null) {
+      return;
+    }
+    final long now = System.nanoTime();
+    final boolean nextWindow = now - windowStart >= windowNanos;
+    if (nextWindow) {
+      windowStart = now;
+    }
+    for (InstrumenterStatistics instrumenter : statistics.getInstrumenterStatistics()) {
+      if (instrumenter.isTripped()) {
+        continue;
+      }
+      final long total = instrumenter.latency.getTotal();
+      final Long windowStartTotal = windowStartTotals.get(instrumenter.getInstrumenter());
+      // the statistics may have been reset since the window started
+      final long spent = windowStartTotal == null || total < windowStartTotal ? total : total - windowStartTotal;
+      if (spent >= instrumenterNanos) {
+        tripInstrumenter(instrumenter.getInstrumenter(), TimeUnit.NANOSECONDS.toMillis(spent)
+          + " ms spent transforming within " + TimeUnit.NANOSECONDS.toMillis(windowNanos) + " ms", false);
+      } else if (nextWindow) {
+        windowStartTotals.put(instrumenter.getInstrumenter(), total);
+      }
+    }
+  }
+
+  private void tripInstrumenter(String name, String reason, boolean remember) {
+    if (statistics != null) {
+      for (InstrumenterStatistics instrumenter : statistics.getInstrumenterStatistics()) {
+        if (instrumenter.getInstrumenter().equals(name)) {
+          instrumenter.trip();
+        }
+      }
+    }
+    if (trippedInstrumenters.add(name)) {
+      if (reason != null) {
+        logger.log(Level.WARNING, "Instrumenter {0} is disabled after {1}", new Object[]{name, reason});
+      }
+      if (remember) {
+        persist(INSTRUMENTER + name);
+      }
+    }
+  }
+
+  private void load() {
+    if (file == null || !file.exists()) {
+      return;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        for (String line; (line = reader.readLine()) != null; ) {
+          if (line.startsWith(TYPE)) {
+            trippedTypes.add(line.substring(TYPE.length()).trim());
+          } else if (line.startsWith(INSTRUMENTER)) {
+            trippedInstrumenters.add(line.substring(INSTRUMENTER.length()).trim());
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      logger.log(Level.INFO, "Loaded {0} tripped types and {1} tripped Instrumenters from {2}",
+        new Object[]{trippedTypes.size(), trippedInstrumenters.size(), file});
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read " + file, e);
+    }
+  }
+
+  private synchronized void persist(String line) {
+    if (file == null) {
+      return;
+    }
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+      try {
+        writer.write(line);
+        writer.write('\n');
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write " + file, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TransformationCircuitBreaker{trippedTypes=" + trippedTypes
+      + ", trippedInstrumenters=" + trippedInstrumenters + "}";
+  }
+
+  /**
+   * The discovery times of the types currently processed by a thread.
+   */
+  private static final class Starts {
+
+    private long[] stack = new long[4];
+    private int depth;
+
+    void push(long start) {
+      if (depth == stack.length) {
+        long[] grown = new long[stack.length * 2];
+        System.arraycopy(stack, 0, grown, 0, stack.length);
+        stack = grown;
+      }
+      stack[depth++] = start;
+    }
+
+    long pop() {
+      return depth > 0 ? stack[--depth] : System.nanoTime();
+    }
+  }
+}
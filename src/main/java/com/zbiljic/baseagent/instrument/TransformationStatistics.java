@@ -0,0 +1,351 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.Registry;
+import com.zbiljic.baseagent.util.LatencyHistogram;
+import com.zbiljic.baseagent.util.StripedCounter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.management.ManagementFactory;
+import java.security.ProtectionDomain;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects statistics of the transformation pipeline, in total and per {@link Instrumenter}, and
+ * exposes them as MBeans in the {@value #DOMAIN} domain.
+ * <p>
+ * The types processed by the Byte Buddy agent are attributed to instrumenters on the transforming
+ * thread: the listener returned by {@link #getListener()} opens a frame when a type is discovered,
+ * the matchers and transformers of the instrumenters mark the frame, and the frame is accounted
+ * when the type is complete. The time between discovery and completion of a type is accounted to
+ * every instrumenter which matched it. All counters are striped and lock-free.
+ */
+public final class TransformationStatistics implements TransformationStatisticsMBean {
+
+  private static Logger logger = Logger.getLogger(TransformationStatistics.class.getName());
+
+  static final String DOMAIN = "com.zbiljic.baseagent";
+
+  private final StripedCounter typesDiscovered = new StripedCounter();
+  private final StripedCounter typesTransformed = new StripedCounter();
+  private final StripedCounter typesIgnored = new StripedCounter();
+  private final StripedCounter errors = new StripedCounter();
+  private final LatencyHistogram transformerLatency = new LatencyHistogram();
+
+  private final List<InstrumenterStatistics> instrumenters = new CopyOnWriteArrayList<InstrumenterStatistics>();
+
+  private final ThreadLocal<Frames> frames = new ThreadLocal<Frames>() {
+    @Override
+    protected Frames initialValue() {
+      return new Frames();
+    }
+  };
+
+  /**
+   * Applies the instrumenter to the given builder, attributing the work of its transformations to
+   * it.
+   *
+   * @param instrumenter the instrumenter
+   * @param agentBuilder the builder to which the instrumenter adds its instrumentation
+   * @return the builder returned by the instrumenter
+   */
+  AgentBuilder instrument(Instrumenter instrumenter, AgentBuilder agentBuilder) {
+    return instrument(instrumenter, agentBuilder, null);
+  }
+
+  /**
+   * Applies the instrumenter to the given builder, attributing the work of its transformations to
+   * it. The registrations it makes in the fusion are attributed to it as well.
+   *
+   * @param instrumenter the instrumenter
+   * @param agentBuilder the builder to which the instrumenter adds its instrumentation
+   * @param fusion       the fusion collecting the registrations of all instrumenters, or
+   *                     {@code null}
+   * @return the builder returned by the instrumenter
+   */
+  AgentBuilder instrument(Instrumenter instrumenter, AgentBuilder agentBuilder, Registry.Fusion fusion) {
+    InstrumenterStatistics statistics = register(instrumenter.getClass().getName());
+    if (fusion != null) {
+      fusion.attributeTo(AttributingAgentBuilder.attribution(this, statistics));
+    }
+    try {
+      return AttributingAgentBuilder.unwrap(
+        instrumenter.instrument(AttributingAgentBuilder.of(agentBuilder, this, statistics)));
+    } finally {
+      if (fusion != null) {
+        fusion.attributeTo(null);
+      }
+    }
+  }
+
+  synchronized InstrumenterStatistics register(String instrumenter) {
+    InstrumenterStatistics statistics = new InstrumenterStatistics(instrumenters.size(), instrumenter);
+    instrumenters.add(statistics);
+    registerMBean(statistics, "type=InstrumenterStatistics,name=" + instrumenter);
+    return statistics;
+  }
+
+  /**
+   * Registers this object at the platform MBean server.
+   */
+  void registerMBean() {
+    registerMBean(this, "type=TransformationStatistics");
+  }
+
+  private static void registerMBean(Object mBean, String name) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      mBeanServer.registerMBean(mBean, new ObjectName(DOMAIN + ":" + name));
+    } catch (InstanceAlreadyExistsException e) {
+      logger.log(Level.FINE, "MBean {0} is already registered", name);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Failed to register MBean " + name, e);
+    }
+  }
+
+  List<InstrumenterStatistics> getInstrumenterStatistics() {
+    return instrumenters;
+  }
+
+  void evaluated(InstrumenterStatistics statistics) {
+    Frame frame = frames.get().current();
+    if (frame != null) {
+      frame.evaluated.set(statistics.id);
+    }
+  }
+
+  void matched(InstrumenterStatistics statistics) {
+    Frame frame = frames.get().current();
+    if (frame != null) {
+      frame.matched.set(statistics.id);
+    }
+  }
+
+  /**
+   * @return a listener which has to be registered on every agent whose instrumenters are applied
+   * with {@link #instrument(Instrumenter, AgentBuilder)}
+   */
+  AgentBuilder.Listener getListener() {
+    return new StatisticsListener();
+  }
+
+  /**
+   * @return a decorator which measures the time spent inside the transformers
+   */
+  DecoratingInstrumentation.Decorator getDecorator() {
+    return new DecoratingInstrumentation.Decorator() {
+      @Override
+      public ClassFileTransformer decorate(ClassFileTransformer transformer) {
+        return new TimingClassFileTransformer(transformer);
+      }
+    };
+  }
+
+  @Override
+  public long getTransformerInvocations() {
+    return transformerLatency.getCount();
+  }
+
+  @Override
+  public double getTransformerTimeMillis() {
+    return transformerLatency.getTotal() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public double getTransformerLatencyP99Micros() {
+    return InstrumenterStatistics.micros(transformerLatency.getPercentile(99));
+  }
+
+  @Override
+  public double getTransformerLatencyMaxMicros() {
+    return InstrumenterStatistics.micros(transformerLatency.getMax());
+  }
+
+  @Override
+  public long getTypesDiscovered() {
+    return typesDiscovered.sum();
+  }
+
+  @Override
+  public long getTypesTransformed() {
+    return typesTransformed.sum();
+  }
+
+  @Override
+  public long getTypesIgnored() {
+    return typesIgnored.sum();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public String[] getInstrumenters() {
+    String[] names = new String[instrumenters.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = instrumenters.get(i).getInstrumenter();
+    }
+    return names;
+  }
+
+  @Override
+  public void reset() {
+    typesDiscovered.reset();
+    typesTransformed.reset();
+    typesIgnored.reset();
+    errors.reset();
+    transformerLatency.reset();
+    for (InstrumenterStatistics statistics : instrumenters) {
+      statistics.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TransformationStatistics{invocations=" + getTransformerInvocations()
+      + ", timeMillis=" + getTransformerTimeMillis()
+      + ", discovered=" + typesDiscovered
+      + ", transformed=" + typesTransformed
+      + ", ignored=" + typesIgnored
+      + ", errors=" + errors
+      + ", instrumenters=" + instrumenters + "}";
+  }
+
+  /**
+   * The types currently processed by a thread. Types are nested if a class is loaded while another
+   * one is matched or transformed. Frames are reused, so that no objects are allocated once a
+   * thread has reached its maximum depth.
+   */
+  private static final class Frames {
+
+    private Frame[] stack = new Frame[4];
+    private int depth;
+
+    Frame push() {
+      if (depth == stack.length) {
+        Frame[] grown = new Frame[stack.length * 2];
+        System.arraycopy(stack, 0, grown, 0, stack.length);
+        stack = grown;
+      }
+      Frame frame = stack[depth];
+      if (frame == null) {
+        frame = new Frame();
+        stack[depth] = frame;
+      } else {
+        frame.evaluated.clear();
+        frame.matched.clear();
+      }
+      depth++;
+      return frame;
+    }
+
+    Frame current() {
+      return depth > 0 ? stack[depth - 1] : null;
+    }
+
+    Frame pop() {
+      return depth > 0 ? stack[--depth] : null;
+    }
+  }
+
+  private static final class Frame {
+
+    long start;
+    final BitSet evaluated = new BitSet();
+    final BitSet matched = new BitSet();
+  }
+
+  private class StatisticsListener extends AgentBuilder.Listener.Adapter {
+
+    @Override
+    public void onDiscovery(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+      typesDiscovered.increment();
+      frames.get().push().start = System.nanoTime();
+    }
+
+    @Override
+    public void onTransformation(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module,
+                                 boolean loaded, DynamicType dynamicType) {
+      typesTransformed.increment();
+      Frame frame = frames.get().current();
+      if (frame != null) {
+        for (int i = frame.matched.nextSetBit(0); i >= 0; i = frame.matched.nextSetBit(i + 1)) {
+          instrumenters.get(i).transformed.increment();
+        }
+      }
+    }
+
+    @Override
+    public void onIgnored(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, boolean loaded) {
+      typesIgnored.increment();
+    }
+
+    @Override
+    public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+      errors.increment();
+      Frame frame = frames.get().current();
+      if (frame != null) {
+        for (int i = frame.matched.nextSetBit(0); i >= 0; i = frame.matched.nextSetBit(i + 1)) {
+          instrumenters.get(i).errors.increment();
+        }
+      }
+    }
+
+    @Override
+    public void onComplete(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+      Frame frame = frames.get().pop();
+      if (frame == null) {
+        return;
+      }
+      long elapsed = System.nanoTime() - frame.start;
+      for (int i = frame.matched.nextSetBit(0); i >= 0; i = frame.matched.nextSetBit(i + 1)) {
+        InstrumenterStatistics statistics = instrumenters.get(i);
+        statistics.matched.increment();
+        statistics.latency.record(elapsed);
+      }
+      for (int i = frame.evaluated.nextSetBit(0); i >= 0; i = frame.evaluated.nextSetBit(i + 1)) {
+        if (!frame.matched.get(i)) {
+          instrumenters.get(i).ignored.increment();
+        }
+      }
+    }
+  }
+
+  private class TimingClassFileTransformer implements ClassFileTransformer {
+
+    private final ClassFileTransformer delegate;
+
+    TimingClassFileTransformer(ClassFileTransformer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader,
+                            String className,
+                            Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[] classfileBuffer) throws IllegalClassFormatException {
+      final long start = System.nanoTime();
+      try {
+        return delegate.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+      } finally {
+        transformerLatency.record(System.nanoTime() - start);
+      }
+    }
+  }
+}
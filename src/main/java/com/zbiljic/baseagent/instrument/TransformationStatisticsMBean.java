@@ -0,0 +1,33 @@
+package com.zbiljic.baseagent.instrument;
+
+/**
+ * Statistics of the whole transformation pipeline of baseagent.
+ */
+public interface TransformationStatisticsMBean {
+
+  /**
+   * @return the number of times the JVM invoked the transformers of baseagent
+   */
+  long getTransformerInvocations();
+
+  /**
+   * @return the total time spent inside the transformers of baseagent, in milliseconds
+   */
+  double getTransformerTimeMillis();
+
+  double getTransformerLatencyP99Micros();
+
+  double getTransformerLatencyMaxMicros();
+
+  long getTypesDiscovered();
+
+  long getTypesTransformed();
+
+  long getTypesIgnored();
+
+  long getErrors();
+
+  String[] getInstrumenters();
+
+  void reset();
+}
@@ -0,0 +1,154 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.util.WeakConcurrentMap;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.utility.JavaModule;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers class loaders which loaded a number of classes without any of them being transformed,
+ * so that the classes they load later are ignored without being parsed. This pays off for
+ * applications which create many short-lived class loaders, for example for generated proxies or
+ * Groovy scripts.
+ * <p>
+ * The bootstrap class loader, the system class loader and its parents are never considered
+ * uninteresting, as most instrumented types are loaded by them. What was learned is forgotten when
+ * the include and exclude rules change, and when {@link #clear()} is called, for example because an
+ * Instrumenter was activated.
+ */
+final class UninterestingClassLoaders extends AgentBuilder.Listener.Adapter {
+
+  private static Logger logger = Logger.getLogger(UninterestingClassLoaders.class.getName());
+
+  private static final int INTERESTING = -1;
+
+  private final int threshold;
+  private final WeakConcurrentMap<ClassLoader, AtomicInteger> ignoredClasses =
+    new WeakConcurrentMap<ClassLoader, AtomicInteger>();
+  private final WeakConcurrentMap<ClassLoader, Boolean> neverUninteresting =
+    new WeakConcurrentMap<ClassLoader, Boolean>();
+  private final AtomicInteger uninterestingCount = new AtomicInteger();
+  private volatile ClassNameRules rules;
+
+  /**
+   * @param threshold the number of ignored classes after which a class loader is uninteresting
+   */
+  UninterestingClassLoaders(int threshold) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+    }
+    this.threshold = threshold;
+    this.rules = ConfigurationClassNameMatcher.getRules();
+    ClassLoader classLoader = ClassLoader.getSystemClassLoader();
+    while (classLoader != null) {
+      neverUninteresting.put(classLoader, Boolean.TRUE);
+      classLoader = classLoader.getParent();
+    }
+  }
+
+  /**
+   * @param classLoader a class loader, or {@code null} for the bootstrap class loader
+   * @return <code>true</code>, if no class of the class loader should be transformed
+   */
+  boolean isUninteresting(ClassLoader classLoader) {
+    if (classLoader == null || rulesChanged()) {
+      return false;
+    }
+    AtomicInteger ignored = ignoredClasses.get(classLoader);
+    return ignored != null && ignored.get() >= threshold;
+  }
+
+  /**
+   * Matches the class loaders for which {@link #isUninteresting(ClassLoader)} returns
+   * <code>true</code>.
+   */
+  ElementMatcher.Junction<ClassLoader> matcher() {
+    return new ElementMatcher.Junction.AbstractBase<ClassLoader>() {
+      @Override
+      public boolean matches(ClassLoader target) {
+        return isUninteresting(target);
+      }
+    };
+  }
+
+  /**
+   * Forgets all class loaders, so that all of them are matched again.
+   */
+  void clear() {
+    ignoredClasses.clear();
+    uninterestingCount.set(0);
+  }
+
+  /**
+   * @return the number of class loaders which are currently uninteresting
+   */
+  int getUninterestingCount() {
+    // collected class loaders are still counted, as they are not tracked individually
+    return uninterestingCount.get();
+  }
+
+  private boolean rulesChanged() {
+    final ClassNameRules currentRules = ConfigurationClassNameMatcher.getRules();
+    if (currentRules == rules) {
+      return false;
+    }
+    rules = currentRules;
+    clear();
+    return true;
+  }
+
+  @Override
+  public void onTransformation(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module,
+                               boolean loaded, DynamicType dynamicType) {
+    markInteresting(classLoader);
+  }
+
+  @Override
+  public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+    markInteresting(classLoader);
+  }
+
+  @Override
+  public void onIgnored(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, boolean loaded) {
+    if (classLoader == null || neverUninteresting.get(classLoader) != null) {
+      return;
+    }
+    AtomicInteger ignored = ignoredClasses.get(classLoader);
+    if (ignored == null) {
+      ignored = new AtomicInteger();
+      AtomicInteger existing = ignoredClasses.putIfAbsent(classLoader, ignored);
+      if (existing != null) {
+        ignored = existing;
+      }
+    }
+    int count;
+    do {
+      count = ignored.get();
+      if (count == INTERESTING || count >= threshold) {
+        return;
+      }
+    } while (!ignored.compareAndSet(count, count + 1));
+    if (count + 1 == threshold) {
+      uninterestingCount.incrementAndGet();
+      logger.log(Level.FINE, "Ignoring all further classes of {0}", classLoader);
+    }
+  }
+
+  private void markInteresting(ClassLoader classLoader) {
+    if (classLoader == null) {
+      return;
+    }
+    AtomicInteger interesting = new AtomicInteger(INTERESTING);
+    AtomicInteger ignored = ignoredClasses.putIfAbsent(classLoader, interesting);
+    // a class may still be transformed while its class loader becomes uninteresting
+    if (ignored != null && ignored.getAndSet(INTERESTING) >= threshold) {
+      uninterestingCount.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import com.zbiljic.baseagent.util.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes helper classes visible to the bootstrap class loader, so that advice inlined into classes
+ * of the JDK can call them.
+ * <p>
+ * The class files are copied from the agent's class loader into a temporary jar, which is appended
+ * to the bootstrap class path. As class loaders delegate to the bootstrap class loader first, the
+ * agent then uses the injected classes as well, unless it loaded them before. Helper classes must
+ * therefore only be referenced after they were injected, and must only refer to classes of the JDK
+ * and to other injected classes, including their nested classes. Members the agent accesses must be
+ * public, as the injected classes are in a different runtime package than the agent.
+ */
+public final class BootstrapInjector {
+
+  private static Logger logger = Logger.getLogger(BootstrapInjector.class.getName());
+
+  private static final Set<String> injected = new HashSet<String>();
+
+  private BootstrapInjector() { /* No instance methods */ }
+
+  /**
+   * Injects the given classes into the bootstrap class loader. Classes which were already injected
+   * are skipped.
+   *
+   * @param instrumentation the instrumentation of the agent
+   * @param classLoader     the class loader to read the class files from
+   * @param classNames      the binary names of the classes to inject, including nested classes
+   * @throws IOException if a class file is missing or the jar could not be written
+   */
+  public static synchronized void inject(Instrumentation instrumentation, ClassLoader classLoader,
+                                         Collection<String> classNames) throws IOException {
+    List<String> missing = new ArrayList<String>();
+    for (String className : classNames) {
+      if (!injected.contains(className) && !isBootstrapVisible(className)) {
+        missing.add(className);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    final File jar = File.createTempFile("baseagent-bootstrap", ".jar");
+    jar.deleteOnExit();
+    final JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (String className : missing) {
+        final String resource = className.replace('.', '/') + ".class";
+        final InputStream classFile = classLoader.getResourceAsStream(resource);
+        if (classFile == null) {
+          throw new IOException("Class file of " + className + " not found");
+        }
+        try {
+          outputStream.putNextEntry(new JarEntry(resource));
+          IOUtils.copy(classFile, outputStream);
+          outputStream.closeEntry();
+        } finally {
+          classFile.close();
+        }
+      }
+    } finally {
+      outputStream.close();
+    }
+    instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(jar));
+    injected.addAll(missing);
+    logger.log(Level.FINE, "Injected {0} into the bootstrap class loader", missing);
+  }
+
+  private static boolean isBootstrapVisible(String className) {
+    try {
+      Class.forName(className, false, null);
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+}
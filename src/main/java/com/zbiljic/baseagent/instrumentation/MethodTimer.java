@@ -0,0 +1,109 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import com.zbiljic.baseagent.util.LatencyHistogram;
+import com.zbiljic.baseagent.util.StripedCounter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the invocations of a timed method and records their durations. Recording neither locks nor
+ * allocates.
+ */
+public final class MethodTimer implements MethodTimerMBean {
+
+  private final int id;
+  private final String name;
+  private final String method;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final StripedCounter errors = new StripedCounter();
+
+  MethodTimer(int id, String name, String method) {
+    this.id = id;
+    this.name = name;
+    this.method = method;
+  }
+
+  void record(long nanos, boolean error) {
+    latency.record(nanos);
+    if (error) {
+      errors.increment();
+    }
+  }
+
+  int getId() {
+    return id;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getMethod() {
+    return method;
+  }
+
+  @Override
+  public long getInvocations() {
+    return latency.getCount();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public double getTotalTimeMillis() {
+    return latency.getTotal() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public double getLatencyP50Micros() {
+    return micros(latency.getPercentile(50));
+  }
+
+  @Override
+  public double getLatencyP90Micros() {
+    return micros(latency.getPercentile(90));
+  }
+
+  @Override
+  public double getLatencyP99Micros() {
+    return micros(latency.getPercentile(99));
+  }
+
+  @Override
+  public double getLatencyMaxMicros() {
+    return micros(latency.getMax());
+  }
+
+  /**
+   * Returns an upper bound of the given percentile.
+   *
+   * @param percentile the percentile, between {@code 0} and {@code 100}
+   * @return the percentile in nanoseconds
+   */
+  public long getLatencyPercentileNanos(double percentile) {
+    return latency.getPercentile(percentile);
+  }
+
+  @Override
+  public void reset() {
+    latency.reset();
+    errors.reset();
+  }
+
+  private static double micros(long nanos) {
+    return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return name + " " + method + "{invocations=" + getInvocations()
+      + ", errors=" + getErrors()
+      + ", p99=" + getLatencyP99Micros() + "us"
+      + '}';
+  }
+}
@@ -0,0 +1,37 @@
+package com.zbiljic.baseagent.instrumentation;
+
+/**
+ * The timings of a single method registered with
+ * {@link Registry.Builder#timed(net.bytebuddy.matcher.ElementMatcher, String)}.
+ */
+public interface MethodTimerMBean {
+
+  String getName();
+
+  String getMethod();
+
+  /**
+   * @return the number of completed invocations, including the ones which threw
+   */
+  long getInvocations();
+
+  /**
+   * @return the number of invocations which threw
+   */
+  long getErrors();
+
+  /**
+   * @return the total time spent in the method, in milliseconds
+   */
+  double getTotalTimeMillis();
+
+  double getLatencyP50Micros();
+
+  double getLatencyP90Micros();
+
+  double getLatencyP99Micros();
+
+  double getLatencyMaxMicros();
+
+  void reset();
+}
@@ -0,0 +1,112 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import com.zbiljic.baseagent.instrument.TransformationCache;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link MethodTimer}s of all methods instrumented with
+ * {@link Registry.Builder#timed(net.bytebuddy.matcher.ElementMatcher, String)}.
+ * <p>
+ * A timer is created when its method is instrumented, and the timed method refers to it by a
+ * constant index, so that {@link #record(int, long, Throwable)} is a plain array access. Timers are
+ * also registered as MBeans in the {@code com.zbiljic.baseagent} domain.
+ */
+public final class MethodTimers {
+
+  private static Logger logger = Logger.getLogger(MethodTimers.class.getName());
+
+  private static final String DOMAIN = "com.zbiljic.baseagent";
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final Map<String, MethodTimer> timersByKey = new HashMap<String, MethodTimer>();
+  private static volatile MethodTimer[] timers = new MethodTimer[INITIAL_CAPACITY];
+  // written after the timer of the last id, so that the timers of all ids below it are visible
+  private static volatile int timerCount;
+
+  private MethodTimers() { /* No instance methods */ }
+
+  /**
+   * Returns the id of the timer of the given method, creating the timer if necessary.
+   *
+   * @param name   the name the method is timed under
+   * @param method the description of the method
+   * @return the id of the timer
+   */
+  static synchronized int register(String name, String method) {
+    // the id is written into the bytecode, but only valid in this JVM
+    TransformationCache.notCacheable();
+    final String key = name + ' ' + method;
+    MethodTimer timer = timersByKey.get(key);
+    if (timer == null) {
+      timer = new MethodTimer(timerCount, name, method);
+      MethodTimer[] current = timers;
+      if (timer.getId() == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[timer.getId()] = timer;
+      timers = current;
+      timerCount = timer.getId() + 1;
+      timersByKey.put(key, timer);
+      registerMBean(timer);
+    }
+    return timer.getId();
+  }
+
+  /**
+   * Called by timed methods when they return or throw.
+   *
+   * @param id         the id of the timer
+   * @param startNanos the value of {@link System#nanoTime()} when the method was entered
+   * @param thrown     the throwable thrown by the method, or {@code null}
+   */
+  public static void record(int id, long startNanos, Throwable thrown) {
+    final long nanos = System.nanoTime() - startNanos;
+    if (id < timerCount) {
+      timers[id].record(nanos, thrown != null);
+    }
+  }
+
+  /**
+   * @return all timers, in the order in which their methods were instrumented
+   */
+  public static List<MethodTimer> getTimers() {
+    final int count = timerCount;
+    return new ArrayList<MethodTimer>(Arrays.asList(timers).subList(0, count));
+  }
+
+  /**
+   * @return the timers registered under the given name
+   */
+  public static List<MethodTimer> getTimers(String name) {
+    List<MethodTimer> result = new ArrayList<MethodTimer>();
+    for (MethodTimer timer : getTimers()) {
+      if (timer.getName().equals(name)) {
+        result.add(timer);
+      }
+    }
+    return result;
+  }
+
+  private static void registerMBean(MethodTimer timer) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(timer, new ObjectName(DOMAIN
+        + ":type=MethodTimer,name=" + ObjectName.quote(timer.getName())
+        + ",method=" + ObjectName.quote(timer.getMethod())));
+    } catch (InstanceAlreadyExistsException e) {
+      logger.log(Level.FINE, "MBean of {0} is already registered", timer);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Failed to register MBean of " + timer, e);
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import java.util.Collection;
+
+/**
+ * An {@link Instrumenter} which only transforms types it can name up front, for example because it
+ * matches types with {@code named(...)}.
+ * <p>
+ * If all Instrumenters name their types, the agent rejects the classes with other names before
+ * Byte Buddy parses them.
+ */
+public interface NamedTypesInstrumenter extends Instrumenter {
+
+  /**
+   * Returns the names of all types this instrumenter may transform.
+   *
+   * @return fully qualified class names, for example {@code java.lang.String}
+   */
+  Collection<String> getTypeNames();
+}
@@ -3,13 +3,32 @@ package com.zbiljic.baseagent.instrumentation;
 import net.bytebuddy.agent.builder.AgentBuilder;
 import net.bytebuddy.agent.builder.AgentBuilder.RawMatcher;
 import net.bytebuddy.agent.builder.AgentBuilder.Transformer;
+import net.bytebuddy.asm.Advice;
 import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.field.FieldList;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.MethodList;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.ClassVisitor;
 import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
 import net.bytebuddy.utility.JavaModule;
 
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.isMethod;
 import static net.bytebuddy.matcher.ElementMatchers.not;
 import static net.bytebuddy.matcher.ElementMatchers.supportsModules;
 
@@ -54,6 +73,28 @@ public final class Registry {
       return new VisitBuilder(rawMatcher, asmVisitorWrapper);
     }
 
+    /**
+     * Times the matched methods of the matched types. Every invocation records its duration in the
+     * {@link MethodTimer} of its method, which is created when the method is instrumented and is
+     * available from {@link MethodTimers} and as an MBean.
+     * <p>
+     * The timing advice is inlined and refers to {@link MethodTimers}, which therefore has to be
+     * visible to the class loaders of the matched types. Constructors and abstract methods are not
+     * timed.
+     *
+     * @param methodMatcher the methods to time
+     * @param name          the name the methods are timed under, for example the name of the
+     *                      instrumented component
+     */
+    public Registrable timed(ElementMatcher<? super MethodDescription> methodMatcher, String name) {
+      requireNonNull(methodMatcher, "methodMatcher cannot be null");
+      requireNonNull(name, "name cannot be null");
+      return visit(Advice.withCustomMapping()
+        .bind(TimingAdvice.TimerId.class, new TimingAdvice.TimerIdMapping(name))
+        .to(TimingAdvice.class)
+        .on(isMethod().and(not(isAbstract())).and(methodMatcher)));
+    }
+
     protected AgentBuilder.Identified.Narrowable narrow(AgentBuilder agentBuilder) {
       return agentBuilder.type(rawMatcher);
     }
@@ -70,16 +111,291 @@ public final class Registry {
 
     @Override
     public AgentBuilder register(AgentBuilder agentBuilder) {
+      final Fusion fusion = Fusion.ACTIVE.get();
+      if (fusion != null) {
+        fusion.add(rawMatcher, asmVisitorWrapper);
+        return agentBuilder;
+      }
       return narrow(agentBuilder)
-        .transform(new Transformer() {
-          @Override
-          public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder,
-                                                  TypeDescription typeDescription,
-                                                  ClassLoader classLoader,
-                                                  JavaModule module) {
-            return builder.visit(asmVisitorWrapper);
-          }
-        });
+        .transform(new VisitingTransformer(asmVisitorWrapper));
+    }
+  }
+
+  /**
+   * Collects the {@link VisitBuilder} registrations made on the current thread between
+   * {@link #begin()} and {@link #end(AgentBuilder)}, usually by all instrumenters of an agent, and
+   * registers them as one transformation per distinct {@link RawMatcher}. Each matcher is therefore
+   * only evaluated once per type, and all {@link AsmVisitorWrapper}s of a type are applied in a
+   * single pass over the class file.
+   * <p>
+   * Unlike separate registrations, of which only the last matching one is applied to a type, all
+   * fused registrations matching a type are applied, followed by the last matching transformation
+   * which was not fused. They are grouped by matcher: the groups are applied in the order in which
+   * their matchers were first registered, and the registrations of a group in the order in which
+   * they were registered. Registrations with different matchers are therefore not necessarily
+   * applied in the order in which they were registered.
+   * <p>
+   * Registrations can be attributed to the instrumenter making them with
+   * {@link #attributeTo(Attribution)}, which keeps reporting the evaluations and applications of
+   * every instrumenter, and skips the registrations of an instrumenter which is no longer active.
+   */
+  public static final class Fusion {
+
+    private static final ThreadLocal<Fusion> ACTIVE = new ThreadLocal<Fusion>();
+
+    private final List<Registration> registrations = new ArrayList<Registration>();
+    private Attribution attribution;
+
+    private Fusion() {
+    }
+
+    /**
+     * Starts collecting the registrations of the current thread.
+     *
+     * @return the fusion, which has to be ended on the same thread
+     * @throws IllegalStateException if a fusion is already active on the current thread
+     */
+    public static Fusion begin() {
+      if (ACTIVE.get() != null) {
+        throw new IllegalStateException("A fusion is already active on this thread");
+      }
+      final Fusion fusion = new Fusion();
+      ACTIVE.set(fusion);
+      return fusion;
+    }
+
+    /**
+     * Attributes the registrations collected from now on to the given attribution.
+     *
+     * @param attribution the attribution, usually of the instrumenter about to register, or
+     *                    {@code null} for none
+     */
+    public void attributeTo(Attribution attribution) {
+      this.attribution = attribution;
+    }
+
+    private void add(RawMatcher rawMatcher, AsmVisitorWrapper asmVisitorWrapper) {
+      registrations.add(new Registration(rawMatcher, asmVisitorWrapper, attribution));
+    }
+
+    /**
+     * Stops collecting and registers the collected registrations.
+     *
+     * @param agentBuilder the {@link AgentBuilder} to register the transformations with
+     * @return the {@link AgentBuilder} with the fused transformations
+     */
+    public AgentBuilder end(AgentBuilder agentBuilder) {
+      if (ACTIVE.get() != this) {
+        throw new IllegalStateException("This fusion is not active on this thread");
+      }
+      ACTIVE.remove();
+      final Map<RawMatcher, List<Registration>> groups = groups();
+      // Byte Buddy applies the transformations registered last first
+      final List<Map.Entry<RawMatcher, List<Registration>>> entries =
+        new ArrayList<Map.Entry<RawMatcher, List<Registration>>>(groups.entrySet());
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        agentBuilder = agentBuilder.type(new FusedMatcher(entries.get(i).getKey(), entries.get(i).getValue()))
+          .transform(new VisitingTransformer(fuse(entries.get(i).getValue())))
+          .asDecorator();
+      }
+      return agentBuilder;
+    }
+
+    private Map<RawMatcher, List<Registration>> groups() {
+      final Map<RawMatcher, List<Registration>> groups = new LinkedHashMap<RawMatcher, List<Registration>>();
+      for (Registration registration : registrations) {
+        List<Registration> group = groups.get(registration.rawMatcher);
+        if (group == null) {
+          group = new ArrayList<Registration>();
+          groups.put(registration.rawMatcher, group);
+        }
+        group.add(registration);
+      }
+      return groups;
+    }
+
+    private static AsmVisitorWrapper fuse(List<Registration> group) {
+      final List<AsmVisitorWrapper> asmVisitorWrappers = new ArrayList<AsmVisitorWrapper>(group.size());
+      for (Registration registration : group) {
+        asmVisitorWrappers.add(registration.attribution == null
+          ? registration.asmVisitorWrapper
+          : new AttributedAsmVisitorWrapper(registration.asmVisitorWrapper, registration.attribution));
+      }
+      return asmVisitorWrappers.size() == 1 ? asmVisitorWrappers.get(0) : new AsmVisitorWrapper.Compound(asmVisitorWrappers);
+    }
+
+    /**
+     * Discards the registrations collected after the given number of registrations, for example
+     * the ones of an instrumenter which failed halfway.
+     *
+     * @param registrations the number of registrations to keep
+     */
+    public void truncate(int registrations) {
+      while (this.registrations.size() > registrations) {
+        this.registrations.remove(this.registrations.size() - 1);
+      }
+    }
+
+    /**
+     * Stops collecting and discards the collected registrations, for example because the
+     * agent they were made for failed. Does nothing if the fusion was already ended.
+     */
+    public void cancel() {
+      if (ACTIVE.get() == this) {
+        ACTIVE.remove();
+        registrations.clear();
+      }
+    }
+
+    /**
+     * @return the number of collected registrations
+     */
+    public int getRegistrations() {
+      return registrations.size();
+    }
+
+    /**
+     * @return the number of transformations the collected registrations are fused into
+     */
+    public int getTransformations() {
+      return groups().size();
+    }
+
+    /**
+     * Receives the evaluations and applications of fused registrations on behalf of the
+     * instrumenter which made them. Implementations must be thread-safe.
+     */
+    public interface Attribution {
+
+      /**
+       * @return <code>false</code>, if the attributed registrations must no longer be applied
+       */
+      boolean isActive();
+
+      /**
+       * Called when a fused matcher with attributed registrations evaluates a type.
+       */
+      void evaluated();
+
+      /**
+       * Called when an attributed registration is applied to a type.
+       */
+      void applied();
+    }
+  }
+
+  private static final class Registration {
+
+    private final RawMatcher rawMatcher;
+    private final AsmVisitorWrapper asmVisitorWrapper;
+    private final Fusion.Attribution attribution;
+
+    Registration(RawMatcher rawMatcher, AsmVisitorWrapper asmVisitorWrapper, Fusion.Attribution attribution) {
+      this.rawMatcher = rawMatcher;
+      this.asmVisitorWrapper = asmVisitorWrapper;
+      this.attribution = attribution;
+    }
+  }
+
+  /**
+   * Evaluates the matcher of a group of fused registrations once, unless all of them belong to
+   * instrumenters which are no longer active, and reports the evaluation to each of them.
+   */
+  private static final class FusedMatcher implements RawMatcher {
+
+    private final RawMatcher delegate;
+    private final Fusion.Attribution[] attributions;
+    private final boolean unattributed;
+
+    FusedMatcher(RawMatcher delegate, List<Registration> group) {
+      this.delegate = delegate;
+      final Set<Fusion.Attribution> attributions =
+        Collections.newSetFromMap(new IdentityHashMap<Fusion.Attribution, Boolean>());
+      boolean unattributed = false;
+      for (Registration registration : group) {
+        if (registration.attribution == null) {
+          unattributed = true;
+        } else {
+          attributions.add(registration.attribution);
+        }
+      }
+      this.attributions = attributions.toArray(new Fusion.Attribution[attributions.size()]);
+      this.unattributed = unattributed;
+    }
+
+    @Override
+    public boolean matches(TypeDescription typeDescription,
+                           ClassLoader classLoader,
+                           JavaModule module,
+                           Class<?> classBeingRedefined,
+                           ProtectionDomain protectionDomain) {
+      boolean active = unattributed;
+      for (Fusion.Attribution attribution : attributions) {
+        if (attribution.isActive()) {
+          attribution.evaluated();
+          active = true;
+        }
+      }
+      return active && delegate.matches(typeDescription, classLoader, module, classBeingRedefined, protectionDomain);
+    }
+  }
+
+  /**
+   * Applies a fused registration only while its instrumenter is active, and reports every
+   * application to it.
+   */
+  private static final class AttributedAsmVisitorWrapper implements AsmVisitorWrapper {
+
+    private final AsmVisitorWrapper delegate;
+    private final Fusion.Attribution attribution;
+
+    AttributedAsmVisitorWrapper(AsmVisitorWrapper delegate, Fusion.Attribution attribution) {
+      this.delegate = delegate;
+      this.attribution = attribution;
+    }
+
+    @Override
+    public int mergeWriter(int flags) {
+      return delegate.mergeWriter(flags);
+    }
+
+    @Override
+    public int mergeReader(int flags) {
+      return delegate.mergeReader(flags);
+    }
+
+    @Override
+    public ClassVisitor wrap(TypeDescription instrumentedType,
+                             ClassVisitor classVisitor,
+                             Implementation.Context implementationContext,
+                             TypePool typePool,
+                             FieldList<FieldDescription.InDefinedShape> fields,
+                             MethodList<?> methods,
+                             int writerFlags,
+                             int readerFlags) {
+      if (!attribution.isActive()) {
+        return classVisitor;
+      }
+      attribution.applied();
+      return delegate.wrap(instrumentedType, classVisitor, implementationContext, typePool, fields, methods,
+        writerFlags, readerFlags);
+    }
+  }
+
+  private static class VisitingTransformer implements Transformer {
+
+    private final AsmVisitorWrapper asmVisitorWrapper;
+
+    VisitingTransformer(AsmVisitorWrapper asmVisitorWrapper) {
+      this.asmVisitorWrapper = asmVisitorWrapper;
+    }
+
+    @Override
+    public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder,
+                                            TypeDescription typeDescription,
+                                            ClassLoader classLoader,
+                                            JavaModule module) {
+      return builder.visit(asmVisitorWrapper);
     }
   }
 
@@ -0,0 +1,74 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDefinition;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The advice inlined into methods timed with
+ * {@link Registry.Builder#timed(net.bytebuddy.matcher.ElementMatcher, String)}. The id of the
+ * {@link MethodTimer} is a constant of the instrumented method, so that the hot path only reads
+ * {@link System#nanoTime()} twice and updates lock-free counters.
+ */
+public class TimingAdvice {
+
+  @Advice.OnMethodEnter
+  static long enter() {
+    return System.nanoTime();
+  }
+
+  @Advice.OnMethodExit(onThrowable = Throwable.class)
+  static void exit(@TimerId int id, @Advice.Enter long startNanos, @Advice.Thrown Throwable thrown) {
+    MethodTimers.record(id, startNanos, thrown);
+  }
+
+  /**
+   * Binds the id of the {@link MethodTimer} of the instrumented method.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.PARAMETER)
+  public @interface TimerId {
+  }
+
+  /**
+   * Resolves {@link TimerId} to the id of the timer of each instrumented method, registering the
+   * timer when the method is instrumented.
+   */
+  static class TimerIdMapping implements Advice.OffsetMapping {
+
+    private final String name;
+
+    TimerIdMapping(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Target resolve(TypeDescription instrumentedType,
+                          MethodDescription instrumentedMethod,
+                          Assigner assigner,
+                          Context context) {
+      return Target.ForStackManipulation.of(MethodTimers.register(name, describe(instrumentedType, instrumentedMethod)));
+    }
+
+    private static String describe(TypeDescription instrumentedType, MethodDescription instrumentedMethod) {
+      StringBuilder description = new StringBuilder(instrumentedType.getName())
+        .append('.').append(instrumentedMethod.getName()).append('(');
+      boolean first = true;
+      for (TypeDefinition parameterType : instrumentedMethod.getParameters().asTypeList()) {
+        if (!first) {
+          description.append(", ");
+        }
+        description.append(parameterType.asErasure().getName());
+        first = false;
+      }
+      return description.append(')').toString();
+    }
+  }
+}
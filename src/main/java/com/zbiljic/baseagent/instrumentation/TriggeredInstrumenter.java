@@ -0,0 +1,23 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import java.util.Collection;
+
+/**
+ * An {@link Instrumenter} which, when lazy activation is enabled, is only applied once a class
+ * matching one of its triggers is loaded. Until then neither {@link #instrument} is called nor are
+ * the classes it references loaded.
+ * <p>
+ * A trigger should be a class which is loaded before any of the classes the instrumenter
+ * transforms, for example the entry point of the library it instruments. The trigger class itself
+ * is transformed by the activated instrumenter.
+ */
+public interface TriggeredInstrumenter extends Instrumenter {
+
+  /**
+   * Returns the triggers activating this instrumenter.
+   *
+   * @return fully qualified class names, or package names ending with a {@code .} which match all
+   * classes in the package and its sub-packages
+   */
+  Collection<String> getTriggers();
+}
@@ -0,0 +1,242 @@
+package com.zbiljic.baseagent.instrumentation.allocation;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.instrument.TransformationCache;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the allocations sampled at the sites rewritten by the {@link AllocationSampling}.
+ * <p>
+ * Every thread counts down the allocations until its next sample, so that an allocation which is
+ * not sampled only costs a decrement, plus a thread local lookup for the first allocation of an
+ * invocation. The distance between two samples is random with the sampling interval as its mean,
+ * so that loops allocating in a fixed pattern are not sampled at the same site over and over.
+ * Sampled allocations are added to lock-free counters of their {@link AllocationSite}, which is
+ * referred to by a constant index.
+ */
+public final class AllocationProfiler implements AllocationProfilerMBean {
+
+  private static Logger logger = Logger.getLogger(AllocationProfiler.class.getName());
+
+  private static final String NAME = "com.zbiljic.baseagent:type=AllocationProfiler";
+  static final int TOP_SITES = 50;
+  static final int DEFAULT_SAMPLING_INTERVAL = 1000;
+  static final int MAX_SAMPLING_INTERVAL = 1 << 20;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final Map<String, AllocationSite> sitesByKey = new HashMap<String, AllocationSite>();
+  // grown geometrically, the slots after the last site are null
+  private static volatile AllocationSite[] sites = new AllocationSite[INITIAL_CAPACITY];
+  private static volatile int samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+  private static boolean started;
+
+  private static final ThreadLocal<Countdown> countdowns = new ThreadLocal<Countdown>() {
+    @Override
+    protected Countdown initialValue() {
+      return new Countdown(Thread.currentThread().getId(), samplingInterval);
+    }
+  };
+
+  private AllocationProfiler() {
+  }
+
+  /**
+   * Applies the sampling interval of the given configuration, and registers the MBean of the
+   * profiler once.
+   */
+  static synchronized void start(BaseAgentConfiguration configuration) {
+    setSamplingInterval(configuration.getAllocationSamplingInterval());
+    if (!started) {
+      started = true;
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new AllocationProfiler(), new ObjectName(NAME));
+      } catch (InstanceAlreadyExistsException e) {
+        logger.log(Level.FINE, "MBean {0} is already registered", NAME);
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Failed to register MBean " + NAME, e);
+      }
+      logger.log(Level.INFO, "Sampling one in {0} allocations", samplingInterval);
+    }
+  }
+
+  static void setSamplingInterval(int interval) {
+    samplingInterval = Math.min(MAX_SAMPLING_INTERVAL, Math.max(1, interval));
+  }
+
+  /**
+   * Returns the id of the given allocation site, creating the site if necessary.
+   *
+   * @param location the method and line of the allocation
+   * @param type     the allocated type
+   * @param array    whether the type is an array type
+   * @param size     the estimated size of instances of the type, or of the elements of arrays
+   * @return the id of the site
+   */
+  static synchronized int register(String location, String type, boolean array, int size) {
+    // the id is written into the bytecode, but only valid in this JVM
+    TransformationCache.notCacheable();
+    final String key = location + ' ' + type;
+    AllocationSite site = sitesByKey.get(key);
+    if (site == null) {
+      site = new AllocationSite(sitesByKey.size(), location, type, array, size);
+      AllocationSite[] current = sites;
+      if (site.getId() == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[site.getId()] = site;
+      // written again, so that the new site is published even if the array was not grown
+      sites = current;
+      sitesByKey.put(key, site);
+    }
+    return site.getId();
+  }
+
+  /**
+   * Called after an object is allocated at a rewritten site.
+   *
+   * @param countdown the countdown of the current thread, or {@code null} if the invocation did not
+   *                  allocate before
+   * @param siteId    the id of the allocation site
+   * @return the countdown of the current thread
+   */
+  public static Countdown sample(Countdown countdown, int siteId) {
+    if (countdown == null) {
+      countdown = countdowns.get();
+    }
+    if (--countdown.remaining <= 0) {
+      sampled(countdown, siteId, 0);
+    }
+    return countdown;
+  }
+
+  /**
+   * Called after an array is allocated at a rewritten site.
+   *
+   * @param length    the length of the array
+   * @param countdown the countdown of the current thread, or {@code null} if the invocation did not
+   *                  allocate before
+   * @param siteId    the id of the allocation site
+   * @return the countdown of the current thread
+   */
+  public static Countdown sampleArray(int length, Countdown countdown, int siteId) {
+    if (countdown == null) {
+      countdown = countdowns.get();
+    }
+    if (--countdown.remaining <= 0) {
+      sampled(countdown, siteId, length);
+    }
+    return countdown;
+  }
+
+  private static void sampled(Countdown countdown, int siteId, int length) {
+    final int interval = samplingInterval;
+    countdown.remaining = countdown.next(interval);
+    final AllocationSite[] current = sites;
+    if (siteId < current.length && current[siteId] != null) {
+      current[siteId].record(interval, length);
+    }
+  }
+
+  /**
+   * @return all allocation sites, with the most estimated bytes first
+   */
+  public static List<AllocationSite> getSites() {
+    List<AllocationSite> result = new ArrayList<AllocationSite>();
+    for (AllocationSite site : sites) {
+      if (site == null) {
+        break;
+      }
+      result.add(site);
+    }
+    Collections.sort(result, new Comparator<AllocationSite>() {
+      @Override
+      public int compare(AllocationSite site1, AllocationSite site2) {
+        final long bytes1 = site1.getEstimatedBytes();
+        final long bytes2 = site2.getEstimatedBytes();
+        return bytes1 > bytes2 ? -1 : bytes1 == bytes2 ? 0 : 1;
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public int getSamplingInterval() {
+    return samplingInterval;
+  }
+
+  @Override
+  public String[] getTopSites() {
+    List<AllocationSite> sorted = getSites();
+    List<String> top = new ArrayList<String>();
+    for (AllocationSite site : sorted.subList(0, Math.min(TOP_SITES, sorted.size()))) {
+      if (site.getSamples() > 0) {
+        top.add(site.toString());
+      }
+    }
+    return top.toArray(new String[top.size()]);
+  }
+
+  @Override
+  public long getEstimatedBytes() {
+    long bytes = 0;
+    for (AllocationSite site : sites) {
+      if (site == null) {
+        break;
+      }
+      bytes += site.getEstimatedBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public void reset() {
+    for (AllocationSite site : sites) {
+      if (site == null) {
+        break;
+      }
+      site.reset();
+    }
+  }
+
+  /**
+   * The number of allocations of a thread until its next sample. Rewritten methods keep the
+   * countdown of their thread in a local variable.
+   */
+  public static final class Countdown {
+
+    int remaining;
+    private int seed;
+
+    Countdown(long threadId, int interval) {
+      this.seed = (int) (threadId * 0x9E3779B9L) | 1;
+      this.remaining = next(interval);
+    }
+
+    /**
+     * @return a random distance to the next sample, between 1 and {@code 2 * interval - 1}
+     */
+    int next(int interval) {
+      if (interval <= 1) {
+        return 1;
+      }
+      // xorshift
+      seed ^= seed << 13;
+      seed ^= seed >>> 17;
+      seed ^= seed << 5;
+      return 1 + (seed >>> 1) % (2 * interval - 1);
+    }
+  }
+}
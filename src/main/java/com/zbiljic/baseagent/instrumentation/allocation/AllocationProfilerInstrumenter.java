@@ -0,0 +1,25 @@
+package com.zbiljic.baseagent.instrumentation.allocation;
+
+import com.zbiljic.baseagent.BaseAgent;
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.agent.builder.AgentBuilder;
+
+import static com.zbiljic.baseagent.instrument.ConfigurationClassNameMatcher.configurationIncluded;
+import static net.bytebuddy.matcher.ElementMatchers.any;
+
+/**
+ * Samples the allocations in the types explicitly included by
+ * <code>baseagent.instrument.include</code> with the {@link AllocationProfiler}. Added by the agent
+ * when <code>baseagent.allocation.active</code> is set.
+ */
+public class AllocationProfilerInstrumenter implements Instrumenter {
+
+  @Override
+  public AgentBuilder instrument(AgentBuilder agentBuilder) {
+    AllocationProfiler.start(BaseAgent.getConfiguration());
+    return Registry.type(configurationIncluded())
+      .visit(new AllocationSampling().on(any()))
+      .register(agentBuilder);
+  }
+}
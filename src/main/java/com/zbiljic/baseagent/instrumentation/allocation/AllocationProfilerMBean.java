@@ -0,0 +1,21 @@
+package com.zbiljic.baseagent.instrumentation.allocation;
+
+/**
+ * The allocation sites sampled by the {@link AllocationProfiler}.
+ */
+public interface AllocationProfilerMBean {
+
+  int getSamplingInterval();
+
+  /**
+   * @return the allocation sites with the most estimated bytes, in descending order
+   */
+  String[] getTopSites();
+
+  /**
+   * @return the estimated bytes allocated at all sites
+   */
+  long getEstimatedBytes();
+
+  void reset();
+}
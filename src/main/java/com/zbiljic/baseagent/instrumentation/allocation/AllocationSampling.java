@@ -0,0 +1,226 @@
+package com.zbiljic.baseagent.instrumentation.allocation;
+
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDefinition;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.ClassReader;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.jar.asm.commons.LocalVariablesSorter;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites the {@code NEW}, {@code NEWARRAY} and {@code ANEWARRAY} instructions of the visited
+ * methods, so that every allocation calls the {@link AllocationProfiler} with the constant id of its
+ * {@link AllocationSite}.
+ * <p>
+ * The call is inserted after the allocating instruction: objects are reported before their
+ * constructor runs, arrays after they were created, together with their length. Inserting the call
+ * in front of a {@code NEW} instruction would move the label stack map frames use to refer to the
+ * uninitialized object. The {@link AllocationProfiler.Countdown} of the thread is kept in an
+ * additional local variable, which is {@code null} until the first allocation of an invocation, so
+ * that only that allocation looks it up. As the calls neither branch nor change the types of the
+ * other local variables, the existing stack map frames stay valid.
+ * <p>
+ * The size of instances is estimated from the fields described by the type pool,
+ * multi-dimensional arrays are not sampled.
+ */
+public class AllocationSampling implements AsmVisitorWrapper.ForDeclaredMethods.MethodVisitorWrapper {
+
+  private static Logger logger = Logger.getLogger(AllocationSampling.class.getName());
+
+  private static final String PROFILER = Type.getInternalName(AllocationProfiler.class);
+  private static final Type COUNTDOWN = Type.getType(AllocationProfiler.Countdown.class);
+  private static final String SAMPLE = "(" + COUNTDOWN.getDescriptor() + "I)" + COUNTDOWN.getDescriptor();
+  private static final String SAMPLE_ARRAY = "(I" + COUNTDOWN.getDescriptor() + "I)" + COUNTDOWN.getDescriptor();
+  // the duplicated array, its length, the countdown and the id of the site
+  private static final int EXTRA_STACK = 3;
+
+  private final ConcurrentMap<String, Integer> instanceSizes = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * Rewrites the allocations of the matched methods. The local variables of the methods are
+   * renumbered, which requires expanded stack map frames.
+   */
+  public AsmVisitorWrapper.ForDeclaredMethods on(ElementMatcher<? super MethodDescription> matcher) {
+    return new AsmVisitorWrapper.ForDeclaredMethods()
+      .readerFlags(ClassReader.EXPAND_FRAMES)
+      .method(matcher, this);
+  }
+
+  @Override
+  public MethodVisitor wrap(final TypeDescription instrumentedType,
+                            final MethodDescription instrumentedMethod,
+                            MethodVisitor methodVisitor,
+                            Implementation.Context implementationContext,
+                            final TypePool typePool,
+                            int writerFlags,
+                            int readerFlags) {
+    return new LocalVariablesSorter(Opcodes.ASM6, instrumentedMethod.isStatic() ? Opcodes.ACC_STATIC : 0,
+      instrumentedMethod.getDescriptor(), methodVisitor) {
+
+      private int countdown;
+      private int line = -1;
+      private boolean rewritten;
+
+      @Override
+      public void visitCode() {
+        super.visitCode();
+        countdown = newLocal(COUNTDOWN);
+        // the variable is not renumbered, so it is accessed through the next visitor
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitVarInsn(Opcodes.ASTORE, countdown);
+      }
+
+      @Override
+      public void visitLineNumber(int line, Label start) {
+        this.line = line;
+        super.visitLineNumber(line, start);
+      }
+
+      @Override
+      public void visitTypeInsn(int opcode, String type) {
+        super.visitTypeInsn(opcode, type);
+        if (opcode == Opcodes.NEW) {
+          final int site = AllocationProfiler.register(location(), Type.getObjectType(type).getClassName(), false,
+            getInstanceSize(type, typePool));
+          mv.visitVarInsn(Opcodes.ALOAD, countdown);
+          push(site);
+          mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, "sample", SAMPLE, false);
+          mv.visitVarInsn(Opcodes.ASTORE, countdown);
+          rewritten = true;
+        } else if (opcode == Opcodes.ANEWARRAY) {
+          sampleArray(Type.getObjectType(type).getClassName() + "[]", AllocationSite.REFERENCE_SIZE);
+        }
+      }
+
+      @Override
+      public void visitIntInsn(int opcode, int operand) {
+        super.visitIntInsn(opcode, operand);
+        if (opcode == Opcodes.NEWARRAY) {
+          final Type elementType = getPrimitiveType(operand);
+          if (elementType != null) {
+            sampleArray(elementType.getClassName() + "[]", getPrimitiveSize(elementType));
+          }
+        }
+      }
+
+      private void sampleArray(String type, int elementSize) {
+        final int site = AllocationProfiler.register(location(), type, true, elementSize);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitInsn(Opcodes.ARRAYLENGTH);
+        mv.visitVarInsn(Opcodes.ALOAD, countdown);
+        push(site);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, "sampleArray", SAMPLE_ARRAY, false);
+        mv.visitVarInsn(Opcodes.ASTORE, countdown);
+        rewritten = true;
+      }
+
+      private void push(int value) {
+        if (value <= Short.MAX_VALUE) {
+          mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+          mv.visitLdcInsn(value);
+        }
+      }
+
+      private String location() {
+        final String method = instrumentedType.getName() + '.' + instrumentedMethod.getInternalName();
+        return line > 0 ? method + ':' + line : method;
+      }
+
+      @Override
+      public void visitMaxs(int maxStack, int maxLocals) {
+        super.visitMaxs(rewritten ? maxStack + EXTRA_STACK : maxStack, maxLocals);
+      }
+    };
+  }
+
+  /**
+   * Estimates the size of instances of the given type, assuming a 64 bit JVM with compressed
+   * references: the object header plus the instance fields of the type and its super classes,
+   * aligned to 8 bytes. Types the pool cannot describe are assumed to have no fields.
+   */
+  int getInstanceSize(String internalName, TypePool typePool) {
+    Integer size = instanceSizes.get(internalName);
+    if (size == null) {
+      size = (int) AllocationSite.align(AllocationSite.OBJECT_HEADER_SIZE + getFieldsSize(internalName, typePool));
+      instanceSizes.put(internalName, size);
+    }
+    return size;
+  }
+
+  private static long getFieldsSize(String internalName, TypePool typePool) {
+    long size = 0;
+    try {
+      final TypePool.Resolution resolution = typePool.describe(internalName.replace('/', '.'));
+      if (!resolution.isResolved()) {
+        return 0;
+      }
+      for (TypeDefinition type = resolution.resolve(); type != null; type = type.getSuperClass()) {
+        for (FieldDescription field : type.getDeclaredFields()) {
+          if (!field.isStatic()) {
+            final TypeDescription fieldType = field.getType().asErasure();
+            size += fieldType.isPrimitive()
+              ? getPrimitiveSize(Type.getType(fieldType.getDescriptor()))
+              : AllocationSite.REFERENCE_SIZE;
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      // for example, if a super class cannot be resolved
+      logger.log(Level.FINE, "Failed to estimate the size of " + internalName, e);
+    }
+    return size;
+  }
+
+  private static Type getPrimitiveType(int operand) {
+    switch (operand) {
+      case Opcodes.T_BOOLEAN:
+        return Type.BOOLEAN_TYPE;
+      case Opcodes.T_CHAR:
+        return Type.CHAR_TYPE;
+      case Opcodes.T_FLOAT:
+        return Type.FLOAT_TYPE;
+      case Opcodes.T_DOUBLE:
+        return Type.DOUBLE_TYPE;
+      case Opcodes.T_BYTE:
+        return Type.BYTE_TYPE;
+      case Opcodes.T_SHORT:
+        return Type.SHORT_TYPE;
+      case Opcodes.T_INT:
+        return Type.INT_TYPE;
+      case Opcodes.T_LONG:
+        return Type.LONG_TYPE;
+      default:
+        return null;
+    }
+  }
+
+  private static int getPrimitiveSize(Type type) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+      case Type.BYTE:
+        return 1;
+      case Type.CHAR:
+      case Type.SHORT:
+        return 2;
+      case Type.LONG:
+      case Type.DOUBLE:
+        return 8;
+      default:
+        return 4;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.zbiljic.baseagent.instrumentation.allocation;
+
+import com.zbiljic.baseagent.util.StripedCounter;
+
+/**
+ * The sampled allocations of a single allocation site, that is of a type at a line of a method.
+ * Every sample stands for as many allocations as the sampling interval it was taken with, so that
+ * the estimates stay unbiased when the interval changes.
+ */
+public final class AllocationSite {
+
+  static final int OBJECT_HEADER_SIZE = 12;
+  static final int ARRAY_HEADER_SIZE = 16;
+  static final int REFERENCE_SIZE = 4;
+
+  private final int id;
+  private final String location;
+  private final String type;
+  private final boolean array;
+  private final int size;
+  private final StripedCounter samples = new StripedCounter();
+  private final StripedCounter allocations = new StripedCounter();
+  private final StripedCounter bytes = new StripedCounter();
+
+  /**
+   * @param size the estimated size of instances of the type, or the size of the elements of arrays
+   */
+  AllocationSite(int id, String location, String type, boolean array, int size) {
+    this.id = id;
+    this.location = location;
+    this.type = type;
+    this.array = array;
+    this.size = size;
+  }
+
+  void record(int interval, int length) {
+    samples.increment();
+    allocations.add(interval);
+    bytes.add((long) interval * getSize(length));
+  }
+
+  /**
+   * Estimates the size of an allocation, assuming a 64 bit JVM with compressed references.
+   *
+   * @param length the length of the allocated array, ignored for other types
+   */
+  long getSize(int length) {
+    return array ? align(ARRAY_HEADER_SIZE + (long) Math.max(0, length) * size) : size;
+  }
+
+  static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  /**
+   * @return the method and line of the allocation, for example {@code com.example.Foo.bar:42}
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * @return the allocated type, for example {@code java.lang.String} or {@code int[]}
+   */
+  public String getType() {
+    return type;
+  }
+
+  public long getSamples() {
+    return samples.sum();
+  }
+
+  public long getEstimatedAllocations() {
+    return allocations.sum();
+  }
+
+  public long getEstimatedBytes() {
+    return bytes.sum();
+  }
+
+  public void reset() {
+    samples.reset();
+    allocations.reset();
+    bytes.reset();
+  }
+
+  @Override
+  public String toString() {
+    return location + " new " + type
+      + "{samples=" + getSamples()
+      + ", allocations=" + getEstimatedAllocations()
+      + ", bytes=" + getEstimatedBytes() + '}';
+  }
+}
@@ -0,0 +1,65 @@
+package com.zbiljic.baseagent.instrumentation.executor;
+
+import net.bytebuddy.asm.Advice;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The advice inlined into the executors instrumented by the {@link ExecutorInstrumenter}. As the
+ * executors are loaded by the bootstrap class loader, the advice may only call the public methods of
+ * the {@link ExecutorTimers} injected into it. Failures of the advice leave the task unchanged.
+ */
+public class ExecutorAdvice {
+
+  static class WrapRunnable {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    static void enter(@Advice.This Object executor,
+                      @Advice.Argument(value = 0, readOnly = false) Runnable task) {
+      task = ExecutorTimers.wrap(executor, task);
+    }
+  }
+
+  static class WrapCallable {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    static void enter(@Advice.This Object executor,
+                      @Advice.Argument(value = 0, readOnly = false) Callable<?> task) {
+      task = ExecutorTimers.wrap(executor, task);
+    }
+  }
+
+  /**
+   * Lets {@code remove(Runnable)} find the wrapper of the task in the queue.
+   */
+  static class MatchRunnable {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    static void enter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+      task = ExecutorTimers.matching(task);
+    }
+  }
+
+  /**
+   * Passes the submitted task instead of its wrapper to the rejected execution handler.
+   */
+  static class UnwrapRunnable {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    static void enter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+      task = ExecutorTimers.unwrap(task);
+    }
+  }
+
+  /**
+   * Returns the submitted tasks instead of their wrappers from {@code shutdownNow()}.
+   */
+  static class UnwrapTasks {
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    static void exit(@Advice.Return List<Runnable> tasks) {
+      ExecutorTimers.unwrap(tasks);
+    }
+  }
+}
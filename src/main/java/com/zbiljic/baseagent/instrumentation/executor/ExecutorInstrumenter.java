@@ -0,0 +1,139 @@
+package com.zbiljic.baseagent.instrumentation.executor;
+
+import com.zbiljic.baseagent.instrumentation.BootstrapInjector;
+import com.zbiljic.baseagent.instrumentation.NamedTypesInstrumenter;
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.pool.TypePool;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.returns;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * Measures how long the tasks of thread pools wait in the queue and how long they run, per pool.
+ * Added by the agent when <code>baseagent.executor.active</code> is set.
+ * <p>
+ * Tasks submitted to a {@link java.util.concurrent.ThreadPoolExecutor} or a
+ * {@code ForkJoinPool} are wrapped by the {@link ExecutorTimers}, which are injected into the
+ * bootstrap class loader together with the classes they refer to, see {@link #HELPERS}. The
+ * executor hands the submitted tasks instead of the wrappers to {@code beforeExecute},
+ * {@code afterExecute}, {@code remove}, the rejected execution handler and the caller of
+ * {@code shutdownNow()}; only {@code getQueue()} exposes the wrappers. Scheduled tasks and
+ * {@code ForkJoinTask}s are not measured. The timings are available from the
+ * {@link ExecutorStatistics} MBean.
+ */
+public class ExecutorInstrumenter implements NamedTypesInstrumenter {
+
+  static final String THREAD_POOL_EXECUTOR = "java.util.concurrent.ThreadPoolExecutor";
+  static final String FORK_JOIN_POOL = "java.util.concurrent.ForkJoinPool";
+
+  /**
+   * The classes injected into the bootstrap class loader. Class literals of these classes must not
+   * be used before they are injected, as the agent's class loader would load its own copy.
+   */
+  static final List<String> HELPERS = Arrays.asList(
+    "com.zbiljic.baseagent.util.StripedCounter",
+    "com.zbiljic.baseagent.util.LatencyHistogram",
+    "com.zbiljic.baseagent.util.WeakConcurrentMap",
+    "com.zbiljic.baseagent.util.WeakConcurrentMap$WeakKey",
+    "com.zbiljic.baseagent.util.WeakConcurrentMap$LookupKey",
+    "com.zbiljic.baseagent.instrumentation.executor.ExecutorTimer",
+    "com.zbiljic.baseagent.instrumentation.executor.ExecutorTimers",
+    "com.zbiljic.baseagent.instrumentation.executor.ExecutorTimers$TimedRunnable",
+    "com.zbiljic.baseagent.instrumentation.executor.ExecutorTimers$TimedCallable");
+
+  private static final String EXECUTOR_TIMERS = "com.zbiljic.baseagent.instrumentation.executor.ExecutorTimers";
+
+  @Override
+  public Collection<String> getTypeNames() {
+    return Arrays.asList(THREAD_POOL_EXECUTOR, FORK_JOIN_POOL);
+  }
+
+  @Override
+  public AgentBuilder instrument(AgentBuilder agentBuilder) {
+    final Instrumentation instrumentation = ByteBuddyAgent.getInstrumentation();
+    final Class<?> executorTimers;
+    try {
+      BootstrapInjector.inject(instrumentation, ExecutorInstrumenter.class.getClassLoader(), HELPERS);
+      executorTimers = Class.forName(EXECUTOR_TIMERS, false, null);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to inject the executor helpers", e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Failed to inject the executor helpers", e);
+    }
+    ExecutorStatistics.registerMBean();
+
+    // the instrumented executors are in java.base, which must read the unnamed module of the helpers
+    agentBuilder = agentBuilder.assureReadEdgeTo(instrumentation, executorTimers);
+    agentBuilder = Registry.type(named(THREAD_POOL_EXECUTOR))
+      .visit(new AsmVisitorWrapper.ForDeclaredMethods()
+        .method(named("execute").and(takesArguments(Runnable.class)), Advice.to(ExecutorAdvice.WrapRunnable.class))
+        .method(named("remove").and(takesArguments(Runnable.class)), Advice.to(ExecutorAdvice.MatchRunnable.class))
+        .method(named("reject").and(takesArguments(Runnable.class)), Advice.to(ExecutorAdvice.UnwrapRunnable.class))
+        .method(named("shutdownNow").and(takesArguments(0)).and(returns(List.class)),
+          Advice.to(ExecutorAdvice.UnwrapTasks.class))
+        .method(named("runWorker"), new UnwrappingHooks()))
+      .register(agentBuilder);
+    return Registry.type(named(FORK_JOIN_POOL))
+      .visit(new AsmVisitorWrapper.ForDeclaredMethods()
+        .method(named("execute").or(named("submit")).and(takesArguments(1)).and(takesArgument(0, Runnable.class)),
+          Advice.to(ExecutorAdvice.WrapRunnable.class))
+        .method(named("submit").and(takesArguments(1)).and(takesArgument(0, Callable.class)),
+          Advice.to(ExecutorAdvice.WrapCallable.class)))
+      .register(agentBuilder);
+  }
+
+  /**
+   * Unwraps the task {@code ThreadPoolExecutor.runWorker} passes to {@code beforeExecute} and
+   * {@code afterExecute}, which subclasses often cast to a {@link java.util.concurrent.Future}.
+   * The task is the last and the second to last argument on the operand stack, respectively.
+   */
+  static class UnwrappingHooks implements AsmVisitorWrapper.ForDeclaredMethods.MethodVisitorWrapper {
+
+    private static final String OWNER = THREAD_POOL_EXECUTOR.replace('.', '/');
+    private static final String HELPER = EXECUTOR_TIMERS.replace('.', '/');
+    private static final String UNWRAP = "(Ljava/lang/Runnable;)Ljava/lang/Runnable;";
+
+    @Override
+    public MethodVisitor wrap(TypeDescription instrumentedType,
+                              MethodDescription instrumentedMethod,
+                              MethodVisitor methodVisitor,
+                              Implementation.Context implementationContext,
+                              TypePool typePool,
+                              int writerFlags,
+                              int readerFlags) {
+      return new MethodVisitor(Opcodes.ASM6, methodVisitor) {
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+          if (opcode == Opcodes.INVOKEVIRTUAL && owner.equals(OWNER)) {
+            if (name.equals("beforeExecute") && descriptor.equals("(Ljava/lang/Thread;Ljava/lang/Runnable;)V")) {
+              super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, "unwrap", UNWRAP, false);
+            } else if (name.equals("afterExecute") && descriptor.equals("(Ljava/lang/Runnable;Ljava/lang/Throwable;)V")) {
+              super.visitInsn(Opcodes.SWAP);
+              super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, "unwrap", UNWRAP, false);
+              super.visitInsn(Opcodes.SWAP);
+            }
+          }
+          super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.zbiljic.baseagent.instrumentation.executor;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exposes the {@link ExecutorTimers} as an MBean in the {@value #DOMAIN} domain. Unlike the timers,
+ * this class stays in the class loader of the agent.
+ */
+public final class ExecutorStatistics implements ExecutorStatisticsMBean {
+
+  private static Logger logger = Logger.getLogger(ExecutorStatistics.class.getName());
+
+  private static final String DOMAIN = "com.zbiljic.baseagent";
+  private static final String NAME = DOMAIN + ":type=ExecutorStatistics";
+
+  /**
+   * Registers the statistics at the platform MBean server, unless they are already registered.
+   */
+  static void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new ExecutorStatistics(), new ObjectName(NAME));
+    } catch (InstanceAlreadyExistsException e) {
+      logger.log(Level.FINE, "MBean {0} is already registered", NAME);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Failed to register MBean " + NAME, e);
+    }
+  }
+
+  @Override
+  public String[] getPools() {
+    List<ExecutorTimer> timers = ExecutorTimers.getTimers();
+    String[] pools = new String[timers.size()];
+    for (int i = 0; i < pools.length; i++) {
+      pools[i] = timers.get(i).toString();
+    }
+    return pools;
+  }
+
+  @Override
+  public long getTasks() {
+    long tasks = 0;
+    for (ExecutorTimer timer : ExecutorTimers.getTimers()) {
+      tasks += timer.getTasks();
+    }
+    return tasks;
+  }
+
+  @Override
+  public void reset() {
+    for (ExecutorTimer timer : ExecutorTimers.getTimers()) {
+      timer.reset();
+    }
+  }
+}
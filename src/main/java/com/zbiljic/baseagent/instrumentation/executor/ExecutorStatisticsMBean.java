@@ -0,0 +1,20 @@
+package com.zbiljic.baseagent.instrumentation.executor;
+
+/**
+ * The queueing and run times of the tasks of all executors instrumented by the
+ * {@link ExecutorInstrumenter}.
+ */
+public interface ExecutorStatisticsMBean {
+
+  /**
+   * @return a summary of every executor which ran tasks and was not garbage collected
+   */
+  String[] getPools();
+
+  /**
+   * @return the number of tasks which ran in all of these executors
+   */
+  long getTasks();
+
+  void reset();
+}
@@ -0,0 +1,111 @@
+package com.zbiljic.baseagent.instrumentation.executor;
+
+import com.zbiljic.baseagent.util.LatencyHistogram;
+import com.zbiljic.baseagent.util.StripedCounter;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queueing and run times of the tasks of a single executor. Recording neither locks nor
+ * allocates. The executor is only weakly referenced.
+ */
+public final class ExecutorTimer {
+
+  private final String pool;
+  private final WeakReference<Object> executor;
+  private final LatencyHistogram waitLatency = new LatencyHistogram();
+  private final LatencyHistogram runLatency = new LatencyHistogram();
+  private final StripedCounter errors = new StripedCounter();
+
+  ExecutorTimer(Object executor) {
+    this.pool = executor.getClass().getName() + '@' + Integer.toHexString(System.identityHashCode(executor));
+    this.executor = new WeakReference<Object>(executor);
+  }
+
+  void record(long waitNanos, long runNanos, boolean error) {
+    waitLatency.record(waitNanos);
+    runLatency.record(runNanos);
+    if (error) {
+      errors.increment();
+    }
+  }
+
+  /**
+   * @return the class and identity hash code of the executor
+   */
+  public String getPool() {
+    return pool;
+  }
+
+  /**
+   * @return <code>false</code>, if the executor was garbage collected
+   */
+  public boolean isActive() {
+    return executor.get() != null;
+  }
+
+  /**
+   * @return the number of tasks which ran, including the ones which threw
+   */
+  public long getTasks() {
+    return runLatency.getCount();
+  }
+
+  /**
+   * @return the number of tasks which threw
+   */
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  /**
+   * Returns an upper bound of the given percentile of the time tasks waited in the queue, from
+   * their submission until they started to run.
+   *
+   * @param percentile the percentile, between {@code 0} and {@code 100}
+   * @return the percentile in nanoseconds
+   */
+  public long getWaitPercentileNanos(double percentile) {
+    return waitLatency.getPercentile(percentile);
+  }
+
+  /**
+   * Returns an upper bound of the given percentile of the time tasks ran.
+   *
+   * @param percentile the percentile, between {@code 0} and {@code 100}
+   * @return the percentile in nanoseconds
+   */
+  public long getRunPercentileNanos(double percentile) {
+    return runLatency.getPercentile(percentile);
+  }
+
+  public long getWaitMaxNanos() {
+    return waitLatency.getMax();
+  }
+
+  public long getRunMaxNanos() {
+    return runLatency.getMax();
+  }
+
+  public void reset() {
+    waitLatency.reset();
+    runLatency.reset();
+    errors.reset();
+  }
+
+  private static double micros(long nanos) {
+    return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return pool + "{tasks=" + getTasks()
+      + ", errors=" + getErrors()
+      + ", waitP50=" + micros(getWaitPercentileNanos(50)) + "us"
+      + ", waitP99=" + micros(getWaitPercentileNanos(99)) + "us"
+      + ", runP50=" + micros(getRunPercentileNanos(50)) + "us"
+      + ", runP99=" + micros(getRunPercentileNanos(99)) + "us"
+      + '}';
+  }
+}
@@ -0,0 +1,196 @@
+package com.zbiljic.baseagent.instrumentation.executor;
+
+import com.zbiljic.baseagent.util.WeakConcurrentMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.Callable;
+
+/**
+ * Wraps the tasks submitted to instrumented executors, so that the time they wait in the queue and
+ * the time they run are recorded in the {@link ExecutorTimer} of their executor.
+ * <p>
+ * This class is called by advice inlined into classes of the JDK, and is therefore injected into
+ * the bootstrap class loader by the {@link ExecutorInstrumenter}, together with the classes it
+ * refers to.
+ */
+public final class ExecutorTimers {
+
+  private static final WeakConcurrentMap<Object, ExecutorTimer> timersByExecutor =
+    new WeakConcurrentMap<Object, ExecutorTimer>();
+
+  // not available before Java 7
+  private static final Class<?> FORK_JOIN_TASK = forkJoinTask();
+
+  private ExecutorTimers() { /* No instance methods */ }
+
+  /**
+   * Called by instrumented executors when a task is submitted.
+   *
+   * @return the task to submit instead
+   */
+  public static Runnable wrap(Object executor, Runnable task) {
+    // fork join tasks are scheduled by the pool itself and are not wrapped
+    if (task == null || task instanceof TimedRunnable
+      || FORK_JOIN_TASK != null && FORK_JOIN_TASK.isInstance(task)) {
+      return task;
+    }
+    return new TimedRunnable(getTimer(executor), task);
+  }
+
+  /**
+   * Called by instrumented executors when a task is submitted.
+   *
+   * @return the task to submit instead
+   */
+  public static <T> Callable<T> wrap(Object executor, Callable<T> task) {
+    if (task == null || task instanceof TimedCallable) {
+      return task;
+    }
+    return new TimedCallable<T>(getTimer(executor), task);
+  }
+
+  /**
+   * @return the task wrapped by {@link #wrap(Object, Runnable)}, or the given task if it is not
+   * wrapped
+   */
+  public static Runnable unwrap(Runnable task) {
+    return task instanceof TimedRunnable ? ((TimedRunnable) task).task : task;
+  }
+
+  /**
+   * Replaces the wrapped tasks in the given list, for example the tasks returned by
+   * {@code shutdownNow()}, by the tasks which were submitted.
+   */
+  public static void unwrap(List<Runnable> tasks) {
+    if (tasks == null) {
+      return;
+    }
+    for (ListIterator<Runnable> iterator = tasks.listIterator(); iterator.hasNext(); ) {
+      final Runnable task = iterator.next();
+      if (task instanceof TimedRunnable) {
+        iterator.set(((TimedRunnable) task).task);
+      }
+    }
+  }
+
+  /**
+   * Returns an object which is equal to the wrapper of the given task, and to the task itself, so
+   * that a submitted task can still be removed from the queue of its executor.
+   */
+  public static Runnable matching(Runnable task) {
+    return task == null || task instanceof TimedRunnable ? task : new TimedRunnable(null, task);
+  }
+
+  /**
+   * @return the timer of the given executor, which is created if necessary
+   */
+  public static ExecutorTimer getTimer(Object executor) {
+    ExecutorTimer timer = timersByExecutor.get(executor);
+    if (timer == null) {
+      final ExecutorTimer newTimer = new ExecutorTimer(executor);
+      timer = timersByExecutor.putIfAbsent(executor, newTimer);
+      if (timer == null) {
+        timer = newTimer;
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * Returns the timers of the executors which were not garbage collected. The timers of collected
+   * executors are removed with their entries, on the next submission to a new executor at the latest.
+   *
+   * @return the timers of the executors which were not garbage collected, in no particular order
+   */
+  public static List<ExecutorTimer> getTimers() {
+    List<ExecutorTimer> active = new ArrayList<ExecutorTimer>();
+    for (ExecutorTimer timer : timersByExecutor.values()) {
+      if (timer.isActive()) {
+        active.add(timer);
+      }
+    }
+    return active;
+  }
+
+  private static Class<?> forkJoinTask() {
+    try {
+      return Class.forName("java.util.concurrent.ForkJoinTask", false, null);
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  static final class TimedRunnable implements Runnable {
+
+    private final ExecutorTimer timer;
+    private final Runnable task;
+    private final long submittedNanos;
+
+    TimedRunnable(ExecutorTimer timer, Runnable task) {
+      this.timer = timer;
+      this.task = task;
+      this.submittedNanos = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+      final long startNanos = System.nanoTime();
+      boolean error = true;
+      try {
+        task.run();
+        error = false;
+      } finally {
+        timer.record(startNanos - submittedNanos, System.nanoTime() - startNanos, error);
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other == this || other == task
+        || other instanceof TimedRunnable && ((TimedRunnable) other).task == task;
+    }
+
+    @Override
+    public int hashCode() {
+      return task.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  static final class TimedCallable<T> implements Callable<T> {
+
+    private final ExecutorTimer timer;
+    private final Callable<T> task;
+    private final long submittedNanos;
+
+    TimedCallable(ExecutorTimer timer, Callable<T> task) {
+      this.timer = timer;
+      this.task = task;
+      this.submittedNanos = System.nanoTime();
+    }
+
+    @Override
+    public T call() throws Exception {
+      final long startNanos = System.nanoTime();
+      boolean error = true;
+      try {
+        final T result = task.call();
+        error = false;
+        return result;
+      } finally {
+        timer.record(startNanos - submittedNanos, System.nanoTime() - startNanos, error);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+}
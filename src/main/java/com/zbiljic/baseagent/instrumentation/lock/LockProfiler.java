@@ -0,0 +1,367 @@
+package com.zbiljic.baseagent.instrumentation.lock;
+
+import com.zbiljic.baseagent.instrument.TransformationCache;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.implementation.MethodCall;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Measures the time threads wait for the locks acquired at the sites rewritten by the
+ * {@link LockTiming}, per site and class of the lock.
+ * <p>
+ * Only contended acquisitions are timed, so that an uncontended one costs no more than a check:
+ * <ul>
+ * <li><code>ReentrantLock</code>s and the locks of a <code>ReentrantReadWriteLock</code> are tried
+ * first, with a timeout of zero, which honors the fairness of the lock. Only if that fails the
+ * original acquisition is timed.</li>
+ * <li>Monitors cannot be tried, so the lock bits of the object header are read instead, on HotSpot
+ * JVMs only. They are read with <code>sun.misc.Unsafe</code>, which is looked up reflectively and
+ * called by a generated {@link MarkWord}, so that reading them neither boxes nor allocates. The
+ * acquisition is timed if the monitor is held by another thread, or was inflated by earlier
+ * contention. As an inflated monitor is not necessarily held, acquisitions of inflated monitors are
+ * only counted as contended if they took at least a microsecond. Monitors whose bias is revoked are
+ * not timed.</li>
+ * </ul>
+ * The site of a contended acquisition is looked up by the id of its location and the class of the
+ * lock, so that recording allocates nothing once the site exists.
+ */
+public final class LockProfiler implements LockProfilerMBean {
+
+  private static Logger logger = Logger.getLogger(LockProfiler.class.getName());
+
+  private static final String NAME = "com.zbiljic.baseagent:type=LockProfiler";
+  static final int TOP_SITES = 50;
+
+  // the two lowest bits of the mark word, the first word of the object header
+  private static final long LOCK_BITS = 3;
+  private static final long UNLOCKED = 1;
+  private static final long INFLATED = 2;
+  private static final long INFLATED_MIN_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+  // set in the start of an acquisition of an inflated monitor
+  private static final long INFLATED_START = 1;
+  private static final MarkWord MARK_WORD = newMarkWord();
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final Map<String, Integer> locationIds = new HashMap<String, Integer>();
+  // grown geometrically, the slots after the last location are null
+  private static volatile Location[] locations = new Location[INITIAL_CAPACITY];
+  private static final List<LockSite> sites = new CopyOnWriteArrayList<LockSite>();
+  private static boolean started;
+
+  private LockProfiler() {
+  }
+
+  /**
+   * Registers the MBean of the profiler once.
+   */
+  static synchronized void start() {
+    if (!started) {
+      started = true;
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new LockProfiler(), new ObjectName(NAME));
+      } catch (InstanceAlreadyExistsException e) {
+        logger.log(Level.FINE, "MBean {0} is already registered", NAME);
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Failed to register MBean " + NAME, e);
+      }
+      if (!isMonitorProbe()) {
+        logger.log(Level.INFO, "Contention of synchronized blocks is not measured on {0}",
+          System.getProperty("java.vm.name"));
+      }
+    }
+  }
+
+  /**
+   * Generates a {@link MarkWord} which calls <code>getLong</code> or <code>getInt</code> of
+   * <code>sun.misc.Unsafe</code>, depending on the size of the mark word.
+   */
+  private static MarkWord newMarkWord() {
+    final String vm = System.getProperty("java.vm.name", "");
+    if (!vm.contains("HotSpot") && !vm.contains("OpenJDK")) {
+      return null;
+    }
+    try {
+      final Class<?> unsafeType = Class.forName("sun.misc.Unsafe");
+      final Field field = unsafeType.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      final Object unsafe = field.get(null);
+      final boolean wide = ((Number) unsafeType.getMethod("addressSize").invoke(unsafe)).intValue() == 8;
+      final Method read = unsafeType.getMethod(wide ? "getLong" : "getInt", Object.class, long.class);
+      return new ByteBuddy()
+        .subclass(MarkWord.class)
+        .method(named("read"))
+        .intercept(MethodCall.invoke(read).on(unsafe).withArgument(0).with(0L))
+        .make()
+        .load(MarkWord.class.getClassLoader())
+        .getLoaded()
+        .newInstance();
+    } catch (Exception e) {
+      logger.log(Level.FINE, "Failed to access sun.misc.Unsafe", e);
+      return null;
+    }
+  }
+
+  /**
+   * @return whether the object header can be read to detect contended monitors
+   */
+  static boolean isMonitorProbe() {
+    return MARK_WORD != null;
+  }
+
+  /**
+   * Returns the id of the given location, registering it if necessary.
+   *
+   * @param location the method and line of the acquisition
+   * @return the id of the location
+   */
+  static synchronized int register(String location) {
+    // the id is written into the bytecode, but only valid in this JVM
+    TransformationCache.notCacheable();
+    Integer id = locationIds.get(location);
+    if (id == null) {
+      id = locationIds.size();
+      Location[] current = locations;
+      if (id == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[id] = new Location(location);
+      // written again, so that the new location is published even if the array was not grown
+      locations = current;
+      locationIds.put(location, id);
+    }
+    return id;
+  }
+
+  /**
+   * Called before a monitor is entered at a rewritten site.
+   *
+   * @param monitor the object whose monitor is entered
+   * @return the start of the contended acquisition, with {@value #INFLATED_START} set if the monitor
+   * is inflated, or <code>0</code> if the monitor is not contended
+   */
+  public static long beforeMonitorEnter(Object monitor) {
+    if (MARK_WORD == null || monitor == null) {
+      return 0;
+    }
+    final long lockBits = MARK_WORD.read(monitor) & LOCK_BITS;
+    if (lockBits == UNLOCKED) {
+      return 0;
+    }
+    if (lockBits == INFLATED) {
+      return start(INFLATED_START);
+    }
+    // a monitor locked by the current thread is entered again
+    if (Thread.holdsLock(monitor)) {
+      return 0;
+    }
+    return start(0);
+  }
+
+  private static long start(long inflated) {
+    final long start = System.nanoTime() & ~INFLATED_START | inflated;
+    // off by at most two nanoseconds, but never mistaken for an acquisition which is not contended
+    return start != 0 ? start : 2;
+  }
+
+  /**
+   * Called after a monitor was entered at a rewritten site.
+   *
+   * @param monitor the object whose monitor was entered
+   * @param start   the value returned by {@link #beforeMonitorEnter(Object)}
+   * @param siteId  the id of the location
+   */
+  public static void afterMonitorEnter(Object monitor, long start, int siteId) {
+    if (start != 0) {
+      final long waitNanos = System.nanoTime() - (start & ~INFLATED_START);
+      if (waitNanos >= ((start & INFLATED_START) != 0 ? INFLATED_MIN_WAIT_NANOS : 0)) {
+        record(siteId, monitor.getClass(), true, waitNanos);
+      }
+    }
+  }
+
+  /**
+   * Replaces {@link Lock#lock()} at a rewritten site.
+   */
+  public static void lock(Lock lock, int siteId) {
+    if (!isReentrantLock(lock)) {
+      lock.lock();
+      return;
+    }
+    final Thread thread = Thread.currentThread();
+    if (!thread.isInterrupted()) {
+      try {
+        if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        // interrupted after the check, which lock() would not notice
+        thread.interrupt();
+      }
+    }
+    final long start = System.nanoTime();
+    lock.lock();
+    record(siteId, lock.getClass(), false, System.nanoTime() - start);
+  }
+
+  /**
+   * Replaces {@link Lock#lockInterruptibly()} at a rewritten site.
+   */
+  public static void lockInterruptibly(Lock lock, int siteId) throws InterruptedException {
+    if (!isReentrantLock(lock)) {
+      lock.lockInterruptibly();
+      return;
+    }
+    if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+      return;
+    }
+    final long start = System.nanoTime();
+    lock.lockInterruptibly();
+    record(siteId, lock.getClass(), false, System.nanoTime() - start);
+  }
+
+  /**
+   * Other implementations, including subclasses, may not try the lock as it would be acquired.
+   */
+  private static boolean isReentrantLock(Lock lock) {
+    final Class<?> type = lock.getClass();
+    return type == ReentrantLock.class
+      || type == ReentrantReadWriteLock.ReadLock.class
+      || type == ReentrantReadWriteLock.WriteLock.class;
+  }
+
+  static void record(int siteId, Class<?> lockType, boolean monitor, long waitNanos) {
+    final Location[] current = locations;
+    if (siteId >= current.length || current[siteId] == null) {
+      return;
+    }
+    current[siteId].getSite(lockType, monitor).record(waitNanos);
+  }
+
+  /**
+   * @return all sites with contended acquisitions, with the most wait time first
+   */
+  public static List<LockSite> getSites() {
+    List<LockSite> result = new ArrayList<LockSite>(sites);
+    Collections.sort(result, new Comparator<LockSite>() {
+      @Override
+      public int compare(LockSite site1, LockSite site2) {
+        final long wait1 = site1.getWaitNanos();
+        final long wait2 = site2.getWaitNanos();
+        return wait1 > wait2 ? -1 : wait1 == wait2 ? 0 : 1;
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public boolean isMonitorProbeAvailable() {
+    return isMonitorProbe();
+  }
+
+  @Override
+  public String[] getTopSites() {
+    List<LockSite> sorted = getSites();
+    List<String> top = new ArrayList<String>();
+    for (LockSite site : sorted.subList(0, Math.min(TOP_SITES, sorted.size()))) {
+      if (site.getContentions() > 0) {
+        top.add(site.toString());
+      }
+    }
+    return top.toArray(new String[top.size()]);
+  }
+
+  @Override
+  public long getContentions() {
+    long contentions = 0;
+    for (LockSite site : sites) {
+      contentions += site.getContentions();
+    }
+    return contentions;
+  }
+
+  @Override
+  public long getWaitNanos() {
+    long waitNanos = 0;
+    for (LockSite site : sites) {
+      waitNanos += site.getWaitNanos();
+    }
+    return waitNanos;
+  }
+
+  @Override
+  public void reset() {
+    for (LockSite site : sites) {
+      site.reset();
+    }
+  }
+
+  /**
+   * The sites of a location, one per class of lock and kind of acquisition.
+   */
+  private static final class Location {
+
+    private final String location;
+    // copied on write, as a location sees only a few classes of locks
+    private volatile LockSite[] locationSites = new LockSite[0];
+
+    Location(String location) {
+      this.location = location;
+    }
+
+    LockSite getSite(Class<?> lockType, boolean monitor) {
+      final LockSite[] current = locationSites;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i].isOf(lockType, monitor)) {
+          return current[i];
+        }
+      }
+      return addSite(lockType, monitor);
+    }
+
+    private synchronized LockSite addSite(Class<?> lockType, boolean monitor) {
+      final LockSite[] current = locationSites;
+      for (LockSite site : current) {
+        if (site.isOf(lockType, monitor)) {
+          return site;
+        }
+      }
+      final LockSite site = new LockSite(location, lockType, monitor);
+      final LockSite[] grown = Arrays.copyOf(current, current.length + 1);
+      grown[current.length] = site;
+      locationSites = grown;
+      sites.add(site);
+      return site;
+    }
+  }
+
+  /**
+   * Reads the mark word, the first word of the object header. Public, as it is implemented by a class
+   * generated in another class loader.
+   */
+  public interface MarkWord {
+
+    long read(Object object);
+  }
+}
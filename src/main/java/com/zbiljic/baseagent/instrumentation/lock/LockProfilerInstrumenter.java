@@ -0,0 +1,24 @@
+package com.zbiljic.baseagent.instrumentation.lock;
+
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.agent.builder.AgentBuilder;
+
+import static com.zbiljic.baseagent.instrument.ConfigurationClassNameMatcher.configurationIncluded;
+import static net.bytebuddy.matcher.ElementMatchers.any;
+
+/**
+ * Measures the contended lock acquisitions in the types explicitly included by
+ * <code>baseagent.instrument.include</code> with the {@link LockProfiler}. Added by the agent when
+ * <code>baseagent.lock.active</code> is set.
+ */
+public class LockProfilerInstrumenter implements Instrumenter {
+
+  @Override
+  public AgentBuilder instrument(AgentBuilder agentBuilder) {
+    LockProfiler.start();
+    return Registry.type(configurationIncluded())
+      .visit(new LockTiming().on(any()))
+      .register(agentBuilder);
+  }
+}
@@ -0,0 +1,29 @@
+package com.zbiljic.baseagent.instrumentation.lock;
+
+/**
+ * The contended lock acquisitions measured by the {@link LockProfiler}.
+ */
+public interface LockProfilerMBean {
+
+  /**
+   * @return whether <code>synchronized</code> blocks are measured, which depends on the JVM
+   */
+  boolean isMonitorProbeAvailable();
+
+  /**
+   * @return the lock sites with the most wait time, in descending order
+   */
+  String[] getTopSites();
+
+  /**
+   * @return the number of contended acquisitions at all sites
+   */
+  long getContentions();
+
+  /**
+   * @return the time waited for locks at all sites, in nanoseconds
+   */
+  long getWaitNanos();
+
+  void reset();
+}
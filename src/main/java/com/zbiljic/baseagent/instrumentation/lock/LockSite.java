@@ -0,0 +1,99 @@
+package com.zbiljic.baseagent.instrumentation.lock;
+
+import com.zbiljic.baseagent.util.LatencyHistogram;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The contended acquisitions of locks of a single class at a single site, that is at a line of a
+ * method. Recording does not lock.
+ */
+public final class LockSite {
+
+  private final String location;
+  // weak, so that the site does not keep the class loader of the lock alive
+  private final WeakReference<Class<?>> lockClass;
+  private final String lockType;
+  private final boolean monitor;
+  private final LatencyHistogram waitLatency = new LatencyHistogram();
+
+  LockSite(String location, Class<?> lockClass, boolean monitor) {
+    this.location = location;
+    this.lockClass = new WeakReference<Class<?>>(lockClass);
+    this.lockType = lockClass.getName();
+    this.monitor = monitor;
+  }
+
+  /**
+   * @return <code>true</code>, if the site records the given class of locks and kind of acquisition
+   */
+  boolean isOf(Class<?> lockClass, boolean monitor) {
+    return this.monitor == monitor && this.lockClass.get() == lockClass;
+  }
+
+  void record(long waitNanos) {
+    waitLatency.record(waitNanos);
+  }
+
+  /**
+   * @return the method and line of the acquisition, for example {@code com.example.Foo.bar:42}
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * @return the class of the lock, or of the object whose monitor is entered
+   */
+  public String getLockType() {
+    return lockType;
+  }
+
+  /**
+   * @return <code>true</code>, if the site is a <code>synchronized</code> block
+   */
+  public boolean isMonitor() {
+    return monitor;
+  }
+
+  public long getContentions() {
+    return waitLatency.getCount();
+  }
+
+  public long getWaitNanos() {
+    return waitLatency.getTotal();
+  }
+
+  /**
+   * Returns an upper bound of the given percentile of the time acquisitions waited for the lock.
+   *
+   * @param percentile the percentile, between {@code 0} and {@code 100}
+   * @return the percentile in nanoseconds
+   */
+  public long getWaitPercentileNanos(double percentile) {
+    return waitLatency.getPercentile(percentile);
+  }
+
+  public long getWaitMaxNanos() {
+    return waitLatency.getMax();
+  }
+
+  public void reset() {
+    waitLatency.reset();
+  }
+
+  private static double micros(long nanos) {
+    return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return location + (monitor ? " synchronized " : " lock ") + lockType
+      + "{contentions=" + getContentions()
+      + ", wait=" + micros(getWaitNanos()) + "us"
+      + ", waitP99=" + micros(getWaitPercentileNanos(99)) + "us"
+      + ", waitMax=" + micros(getWaitMaxNanos()) + "us"
+      + '}';
+  }
+}
@@ -0,0 +1,273 @@
+package com.zbiljic.baseagent.instrumentation.lock;
+
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.ClassReader;
+import net.bytebuddy.jar.asm.Handle;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.jar.asm.commons.LocalVariablesSorter;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.pool.TypePool;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Rewrites the lock acquisitions of the visited methods, so that the {@link LockProfiler} measures
+ * the contended ones, with the constant id of their location:
+ * <ul>
+ * <li>calls of <code>lock()</code> and <code>lockInterruptibly()</code> of a <code>Lock</code>,
+ * <code>ReentrantLock</code> or the locks of a <code>ReentrantReadWriteLock</code> are replaced by
+ * static calls of the profiler</li>
+ * <li>{@code MONITORENTER} instructions, that is <code>synchronized</code> blocks, are surrounded by
+ * calls of the profiler, if it can detect contended monitors. The start of a contended acquisition is
+ * kept in an additional local variable. Synchronized methods are not measured.</li>
+ * </ul>
+ * As the calls neither branch nor change the types of the other local variables, the existing stack
+ * map frames stay valid. The exception ranges of the methods start at labels of their own, which
+ * are placed right before the original labels.
+ */
+public class LockTiming implements AsmVisitorWrapper.ForDeclaredMethods.MethodVisitorWrapper {
+
+  private static final String PROFILER = Type.getInternalName(LockProfiler.class);
+  private static final String BEFORE_MONITOR_ENTER = "(Ljava/lang/Object;)J";
+  private static final String AFTER_MONITOR_ENTER = "(Ljava/lang/Object;JI)V";
+  private static final String LOCK = "(" + Type.getDescriptor(Lock.class) + "I)V";
+  private static final Set<String> LOCK_TYPES = new HashSet<String>(Arrays.asList(
+    Type.getInternalName(Lock.class),
+    Type.getInternalName(ReentrantLock.class),
+    Type.getInternalName(ReentrantReadWriteLock.ReadLock.class),
+    Type.getInternalName(ReentrantReadWriteLock.WriteLock.class)));
+  // the twice duplicated monitor and the start, or the monitor, the start and the id of the location
+  private static final int EXTRA_STACK = 3;
+
+  /**
+   * Rewrites the lock acquisitions of the matched methods. The local variables of the methods are
+   * renumbered, which requires expanded stack map frames.
+   */
+  public AsmVisitorWrapper.ForDeclaredMethods on(ElementMatcher<? super MethodDescription> matcher) {
+    return new AsmVisitorWrapper.ForDeclaredMethods()
+      .readerFlags(ClassReader.EXPAND_FRAMES)
+      .method(matcher, this);
+  }
+
+  @Override
+  public MethodVisitor wrap(final TypeDescription instrumentedType,
+                            final MethodDescription instrumentedMethod,
+                            MethodVisitor methodVisitor,
+                            Implementation.Context implementationContext,
+                            TypePool typePool,
+                            int writerFlags,
+                            int readerFlags) {
+    final boolean monitors = LockProfiler.isMonitorProbe();
+    return new LocalVariablesSorter(Opcodes.ASM6, instrumentedMethod.isStatic() ? Opcodes.ACC_STATIC : 0,
+      instrumentedMethod.getDescriptor(), methodVisitor) {
+
+      private final Map<Label, Label> rangeStarts = new HashMap<Label, Label>();
+      private int monitorStart;
+      private int line = -1;
+      private int enteredSite = -1;
+      private boolean rewritten;
+
+      @Override
+      public void visitCode() {
+        super.visitCode();
+        if (monitors) {
+          monitorStart = newLocal(Type.LONG_TYPE);
+          // the variable is not renumbered, so it is accessed through the next visitor
+          mv.visitInsn(Opcodes.LCONST_0);
+          mv.visitVarInsn(Opcodes.LSTORE, monitorStart);
+        }
+      }
+
+      @Override
+      public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        if (monitors) {
+          Label rangeStart = rangeStarts.get(start);
+          if (rangeStart == null) {
+            rangeStart = new Label();
+            rangeStarts.put(start, rangeStart);
+          }
+          start = rangeStart;
+        }
+        super.visitTryCatchBlock(start, end, handler, type);
+      }
+
+      @Override
+      public void visitLabel(Label label) {
+        final Label rangeStart = rangeStarts.get(label);
+        if (rangeStart != null) {
+          mv.visitLabel(rangeStart);
+        }
+        afterMonitorEnter();
+        super.visitLabel(label);
+      }
+
+      @Override
+      public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        afterMonitorEnter();
+        super.visitFrame(type, nLocal, local, nStack, stack);
+      }
+
+      @Override
+      public void visitLineNumber(int line, Label start) {
+        afterMonitorEnter();
+        this.line = line;
+        super.visitLineNumber(line, start);
+      }
+
+      @Override
+      public void visitInsn(int opcode) {
+        afterMonitorEnter();
+        if (opcode != Opcodes.MONITORENTER || !monitors) {
+          super.visitInsn(opcode);
+          return;
+        }
+        // the monitor stays on the stack for the call after the MONITORENTER
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, "beforeMonitorEnter", BEFORE_MONITOR_ENTER, false);
+        mv.visitVarInsn(Opcodes.LSTORE, monitorStart);
+        super.visitInsn(opcode);
+        enteredSite = LockProfiler.register(location());
+        rewritten = true;
+      }
+
+      /**
+       * Completes the measurement of the monitor entered by the previous instruction, right after
+       * it. Only the start of an exception range may be placed in between, as javac starts the range
+       * of the handler which exits the monitor right after the {@code MONITORENTER}, and the JIT
+       * does not compile methods which might throw while holding a monitor without exiting it. The
+       * original label of the range may be a branch target, so the call is placed before it.
+       */
+      private void afterMonitorEnter() {
+        if (enteredSite >= 0) {
+          mv.visitVarInsn(Opcodes.LLOAD, monitorStart);
+          push(enteredSite);
+          mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, "afterMonitorEnter", AFTER_MONITOR_ENTER, false);
+          mv.visitInsn(Opcodes.LCONST_0);
+          mv.visitVarInsn(Opcodes.LSTORE, monitorStart);
+          enteredSite = -1;
+        }
+      }
+
+      @Override
+      public void visitIntInsn(int opcode, int operand) {
+        afterMonitorEnter();
+        super.visitIntInsn(opcode, operand);
+      }
+
+      @Override
+      public void visitVarInsn(int opcode, int var) {
+        afterMonitorEnter();
+        super.visitVarInsn(opcode, var);
+      }
+
+      @Override
+      public void visitTypeInsn(int opcode, String type) {
+        afterMonitorEnter();
+        super.visitTypeInsn(opcode, type);
+      }
+
+      @Override
+      public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        afterMonitorEnter();
+        super.visitFieldInsn(opcode, owner, name, descriptor);
+      }
+
+      @Override
+      public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethod,
+                                         Object... bootstrapMethodArguments) {
+        afterMonitorEnter();
+        super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethod, bootstrapMethodArguments);
+      }
+
+      @Override
+      public void visitJumpInsn(int opcode, Label label) {
+        afterMonitorEnter();
+        super.visitJumpInsn(opcode, label);
+      }
+
+      @Override
+      public void visitLdcInsn(Object value) {
+        afterMonitorEnter();
+        super.visitLdcInsn(value);
+      }
+
+      @Override
+      public void visitIincInsn(int var, int increment) {
+        afterMonitorEnter();
+        super.visitIincInsn(var, increment);
+      }
+
+      @Override
+      public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        afterMonitorEnter();
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+      }
+
+      @Override
+      public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        afterMonitorEnter();
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+      }
+
+      @Override
+      public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        afterMonitorEnter();
+        super.visitMultiANewArrayInsn(descriptor, numDimensions);
+      }
+
+      @Override
+      public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+        afterMonitorEnter();
+        if ((opcode == Opcodes.INVOKEINTERFACE || opcode == Opcodes.INVOKEVIRTUAL)
+          && LOCK_TYPES.contains(owner)
+          && (name.equals("lock") || name.equals("lockInterruptibly"))
+          && descriptor.equals("()V")) {
+          push(LockProfiler.register(location()));
+          mv.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, name, LOCK, false);
+          rewritten = true;
+        } else {
+          super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+      }
+
+      private void push(int value) {
+        if (value <= Short.MAX_VALUE) {
+          mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+          mv.visitLdcInsn(value);
+        }
+      }
+
+      private String location() {
+        final String method = instrumentedType.getName() + '.' + instrumentedMethod.getInternalName();
+        return line > 0 ? method + ':' + line : method;
+      }
+
+      @Override
+      public void visitMaxs(int maxStack, int maxLocals) {
+        afterMonitorEnter();
+        if (rewritten) {
+          maxStack += EXTRA_STACK;
+        } else if (monitors) {
+          // for the initialization of the start
+          maxStack = Math.max(maxStack, 2);
+        }
+        super.visitMaxs(maxStack, maxLocals);
+      }
+    };
+  }
+}
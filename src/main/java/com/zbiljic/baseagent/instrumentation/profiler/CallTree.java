@@ -0,0 +1,127 @@
+package com.zbiljic.baseagent.instrumentation.profiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The call tree aggregated from the sampled invocations of all threads. Each node accumulates the
+ * number of calls and the self time of a method on a specific call path.
+ * <p>
+ * Only accessed by the profiler thread.
+ */
+final class CallTree {
+
+  private final Node root = new Node(-1, null);
+
+  Cursor newCursor() {
+    return new Cursor();
+  }
+
+  Node getRoot() {
+    return root;
+  }
+
+  /**
+   * Writes the tree in the collapsed stack format, one line per call path with the self time in
+   * microseconds, for example {@code com.example.A.a();com.example.B.b() 1234}.
+   */
+  void writeCollapsed(Writer writer, MethodNames methodNames) throws IOException {
+    StringBuilder path = new StringBuilder();
+    for (Node child : root.children.values()) {
+      writeCollapsed(writer, methodNames, child, path);
+    }
+  }
+
+  private void writeCollapsed(Writer writer, MethodNames methodNames, Node node, StringBuilder path)
+    throws IOException {
+    final int length = path.length();
+    if (length > 0) {
+      path.append(';');
+    }
+    path.append(methodNames.getMethodName(node.methodId));
+    final long selfMicros = node.selfNanos / 1000;
+    if (selfMicros > 0) {
+      writer.append(path).append(' ').append(Long.toString(selfMicros)).append('\n');
+    }
+    for (Node child : node.children.values()) {
+      writeCollapsed(writer, methodNames, child, path);
+    }
+    path.setLength(length);
+  }
+
+  interface MethodNames {
+
+    String getMethodName(int methodId);
+  }
+
+  static final class Node {
+
+    final int methodId;
+    final Node parent;
+    final Map<Integer, Node> children = new HashMap<Integer, Node>();
+    long calls;
+    long selfNanos;
+
+    Node(int methodId, Node parent) {
+      this.methodId = methodId;
+      this.parent = parent;
+    }
+
+    Node child(int methodId) {
+      Node child = children.get(methodId);
+      if (child == null) {
+        child = new Node(methodId, this);
+        children.put(methodId, child);
+      }
+      return child;
+    }
+  }
+
+  /**
+   * The position of a thread in the tree while its events are replayed.
+   */
+  final class Cursor {
+
+    private final List<Frame> frames = new ArrayList<Frame>();
+    private int depth;
+
+    void enter(int methodId, long nanoTime) {
+      final Node parent = depth == 0 ? root : frames.get(depth - 1).node;
+      if (depth == frames.size()) {
+        frames.add(new Frame());
+      }
+      final Frame frame = frames.get(depth++);
+      frame.node = parent.child(methodId);
+      frame.start = nanoTime;
+      frame.childNanos = 0;
+    }
+
+    void exit(long nanoTime) {
+      if (depth == 0) {
+        return;
+      }
+      final Frame frame = frames.get(--depth);
+      final long elapsed = Math.max(0, nanoTime - frame.start);
+      frame.node.calls++;
+      frame.node.selfNanos += Math.max(0, elapsed - frame.childNanos);
+      if (depth > 0) {
+        frames.get(depth - 1).childNanos += elapsed;
+      }
+    }
+
+    int getDepth() {
+      return depth;
+    }
+  }
+
+  private static final class Frame {
+
+    Node node;
+    long start;
+    long childNanos;
+  }
+}
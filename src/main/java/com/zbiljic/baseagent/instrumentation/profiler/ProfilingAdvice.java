@@ -0,0 +1,55 @@
+package com.zbiljic.baseagent.instrumentation.profiler;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The advice inlined into the methods profiled by the {@link SamplingProfilerInstrumenter}. The id
+ * of the method is a constant of the instrumented method. Invocations which are not sampled only
+ * look up the {@link ThreadProfile} of the current thread and update its depth.
+ */
+public class ProfilingAdvice {
+
+  @Advice.OnMethodEnter
+  static ThreadProfile enter(@MethodId int id) {
+    return SamplingProfiler.enter(id);
+  }
+
+  @Advice.OnMethodExit(onThrowable = Throwable.class)
+  static void exit(@Advice.Enter ThreadProfile profile) {
+    if (profile != null) {
+      profile.exit();
+    }
+  }
+
+  /**
+   * Binds the id of the instrumented method.
+   */
+  @Retention(RetentionPolicy.RUNTIME)
+  @Target(ElementType.PARAMETER)
+  public @interface MethodId {
+  }
+
+  /**
+   * Resolves {@link MethodId} to the id of each instrumented method, registering the method when it
+   * is instrumented.
+   */
+  static class MethodIdMapping implements Advice.OffsetMapping {
+
+    @Override
+    public Target resolve(TypeDescription instrumentedType,
+                          MethodDescription instrumentedMethod,
+                          Assigner assigner,
+                          Context context) {
+      return Target.ForStackManipulation.of(
+        SamplingProfiler.register(instrumentedType.getName() + '.' + instrumentedMethod.getInternalName()));
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package com.zbiljic.baseagent.instrumentation.profiler;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.instrument.TransformationCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the invocations sampled by the {@link ThreadProfile}s of all profiled threads into a
+ * {@link CallTree}, and periodically writes it to a file in the collapsed stack format, which is
+ * understood by flame graph tools.
+ * <p>
+ * A daemon thread drains the buffers of the threads. It also estimates the overhead of recording
+ * the sampled invocations from the number of recorded events, and doubles the sampling interval
+ * while the overhead exceeds the budget. Once the overhead is well below the budget, the interval
+ * is lowered back to the configured one.
+ */
+public final class SamplingProfiler {
+
+  private static Logger logger = Logger.getLogger(SamplingProfiler.class.getName());
+
+  static final long DRAIN_INTERVAL_MILLIS = 100;
+  static final int MAX_SAMPLING_INTERVAL = 1 << 20;
+
+  private static final int INITIAL_METHOD_CAPACITY = 64;
+
+  private static final Map<String, Integer> methodIds = new HashMap<String, Integer>();
+  private static volatile String[] methods = new String[INITIAL_METHOD_CAPACITY];
+  // written after the method of the last id, so that the methods of all ids below it are visible
+  private static volatile int methodCount;
+
+  private static volatile SamplingProfiler instance;
+  private static final ThreadLocal<ThreadProfile> profiles = new ThreadLocal<ThreadProfile>();
+
+  private final CallTree callTree = new CallTree();
+  private final Queue<ThreadProfile> newProfiles = new ConcurrentLinkedQueue<ThreadProfile>();
+  private final List<ThreadProfile> activeProfiles = new ArrayList<ThreadProfile>();
+  private final int configuredSamplingInterval;
+  private final double overheadBudgetPercent;
+  private final int bufferSize;
+  private final File outputFile;
+  private final long flushIntervalMillis;
+  private final double nanosPerEvent;
+  private volatile int samplingInterval;
+  private volatile long drainedEvents;
+  private volatile double overheadPercent;
+  private Thread drainer;
+
+  SamplingProfiler(int samplingInterval, double overheadBudgetPercent, int bufferSize, File outputFile,
+                   long flushIntervalMillis) {
+    this.configuredSamplingInterval = Math.max(1, samplingInterval);
+    this.samplingInterval = configuredSamplingInterval;
+    this.overheadBudgetPercent = overheadBudgetPercent;
+    this.bufferSize = bufferSize;
+    this.outputFile = outputFile;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.nanosPerEvent = calibrate();
+  }
+
+  /**
+   * Starts the profiler configured by the given configuration, unless one is already running.
+   *
+   * @return the running profiler
+   */
+  static synchronized SamplingProfiler start(BaseAgentConfiguration configuration) {
+    if (instance == null) {
+      final String outputFile = configuration.getProfilerOutputFile();
+      SamplingProfiler profiler = new SamplingProfiler(
+        configuration.getProfilerSamplingInterval(),
+        configuration.getProfilerOverheadBudgetPercent(),
+        configuration.getProfilerBufferSize(),
+        outputFile == null || outputFile.isEmpty()
+          ? new File(System.getProperty("java.io.tmpdir"), "baseagent-profile.collapsed")
+          : new File(outputFile),
+        configuration.getProfilerFlushIntervalMillis());
+      profiler.startDrainer();
+      instance = profiler;
+      logger.log(Level.INFO, "Started sampling profiler, writing to {0}", profiler.outputFile);
+    }
+    return instance;
+  }
+
+  /**
+   * @return the running profiler, or {@code null}
+   */
+  public static SamplingProfiler getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns the id of the given method, assigning one if necessary.
+   *
+   * @param method the description of the method
+   * @return the id of the method
+   */
+  static synchronized int register(String method) {
+    // the id is written into the bytecode, but only valid in this JVM
+    TransformationCache.notCacheable();
+    Integer id = methodIds.get(method);
+    if (id == null) {
+      id = methodCount;
+      String[] current = methods;
+      if (id == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[id] = method;
+      methods = current;
+      methodCount = id + 1;
+      methodIds.put(method, id);
+    }
+    return id;
+  }
+
+  static String getMethod(int id) {
+    return id >= 0 && id < methodCount ? methods[id] : "unknown";
+  }
+
+  /**
+   * Called by profiled methods when they are entered.
+   *
+   * @param methodId the id of the method
+   * @return the profile of the current thread, which is passed to {@link ThreadProfile#exit()}, or
+   * {@code null} if the profiler is not running
+   */
+  public static ThreadProfile enter(int methodId) {
+    final SamplingProfiler profiler = instance;
+    if (profiler == null) {
+      return null;
+    }
+    ThreadProfile profile = profiles.get();
+    if (profile == null) {
+      profile = profiler.newProfile(Thread.currentThread());
+      profiles.set(profile);
+    }
+    profile.enter(methodId);
+    return profile;
+  }
+
+  ThreadProfile newProfile(Thread thread) {
+    ThreadProfile profile = new ThreadProfile(this, thread, bufferSize);
+    newProfiles.add(profile);
+    return profile;
+  }
+
+  CallTree getCallTree() {
+    return callTree;
+  }
+
+  /**
+   * @return the current sampling interval, which may be higher than the configured one while the
+   * overhead exceeds the budget
+   */
+  public int getSamplingInterval() {
+    return samplingInterval;
+  }
+
+  /**
+   * @return the estimated overhead of recording sampled invocations during the last drain interval,
+   * in percent of the available CPU time
+   */
+  public double getOverheadPercent() {
+    return overheadPercent;
+  }
+
+  /**
+   * @return the number of events drained so far
+   */
+  public long getDrainedEvents() {
+    return drainedEvents;
+  }
+
+  /**
+   * @return the number of samples truncated because a buffer was full, summed over the active
+   * threads
+   */
+  public synchronized long getTruncatedCalls() {
+    long truncated = 0;
+    for (ThreadProfile profile : activeProfiles) {
+      truncated += profile.getTruncatedCalls();
+    }
+    return truncated;
+  }
+
+  public File getOutputFile() {
+    return outputFile;
+  }
+
+  /**
+   * Drains the buffers of all threads into the call tree. Profiles of threads which terminated are
+   * dropped once drained.
+   *
+   * @return the number of drained events
+   */
+  synchronized int drain() {
+    for (ThreadProfile profile; (profile = newProfiles.poll()) != null; ) {
+      activeProfiles.add(profile);
+    }
+    int events = 0;
+    for (Iterator<ThreadProfile> iterator = activeProfiles.iterator(); iterator.hasNext(); ) {
+      ThreadProfile profile = iterator.next();
+      // checked before draining, so that no event written before the thread died is lost
+      final boolean alive = profile.getThread().isAlive();
+      events += profile.drain(callTreeBuilder);
+      if (!alive) {
+        iterator.remove();
+      }
+    }
+    drainedEvents += events;
+    return events;
+  }
+
+  /**
+   * Adapts the sampling interval to the overhead of the given number of events recorded during the
+   * given period.
+   */
+  void adaptSamplingInterval(int events, long periodNanos) {
+    final double overhead = 100.0 * events * nanosPerEvent
+      / ((double) periodNanos * Runtime.getRuntime().availableProcessors());
+    overheadPercent = overhead;
+    final int interval = samplingInterval;
+    if (overhead > overheadBudgetPercent && interval < MAX_SAMPLING_INTERVAL) {
+      samplingInterval = Math.min(MAX_SAMPLING_INTERVAL, interval * 2);
+      logger.log(Level.FINE, "Profiler overhead {0}% exceeds the budget, sampling interval raised to {1}",
+        new Object[]{overhead, samplingInterval});
+    } else if (overhead < overheadBudgetPercent / 4 && interval > configuredSamplingInterval) {
+      samplingInterval = Math.max(configuredSamplingInterval, interval / 2);
+    }
+  }
+
+  /**
+   * Writes the call tree to the output file. The profile is written to a temporary file first, so
+   * that readers never see a partially written profile.
+   */
+  synchronized void writeProfile() throws IOException {
+    final File directory = outputFile.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Failed to create " + directory);
+    }
+    final File temporaryFile = new File(outputFile.getPath() + ".tmp");
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+    try {
+      callTree.writeCollapsed(writer, METHOD_NAMES);
+    } finally {
+      writer.close();
+    }
+    if (!temporaryFile.renameTo(outputFile)) {
+      // renaming onto an existing file fails on some platforms
+      if (!outputFile.delete() || !temporaryFile.renameTo(outputFile)) {
+        throw new IOException("Failed to rename " + temporaryFile + " to " + outputFile);
+      }
+    }
+  }
+
+  private void startDrainer() {
+    drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drainPeriodically();
+      }
+    }, "baseagent-profiler");
+    drainer.setDaemon(true);
+    drainer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drainAndWrite();
+      }
+    }, "baseagent-profiler-shutdown"));
+  }
+
+  private void drainPeriodically() {
+    long lastDrain = System.nanoTime();
+    long lastWrite = System.currentTimeMillis();
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(DRAIN_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      final long now = System.nanoTime();
+      adaptSamplingInterval(drain(), now - lastDrain);
+      lastDrain = now;
+      if (System.currentTimeMillis() - lastWrite >= flushIntervalMillis) {
+        lastWrite = System.currentTimeMillis();
+        write();
+      }
+    }
+  }
+
+  private void drainAndWrite() {
+    drain();
+    write();
+  }
+
+  private void write() {
+    try {
+      writeProfile();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write the profile to " + outputFile, e);
+    }
+  }
+
+  /**
+   * Estimates the cost of recording an event, by recording events into a throwaway profile. The
+   * first half of the iterations only warms up the code.
+   */
+  private double calibrate() {
+    final int iterations = 20000;
+    final ThreadProfile profile = new ThreadProfile(this, Thread.currentThread(), 4 * iterations);
+    final int interval = samplingInterval;
+    samplingInterval = 1;
+    try {
+      long start = 0;
+      for (int i = 0; i < 2 * iterations; i++) {
+        if (i == iterations) {
+          start = System.nanoTime();
+        }
+        profile.enter(0);
+        profile.exit();
+      }
+      return Math.max(1.0, (System.nanoTime() - start) / (2.0 * iterations));
+    } finally {
+      samplingInterval = interval;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Sampling profiler: interval %d, overhead %.3f%%, %d events drained",
+      samplingInterval, overheadPercent, drainedEvents);
+  }
+
+  private static final CallTree.MethodNames METHOD_NAMES = new CallTree.MethodNames() {
+    @Override
+    public String getMethodName(int methodId) {
+      return getMethod(methodId);
+    }
+  };
+
+  private static final ThreadProfile.EventVisitor callTreeBuilder = new ThreadProfile.EventVisitor() {
+    @Override
+    public void onEvent(ThreadProfile profile, long methodId, long nanoTime) {
+      if (methodId == ThreadProfile.EXIT) {
+        profile.cursor.exit(nanoTime);
+      } else {
+        profile.cursor.enter((int) methodId, nanoTime);
+      }
+    }
+  };
+}
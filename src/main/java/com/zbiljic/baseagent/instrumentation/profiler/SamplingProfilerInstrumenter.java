@@ -0,0 +1,34 @@
+package com.zbiljic.baseagent.instrumentation.profiler;
+
+import com.zbiljic.baseagent.BaseAgent;
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+
+import static com.zbiljic.baseagent.instrument.ConfigurationClassNameMatcher.configurationIncluded;
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.isBridge;
+import static net.bytebuddy.matcher.ElementMatchers.isMethod;
+import static net.bytebuddy.matcher.ElementMatchers.isNative;
+import static net.bytebuddy.matcher.ElementMatchers.isSynthetic;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+
+/**
+ * Profiles the methods of the types explicitly included by <code>baseagent.instrument.include</code>
+ * with the {@link SamplingProfiler}. Added by the agent when <code>baseagent.profiler.active</code>
+ * is set.
+ */
+public class SamplingProfilerInstrumenter implements Instrumenter {
+
+  @Override
+  public AgentBuilder instrument(AgentBuilder agentBuilder) {
+    SamplingProfiler.start(BaseAgent.getConfiguration());
+    return Registry.type(configurationIncluded())
+      .visit(Advice.withCustomMapping()
+        .bind(ProfilingAdvice.MethodId.class, new ProfilingAdvice.MethodIdMapping())
+        .to(ProfilingAdvice.class)
+        .on(isMethod().and(not(isAbstract().or(isNative()).or(isSynthetic()).or(isBridge())))))
+      .register(agentBuilder);
+  }
+}
@@ -0,0 +1,152 @@
+package com.zbiljic.baseagent.instrumentation.profiler;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * The profile of a single thread: a preallocated ring buffer of method entries and exits, written
+ * by the profiled thread and drained by the profiler thread.
+ * <p>
+ * Only sampled invocations are recorded. A thread decides to sample when it enters an outermost
+ * profiled method, and then records every profiled invocation until that method returns. An entry
+ * is only recorded if the buffer has room for the exits of all recorded invocations which have not
+ * returned yet, so that the recorded entries and exits always match. If the buffer is too full, the
+ * rest of the sample is truncated.
+ */
+public final class ThreadProfile {
+
+  static final long EXIT = -1;
+
+  private static final AtomicLongFieldUpdater<ThreadProfile> HEAD =
+    AtomicLongFieldUpdater.newUpdater(ThreadProfile.class, "head");
+  private static final AtomicLongFieldUpdater<ThreadProfile> TAIL =
+    AtomicLongFieldUpdater.newUpdater(ThreadProfile.class, "tail");
+
+  private final SamplingProfiler profiler;
+  private final Thread thread;
+
+  // two longs per event: the method id or EXIT, and the value of System.nanoTime()
+  private final long[] events;
+  private final int mask;
+
+  // the number of events written, only written by the profiled thread
+  private volatile long head;
+  // the number of events drained, only written by the profiler thread
+  private volatile long tail;
+
+  // only accessed by the profiled thread
+  private long cachedTail;
+  private int depth;
+  private int sampledDepth;
+  private boolean sampling;
+  private int countdown;
+  private long sampledCalls;
+  private long truncatedCalls;
+
+  // only accessed by the profiler thread
+  final CallTree.Cursor cursor;
+
+  ThreadProfile(SamplingProfiler profiler, Thread thread, int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.profiler = profiler;
+    this.thread = thread;
+    this.events = new long[size * 2];
+    this.mask = size - 1;
+    this.cursor = profiler.getCallTree().newCursor();
+    this.countdown = 1;
+  }
+
+  void enter(int methodId) {
+    final int currentDepth = ++depth;
+    if (currentDepth == 1 && --countdown <= 0) {
+      countdown = profiler.getSamplingInterval();
+      sampling = true;
+      sampledCalls++;
+    }
+    if (sampling) {
+      // room for this entry and the exits of all recorded invocations, including this one
+      if (currentDepth == sampledDepth + 1 && hasRoom(currentDepth + 1)) {
+        write(methodId);
+        sampledDepth = currentDepth;
+      } else {
+        sampling = false;
+        truncatedCalls++;
+      }
+    }
+  }
+
+  /**
+   * Called when a profiled method returns or throws.
+   */
+  public void exit() {
+    if (depth == sampledDepth && depth > 0) {
+      write(EXIT);
+      sampledDepth--;
+    }
+    if (--depth <= 0) {
+      depth = 0;
+      sampling = false;
+    }
+  }
+
+  private boolean hasRoom(int events) {
+    final int capacity = mask + 1;
+    if (head - cachedTail + events <= capacity) {
+      return true;
+    }
+    cachedTail = tail;
+    return head - cachedTail + events <= capacity;
+  }
+
+  private void write(long header) {
+    final long position = head;
+    final int index = (int) (position & mask) << 1;
+    events[index] = header;
+    events[index + 1] = System.nanoTime();
+    // ordered store, so that the profiler thread sees the event before the new head
+    HEAD.lazySet(this, position + 1);
+  }
+
+  /**
+   * Hands all written events to the given visitor and frees their space. Must only be called by the
+   * profiler thread.
+   *
+   * @return the number of drained events
+   */
+  int drain(EventVisitor visitor) {
+    final long currentHead = head;
+    final long currentTail = tail;
+    for (long position = currentTail; position < currentHead; position++) {
+      final int index = (int) (position & mask) << 1;
+      visitor.onEvent(this, events[index], events[index + 1]);
+    }
+    TAIL.lazySet(this, currentHead);
+    return (int) (currentHead - currentTail);
+  }
+
+  Thread getThread() {
+    return thread;
+  }
+
+  /**
+   * @return the number of outermost invocations which were sampled, read without synchronization
+   */
+  long getSampledCalls() {
+    return sampledCalls;
+  }
+
+  /**
+   * @return the number of samples which were truncated, read without synchronization
+   */
+  long getTruncatedCalls() {
+    return truncatedCalls;
+  }
+
+  interface EventVisitor {
+
+    /**
+     * @param methodId the id of the entered method, or {@link #EXIT}
+     * @param nanoTime the value of {@link System#nanoTime()} at the event
+     */
+    void onEvent(ThreadProfile profile, long methodId, long nanoTime);
+  }
+}
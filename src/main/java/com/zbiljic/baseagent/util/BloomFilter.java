@@ -0,0 +1,75 @@
+package com.zbiljic.baseagent.util;
+
+import java.util.Collection;
+
+/**
+ * An immutable Bloom filter of strings. {@link #mightContain(String)} never returns
+ * <code>false</code> for a string the filter was created with, and returns <code>true</code> for
+ * other strings with about the false positive probability the filter was created for.
+ */
+public final class BloomFilter {
+
+  private final long[] bits;
+  private final int numberOfBits;
+  private final int numberOfHashes;
+
+  private BloomFilter(int numberOfBits, int numberOfHashes) {
+    this.bits = new long[(numberOfBits + 63) >>> 6];
+    this.numberOfBits = numberOfBits;
+    this.numberOfHashes = numberOfHashes;
+  }
+
+  /**
+   * Creates a filter containing the given strings.
+   *
+   * @param strings                   the strings
+   * @param falsePositiveProbability the desired probability of false positives, e.g. {@code 0.01}
+   * @return the filter
+   */
+  public static BloomFilter of(Collection<String> strings, double falsePositiveProbability) {
+    int expected = Math.max(1, strings.size());
+    double ln2 = Math.log(2);
+    int numberOfBits = (int) Math.max(64, Math.ceil(-expected * Math.log(falsePositiveProbability) / (ln2 * ln2)));
+    int numberOfHashes = (int) Math.max(1, Math.round((double) numberOfBits / expected * ln2));
+    BloomFilter bloomFilter = new BloomFilter(numberOfBits, numberOfHashes);
+    for (String string : strings) {
+      bloomFilter.add(string);
+    }
+    return bloomFilter;
+  }
+
+  private void add(String string) {
+    int hash1 = string.hashCode();
+    int hash2 = secondHash(string);
+    for (int i = 0; i < numberOfHashes; i++) {
+      int bit = index(hash1 + i * hash2);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  public boolean mightContain(String string) {
+    int hash1 = string.hashCode();
+    int hash2 = secondHash(string);
+    for (int i = 0; i < numberOfHashes; i++) {
+      int bit = index(hash1 + i * hash2);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int index(int hash) {
+    return (hash & Integer.MAX_VALUE) % numberOfBits;
+  }
+
+  // FNV-1a, independent of String.hashCode, forced to be odd so that it never degenerates
+  private static int secondHash(String string) {
+    int hash = 0x811C9DC5;
+    for (int i = 0; i < string.length(); i++) {
+      hash ^= string.charAt(i);
+      hash *= 0x01000193;
+    }
+    return hash | 1;
+  }
+}
@@ -0,0 +1,139 @@
+package com.zbiljic.baseagent.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free histogram of non-negative values, usually durations in nanoseconds. Values are
+ * counted in log-linear buckets: every power of two is divided into eight buckets, so that
+ * percentiles are reported with a relative error of at most 12.5%.
+ * <p>
+ * Like a {@link StripedCounter}, the buckets are striped by thread, so that threads recording
+ * similar values do not contend on the same cache line. A stripe is only allocated once a thread
+ * records into it, so that a histogram which is only recorded by one thread stays small.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+  // a stripe of buckets takes 4 KB
+  private static final int STRIPES = Math.min(16, StripedCounter.stripes(Runtime.getRuntime().availableProcessors()));
+
+  private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+  private final StripedCounter total = new StripedCounter();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    final int stripe = StripedCounter.stripe() & (STRIPES - 1);
+    AtomicLongArray buckets = stripes.get(stripe);
+    if (buckets == null) {
+      stripes.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+      buckets = stripes.get(stripe);
+    }
+    buckets.getAndIncrement(bucket(value));
+    total.add(value);
+    long currentMax;
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+      // retry
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (long bucketCount : counts()) {
+      count += bucketCount;
+    }
+    return count;
+  }
+
+  public long getTotal() {
+    return total.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns an upper bound of the given percentile.
+   *
+   * @param percentile the percentile, between {@code 0} and {@code 100}
+   * @return the highest value of the bucket containing the percentile, or {@code 0} if no values
+   * have been recorded
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = counts();
+    long recorded = 0;
+    for (long count : counts) {
+      recorded += count;
+    }
+    if (recorded == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(recorded * Math.min(100d, Math.max(0d, percentile)) / 100d);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && counts[i] > 0) {
+        return Math.min(highestValue(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      final AtomicLongArray buckets = stripes.get(i);
+      if (buckets != null) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+          buckets.set(bucket, 0);
+        }
+      }
+    }
+    total.reset();
+    max.set(0);
+  }
+
+  /**
+   * @return the counts of the buckets, summed over all stripes
+   */
+  private long[] counts() {
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < STRIPES; i++) {
+      final AtomicLongArray buckets = stripes.get(i);
+      if (buckets != null) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+          counts[bucket] += buckets.get(bucket);
+        }
+      }
+    }
+    return counts;
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int shift = exponent - SUB_BUCKET_BITS;
+    if (shift > 63 - SUB_BUCKET_BITS - 1) {
+      return Long.MAX_VALUE;
+    }
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
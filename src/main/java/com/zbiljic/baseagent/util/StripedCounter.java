@@ -0,0 +1,71 @@
+package com.zbiljic.baseagent.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter for values which are updated by many threads and read rarely. Every thread
+ * updates one of several cells, each on its own cache line, so that concurrent updates do not
+ * contend. The value is the sum of all cells.
+ */
+public final class StripedCounter {
+
+  // 8 longs are 64 bytes, the cache line size of most processors
+  private static final int PADDING = 8;
+  private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void increment() {
+    add(1);
+  }
+
+  public void add(long delta) {
+    cells.getAndAdd(index(), delta);
+  }
+
+  /**
+   * Returns the current sum. The sum is not an atomic snapshot if the counter is updated
+   * concurrently.
+   *
+   * @return the sum of all cells
+   */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(sum());
+  }
+
+  private static int index() {
+    return (stripe() & (STRIPES - 1)) * PADDING;
+  }
+
+  /**
+   * @return a hash of the current thread, of which the low bits select the stripe of the thread
+   */
+  static int stripe() {
+    long id = Thread.currentThread().getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  static int stripes(int processors) {
+    int stripes = 1;
+    while (stripes < processors * 2 && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+}
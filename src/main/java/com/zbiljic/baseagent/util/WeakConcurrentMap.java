@@ -0,0 +1,143 @@
+package com.zbiljic.baseagent.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map with weakly referenced keys which are compared by identity. Lookups neither lock
+ * nor allocate, as they reuse a lookup key per thread, and entries whose keys were collected are
+ * removed on the next write. Keys must not be {@code null}.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class WeakConcurrentMap<K, V> {
+
+  // shared by all maps, the key is cleared after every lookup so that it is not kept alive
+  private static final ThreadLocal<LookupKey> lookupKeys = new ThreadLocal<LookupKey>();
+
+  private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+  private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+  public V get(K key) {
+    final LookupKey lookupKey = lookupKey(key);
+    try {
+      return map.get(lookupKey);
+    } finally {
+      lookupKey.key = null;
+    }
+  }
+
+  public V put(K key, V value) {
+    expungeStaleEntries();
+    return map.put(new WeakKey<K>(key, queue), value);
+  }
+
+  /**
+   * @return the value already associated with the key, or {@code null} if the given value is now
+   * associated with it
+   */
+  public V putIfAbsent(K key, V value) {
+    expungeStaleEntries();
+    return map.putIfAbsent(new WeakKey<K>(key, queue), value);
+  }
+
+  public V remove(K key) {
+    expungeStaleEntries();
+    final LookupKey lookupKey = lookupKey(key);
+    try {
+      return map.remove(lookupKey);
+    } finally {
+      lookupKey.key = null;
+    }
+  }
+
+  public void clear() {
+    map.clear();
+    expungeStaleEntries();
+  }
+
+  /**
+   * Removes the entries whose keys were collected and already reported by the garbage collector.
+   *
+   * @return a snapshot of the values, which may include values whose keys were collected just now
+   */
+  public List<V> values() {
+    expungeStaleEntries();
+    return new ArrayList<V>(map.values());
+  }
+
+  /**
+   * @return the number of entries, including entries whose keys were collected but not yet removed
+   */
+  public int size() {
+    return map.size();
+  }
+
+  public void expungeStaleEntries() {
+    Reference<?> reference;
+    while ((reference = queue.poll()) != null) {
+      map.remove(reference);
+    }
+  }
+
+  private static LookupKey lookupKey(Object key) {
+    LookupKey lookupKey = lookupKeys.get();
+    if (lookupKey == null) {
+      lookupKey = new LookupKey();
+      lookupKeys.set(lookupKey);
+    }
+    lookupKey.key = key;
+    return lookupKey;
+  }
+
+  private static final class WeakKey<K> extends WeakReference<K> {
+
+    private final int hashCode;
+
+    WeakKey(K key, ReferenceQueue<? super K> queue) {
+      super(key, queue);
+      this.hashCode = System.identityHashCode(key);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == this) {
+        return true;
+      }
+      if (other instanceof LookupKey) {
+        return ((LookupKey) other).key == get();
+      }
+      // a collected key is only equal to itself, so that its entry can still be removed
+      return other instanceof WeakKey && ((WeakKey<?>) other).get() == get() && get() != null;
+    }
+  }
+
+  private static final class LookupKey {
+
+    private Object key;
+
+    LookupKey() {
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(key);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof WeakKey && ((WeakKey<?>) other).get() == key;
+    }
+  }
+}
@@ -9,7 +9,9 @@ import java.util.Properties;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ConfigurationFactoryTest {
 
@@ -90,4 +92,108 @@ public class ConfigurationFactoryTest {
     assertNotNull(myConfig.toString());
     assertTrue(myConfig.toString().startsWith(MyConfig.class.getSimpleName() + "{"));
   }
+
+  @Test
+  public void testBoundTypeIsReused() throws Exception {
+    MyConfig myConfig = ConfigurationFactory.create(properties).bind(MyConfig.class);
+    MyConfig otherConfig = ConfigurationFactory.create(properties)
+      .addProperty("test.name", "Other Name")
+      .addProperty("test.subconfig.possible", "false")
+      .bind(MyConfig.class);
+
+    assertSame(myConfig.getClass(), otherConfig.getClass());
+    assertSame(myConfig.getSubConfig().getClass(), otherConfig.getSubConfig().getClass());
+    assertEquals("My Name", myConfig.getName());
+    assertEquals("Other Name", otherConfig.getName());
+    assertTrue(myConfig.getSubConfig().isPossible());
+    assertFalse(otherConfig.getSubConfig().isPossible());
+    assertTrue(otherConfig.toString().contains("getName='Other Name'"));
+  }
+
+  @Test
+  public void testLaterSourcesTakePrecedence() throws Exception {
+    Properties overrides = new Properties();
+    overrides.setProperty("test.name", "Overridden Name");
+    overrides.setProperty("test.subconfig.possible", "false");
+    ConfigurationFactory configurationFactory = ConfigurationFactory.create(properties)
+      .addProperty("test.name", "Other Name")
+      .addProperties(overrides)
+      .removeProperty("test.collection");
+
+    assertEquals("Overridden Name", configurationFactory.getProperty("test.name"));
+    assertEquals("col1,col2", ConfigurationFactory.create(properties).getProperty("test.collection"));
+    assertFalse(configurationFactory.getProperties().containsKey("test.collection"));
+    assertEquals(0, configurationFactory.bind(MyConfig.class).getCollection().size());
+    assertFalse(configurationFactory.getProperty("test.subconfig.possible", Boolean.class));
+    assertEquals("Overridden Name", configurationFactory.addProperty("test.collection", "col1")
+      .getProperties().getProperty("test.name"));
+    assertEquals(1, configurationFactory.addProperty("test.collection", "col1")
+      .bind(MyConfig.class).getCollection().size());
+  }
+
+  @Test
+  public void testPropertiesWithDefaults() throws Exception {
+    Properties defaults = new Properties();
+    defaults.setProperty("test.name", "Default Name");
+    defaults.setProperty("test.subconfig.possible", "false");
+    Properties withDefaults = new Properties(defaults);
+    withDefaults.setProperty("test.subconfig.possible", "true");
+
+    ConfigurationFactory created = ConfigurationFactory.create(withDefaults);
+    assertEquals("Default Name", created.getProperty("test.name"));
+    assertEquals("Default Name", created.getProperties().getProperty("test.name"));
+    assertEquals("true", created.getProperty("test.subconfig.possible"));
+
+    ConfigurationFactory added = ConfigurationFactory.create().addProperties(withDefaults);
+    withDefaults.setProperty("test.name", "Later Name");
+    defaults.setProperty("test.collection", "col1");
+    // copied when added, with the defaults
+    assertEquals("Default Name", added.getProperty("test.name"));
+    assertFalse(added.getProperties().containsKey("test.collection"));
+    assertTrue(added.getConfigurationProvider("test.subconfig").bind(SubConfig.class).isPossible());
+  }
+
+  @Test
+  public void testGetConfigurationProvider() throws Exception {
+    ConfigurationFactory configurationFactory = ConfigurationFactory.create(properties)
+      .addProperty("test.subconfig.nested.possible", "false");
+
+    ConfigurationFactory subconfig = configurationFactory.getConfigurationProvider("test.subconfig");
+    assertEquals("true", subconfig.getProperty("possible"));
+    assertEquals("false", subconfig.getConfigurationProvider("nested.").getProperty("possible"));
+    assertEquals(2, subconfig.getProperties().size());
+    assertEquals("false", subconfig.getProperties().getProperty("nested.possible"));
+    assertTrue(subconfig.bind(SubConfig.class).isPossible());
+    assertFalse(subconfig.getConfigurationProvider("nested").bind(SubConfig.class).isPossible());
+  }
+
+  @Test
+  public void testBindLive() throws Exception {
+    LiveBinding<MyConfig> binding = ConfigurationFactory.create(properties).bindLive(MyConfig.class);
+    MyConfig myConfig = binding.get();
+    assertEquals("My Name", myConfig.getName());
+    assertTrue(myConfig.getSubConfig().isPossible());
+
+    binding.reload(binding.getConfigurationFactory()
+      .addProperty("test.name", "Other Name")
+      .addProperty("test.subconfig.possible", "false"));
+
+    assertSame(myConfig, binding.get());
+    assertEquals("Other Name", myConfig.getName());
+    assertFalse(myConfig.getSubConfig().isPossible());
+    assertTrue(myConfig.toString().contains("getName='Other Name'"));
+    assertSame(myConfig.getClass(), ConfigurationFactory.create(properties).bindLive(MyConfig.class).get().getClass());
+  }
+
+  @Test
+  public void testFailedReloadKeepsValues() throws Exception {
+    LiveBinding<MyConfig> binding = ConfigurationFactory.create(properties).bindLive(MyConfig.class);
+    try {
+      binding.reload(binding.getConfigurationFactory().addProperty("test.integers", "two"));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(10, binding.get().getIntegers().size());
+  }
 }
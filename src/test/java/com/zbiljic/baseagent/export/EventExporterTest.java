@@ -0,0 +1,262 @@
+package com.zbiljic.baseagent.export;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventExporterTest {
+
+  private static final int PRODUCERS = 4;
+  private static final int EVENTS_PER_PRODUCER = 1000000;
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("baseagent-events", ".bin");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    EventExporter exporter = new EventExporter(file, 2, 100);
+    assertEquals(128, exporter.getCapacity());
+    final EventReader reader = EventReader.open(file);
+    assertEquals(0, reader.poll(new OrderVerifyingHandler()));
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(exporter.write(7, i, i, -i, Long.MAX_VALUE, Long.MIN_VALUE));
+    }
+    final long threadId = Thread.currentThread().getId();
+    final long before = System.currentTimeMillis();
+    final int[] read = new int[1];
+    assertEquals(100, reader.poll(new EventHandler() {
+      @Override
+      public void onEvent(long timestampNanos, long eventThreadId, int eventId, long duration,
+                          long value0, long value1, long value2, long value3) {
+        assertEquals(threadId, eventThreadId);
+        assertEquals(7, eventId);
+        assertEquals(read[0], duration);
+        assertEquals(read[0], value0);
+        assertEquals(-read[0], value1);
+        assertEquals(Long.MAX_VALUE, value2);
+        assertEquals(Long.MIN_VALUE, value3);
+        assertTrue(Math.abs(reader.toEpochMillis(timestampNanos) - before) < 60000);
+        read[0]++;
+      }
+    }));
+    assertEquals(0, reader.poll(new OrderVerifyingHandler()));
+    assertEquals(1, reader.getClaimedSegments());
+    assertEquals(0, reader.getDropped());
+  }
+
+  @Test
+  public void testDropsAndCountsWhenFull() throws Exception {
+    EventExporter exporter = new EventExporter(file, 1, 16);
+    EventReader reader = EventReader.open(file);
+    OrderVerifyingHandler handler = new OrderVerifyingHandler();
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i < 16, exporter.write(1, 0, i, 0, 0, 0));
+    }
+    assertEquals(4, exporter.getDropped());
+    assertEquals(4, reader.getDropped());
+
+    assertEquals(10, reader.poll(handler, 10));
+    for (int i = 0; i < 12; i++) {
+      assertEquals(i < 10, exporter.write(1, 0, 16 + i, 0, 0, 0));
+    }
+    assertEquals(16, reader.poll(handler));
+    assertEquals(6, reader.getDropped());
+  }
+
+  @Test
+  public void testThreadsWithoutSegmentDrop() throws Exception {
+    final EventExporter exporter = new EventExporter(file, 1, 16);
+    assertTrue(exporter.write(1, 0, 0, 0, 0, 0));
+    final boolean[] written = {true};
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        written[0] = exporter.write(1, 0, 0, 0, 0, 0);
+      }
+    });
+    thread.start();
+    thread.join();
+    assertFalse(written[0]);
+    assertEquals(1, EventReader.open(file).getDropped());
+  }
+
+  @Test
+  public void testReclaimsSegmentsOfTerminatedThreads() throws Exception {
+    final EventExporter exporter = new EventExporter(file, 1, 16);
+    EventReader reader = EventReader.open(file);
+    OrderVerifyingHandler handler = new OrderVerifyingHandler();
+    for (int i = 0; i < 3; i++) {
+      final boolean[] written = new boolean[1];
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          written[0] = exporter.write(1, 0, 0, 0, 0, 0) && exporter.write(1, 0, 1, 0, 0, 0);
+        }
+      });
+      thread.start();
+      thread.join();
+      assertTrue(written[0]);
+    }
+    assertEquals(1, reader.getClaimedSegments());
+    assertEquals(6, reader.poll(handler));
+    assertEquals(3, handler.getThreads());
+
+    // a thread without a segment claims one again after dropping some events
+    final Thread blocker = startBlocker(exporter);
+    for (int i = 1; i < EventExporter.RECLAIM_INTERVAL; i++) {
+      assertFalse(exporter.write(1, 0, 0, 0, 0, 0));
+    }
+    blocker.interrupt();
+    blocker.join();
+    assertFalse(exporter.write(1, 0, 0, 0, 0, 0));
+    assertTrue(exporter.write(1, 0, 0, 0, 0, 0));
+    assertEquals(EventExporter.RECLAIM_INTERVAL, reader.getDropped());
+  }
+
+  private static Thread startBlocker(final EventExporter exporter) throws InterruptedException {
+    final CountDownLatch claimed = new CountDownLatch(1);
+    Thread blocker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        exporter.write(1, 0, 0, 0, 0, 0);
+        claimed.countDown();
+        try {
+          Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+          // terminates
+        }
+      }
+    });
+    blocker.start();
+    claimed.await();
+    return blocker;
+  }
+
+  @Test
+  public void testRoundTripsMillionsOfEventsConcurrently() throws Exception {
+    final EventExporter exporter = new EventExporter(file, PRODUCERS, 4096);
+    final EventReader[] readers = {EventReader.open(file, 0, 2), EventReader.open(file, 1, 2)};
+    final long[] written = new long[PRODUCERS];
+    Thread[] producers = new Thread[PRODUCERS];
+    for (int p = 0; p < PRODUCERS; p++) {
+      final int producer = p;
+      producers[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+            if (exporter.write(producer, i, written[producer], 0, 0, i)) {
+              written[producer]++;
+            }
+          }
+        }
+      });
+    }
+
+    final AtomicBoolean done = new AtomicBoolean();
+    final OrderVerifyingHandler[] handlers = {new OrderVerifyingHandler(), new OrderVerifyingHandler()};
+    final long[] read = new long[readers.length];
+    Thread[] consumers = new Thread[readers.length];
+    for (int c = 0; c < readers.length; c++) {
+      final int consumer = c;
+      consumers[c] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          boolean finished;
+          int polled;
+          do {
+            // once the producers finished, everything they wrote is read by the next polls
+            finished = done.get();
+            polled = readers[consumer].poll(handlers[consumer], 1000);
+            read[consumer] += polled;
+            if (polled == 0) {
+              Thread.yield();
+            }
+          } while (!finished || polled > 0);
+        }
+      });
+      consumers[c].start();
+    }
+    for (Thread producer : producers) {
+      producer.start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    done.set(true);
+    for (Thread consumer : consumers) {
+      consumer.join(60000);
+      assertFalse(consumer.isAlive());
+    }
+
+    long totalWritten = 0;
+    for (long count : written) {
+      totalWritten += count;
+    }
+    assertEquals(totalWritten, read[0] + read[1]);
+    assertEquals((long) PRODUCERS * EVENTS_PER_PRODUCER, totalWritten + readers[0].getDropped());
+    // every reader read the segments of half of the producers
+    assertEquals(PRODUCERS / 2, handlers[0].getThreads());
+    assertEquals(PRODUCERS / 2, handlers[1].getThreads());
+  }
+
+  @Test
+  public void testRejectsOtherFiles() throws Exception {
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(new byte[1024]);
+    } finally {
+      outputStream.close();
+    }
+    try {
+      EventReader.open(file);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Verifies that the events of every thread are read in the order they were written, without
+   * gaps: the first value is the number of events the thread wrote before.
+   */
+  private static class OrderVerifyingHandler implements EventHandler {
+
+    private final Map<Long, Long> nextByThread = new HashMap<Long, Long>();
+
+    @Override
+    public void onEvent(long timestampNanos, long threadId, int eventId, long duration,
+                        long value0, long value1, long value2, long value3) {
+      Long next = nextByThread.get(threadId);
+      assertEquals(next == null ? 0 : next, value0);
+      assertEquals(duration, value3);
+      nextByThread.put(threadId, value0 + 1);
+    }
+
+    int getThreads() {
+      return nextByThread.size();
+    }
+  }
+}
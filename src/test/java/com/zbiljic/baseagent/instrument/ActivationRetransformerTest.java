@@ -0,0 +1,67 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.FixedValue;
+import net.bytebuddy.utility.JavaModule;
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.Assert.assertEquals;
+
+public class ActivationRetransformerTest {
+
+  @Test
+  public void testRetransformsClassesLoadedBeforeActivation() throws Exception {
+    final Instrumentation instrumentation = ByteBuddyAgent.install();
+    assertEquals("original", new LoadedBefore().value());
+    assertEquals("original", new Rejected().value());
+
+    ResettableClassFileTransformer transformer = new AgentBuilder.Default()
+      .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+      .with(new AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.Explicit())
+      .disableClassFormatChanges()
+      .type(named(LoadedBefore.class.getName()).or(named(Rejected.class.getName())))
+      .transform(new AgentBuilder.Transformer() {
+        @Override
+        public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription,
+                                                ClassLoader classLoader, JavaModule module) {
+          return builder.method(named("value")).intercept(FixedValue.value("transformed"));
+        }
+      })
+      .installOn(instrumentation);
+    try {
+      assertEquals("original", new LoadedBefore().value());
+      new ActivationRetransformer(instrumentation, new ClassNameFilter() {
+        @Override
+        public boolean rejects(ClassLoader loader, String internalName) {
+          return internalName.endsWith("$Rejected");
+        }
+      }, new Class<?>[]{LoadedBefore.class, Rejected.class, String.class}, "test").run();
+
+      assertEquals("transformed", new LoadedBefore().value());
+      assertEquals("original", new Rejected().value());
+    } finally {
+      transformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+    }
+  }
+
+  public static class LoadedBefore {
+
+    public String value() {
+      return "original";
+    }
+  }
+
+  public static class Rejected {
+
+    public String value() {
+      return "original";
+    }
+  }
+}
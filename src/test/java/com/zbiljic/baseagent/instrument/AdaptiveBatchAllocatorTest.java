@@ -0,0 +1,48 @@
+package com.zbiljic.baseagent.instrument;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AdaptiveBatchAllocatorTest {
+
+  @Test
+  public void testNextSize() throws Exception {
+    AdaptiveBatchAllocator allocator = new AdaptiveBatchAllocator(10, 10, TimeUnit.MILLISECONDS);
+
+    assertEquals(10, allocator.nextSize(10, TimeUnit.MILLISECONDS.toNanos(10)));
+    // never grows or shrinks by more than a factor of two at once
+    assertEquals(20, allocator.nextSize(10, TimeUnit.MILLISECONDS.toNanos(1)));
+    assertEquals(5, allocator.nextSize(10, TimeUnit.MILLISECONDS.toNanos(100)));
+    assertEquals(12, allocator.nextSize(10, TimeUnit.MILLISECONDS.toNanos(8)));
+    assertEquals(1, allocator.nextSize(1, TimeUnit.SECONDS.toNanos(1)));
+    assertEquals(20, allocator.nextSize(10, 0));
+  }
+
+  @Test
+  public void testCoversAllTypesInOrder() throws Exception {
+    AdaptiveBatchAllocator allocator = new AdaptiveBatchAllocator(3, 1, TimeUnit.MILLISECONDS);
+    List<Class<?>> types = new ArrayList<Class<?>>();
+    for (int i = 0; i < 100; i++) {
+      types.add(i % 2 == 0 ? String.class : Integer.class);
+    }
+
+    List<Class<?>> batched = new ArrayList<Class<?>>();
+    Iterator<? extends List<Class<?>>> iterator = allocator.batch(types).iterator();
+    int index = 0;
+    while (iterator.hasNext()) {
+      List<Class<?>> batch = iterator.next();
+      allocator.getListener().onBatch(index++, batch, types);
+      batched.addAll(batch);
+    }
+
+    assertEquals(types, batched);
+    assertFalse(iterator.hasNext());
+  }
+}
@@ -0,0 +1,87 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AttachStatusTest {
+
+  @Test
+  public void testCountsRetransformedClasses() throws Exception {
+    AttachStatus status = new AttachStatus();
+    AgentBuilder.RedefinitionStrategy.Listener listener = status.getListener();
+    List<Class<?>> first = Arrays.<Class<?>>asList(String.class, Integer.class);
+    List<Class<?>> second = Arrays.<Class<?>>asList(Long.class, Short.class, Byte.class);
+    List<Class<?>> third = Collections.<Class<?>>singletonList(Character.class);
+    List<Class<?>> types = Arrays.<Class<?>>asList(String.class, Integer.class, Long.class, Short.class,
+      Byte.class, Character.class);
+
+    status.enter(AttachStatus.Phase.RETRANSFORMING);
+    listener.onBatch(0, first, types);
+    assertEquals(6, status.getClassesToRetransform());
+    assertEquals(0, status.getRetransformedClasses());
+    listener.onBatch(1, second, types);
+    assertEquals(2, status.getRetransformedClasses());
+    listener.onError(1, second, new RuntimeException(), types);
+    listener.onBatch(2, third, types);
+    listener.onComplete(3, types, Collections.<List<Class<?>>, Throwable>emptyMap());
+
+    assertEquals(3, status.getRetransformedClasses());
+    assertEquals(3, status.getFailedClasses());
+    assertEquals(AttachStatus.Phase.RETRANSFORMING, status.getPhase());
+    assertFalse(status.isDone());
+  }
+
+  @Test
+  public void testWaitForCompletion() throws Exception {
+    final AttachStatus status = new AttachStatus();
+    try {
+      status.get(1, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (TimeoutException expected) {
+    }
+
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        status.enter(AttachStatus.Phase.ATTACHING);
+        status.enter(AttachStatus.Phase.COMPLETED);
+      }
+    }).start();
+
+    assertNull(status.get(10, TimeUnit.SECONDS));
+    assertTrue(status.isDone());
+    assertEquals(AttachStatus.Phase.COMPLETED, status.getPhase());
+    assertFalse(status.cancel(true));
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    AttachStatus status = new AttachStatus();
+    IllegalStateException failure = new IllegalStateException();
+    status.enter(AttachStatus.Phase.INSTRUMENTING);
+    status.fail(failure);
+
+    assertTrue(status.isDone());
+    assertSame(failure, status.getFailure());
+    try {
+      status.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertSame(failure, e.getCause());
+    }
+  }
+}
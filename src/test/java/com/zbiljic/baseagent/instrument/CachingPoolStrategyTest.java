@@ -0,0 +1,82 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.pool.TypePool;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachingPoolStrategyTest {
+
+  @Test
+  public void testLeastRecentlyUsedEviction() throws Exception {
+    CachingPoolStrategy.BoundedCacheProvider cacheProvider = new CachingPoolStrategy.BoundedCacheProvider(2);
+    cacheProvider.register("a", new TypePool.Resolution.Illegal("a"));
+    cacheProvider.register("b", new TypePool.Resolution.Illegal("b"));
+    assertNotNull(cacheProvider.find("a"));
+    cacheProvider.register("c", new TypePool.Resolution.Illegal("c"));
+
+    assertEquals(2, cacheProvider.size());
+    assertNotNull(cacheProvider.find("a"));
+    assertNull(cacheProvider.find("b"));
+    assertNotNull(cacheProvider.find("c"));
+    assertEquals(3, cacheProvider.hits.get());
+    assertEquals(1, cacheProvider.misses.get());
+  }
+
+  @Test
+  public void testBootstrapTypesAreShared() throws Exception {
+    CachingPoolStrategy poolStrategy = new CachingPoolStrategy(100);
+    ClassLoader first = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    ClassLoader second = new URLClassLoader(new URL[0], getClass().getClassLoader());
+
+    TypePool firstPool = poolStrategy.typePool(ClassFileLocator.ForClassLoader.of(first), first);
+    assertEquals("java.lang.Runnable", firstPool.describe("java.lang.Runnable").resolve().getName());
+    long misses = poolStrategy.getMisses();
+
+    TypePool secondPool = poolStrategy.typePool(ClassFileLocator.ForClassLoader.of(second), second);
+    assertTrue(secondPool.describe("java.lang.Runnable").resolve().isInterface());
+
+    assertEquals(2, poolStrategy.getClassLoaderCount());
+    assertTrue(poolStrategy.getHits() > 0);
+    // the second class loader is answered by the shared cache
+    assertEquals(misses, poolStrategy.getMisses());
+  }
+
+  @Test
+  public void testCreatesOneCachePerClassLoaderConcurrently() throws Exception {
+    final CachingPoolStrategy poolStrategy = new CachingPoolStrategy(100);
+    final ClassLoader classLoader = new URLClassLoader(new URL[0], null);
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < 1000; j++) {
+            poolStrategy.typePool(ClassFileLocator.NoOp.INSTANCE, classLoader).describe("com.example.Foo");
+          }
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, poolStrategy.getClassLoaderCount());
+  }
+}
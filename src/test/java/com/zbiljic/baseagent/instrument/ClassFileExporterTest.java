@@ -0,0 +1,45 @@
+package com.zbiljic.baseagent.instrument;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClassFileExporterTest {
+
+  @Test
+  public void testExportToJar() throws Exception {
+    ClassFileExporter exporter = new ClassFileExporter(true);
+    exporter.export("org.example.Foo", new byte[]{1});
+    exporter.export("org.example.Bar", new byte[]{2});
+    exporter.export("org.example.Foo", new byte[]{3});
+    assertTrue(exporter.flush(10, TimeUnit.SECONDS));
+    exporter.close();
+
+    List<String> exportedClasses = exporter.getExportedClasses();
+    assertEquals(3, exportedClasses.size());
+    assertTrue(exportedClasses.get(0).endsWith("!/org/example/Foo.class"));
+    File jarFile = new File(exportedClasses.get(0).substring(0, exportedClasses.get(0).indexOf('!')));
+    ZipFile zipFile = new ZipFile(jarFile);
+    try {
+      List<String> entries = new ArrayList<String>();
+      for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+        entries.add(e.nextElement().getName());
+      }
+      assertEquals(Arrays.asList("org/example/Foo.class", "org/example/Bar.class", "org/example/Foo-1.class"), entries);
+      assertEquals(3, zipFile.getInputStream(zipFile.getEntry("org/example/Foo-1.class")).read());
+    } finally {
+      zipFile.close();
+      jarFile.delete();
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.NamedTypesInstrumenter;
+import com.zbiljic.baseagent.util.BloomFilter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.Test;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClassNamePrefilterTest {
+
+  @Test
+  public void testWellKnownIgnored() throws Exception {
+    assertTrue(ClassNamePrefilter.isWellKnownIgnored("net/bytebuddy/ByteBuddy"));
+    assertTrue(ClassNamePrefilter.isWellKnownIgnored("org/slf4j/Logger"));
+    assertFalse(ClassNamePrefilter.isWellKnownIgnored("org/slf4j/impl/StaticLoggerBinder"));
+    assertTrue(ClassNamePrefilter.isWellKnownIgnored("org/objectweb/asm/ClassReader"));
+    assertTrue(ClassNamePrefilter.isWellKnownIgnored("com/zbiljic/baseagent/BaseAgent"));
+    assertFalse(ClassNamePrefilter.isWellKnownIgnored("com/zbiljic/baseagent/instrument/ClassNamePrefilterTest"));
+    assertFalse(ClassNamePrefilter.isWellKnownIgnored("com/example/Service"));
+
+    assertTrue(ClassNamePrefilter.wellKnownIgnored().matches(new TypeDescription.ForLoadedType(AgentBuilder.class)));
+    assertFalse(ClassNamePrefilter.wellKnownIgnored().matches(new TypeDescription.ForLoadedType(String.class)));
+  }
+
+  @Test
+  public void testWithoutNamedTypes() throws Exception {
+    ClassNamePrefilter prefilter = ClassNamePrefilter.of(Arrays.asList(new NamedTypes("com.example.Service"),
+      new Unnamed()));
+
+    assertFalse(prefilter.isFilteringTypeNames());
+    assertFalse(prefilter.rejects(null, "com/example/Service"));
+    assertFalse(prefilter.rejects(null, "com/example/Other"));
+    assertTrue(prefilter.rejects(null, "net/bytebuddy/ByteBuddy"));
+  }
+
+  @Test
+  public void testWithNamedTypes() throws Exception {
+    ClassNamePrefilter prefilter = ClassNamePrefilter.of(Arrays.asList(new NamedTypes("com.example.Service"),
+      new NamedTypes("com.example.Service$Inner", "org.example.Client")));
+
+    assertTrue(prefilter.isFilteringTypeNames());
+    assertFalse(prefilter.rejects(null, "com/example/Service"));
+    assertFalse(prefilter.rejects(null, "com/example/Service$Inner"));
+    assertFalse(prefilter.rejects(null, "org/example/Client"));
+    assertTrue(prefilter.rejects(null, "java/lang/String"));
+  }
+
+  @Test
+  public void testDecorator() throws Exception {
+    ClassNamePrefilter prefilter = ClassNamePrefilter.of(Collections.singletonList(new NamedTypes("com.example.Service")));
+    final List<String> transformed = new ArrayList<String>();
+    ClassFileTransformer transformer = prefilter.getDecorator().decorate(new ClassFileTransformer() {
+      @Override
+      public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                              ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        transformed.add(className);
+        return new byte[]{1};
+      }
+    });
+
+    assertNull(transformer.transform(null, "com/example/Other", null, null, new byte[0]));
+    assertArrayEquals(new byte[]{1}, transformer.transform(null, "com/example/Service", null, null, new byte[0]));
+    assertEquals(Collections.singletonList("com/example/Service"), transformed);
+    assertEquals(1, prefilter.getRejected());
+    assertEquals(1, prefilter.getPassed());
+  }
+
+  @Test
+  public void testBloomFilterFalsePositives() throws Exception {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      names.add("com/example/Included" + i);
+    }
+    BloomFilter bloomFilter = BloomFilter.of(names, 0.01);
+    for (String name : names) {
+      assertTrue(bloomFilter.mightContain(name));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (bloomFilter.mightContain("com/example/Excluded" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < 300);
+  }
+
+  private static class NamedTypes implements NamedTypesInstrumenter {
+
+    private final Collection<String> typeNames;
+
+    NamedTypes(String... typeNames) {
+      this.typeNames = Arrays.asList(typeNames);
+    }
+
+    @Override
+    public Collection<String> getTypeNames() {
+      return typeNames;
+    }
+
+    @Override
+    public AgentBuilder instrument(AgentBuilder agentBuilder) {
+      return agentBuilder;
+    }
+  }
+
+  private static class Unnamed implements Instrumenter {
+
+    @Override
+    public AgentBuilder instrument(AgentBuilder agentBuilder) {
+      return agentBuilder;
+    }
+  }
+}
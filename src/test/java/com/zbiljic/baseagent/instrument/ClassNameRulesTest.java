@@ -0,0 +1,149 @@
+package com.zbiljic.baseagent.instrument;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassNameRulesTest {
+
+  @Test
+  public void testExcludeContaining() throws Exception {
+    ClassNameRules rules = ClassNameRules.compile(
+      Collections.<String>emptyList(),
+      Collections.<String>emptyList(),
+      Arrays.asList("$$EnhancerByCGLIB", "CGLIB$$", "javassist"));
+
+    assertTrue(rules.shouldIgnore("com.example.Service$$EnhancerByCGLIB$$1"));
+    assertTrue(rules.shouldIgnore("com.example.Service_CGLIB$$Fast"));
+    assertTrue(rules.shouldIgnore("org.javassist.Foo"));
+    assertFalse(rules.shouldIgnore("com.example.Service"));
+    assertFalse(rules.shouldIgnore(""));
+  }
+
+  @Test
+  public void testMoreSpecificExclude() throws Exception {
+    ClassNameRules rules = ClassNameRules.compile(
+      Arrays.asList("com.example", "org.example"),
+      Arrays.asList("com.example.internal", "com", "org.other"),
+      Collections.<String>emptyList());
+
+    assertTrue(rules.shouldIgnore("com.example.internal.Foo"));
+    assertFalse(rules.shouldIgnore("com.example.Foo"));
+    assertFalse(rules.shouldIgnore("org.example.Foo"));
+    assertFalse(rules.shouldIgnore("org.other.Foo"));
+    assertFalse(rules.shouldIgnore("net.example.Foo"));
+  }
+
+  @Test
+  public void testFirstIncludeWins() throws Exception {
+    ClassNameRules broadFirst = ClassNameRules.compile(
+      Arrays.asList("com.a", "com.a.b"),
+      Arrays.asList("com.a.b.c"),
+      Collections.<String>emptyList());
+    ClassNameRules narrowFirst = ClassNameRules.compile(
+      Arrays.asList("com.a.b.c", "com.a"),
+      Arrays.asList("com.a.b"),
+      Collections.<String>emptyList());
+
+    assertTrue(broadFirst.shouldIgnore("com.a.b.c.Foo"));
+    assertFalse(narrowFirst.shouldIgnore("com.a.b.c.Foo"));
+    assertTrue(narrowFirst.shouldIgnore("com.a.b.Foo"));
+  }
+
+  @Test
+  public void testEmptyEntries() throws Exception {
+    assertTrue(ClassNameRules.compile(
+      Collections.<String>emptyList(),
+      Collections.<String>emptyList(),
+      Arrays.asList("")).shouldIgnore("com.example.Foo"));
+    assertTrue(ClassNameRules.compile(
+      Arrays.asList(""),
+      Arrays.asList("com"),
+      Collections.<String>emptyList()).shouldIgnore("com.example.Foo"));
+    assertFalse(ClassNameRules.compile(
+      Arrays.asList("com"),
+      Arrays.asList("com"),
+      Collections.<String>emptyList()).shouldIgnore("com.example.Foo"));
+  }
+
+  @Test
+  public void testNonAsciiNames() throws Exception {
+    ClassNameRules rules = ClassNameRules.compile(
+      Arrays.asList("com.\u00e9xample"),
+      Arrays.asList("com.\u00e9xample.\u00fcber"),
+      Arrays.asList("\u00df"));
+
+    assertTrue(rules.shouldIgnore("com.\u00e9xample.\u00fcber.Foo"));
+    assertTrue(rules.shouldIgnore("com.example.Stra\u00dfe"));
+    assertFalse(rules.shouldIgnore("com.\u00e9xample.Foo"));
+  }
+
+  @Test
+  public void testEquivalenceWithLinearScan() throws Exception {
+    final Random random = new Random(42);
+    final String alphabet = "ab.$\u00e9";
+
+    for (int round = 0; round < 500; round++) {
+      List<String> includes = randomStrings(random, alphabet, random.nextInt(8), 6);
+      List<String> excludes = randomStrings(random, alphabet, random.nextInt(8), 8);
+      List<String> excludeContaining = randomStrings(random, alphabet, random.nextInt(4), 4);
+      if (random.nextInt(10) > 0) {
+        excludeContaining.remove("");
+      }
+
+      ClassNameRules rules = ClassNameRules.compile(includes, excludes, excludeContaining);
+
+      for (String className : randomStrings(random, alphabet, 200, 12)) {
+        assertEquals("includes=" + includes + " excludes=" + excludes
+            + " excludeContaining=" + excludeContaining + " className=" + className,
+          linearScan(includes, excludes, excludeContaining, className),
+          rules.shouldIgnore(className));
+      }
+    }
+  }
+
+  private static List<String> randomStrings(Random random, String alphabet, int count, int maxLength) {
+    List<String> strings = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(maxLength + 1);
+      for (int j = 0; j < length; j++) {
+        sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      strings.add(sb.toString());
+    }
+    return strings;
+  }
+
+  /**
+   * The rule evaluation {@link ConfigurationClassNameMatcher} used before the rules were compiled.
+   */
+  private static boolean linearScan(Collection<String> includes, Collection<String> excludes,
+                                    Collection<String> excludeContaining, String className) {
+    for (String exclude : excludeContaining) {
+      if (className.contains(exclude)) {
+        return true;
+      }
+    }
+    for (String include : includes) {
+      if (className.startsWith(include)) {
+        for (String exclude : excludes) {
+          if (exclude.length() > include.length() && exclude.startsWith(include) && className.startsWith(exclude)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+    return false;
+  }
+}
@@ -13,6 +13,8 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static net.bytebuddy.matcher.ElementMatchers.any;
 import static net.bytebuddy.matcher.ElementMatchers.is;
@@ -28,7 +30,7 @@ public class FileExportingListenerTest {
 
   @AfterClass
   public static void tearDown() throws Exception {
-    for (String exportedClass : FileExportingListener.exportedClasses) {
+    for (String exportedClass : AgentAttacher.getClassFileExporter().getExportedClasses()) {
       new File(exportedClass).delete();
     }
   }
@@ -36,10 +38,14 @@ public class FileExportingListenerTest {
   @Test
   public void testExportIncludedClasses() throws Exception {
     new ExportMe();
-    assertEquals(1, FileExportingListener.exportedClasses.size());
-    assertTrue(FileExportingListener.exportedClasses.get(0).contains(ExportMe.class.getName()));
-    final File exportedClass = new File(FileExportingListener.exportedClasses.get(0));
+    final ClassFileExporter exporter = AgentAttacher.getClassFileExporter();
+    assertTrue(exporter.flush(10, TimeUnit.SECONDS));
+    final List<String> exportedClasses = exporter.getExportedClasses();
+    assertEquals(1, exportedClasses.size());
+    assertTrue(exportedClasses.get(0).contains(ExportMe.class.getName()));
+    final File exportedClass = new File(exportedClasses.get(0));
     assertTrue(exportedClass.exists());
+    assertEquals(0, exporter.getDropped());
   }
 
   private static class ExportMe {
@@ -0,0 +1,104 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.TriggeredInstrumenter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import org.junit.Test;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LazyActivationTransformerTest {
+
+  private final List<TriggeredInstrumenter> activated = new ArrayList<TriggeredInstrumenter>();
+
+  private final LazyActivationTransformer.Activator activator = new LazyActivationTransformer.Activator() {
+    @Override
+    public ClassFileTransformer activate(TriggeredInstrumenter instrumenter) {
+      activated.add(instrumenter);
+      return new AppendingTransformer((byte) activated.size());
+    }
+  };
+
+  @Test
+  public void testActivatesOnceOnTrigger() throws Exception {
+    TriggeredInstrumenter byClass = new Triggered("org.example.Driver");
+    TriggeredInstrumenter byPackage = new Triggered("org.example.");
+    LazyActivationTransformer transformer = new LazyActivationTransformer(
+      Arrays.asList(byClass, byPackage), activator);
+
+    assertNull(transformer.transform(null, "org/other/Driver", null, null, new byte[0]));
+    assertNull(transformer.transform(null, "org/examples/Driver", null, null, new byte[0]));
+    assertTrue(activated.isEmpty());
+
+    byte[] transformed = transformer.transform(null, "org/example/Driver", null, null, new byte[0]);
+    assertEquals(Arrays.asList(byClass, byPackage), activated);
+    assertArrayEquals(new byte[]{1, 2}, transformed);
+    assertTrue(transformer.isDone());
+
+    assertNull(transformer.transform(null, "org/example/Driver", null, null, new byte[0]));
+    assertEquals(2, activated.size());
+  }
+
+  @Test
+  public void testClaimLoadedTriggers() throws Exception {
+    TriggeredInstrumenter bySubPackage = new Triggered("org.example.sub.");
+    TriggeredInstrumenter other = new Triggered("org.other.Driver");
+    LazyActivationTransformer transformer = new LazyActivationTransformer(
+      Arrays.asList(bySubPackage, other), activator);
+
+    assertTrue(transformer.claimTriggeredBy("org.example.Driver").isEmpty());
+    assertEquals(Collections.singletonList(bySubPackage), transformer.claimTriggeredBy("org.example.sub.deep.Driver"));
+    assertTrue(transformer.claimTriggeredBy("org.example.sub.Driver").isEmpty());
+    assertFalse(transformer.isDone());
+
+    assertNull(transformer.transform(null, "org/example/sub/Driver", null, null, new byte[0]));
+    assertTrue(activated.isEmpty());
+  }
+
+  private static class Triggered implements TriggeredInstrumenter {
+
+    private final String trigger;
+
+    Triggered(String trigger) {
+      this.trigger = trigger;
+    }
+
+    @Override
+    public Collection<String> getTriggers() {
+      return Collections.singletonList(trigger);
+    }
+
+    @Override
+    public AgentBuilder instrument(AgentBuilder agentBuilder) {
+      return agentBuilder;
+    }
+  }
+
+  private static class AppendingTransformer implements ClassFileTransformer {
+
+    private final byte value;
+
+    AppendingTransformer(byte value) {
+      this.value = value;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+      byte[] transformed = Arrays.copyOf(classfileBuffer, classfileBuffer.length + 1);
+      transformed[classfileBuffer.length] = value;
+      return transformed;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.configuration.ConfigurationFactory;
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MatchIndexTest {
+
+  private static final byte[] TRANSFORMED = {1};
+
+  private final ClassLoader loader = getClass().getClassLoader();
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("baseagent-match-index", ".txt");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testReplaysIgnoredTypes() throws Exception {
+    MatchIndex recording = MatchIndex.open(file, "fingerprint");
+    assertFalse(recording.isReplaying());
+    assertFalse(recording.rejects(loader, "java/lang/Object"));
+    recording.onIgnored(TypeDescription.OBJECT, loader, null, false);
+    recording.onIgnored(TypeDescription.STRING, loader, null, false);
+    recording.onTransformation(TypeDescription.STRING, null, null, false, null);
+    recording.onIgnored(new TypeDescription.ForLoadedType(Integer.class), loader, null, false);
+    recording.onError(Integer.class.getName(), loader, null, false, new RuntimeException());
+    recording.write();
+
+    MatchIndex replaying = MatchIndex.open(file, "fingerprint");
+    assertTrue(replaying.isReplaying());
+    assertTrue(replaying.rejects(loader, "java/lang/Object"));
+    // ignored by one class loader, transformed when loaded by another one
+    assertTrue(replaying.rejects(loader, "java/lang/String"));
+    assertFalse(replaying.rejects(null, "java/lang/String"));
+    assertFalse(replaying.rejects(new ClassLoader() {
+    }, "java/lang/Object"));
+    // failed transformations are never skipped
+    assertFalse(replaying.rejects(loader, "java/lang/Integer"));
+    assertFalse(replaying.rejects(loader, "java/lang/Long"));
+
+    // what was replayed is recorded again
+    replaying.write();
+    assertTrue(MatchIndex.open(file, "fingerprint").rejects(loader, "java/lang/Object"));
+  }
+
+  @Test
+  public void testReplaysOnlyClassLoadersCoveredByFingerprint() throws Exception {
+    ClassLoader custom = new ClassLoader(loader) {
+    };
+    MatchIndex recording = MatchIndex.open(file, "fingerprint");
+    recording.onIgnored(TypeDescription.OBJECT, custom, null, false);
+    recording.onIgnored(TypeDescription.STRING, null, null, false);
+    recording.write();
+
+    MatchIndex replaying = MatchIndex.open(file, "fingerprint");
+    assertFalse(replaying.rejects(custom, "java/lang/Object"));
+    assertTrue(replaying.rejects(null, "java/lang/String"));
+    assertEquals("MatchIndex{replayedMatches=0, replayedIgnores=1, rejected=0, recordedMatches=0, recordedIgnores=0}",
+      replaying.toString());
+  }
+
+  @Test
+  public void testInvalidatedByFingerprint() throws Exception {
+    MatchIndex recording = MatchIndex.open(file, "fingerprint");
+    recording.onIgnored(TypeDescription.OBJECT, loader, null, false);
+    recording.write();
+
+    MatchIndex changed = MatchIndex.open(file, "other");
+    assertFalse(changed.isReplaying());
+    assertFalse(changed.rejects(loader, "java/lang/Object"));
+  }
+
+  @Test
+  public void testFingerprintCoversRules() throws Exception {
+    BaseAgentConfiguration configuration = ConfigurationFactory.create(new Properties()).bind(BaseAgentConfiguration.class);
+    List<Instrumenter> instrumenters = Collections.emptyList();
+    Collection<String> none = Collections.emptyList();
+    ClassNameRules rules = ConfigurationClassNameMatcher.compileRules(Arrays.asList("org.example."), none, none);
+    ClassNameRules wider = ConfigurationClassNameMatcher.compileRules(Arrays.asList("org."), none, none);
+
+    assertEquals(MatchIndex.fingerprint(instrumenters, configuration, rules),
+      MatchIndex.fingerprint(instrumenters, configuration, rules));
+    assertFalse(MatchIndex.fingerprint(instrumenters, configuration, rules)
+      .equals(MatchIndex.fingerprint(instrumenters, configuration, wider)));
+  }
+
+  @Test
+  public void testRulesChangeStopsReplaying() throws Exception {
+    MatchIndex recording = MatchIndex.open(file, "fingerprint");
+    recording.onIgnored(TypeDescription.OBJECT, loader, null, false);
+    recording.write();
+    MatchIndex replaying = MatchIndex.open(file, "fingerprint");
+    assertTrue(replaying.rejects(loader, "java/lang/Object"));
+
+    replaying.rulesChanged();
+
+    assertFalse(replaying.isReplaying());
+    assertFalse(replaying.rejects(loader, "java/lang/Object"));
+    file.delete();
+    replaying.write();
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testDecoratorRejectsReplayedIgnoredTypes() throws Exception {
+    MatchIndex recording = MatchIndex.open(file, "fingerprint");
+    recording.onIgnored(TypeDescription.OBJECT, loader, null, false);
+    recording.write();
+    MatchIndex replaying = MatchIndex.open(file, "fingerprint");
+
+    ClassFileTransformer transformer = replaying.getDecorator().decorate(new ClassFileTransformer() {
+      @Override
+      public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                              ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        return TRANSFORMED;
+      }
+    });
+
+    assertNull(transformer.transform(loader, "java/lang/Object", null, null, new byte[0]));
+    assertArrayEquals(TRANSFORMED, transformer.transform(loader, "java/lang/Number", null, null, new byte[0]));
+    assertEquals(1, replaying.getRejected());
+  }
+
+  @Test
+  public void testHash() throws Exception {
+    assertEquals(MatchIndex.hash("java/lang/Object", "bootstrap"), MatchIndex.hash("java.lang.Object", "bootstrap"));
+    for (long hash : new long[]{0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, MatchIndex.hash("a", "b")}) {
+      assertEquals(hash, MatchIndex.parseHash(Long.toHexString(hash)));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.NamedTypesInstrumenter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class ParallelMatchingDiscoveryStrategyTest {
+
+  private static final Class<?>[] TYPES = {String.class, int[].class, Map.class, Integer.class, AgentBuilder.class};
+
+  @Test
+  public void testDropsIgnoredClassesInOrder() throws Exception {
+    Class<?>[] loaded = new Class<?>[10 * ParallelMatchingDiscoveryStrategy.MIN_PARTITION_SIZE + 7];
+    for (int i = 0; i < loaded.length; i++) {
+      loaded[i] = TYPES[i % TYPES.length];
+    }
+    ClassNamePrefilter prefilter = ClassNamePrefilter.of(Collections.singletonList(new NamedTypesInstrumenter() {
+      @Override
+      public Collection<String> getTypeNames() {
+        return Arrays.asList("java.lang.String", "java.lang.Integer", "net.bytebuddy.agent.builder.AgentBuilder");
+      }
+
+      @Override
+      public AgentBuilder instrument(AgentBuilder agentBuilder) {
+        return agentBuilder;
+      }
+    }));
+
+    List<Class<?>> parallel = resolve(new ParallelMatchingDiscoveryStrategy(
+      AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.SinglePass.INSTANCE, prefilter, 4), loaded);
+    List<Class<?>> serial = resolve(new ParallelMatchingDiscoveryStrategy(
+      AgentBuilder.RedefinitionStrategy.DiscoveryStrategy.SinglePass.INSTANCE, prefilter, 1), loaded);
+
+    // arrays are not modifiable, Map is not named and Byte Buddy's own types are always ignored
+    assertEquals(2 * (loaded.length / TYPES.length) + 1, parallel.size());
+    assertEquals(serial, parallel);
+    for (int i = 0; i < parallel.size(); i++) {
+      assertSame(i % 2 == 0 ? String.class : Integer.class, parallel.get(i));
+    }
+  }
+
+  private static List<Class<?>> resolve(AgentBuilder.RedefinitionStrategy.DiscoveryStrategy strategy,
+                                        Class<?>[] loaded) {
+    Iterator<Iterable<Class<?>>> iterator = strategy.resolve(instrumentation(loaded)).iterator();
+    List<Class<?>> resolved = new ArrayList<Class<?>>();
+    for (Class<?> type : iterator.next()) {
+      resolved.add(type);
+    }
+    assertFalse(iterator.hasNext());
+    return resolved;
+  }
+
+  private static Instrumentation instrumentation(final Class<?>[] loaded) {
+    return (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(),
+      new Class<?>[]{Instrumentation.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if (method.getName().equals("getAllLoadedClasses")) {
+            return loaded.clone();
+          } else if (method.getName().equals("isModifiableClass")) {
+            return !((Class<?>) args[0]).isArray();
+          }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+}
@@ -0,0 +1,112 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.BaseAgentConfiguration;
+import com.zbiljic.baseagent.configuration.ConfigurationFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RulesFileWatcherTest {
+
+  private ClassNameRules originalRules;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    originalRules = ConfigurationClassNameMatcher.getRules();
+    file = File.createTempFile("baseagent-rules", ".properties");
+  }
+
+  @After
+  public void tearDown() {
+    ConfigurationClassNameMatcher.swapRules(originalRules);
+    file.delete();
+  }
+
+  @Test
+  public void testFileRulesTakePrecedence() throws Exception {
+    Properties agentProperties = new Properties();
+    agentProperties.setProperty(RulesFileWatcher.INCLUDE, "org.example.");
+    agentProperties.setProperty(RulesFileWatcher.EXCLUDE, "org.example.internal.");
+    BaseAgentConfiguration configuration = ConfigurationFactory.create(agentProperties).bind(BaseAgentConfiguration.class);
+
+    Properties fileProperties = new Properties();
+    fileProperties.setProperty(RulesFileWatcher.EXCLUDE_CONTAINING, "Generated");
+    ClassNameRules rules = RulesFileWatcher.read(fileProperties, configuration);
+
+    assertFalse(rules.shouldIgnore("org.example.Service"));
+    assertTrue(rules.shouldIgnore("org.example.internal.Service"));
+    assertTrue(rules.shouldIgnore("org.example.GeneratedService"));
+
+    fileProperties.setProperty(RulesFileWatcher.EXCLUDE, "");
+    rules = RulesFileWatcher.read(fileProperties, configuration);
+
+    assertFalse(rules.shouldIgnore("org.example.internal.Service"));
+  }
+
+  @Test
+  public void testRetransformsOnlyChangedClasses() throws Exception {
+    Properties agentProperties = new Properties();
+    agentProperties.setProperty(RulesFileWatcher.INCLUDE, "com.zbiljic.baseagent.");
+    BaseAgentConfiguration configuration = ConfigurationFactory.create(agentProperties).bind(BaseAgentConfiguration.class);
+    final List<Class<?>> retransformed = new ArrayList<Class<?>>();
+    RulesFileWatcher watcher = new RulesFileWatcher(file, configuration,
+      instrumentation(retransformed, String.class, ClassNameRules.class, RulesFileWatcher.class), null);
+
+    write(RulesFileWatcher.EXCLUDE + "=\n");
+    watcher.init();
+    assertFalse(ConfigurationClassNameMatcher.getRules().shouldIgnore(RulesFileWatcher.class.getName()));
+    assertEquals(-1, watcher.checkForChanges());
+
+    write(RulesFileWatcher.EXCLUDE + "=com.zbiljic.baseagent.instrument.Rules\n");
+    assertEquals(1, watcher.checkForChanges());
+    assertEquals(Collections.<Class<?>>singletonList(RulesFileWatcher.class), retransformed);
+    assertTrue(ConfigurationClassNameMatcher.getRules().shouldIgnore(RulesFileWatcher.class.getName()));
+    assertEquals(-1, watcher.checkForChanges());
+  }
+
+  private void write(String content) throws IOException {
+    OutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(content.getBytes("ISO-8859-1"));
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private static Instrumentation instrumentation(final List<Class<?>> retransformed, final Class<?>... loaded) {
+    return (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(),
+      new Class<?>[]{Instrumentation.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if (method.getName().equals("getAllLoadedClasses")) {
+            return loaded.clone();
+          } else if (method.getName().equals("isModifiableClass")) {
+            return true;
+          } else if (method.getName().equals("retransformClasses")) {
+            retransformed.addAll(Arrays.asList((Class<?>[]) args[0]));
+            return null;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+}
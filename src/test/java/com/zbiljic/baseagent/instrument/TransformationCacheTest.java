@@ -0,0 +1,168 @@
+package com.zbiljic.baseagent.instrument;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TransformationCacheTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("baseagent-cache", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    delete(directory);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    TransformationCache cache = new TransformationCache(directory, "fingerprint");
+    byte[] original = {1, 2, 3};
+    byte[] transformed = {4, 5, 6, 7};
+
+    String key = cache.key("com/example/Foo", null, original);
+    assertNull(cache.get(key));
+
+    cache.put(key, transformed);
+    TransformationCache.Entry entry = cache.get(key);
+    assertNotNull(entry);
+    assertArrayEquals(transformed, entry.getTransformed());
+
+    String unchangedKey = cache.key("com/example/Bar", null, original);
+    cache.put(unchangedKey, null);
+    assertNotNull(cache.get(unchangedKey));
+    assertNull(cache.get(unchangedKey).getTransformed());
+
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(2, cache.getStores());
+  }
+
+  @Test
+  public void testKeyDependsOnInputs() throws Exception {
+    TransformationCache cache = new TransformationCache(directory, "fingerprint");
+    byte[] original = {1, 2, 3};
+
+    String key = cache.key("com/example/Foo", null, original);
+    assertEquals(key, cache.key("com/example/Foo", null, original.clone()));
+    assertNotEquals(key, cache.key("com/example/Foo", null, new byte[]{1, 2, 4}));
+    assertNotEquals(key, cache.key("com/example/Bar", null, original));
+    assertNotEquals(key, cache.key("com/example/Foo", getClass().getClassLoader(), original));
+    assertNotEquals(key, new TransformationCache(directory, "other").key("com/example/Foo", null, original));
+  }
+
+  @Test
+  public void testCorruptEntryIsDiscarded() throws Exception {
+    TransformationCache cache = new TransformationCache(directory, "fingerprint");
+    String key = cache.key("com/example/Foo", null, new byte[]{1});
+    cache.put(key, new byte[]{4, 5, 6, 7});
+
+    File file = new File(new File(directory, key.substring(0, 2)), key.substring(2));
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.seek(randomAccessFile.length() - 1);
+      randomAccessFile.write(42);
+    } finally {
+      randomAccessFile.close();
+    }
+
+    assertNull(cache.get(key));
+    assertEquals(1, cache.getCorrupted());
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testTruncatedEntryIsDiscarded() throws Exception {
+    TransformationCache cache = new TransformationCache(directory, "fingerprint");
+    String key = cache.key("com/example/Foo", null, new byte[]{1});
+
+    File file = new File(new File(directory, key.substring(0, 2)), key.substring(2));
+    file.getParentFile().mkdirs();
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(new byte[]{(byte) 0xBA, 0x5E});
+    } finally {
+      outputStream.close();
+    }
+
+    assertNull(cache.get(key));
+    assertEquals(1, cache.getCorrupted());
+  }
+
+  @Test
+  public void testEntryDeclaringOversizedPayloadIsDiscarded() throws Exception {
+    TransformationCache cache = new TransformationCache(directory, "fingerprint");
+    String key = cache.key("com/example/Foo", null, new byte[]{1});
+    cache.put(key, new byte[]{4, 5, 6, 7});
+
+    File file = new File(new File(directory, key.substring(0, 2)), key.substring(2));
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      // the payload length follows the magic, version and kind
+      randomAccessFile.seek(12);
+      randomAccessFile.writeInt(Integer.MAX_VALUE);
+    } finally {
+      randomAccessFile.close();
+    }
+
+    assertNull(cache.get(key));
+    assertEquals(1, cache.getCorrupted());
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testNestedTransformationKeepsOuterCacheability() throws Exception {
+    final TransformationCache cache = new TransformationCache(directory, "fingerprint");
+    final ClassFileTransformer[] transformer = new ClassFileTransformer[1];
+    transformer[0] = cache.getDecorator().decorate(new ClassFileTransformer() {
+      @Override
+      public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                              ProtectionDomain protectionDomain, byte[] classfileBuffer)
+        throws IllegalClassFormatException {
+        if (className.equals("com/example/Outer")) {
+          transformer[0].transform(loader, "com/example/Inner", null, null, classfileBuffer);
+        } else if (className.equals("com/example/Uncacheable")) {
+          transformer[0].transform(loader, "com/example/Inner", null, null, classfileBuffer);
+          TransformationCache.notCacheable();
+        }
+        return new byte[]{4, 5, 6};
+      }
+    });
+
+    transformer[0].transform(null, "com/example/Outer", null, null, new byte[]{1});
+    assertEquals(2, cache.getStores());
+    transformer[0].transform(null, "com/example/Uncacheable", null, null, new byte[]{2});
+    assertEquals(3, cache.getStores());
+    assertNull(cache.get(cache.key("com/example/Uncacheable", null, new byte[]{2})));
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
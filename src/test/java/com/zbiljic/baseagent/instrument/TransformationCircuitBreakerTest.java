@@ -0,0 +1,199 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransformationCircuitBreakerTest {
+
+  @Test
+  public void testTripsTypeAfterStrikes() throws Exception {
+    TransformationCircuitBreaker circuitBreaker = new TransformationCircuitBreaker(null, 2, 60000, 1, 0, null);
+
+    fail(circuitBreaker, "java.lang.Object");
+    assertFalse(circuitBreaker.isTripped("java.lang.Object"));
+    assertFalse(circuitBreaker.trippedTypes().matches(TypeDescription.OBJECT));
+    fail(circuitBreaker, "java.lang.Object");
+    assertTrue(circuitBreaker.isTripped("java.lang.Object"));
+    assertTrue(circuitBreaker.trippedTypes().matches(TypeDescription.OBJECT));
+    assertFalse(circuitBreaker.isTripped("java.lang.String"));
+  }
+
+  @Test
+  public void testSlowTransformationsAreStrikes() throws Exception {
+    TransformationCircuitBreaker circuitBreaker = new TransformationCircuitBreaker(null, 2, 0, 1, 0, null);
+
+    for (int i = 0; i < 2; i++) {
+      circuitBreaker.onDiscovery("Slow", null, null, false);
+      circuitBreaker.onComplete("Slow", null, null, false);
+    }
+
+    assertTrue(circuitBreaker.isTripped("Slow"));
+  }
+
+  @Test
+  public void testTripsInstrumenterAfterErrors() throws Exception {
+    TransformationStatistics statistics = new TransformationStatistics();
+    InstrumenterStatistics failing = statistics.register("failing");
+    InstrumenterStatistics healthy = statistics.register("healthy");
+    AgentBuilder.Listener listener = new AgentBuilder.Listener.Compound(statistics.getListener(),
+      new TransformationCircuitBreaker(statistics, 10, 60000, 2, 0, null));
+
+    for (int i = 0; i < 2; i++) {
+      listener.onDiscovery("Type" + i, null, null, false);
+      statistics.evaluated(healthy);
+      statistics.matched(failing);
+      listener.onError("Type" + i, null, null, false, new RuntimeException());
+      listener.onComplete("Type" + i, null, null, false);
+    }
+
+    assertTrue(failing.isTripped());
+    assertFalse(healthy.isTripped());
+  }
+
+  @Test
+  public void testTripsInstrumenterSpendingTooMuchTimeWithinWindow() throws Exception {
+    File file = File.createTempFile("baseagent-circuit-breaker", ".txt");
+    file.delete();
+    try {
+      TransformationStatistics statistics = new TransformationStatistics();
+      InstrumenterStatistics steady = statistics.register("steady");
+      TransformationCircuitBreaker circuitBreaker =
+        new TransformationCircuitBreaker(statistics, 10, 60000, 10, 10, 200, file);
+
+      steady.latency.record(TimeUnit.MILLISECONDS.toNanos(6));
+      complete(circuitBreaker);
+      Thread.sleep(250);
+      complete(circuitBreaker);
+      // more than the budget in total, but not within the current window
+      steady.latency.record(TimeUnit.MILLISECONDS.toNanos(6));
+      complete(circuitBreaker);
+      assertFalse(steady.isTripped());
+
+      steady.latency.record(TimeUnit.MILLISECONDS.toNanos(5));
+      complete(circuitBreaker);
+      assertTrue(steady.isTripped());
+      // only Instrumenters which failed are remembered
+      assertFalse(new TransformationCircuitBreaker(null, 1, 60000, 1, 0, file).isInstrumenterTripped("steady"));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testTrippedInstrumenterMatchesNothing() throws Exception {
+    final String typeName = "com.example.Tripped";
+    byte[] bytes = new ByteBuddy().subclass(Object.class).name(typeName).make().getBytes();
+    TransformationStatistics statistics = new TransformationStatistics();
+    ClassFileTransformer transformer = statistics.instrument(new Instrumenter() {
+      @Override
+      public AgentBuilder instrument(AgentBuilder agentBuilder) {
+        return agentBuilder.type(named(typeName)).transform(new AgentBuilder.Transformer() {
+          @Override
+          public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription,
+                                                  ClassLoader classLoader, JavaModule module) {
+            return builder;
+          }
+        });
+      }
+    }, new AgentBuilder.Default()).makeRaw();
+
+    assertNotNull(transformer.transform(getClass().getClassLoader(), typeName.replace('.', '/'), null, null, bytes));
+    statistics.getInstrumenterStatistics().get(0).trip();
+    assertNull(transformer.transform(getClass().getClassLoader(), typeName.replace('.', '/'), null, null, bytes));
+  }
+
+  @Test
+  public void testTrippedInstrumenterMatchesNothingWhenFused() throws Exception {
+    final String typeName = "com.example.TrippedFused";
+    byte[] bytes = new ByteBuddy().subclass(Object.class).name(typeName).make().getBytes();
+    TransformationStatistics statistics = new TransformationStatistics();
+    Instrumenter instrumenter = new Instrumenter() {
+      @Override
+      public AgentBuilder instrument(AgentBuilder agentBuilder) {
+        return Registry.type(named(typeName)).visit(AsmVisitorWrapper.NoOp.INSTANCE).register(agentBuilder);
+      }
+    };
+    Registry.Fusion fusion = Registry.Fusion.begin();
+    AgentBuilder agentBuilder = statistics.instrument(instrumenter, new AgentBuilder.Default(), fusion);
+    agentBuilder = statistics.instrument(instrumenter, agentBuilder, fusion);
+    ClassFileTransformer transformer = fusion.end(agentBuilder).makeRaw();
+    assertEquals(1, fusion.getTransformations());
+    InstrumenterStatistics tripped = statistics.getInstrumenterStatistics().get(0);
+    InstrumenterStatistics healthy = statistics.getInstrumenterStatistics().get(1);
+
+    AgentBuilder.Listener listener = statistics.getListener();
+    transform(listener, transformer, typeName, bytes);
+    assertEquals(1, tripped.getMatched());
+    assertEquals(1, healthy.getMatched());
+
+    tripped.trip();
+    transform(listener, transformer, typeName, bytes);
+    assertEquals(1, tripped.getMatched());
+    assertEquals(2, healthy.getMatched());
+
+    healthy.trip();
+    assertNull(transformer.transform(getClass().getClassLoader(), typeName.replace('.', '/'), null, null, bytes));
+  }
+
+  private void transform(AgentBuilder.Listener listener, ClassFileTransformer transformer, String typeName,
+                         byte[] bytes) throws Exception {
+    listener.onDiscovery(typeName, getClass().getClassLoader(), null, false);
+    assertNotNull(transformer.transform(getClass().getClassLoader(), typeName.replace('.', '/'), null, null, bytes));
+    listener.onComplete(typeName, getClass().getClassLoader(), null, false);
+  }
+
+  @Test
+  public void testRemembersTrippedTypesAndInstrumenters() throws Exception {
+    File file = File.createTempFile("baseagent-circuit-breaker", ".txt");
+    file.delete();
+    try {
+      TransformationCircuitBreaker circuitBreaker = new TransformationCircuitBreaker(null, 1, 60000, 1, 0, file);
+      fail(circuitBreaker, "com.example.Bad");
+      Instrumenter instrumenter = new Instrumenter() {
+        @Override
+        public AgentBuilder instrument(AgentBuilder agentBuilder) {
+          throw new IllegalStateException();
+        }
+      };
+      circuitBreaker.instrumenterFailed(instrumenter, new IllegalStateException());
+
+      TransformationCircuitBreaker restarted = new TransformationCircuitBreaker(null, 1, 60000, 1, 0, file);
+      assertTrue(restarted.isTripped("com.example.Bad"));
+      assertTrue(restarted.isInstrumenterTripped(instrumenter.getClass().getName()));
+      assertEquals(1, restarted.getTrippedTypes().size());
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void complete(TransformationCircuitBreaker circuitBreaker) {
+    for (int i = 0; i < 64; i++) {
+      circuitBreaker.onDiscovery("Type" + i, null, null, false);
+      circuitBreaker.onComplete("Type" + i, null, null, false);
+    }
+  }
+
+  private static void fail(TransformationCircuitBreaker circuitBreaker, String typeName) {
+    circuitBreaker.onDiscovery(typeName, null, null, false);
+    circuitBreaker.onError(typeName, null, null, false, new RuntimeException());
+    circuitBreaker.onComplete(typeName, null, null, false);
+  }
+}
@@ -0,0 +1,71 @@
+package com.zbiljic.baseagent.instrument;
+
+import com.zbiljic.baseagent.instrumentation.Instrumenter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransformationStatisticsTest {
+
+  private final TransformationStatistics statistics = new TransformationStatistics();
+
+  @Test
+  public void testInstrumenterReceivesAttributingBuilder() throws Exception {
+    final AgentBuilder[] received = new AgentBuilder[1];
+    AgentBuilder result = statistics.instrument(new Instrumenter() {
+      @Override
+      public AgentBuilder instrument(AgentBuilder agentBuilder) {
+        received[0] = agentBuilder;
+        return agentBuilder.type(named("Foo")).transform(new AgentBuilder.Transformer.ForAdvice());
+      }
+    }, new AgentBuilder.Default());
+
+    assertTrue(Proxy.isProxyClass(received[0].getClass()));
+    assertFalse(Proxy.isProxyClass(result.getClass()));
+    assertTrue(result instanceof AgentBuilder.Identified.Extendable);
+    assertEquals(1, statistics.getInstrumenters().length);
+  }
+
+  @Test
+  public void testAttributesNestedTypes() throws Exception {
+    InstrumenterStatistics first = statistics.register("first");
+    InstrumenterStatistics second = statistics.register("second");
+    AgentBuilder.Listener listener = statistics.getListener();
+
+    listener.onDiscovery("Outer", null, null, false);
+    statistics.evaluated(first);
+    statistics.evaluated(second);
+    statistics.matched(first);
+    {
+      listener.onDiscovery("Inner", null, null, false);
+      statistics.evaluated(second);
+      statistics.matched(second);
+      listener.onError("Inner", null, null, false, new RuntimeException());
+      listener.onComplete("Inner", null, null, false);
+    }
+    listener.onTransformation(TypeDescription.OBJECT, null, null, false, (DynamicType) null);
+    listener.onComplete("Outer", null, null, false);
+
+    assertEquals(2, statistics.getTypesDiscovered());
+    assertEquals(1, statistics.getTypesTransformed());
+    assertEquals(1, statistics.getErrors());
+
+    assertEquals(1, first.getMatched());
+    assertEquals(1, first.getTransformed());
+    assertEquals(0, first.getIgnored());
+    assertEquals(1, first.latency.getCount());
+
+    assertEquals(1, second.getMatched());
+    assertEquals(0, second.getTransformed());
+    assertEquals(1, second.getErrors());
+    assertEquals(1, second.getIgnored());
+  }
+}
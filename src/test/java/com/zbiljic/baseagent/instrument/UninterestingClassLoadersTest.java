@@ -0,0 +1,78 @@
+package com.zbiljic.baseagent.instrument;
+
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UninterestingClassLoadersTest {
+
+  private final TypeDescription type = new TypeDescription.ForLoadedType(Object.class);
+  private final UninterestingClassLoaders uninterestingClassLoaders = new UninterestingClassLoaders(3);
+
+  @Test
+  public void testUninterestingAfterThreshold() throws Exception {
+    ClassLoader classLoader = new URLClassLoader(new URL[0], null);
+    ignore(classLoader, 2);
+    assertFalse(uninterestingClassLoaders.isUninteresting(classLoader));
+    ignore(classLoader, 1);
+    assertTrue(uninterestingClassLoaders.isUninteresting(classLoader));
+    assertTrue(uninterestingClassLoaders.matcher().matches(classLoader));
+    assertEquals(1, uninterestingClassLoaders.getUninterestingCount());
+
+    uninterestingClassLoaders.clear();
+    assertFalse(uninterestingClassLoaders.isUninteresting(classLoader));
+    assertEquals(0, uninterestingClassLoaders.getUninterestingCount());
+  }
+
+  @Test
+  public void testTransformationMakesInteresting() throws Exception {
+    ClassLoader classLoader = new URLClassLoader(new URL[0], null);
+    ignore(classLoader, 1);
+    uninterestingClassLoaders.onTransformation(type, classLoader, null, false, null);
+    ignore(classLoader, 10);
+    assertFalse(uninterestingClassLoaders.isUninteresting(classLoader));
+
+    ClassLoader failingClassLoader = new URLClassLoader(new URL[0], null);
+    uninterestingClassLoaders.onError(type.getName(), failingClassLoader, null, false, new RuntimeException());
+    ignore(failingClassLoader, 10);
+    assertFalse(uninterestingClassLoaders.isUninteresting(failingClassLoader));
+    assertEquals(0, uninterestingClassLoaders.getUninterestingCount());
+  }
+
+  @Test
+  public void testSystemClassLoadersAreNeverUninteresting() throws Exception {
+    ignore(ClassLoader.getSystemClassLoader(), 10);
+    ignore(null, 10);
+    assertFalse(uninterestingClassLoaders.isUninteresting(ClassLoader.getSystemClassLoader()));
+    assertFalse(uninterestingClassLoaders.isUninteresting(null));
+  }
+
+  @Test
+  public void testForgottenWhenRulesChange() throws Exception {
+    ClassLoader classLoader = new URLClassLoader(new URL[0], null);
+    ignore(classLoader, 3);
+    assertTrue(uninterestingClassLoaders.isUninteresting(classLoader));
+
+    ClassNameRules rules = ConfigurationClassNameMatcher.getRules();
+    ConfigurationClassNameMatcher.swapRules(ClassNameRules.compile(Collections.<String>emptyList(),
+      Collections.<String>emptyList(), Collections.<String>emptyList()));
+    try {
+      assertFalse(uninterestingClassLoaders.isUninteresting(classLoader));
+    } finally {
+      ConfigurationClassNameMatcher.swapRules(rules);
+    }
+  }
+
+  private void ignore(ClassLoader classLoader, int classes) {
+    for (int i = 0; i < classes; i++) {
+      uninterestingClassLoaders.onIgnored(type, classLoader, null, false);
+    }
+  }
+}
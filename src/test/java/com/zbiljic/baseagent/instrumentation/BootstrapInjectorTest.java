@@ -0,0 +1,47 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import net.bytebuddy.agent.ByteBuddyAgent;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BootstrapInjectorTest {
+
+  private static final String HELPER = "com.zbiljic.baseagent.instrumentation.BootstrapInjectorTest$Helper";
+
+  @Test
+  public void testInjectsIntoBootstrapClassLoader() throws Exception {
+    BootstrapInjector.inject(ByteBuddyAgent.install(), getClass().getClassLoader(),
+      Collections.singletonList(HELPER));
+    // injecting again is a no-op
+    BootstrapInjector.inject(ByteBuddyAgent.getInstrumentation(), getClass().getClassLoader(),
+      Collections.singletonList(HELPER));
+
+    Class<?> helper = Class.forName(HELPER, false, null);
+    assertNull(helper.getClassLoader());
+    assertEquals("injected", helper.getMethod("get").invoke(null));
+  }
+
+  @Test
+  public void testFailsOnMissingClassFiles() throws Exception {
+    try {
+      BootstrapInjector.inject(ByteBuddyAgent.install(), getClass().getClassLoader(),
+        Collections.singletonList("com.zbiljic.baseagent.instrumentation.Missing"));
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public static class Helper {
+
+    public static String get() {
+      return "injected";
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import net.bytebuddy.implementation.ExceptionMethod;
+import net.bytebuddy.implementation.FixedValue;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MethodTimersTest {
+
+  private static final String TYPE_NAME = "com.example.Timed";
+
+  @Test
+  public void testTimedMethods() throws Exception {
+    byte[] bytes = new ByteBuddy()
+      .subclass(Object.class)
+      .name(TYPE_NAME)
+      .defineMethod("work", int.class, Visibility.PUBLIC).withParameters(String.class, int.class)
+      .intercept(FixedValue.value(42))
+      .defineMethod("fail", void.class, Visibility.PUBLIC)
+      .intercept(ExceptionMethod.throwing(IllegalStateException.class))
+      .defineMethod("untimed", void.class, Visibility.PUBLIC)
+      .intercept(FixedValue.originType())
+      .make()
+      .getBytes();
+    AgentBuilder agentBuilder = Registry.type(named(TYPE_NAME))
+      .timed(nameStartsWith("work").or(named("fail")), "test")
+      .register(new AgentBuilder.Default());
+    byte[] transformed = agentBuilder.makeRaw()
+      .transform(getClass().getClassLoader(), TYPE_NAME.replace('.', '/'), null, null, bytes);
+
+    Class<?> type = new ByteArrayClassLoader(getClass().getClassLoader(),
+      Collections.singletonMap(TYPE_NAME, transformed)).loadClass(TYPE_NAME);
+    Object instance = type.newInstance();
+    for (int i = 0; i < 10; i++) {
+      assertEquals(42, type.getMethod("work", String.class, int.class).invoke(instance, "", i));
+    }
+    try {
+      type.getMethod("fail").invoke(instance);
+    } catch (InvocationTargetException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    type.getMethod("untimed").invoke(instance);
+
+    List<MethodTimer> timers = MethodTimers.getTimers("test");
+    assertEquals(2, timers.size());
+    MethodTimer work = timer(timers, TYPE_NAME + ".work(java.lang.String, int)");
+    assertEquals(10, work.getInvocations());
+    assertEquals(0, work.getErrors());
+    assertTrue(work.getLatencyMaxMicros() > 0);
+    MethodTimer fail = timer(timers, TYPE_NAME + ".fail()");
+    assertEquals(1, fail.getInvocations());
+    assertEquals(1, fail.getErrors());
+
+    assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(
+      "com.zbiljic.baseagent:type=MethodTimer,name=\"test\",method=" + ObjectName.quote(work.getMethod())),
+      "Invocations"));
+  }
+
+  @Test
+  public void testRegisterIsIdempotent() throws Exception {
+    int id = MethodTimers.register("idempotent", "com.example.Type.method()");
+    assertEquals(id, MethodTimers.register("idempotent", "com.example.Type.method()"));
+    MethodTimers.record(id, System.nanoTime(), null);
+    assertEquals(1, MethodTimers.getTimers("idempotent").get(0).getInvocations());
+  }
+
+  @Test
+  public void testRegistersManyTimers() throws Exception {
+    final int first = MethodTimers.register("many", "com.example.Type.method0()");
+    for (int i = 1; i < 200; i++) {
+      assertEquals(first + i, MethodTimers.register("many", "com.example.Type.method" + i + "()"));
+    }
+    MethodTimers.record(first + 199, System.nanoTime(), null);
+    List<MethodTimer> timers = MethodTimers.getTimers("many");
+    assertEquals(200, timers.size());
+    assertEquals(1, timers.get(199).getInvocations());
+  }
+
+  private static MethodTimer timer(List<MethodTimer> timers, String method) {
+    for (MethodTimer timer : timers) {
+      if (timer.getMethod().equals(method)) {
+        return timer;
+      }
+    }
+    throw new AssertionError("No timer for " + method + " in " + timers);
+  }
+}
@@ -0,0 +1,152 @@
+package com.zbiljic.baseagent.instrumentation;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.field.FieldList;
+import net.bytebuddy.description.method.MethodList;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.pool.TypePool;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RegistryTest {
+
+  private static final String TYPE_NAME = "com.example.Fused";
+
+  private final List<String> visits = new ArrayList<String>();
+
+  @Test
+  public void testSeparateRegistrationsApplyTheLastMatching() throws Exception {
+    AgentBuilder agentBuilder = new AgentBuilder.Default();
+    agentBuilder = Registry.type(named(TYPE_NAME)).visit(new Recording("a")).register(agentBuilder);
+    agentBuilder = Registry.type(named(TYPE_NAME)).visit(new Recording("b")).register(agentBuilder);
+
+    transform(agentBuilder);
+
+    assertEquals(Arrays.asList("b"), visits);
+  }
+
+  @Test
+  public void testFusedRegistrationsApplyAllInOrder() throws Exception {
+    Registry.Fusion fusion = Registry.Fusion.begin();
+    AgentBuilder agentBuilder = new AgentBuilder.Default();
+    agentBuilder = Registry.type(named(TYPE_NAME)).visit(new Recording("a")).register(agentBuilder);
+    agentBuilder = Registry.type(nameStartsWith("com.example.")).visit(new Recording("b")).register(agentBuilder);
+    agentBuilder = Registry.type(named(TYPE_NAME)).visit(new Recording("c")).register(agentBuilder);
+    agentBuilder = Registry.type(named("com.example.Other")).visit(new Recording("d")).register(agentBuilder);
+    agentBuilder = fusion.end(agentBuilder);
+
+    assertEquals(4, fusion.getRegistrations());
+    assertEquals(3, fusion.getTransformations());
+
+    transform(agentBuilder);
+
+    assertEquals(Arrays.asList("a", "c", "b"), visits);
+  }
+
+  @Test
+  public void testAttributedRegistrationsOfInactiveAttributionsAreSkipped() throws Exception {
+    Counting first = new Counting();
+    Counting second = new Counting();
+    Registry.Fusion fusion = Registry.Fusion.begin();
+    AgentBuilder agentBuilder = new AgentBuilder.Default();
+    fusion.attributeTo(first);
+    agentBuilder = Registry.type(named(TYPE_NAME)).visit(new Recording("a")).register(agentBuilder);
+    fusion.attributeTo(second);
+    agentBuilder = Registry.type(named(TYPE_NAME)).visit(new Recording("b")).register(agentBuilder);
+    agentBuilder = Registry.type(named(TYPE_NAME)).visit(new Recording("c")).register(agentBuilder);
+    fusion.truncate(2);
+    agentBuilder = fusion.end(agentBuilder);
+    assertEquals(2, fusion.getRegistrations());
+    assertEquals(1, fusion.getTransformations());
+
+    transform(agentBuilder);
+    assertEquals(Arrays.asList("a", "b"), visits);
+    assertEquals(1, first.evaluated);
+    assertEquals(1, first.applied);
+    assertEquals(1, second.applied);
+
+    first.active = false;
+    visits.clear();
+    transform(agentBuilder);
+    assertEquals(Arrays.asList("b"), visits);
+    assertEquals(1, first.evaluated);
+    assertEquals(1, first.applied);
+    assertEquals(2, second.evaluated);
+    assertEquals(2, second.applied);
+  }
+
+  @Test
+  public void testFusionIsConfinedToOneThread() throws Exception {
+    Registry.Fusion fusion = Registry.Fusion.begin();
+    try {
+      Registry.Fusion.begin();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // nested fusions are not supported
+    } finally {
+      fusion.end(new AgentBuilder.Default());
+    }
+  }
+
+  private void transform(AgentBuilder agentBuilder) throws Exception {
+    byte[] bytes = new ByteBuddy().subclass(Object.class).name(TYPE_NAME).make().getBytes();
+    agentBuilder.makeRaw().transform(getClass().getClassLoader(), TYPE_NAME.replace('.', '/'), null, null, bytes);
+  }
+
+  private static class Counting implements Registry.Fusion.Attribution {
+
+    private boolean active = true;
+    private int evaluated;
+    private int applied;
+
+    @Override
+    public boolean isActive() {
+      return active;
+    }
+
+    @Override
+    public void evaluated() {
+      evaluated++;
+    }
+
+    @Override
+    public void applied() {
+      applied++;
+    }
+  }
+
+  private class Recording extends AsmVisitorWrapper.AbstractBase {
+
+    private final String name;
+
+    Recording(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public ClassVisitor wrap(TypeDescription instrumentedType,
+                             ClassVisitor classVisitor,
+                             Implementation.Context implementationContext,
+                             TypePool typePool,
+                             FieldList<FieldDescription.InDefinedShape> fields,
+                             MethodList<?> methods,
+                             int writerFlags,
+                             int readerFlags) {
+      visits.add(name);
+      return classVisitor;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.zbiljic.baseagent.instrumentation.allocation;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class AllocationSamplingTest {
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    AllocationProfiler.setSamplingInterval(AllocationProfiler.DEFAULT_SAMPLING_INTERVAL);
+  }
+
+  @Test
+  public void testSamplesEveryAllocationSite() throws Exception {
+    AllocationProfiler.setSamplingInterval(1);
+    final Class<?> type = transform(Allocating.class);
+    final Callable<?> allocating = (Callable<?>) type.newInstance();
+    // a new thread, as the countdown of a thread only picks up a new interval with its next sample
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        for (int i = 0; i < 10; i++) {
+          allocating.call();
+        }
+        return null;
+      }
+    }).get();
+
+    Map<String, AllocationSite> sites = new HashMap<String, AllocationSite>();
+    for (AllocationSite site : AllocationProfiler.getSites()) {
+      if (site.getLocation().startsWith(type.getName() + ".call:")) {
+        sites.put(site.getType(), site);
+      }
+    }
+    assertEquals(4, sites.size());
+    assertSite(sites.get("long[]"), 10, 10 * 96);
+    assertSite(sites.get("java.lang.String[]"), 10, 10 * 56);
+    assertSite(sites.get(Point.class.getName()), 10, 10 * 24);
+    assertSite(sites.get(Holder.class.getName()), 10, 10 * 16);
+  }
+
+  @Test
+  public void testEstimatesFromSamples() throws Exception {
+    AllocationProfiler.setSamplingInterval(100);
+    final int siteId = AllocationProfiler.register("test.estimates:1", "int[]", true, 4);
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        for (int i = 0; i < 1000000; i++) {
+          AllocationProfiler.sampleArray(4, null, siteId);
+        }
+        return null;
+      }
+    }).get();
+
+    AllocationSite site = null;
+    for (AllocationSite candidate : AllocationProfiler.getSites()) {
+      if (candidate.getLocation().equals("test.estimates:1")) {
+        site = candidate;
+      }
+    }
+    assertNotNull(site);
+    assertEquals(site.getSamples() * 100, site.getEstimatedAllocations());
+    assertEquals(site.getEstimatedAllocations() * 32, site.getEstimatedBytes());
+    assertTrue(site.getEstimatedAllocations() > 900000);
+    assertTrue(site.getEstimatedAllocations() < 1100000);
+  }
+
+  @Test
+  public void testRegistersManySites() throws Exception {
+    AllocationProfiler.setSamplingInterval(1);
+    final int first = AllocationProfiler.register("test.many:0", "int[]", true, 4);
+    for (int i = 1; i < 200; i++) {
+      assertEquals(first + i, AllocationProfiler.register("test.many:" + i, "int[]", true, 4));
+    }
+    assertEquals(first + 199, AllocationProfiler.register("test.many:199", "int[]", true, 4));
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        AllocationProfiler.sampleArray(1, null, first + 199);
+        return null;
+      }
+    }).get();
+
+    int registered = 0;
+    for (AllocationSite site : AllocationProfiler.getSites()) {
+      if (site.getLocation().startsWith("test.many:")) {
+        registered++;
+        assertEquals(site.getLocation().equals("test.many:199") ? 1 : 0, site.getSamples());
+      }
+    }
+    assertEquals(200, registered);
+  }
+
+  private static void assertSite(AllocationSite site, long allocations, long bytes) {
+    assertNotNull(site);
+    assertEquals(allocations, site.getSamples());
+    assertEquals(allocations, site.getEstimatedAllocations());
+    assertEquals(bytes, site.getEstimatedBytes());
+  }
+
+  private static Class<?> transform(Class<?> type) throws Exception {
+    final ClassLoader classLoader = AllocationSamplingTest.class.getClassLoader();
+    AgentBuilder agentBuilder = Registry.type(named(type.getName()))
+      .visit(new AllocationSampling().on(any()))
+      .register(new AgentBuilder.Default());
+    byte[] transformed = agentBuilder.makeRaw().transform(classLoader, type.getName().replace('.', '/'),
+      null, null, ClassFileLocator.ForClassLoader.read(type).resolve());
+    return new ByteArrayClassLoader.ChildFirst(classLoader, Collections.singletonMap(type.getName(), transformed))
+      .loadClass(type.getName());
+  }
+
+  public static class Allocating implements Callable<Object> {
+
+    private int length = 10;
+
+    @Override
+    public Object call() {
+      long[] longs = new long[length];
+      String[] strings = new String[length];
+      // the frame of the branches refers to the uninitialized holder
+      return new Holder(length > 0 ? new Point(longs.length, strings.length) : null);
+    }
+  }
+
+  public static class Point {
+
+    private final int x;
+    private final int y;
+
+    public Point(int x, int y) {
+      this.x = x;
+      this.y = y;
+    }
+  }
+
+  public static class Holder {
+
+    private final Object value;
+
+    public Holder(Object value) {
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package com.zbiljic.baseagent.instrumentation.executor;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExecutorTimersTest {
+
+  private static final Runnable NOOP = new Runnable() {
+    @Override
+    public void run() {
+    }
+  };
+
+  @Test
+  public void testRecordsWaitAndRunTime() throws Exception {
+    Object executor = new Object();
+    Runnable wrapped = ExecutorTimers.wrap(executor, new Runnable() {
+      @Override
+      public void run() {
+        sleep(20);
+      }
+    });
+    sleep(10);
+    wrapped.run();
+
+    ExecutorTimer timer = ExecutorTimers.getTimer(executor);
+    assertEquals(1, timer.getTasks());
+    assertEquals(0, timer.getErrors());
+    assertTrue(timer.getWaitMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+    assertTrue(timer.getRunMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertTrue(timer.getRunPercentileNanos(50) >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertTrue(timer.getPool().startsWith("java.lang.Object@"));
+    assertTrue(ExecutorTimers.getTimers().contains(timer));
+
+    timer.reset();
+    assertEquals(0, timer.getTasks());
+  }
+
+  @Test
+  public void testCountsErrors() throws Exception {
+    Object executor = new Object();
+    try {
+      ExecutorTimers.wrap(executor, new Runnable() {
+        @Override
+        public void run() {
+          throw new IllegalStateException();
+        }
+      }).run();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    Callable<String> callable = ExecutorTimers.wrap(executor, new Callable<String>() {
+      @Override
+      public String call() {
+        return "done";
+      }
+    });
+    assertEquals("done", callable.call());
+
+    ExecutorTimer timer = ExecutorTimers.getTimer(executor);
+    assertEquals(2, timer.getTasks());
+    assertEquals(1, timer.getErrors());
+  }
+
+  @Test
+  public void testWrapsEveryTaskOnce() {
+    Object executor = new Object();
+    Runnable wrapped = ExecutorTimers.wrap(executor, NOOP);
+    assertNotSame(NOOP, wrapped);
+    assertSame(wrapped, ExecutorTimers.wrap(executor, wrapped));
+    assertSame(wrapped, ExecutorTimers.wrap(new Object(), wrapped));
+    assertNull(ExecutorTimers.wrap(executor, (Runnable) null));
+    assertSame(NOOP, ExecutorTimers.unwrap(wrapped));
+    assertSame(NOOP, ExecutorTimers.unwrap(NOOP));
+    assertEquals(NOOP.toString(), wrapped.toString());
+    assertSame(ExecutorTimers.getTimer(executor), ExecutorTimers.getTimer(executor));
+  }
+
+  @Test
+  public void testSubmittedTasksCanBeRemovedAndDrained() {
+    Object executor = new Object();
+    FutureTask<Void> task = new FutureTask<Void>(NOOP, null);
+    BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+    queue.add(ExecutorTimers.wrap(executor, NOOP));
+    queue.add(ExecutorTimers.wrap(executor, task));
+
+    assertTrue(queue.remove(ExecutorTimers.matching(task)));
+    assertFalse(queue.remove(ExecutorTimers.matching(task)));
+    // tasks submitted before the executor was instrumented are not wrapped
+    queue.add(task);
+    assertTrue(queue.remove(ExecutorTimers.matching(task)));
+
+    queue.add(ExecutorTimers.wrap(executor, task));
+    List<Runnable> drained = new ArrayList<Runnable>();
+    queue.drainTo(drained);
+    ExecutorTimers.unwrap(drained);
+    assertEquals(2, drained.size());
+    assertSame(NOOP, drained.get(0));
+    assertSame(task, drained.get(1));
+  }
+
+  @Test
+  public void testReleasesTimersOfCollectedExecutors() {
+    WeakReference<ExecutorTimer> timer = submitToCollectedExecutor();
+    for (int i = 0; i < 100 && timer.get() != null; i++) {
+      System.gc();
+      ExecutorTimers.getTimers();
+      sleep(10);
+    }
+    assertNull(timer.get());
+  }
+
+  private static WeakReference<ExecutorTimer> submitToCollectedExecutor() {
+    Object executor = new Object();
+    ExecutorTimers.wrap(executor, NOOP).run();
+    return new WeakReference<ExecutorTimer>(ExecutorTimers.getTimer(executor));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
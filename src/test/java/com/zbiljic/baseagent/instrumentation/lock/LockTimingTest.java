@@ -0,0 +1,192 @@
+package com.zbiljic.baseagent.instrumentation.lock;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class LockTimingTest {
+
+  public static final ReentrantLock LOCK = new ReentrantLock(true);
+  public static final Object MONITOR = new Object();
+
+  @Test
+  public void testMeasuresContendedLock() throws Exception {
+    final Class<?> type = transform(Locking.class);
+    final Runnable locking = (Runnable) type.newInstance();
+    locking.run();
+    assertTrue(getSites(type).isEmpty());
+
+    final Thread thread;
+    LOCK.lock();
+    try {
+      thread = start(locking);
+      while (!LOCK.hasQueuedThreads()) {
+        Thread.sleep(1);
+      }
+      Thread.sleep(20);
+    } finally {
+      LOCK.unlock();
+    }
+    thread.join();
+
+    List<LockSite> sites = getSites(type);
+    assertEquals(1, sites.size());
+    assertEquals(ReentrantLock.class.getName(), sites.get(0).getLockType());
+    assertEquals(false, sites.get(0).isMonitor());
+    assertContended(sites.get(0));
+  }
+
+  @Test
+  public void testMeasuresContendedMonitor() throws Exception {
+    assumeTrue(LockProfiler.isMonitorProbe());
+    final Class<?> type = transform(Synchronizing.class);
+    final Runnable synchronizing = (Runnable) type.newInstance();
+    synchronizing.run();
+    assertTrue(getSites(type).isEmpty());
+
+    final Thread thread;
+    synchronized (MONITOR) {
+      thread = start(synchronizing);
+      while (thread.getState() != Thread.State.BLOCKED) {
+        Thread.sleep(1);
+      }
+      Thread.sleep(20);
+    }
+    thread.join();
+
+    List<LockSite> sites = getSites(type);
+    assertEquals(1, sites.size());
+    assertEquals(Object.class.getName(), sites.get(0).getLockType());
+    assertEquals(true, sites.get(0).isMonitor());
+    assertContended(sites.get(0));
+  }
+
+  @Test
+  public void testMeasuresContendedMonitorOnceWithLoop() throws Exception {
+    assumeTrue(LockProfiler.isMonitorProbe());
+    final Class<?> type = transform(SynchronizedLoop.class);
+    final Runnable synchronizedLoop = (Runnable) type.newInstance();
+
+    final Thread thread;
+    synchronized (MONITOR) {
+      thread = start(synchronizedLoop);
+      while (thread.getState() != Thread.State.BLOCKED) {
+        Thread.sleep(1);
+      }
+      Thread.sleep(20);
+    }
+    thread.join();
+
+    List<LockSite> sites = getSites(type);
+    assertEquals(1, sites.size());
+    assertContended(sites.get(0));
+  }
+
+  private static Thread start(Runnable runnable) {
+    final Thread thread = new Thread(runnable);
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testRecordsSitePerClassOfLock() throws Exception {
+    final String location = LockTimingTest.class.getName() + ".testRecordsSitePerClassOfLock:1";
+    final int siteId = LockProfiler.register(location);
+    LockProfiler.record(siteId, ReentrantLock.class, false, 10);
+    LockProfiler.record(siteId, ReentrantLock.class, false, 10);
+    LockProfiler.record(siteId, ReentrantLock.class, true, 10);
+    LockProfiler.record(siteId, Object.class, true, 10);
+
+    List<LockSite> sites = new ArrayList<LockSite>();
+    for (LockSite site : LockProfiler.getSites()) {
+      if (site.getLocation().equals(location)) {
+        sites.add(site);
+      }
+    }
+    assertEquals(3, sites.size());
+    for (LockSite site : sites) {
+      assertEquals(site.isMonitor() ? 1 : 2, site.getContentions());
+    }
+  }
+
+  private static void assertContended(LockSite site) {
+    assertEquals(1, site.getContentions());
+    assertTrue(site.getWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  private static List<LockSite> getSites(Class<?> type) {
+    List<LockSite> sites = new ArrayList<LockSite>();
+    for (LockSite site : LockProfiler.getSites()) {
+      if (site.getLocation().startsWith(type.getName() + ".run:")) {
+        sites.add(site);
+      }
+    }
+    return sites;
+  }
+
+  private static Class<?> transform(Class<?> type) throws Exception {
+    final ClassLoader classLoader = LockTimingTest.class.getClassLoader();
+    AgentBuilder agentBuilder = Registry.type(named(type.getName()))
+      .visit(new LockTiming().on(any()))
+      .register(new AgentBuilder.Default());
+    byte[] transformed = agentBuilder.makeRaw().transform(classLoader, type.getName().replace('.', '/'),
+      null, null, ClassFileLocator.ForClassLoader.read(type).resolve());
+    return new ByteArrayClassLoader.ChildFirst(classLoader, Collections.singletonMap(type.getName(), transformed))
+      .loadClass(type.getName());
+  }
+
+  public static class Locking implements Runnable {
+
+    private int count;
+
+    @Override
+    public void run() {
+      LOCK.lock();
+      try {
+        count++;
+      } finally {
+        LOCK.unlock();
+      }
+    }
+  }
+
+  public static class Synchronizing implements Runnable {
+
+    private int count;
+
+    @Override
+    public void run() {
+      synchronized (MONITOR) {
+        count++;
+      }
+    }
+  }
+
+  public static class SynchronizedLoop implements Runnable {
+
+    private int count;
+
+    @Override
+    public void run() {
+      synchronized (MONITOR) {
+        while (count < 1000) {
+          count++;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.zbiljic.baseagent.instrumentation.profiler;
+
+import com.zbiljic.baseagent.instrumentation.Registry;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import net.bytebuddy.implementation.FixedValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingProfilerTest {
+
+  private File outputFile;
+
+  @Before
+  public void setUp() throws Exception {
+    outputFile = File.createTempFile("baseagent-profile", ".collapsed");
+  }
+
+  @After
+  public void tearDown() {
+    outputFile.delete();
+  }
+
+  @Test
+  public void testRegistersManyMethods() throws Exception {
+    final int first = SamplingProfiler.register("test.Many.method0");
+    for (int i = 1; i < 200; i++) {
+      assertEquals(first + i, SamplingProfiler.register("test.Many.method" + i));
+    }
+    assertEquals(first + 199, SamplingProfiler.register("test.Many.method199"));
+    assertEquals("test.Many.method199", SamplingProfiler.getMethod(first + 199));
+    assertEquals("unknown", SamplingProfiler.getMethod(first + 200));
+  }
+
+  @Test
+  public void testCallTreeOfSampledInvocations() throws Exception {
+    SamplingProfiler profiler = new SamplingProfiler(3, 100, 64, outputFile, 0);
+    ThreadProfile profile = profiler.newProfile(Thread.currentThread());
+    int outer = SamplingProfiler.register("test.Outer.run");
+    int inner = SamplingProfiler.register("test.Inner.sleep");
+
+    for (int i = 0; i < 9; i++) {
+      profile.enter(outer);
+      profile.enter(inner);
+      Thread.sleep(1);
+      profile.exit();
+      profile.exit();
+    }
+
+    assertEquals(3, profile.getSampledCalls());
+    assertEquals(12, profiler.drain());
+    CallTree.Node outerNode = profiler.getCallTree().getRoot().children.get(outer);
+    assertEquals(3, outerNode.calls);
+    CallTree.Node innerNode = outerNode.children.get(inner);
+    assertEquals(3, innerNode.calls);
+    assertTrue(innerNode.selfNanos >= 3000000);
+    assertEquals(0, profile.cursor.getDepth());
+
+    profiler.writeProfile();
+    List<String> lines = readLines(outputFile);
+    assertTrue(lines.toString(), lines.get(lines.size() - 1).startsWith("test.Outer.run;test.Inner.sleep "));
+    assertFalse(new File(outputFile.getPath() + ".tmp").exists());
+  }
+
+  @Test
+  public void testTruncatesSamplesWhenBufferIsFull() throws Exception {
+    SamplingProfiler profiler = new SamplingProfiler(1, 100, 4, outputFile, 0);
+    ThreadProfile profile = profiler.newProfile(Thread.currentThread());
+
+    profile.enter(1);
+    profile.enter(2);
+    // no room for the entry and the exits of all three invocations
+    profile.enter(3);
+    profile.exit();
+    profile.exit();
+    profile.exit();
+
+    assertEquals(1, profile.getTruncatedCalls());
+    assertEquals(4, profiler.drain());
+    CallTree.Node first = profiler.getCallTree().getRoot().children.get(1);
+    assertEquals(1, first.calls);
+    assertEquals(1, first.children.get(2).calls);
+    assertTrue(first.children.get(2).children.isEmpty());
+
+    // the drained buffer has room for the next sample
+    profile.enter(1);
+    profile.exit();
+    assertEquals(2, profiler.drain());
+    assertEquals(2, first.calls);
+  }
+
+  @Test
+  public void testAdaptsSamplingIntervalToOverheadBudget() throws Exception {
+    SamplingProfiler profiler = new SamplingProfiler(10, 1.0, 64, outputFile, 0);
+
+    profiler.adaptSamplingInterval(Integer.MAX_VALUE, 1000000);
+    assertTrue(profiler.getOverheadPercent() > 1.0);
+    assertEquals(20, profiler.getSamplingInterval());
+    profiler.adaptSamplingInterval(Integer.MAX_VALUE, 1000000);
+    assertEquals(40, profiler.getSamplingInterval());
+
+    profiler.adaptSamplingInterval(0, 1000000);
+    assertEquals(20, profiler.getSamplingInterval());
+    profiler.adaptSamplingInterval(0, 1000000);
+    profiler.adaptSamplingInterval(0, 1000000);
+    assertEquals(10, profiler.getSamplingInterval());
+  }
+
+  @Test
+  public void testProfilingAdviceWithoutRunningProfiler() throws Exception {
+    final String typeName = "com.example.Profiled";
+    byte[] bytes = new ByteBuddy()
+      .subclass(Object.class)
+      .name(typeName)
+      .defineMethod("work", int.class, Visibility.PUBLIC)
+      .intercept(FixedValue.value(42))
+      .make()
+      .getBytes();
+    byte[] transformed = Registry.type(named(typeName))
+      .visit(Advice.withCustomMapping()
+        .bind(ProfilingAdvice.MethodId.class, new ProfilingAdvice.MethodIdMapping())
+        .to(ProfilingAdvice.class)
+        .on(named("work")))
+      .register(new AgentBuilder.Default())
+      .makeRaw()
+      .transform(getClass().getClassLoader(), typeName.replace('.', '/'), null, null, bytes);
+
+    Class<?> type = new ByteArrayClassLoader(getClass().getClassLoader(),
+      Collections.singletonMap(typeName, transformed)).loadClass(typeName);
+    assertEquals(42, type.getMethod("work").invoke(type.newInstance()));
+    int id = SamplingProfiler.register(typeName + ".work");
+    assertEquals(typeName + ".work", SamplingProfiler.getMethod(id));
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      for (String line; (line = reader.readLine()) != null; ) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,98 @@
+package com.zbiljic.baseagent.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBucketsCoverAllValues() throws Exception {
+    long previous = -1;
+    for (int bucket = 0; bucket < LatencyHistogram.bucket(Long.MAX_VALUE); bucket++) {
+      long highest = LatencyHistogram.highestValue(bucket);
+      assertTrue(highest > previous);
+      assertEquals(bucket, LatencyHistogram.bucket(highest));
+      assertEquals(bucket, LatencyHistogram.bucket(previous + 1));
+      previous = highest;
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.bucket(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentiles() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(99));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500500000L, histogram.getTotal());
+    assertEquals(1000000L, histogram.getMax());
+    assertWithinRelativeError(500000L, histogram.getPercentile(50));
+    assertWithinRelativeError(990000L, histogram.getPercentile(99));
+    assertEquals(1000000L, histogram.getPercentile(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void testRecordsConcurrently() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final long value = (i + 1) * 1000L;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histogram.record(value);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000, histogram.getCount());
+    assertEquals(360000000L, histogram.getTotal());
+    assertEquals(8000L, histogram.getPercentile(100));
+    assertWithinRelativeError(4000L, histogram.getPercentile(50));
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50));
+  }
+
+  @Test
+  public void testStripedCounter() throws Exception {
+    final StripedCounter counter = new StripedCounter();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(40000, counter.sum());
+    assertEquals(64, StripedCounter.stripes(64));
+    assertEquals(8, StripedCounter.stripes(3));
+  }
+
+  private static void assertWithinRelativeError(long expected, long actual) {
+    assertTrue(actual + " is not close to " + expected, actual >= expected && actual <= expected * 1.125);
+  }
+}
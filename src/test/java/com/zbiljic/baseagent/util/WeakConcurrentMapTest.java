@@ -0,0 +1,43 @@
+package com.zbiljic.baseagent.util;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WeakConcurrentMapTest {
+
+  @Test
+  public void testComparesKeysByIdentity() throws Exception {
+    WeakConcurrentMap<String, String> map = new WeakConcurrentMap<String, String>();
+    String key = new String("key");
+    map.put(key, "value");
+
+    assertEquals("value", map.get(key));
+    assertNull(map.get(new String("key")));
+    assertNull(map.remove(new String("key")));
+    assertEquals("value", map.remove(key));
+    assertNull(map.get(key));
+  }
+
+  @Test
+  public void testLookupDoesNotKeepKeyAlive() throws Exception {
+    WeakConcurrentMap<Object, String> map = new WeakConcurrentMap<Object, String>();
+    WeakReference<Object> key = putAndGet(map);
+    for (int i = 0; i < 100 && key.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(key.get());
+    assertEquals(0, map.values().size());
+  }
+
+  private static WeakReference<Object> putAndGet(WeakConcurrentMap<Object, String> map) {
+    Object key = new Object();
+    map.put(key, "value");
+    assertEquals("value", map.get(key));
+    return new WeakReference<Object>(key);
+  }
+}